@@ -0,0 +1,138 @@
+/**
+ * Binary dump sink: writes the raw frames (see BinaryDump) to a file.
+ */
+package com.ultron.client;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.ultron.general.BinaryDump;
+import com.ultron.general.Common;
+import com.ultron.general.FrameSink;
+import com.ultron.general.Log;
+import com.ultron.general.SensorData;
+
+/**
+ * Frames are collected in a direct buffer and written to the file with large sequential writes.
+ * With a file name ending in BinaryDump.SPARSE_EXTENSION the frames are written in sparse form
+ * (only the records of the satellites in the bitmap), one block per write.
+ * The sink must not lose frames: its overflow policy is BLOCK.
+ *
+ */
+public class BinaryDumpSink implements FrameSink {
+
+	/*
+	 * local variables
+	 */
+	private String				fileName;
+	private BinaryDump			format;
+	private Log					log;
+	private FileChannel			channel		= null;
+	private ByteBuffer			buffer		= null;
+	private byte[]				sparseFrame	= null;		// sparse only: the last frame in sparse form
+	private int					blockStart	= -1;		// sparse only: position of the open block in the buffer (-1 -> none)
+	private int					blockRaw	= 0;		// sparse only: bytes of the full frames of the open block
+	private long				numFrames	= 0;
+	private long				numBytes	= 0;
+
+	/*
+	 * Constructor: p_fileName can contain %t (replaced with the actual date, like the text dump)
+	 */
+	public BinaryDumpSink( String p_fileName, boolean p_useMag, Log p_log ) {
+		fileName	= HubWriter.expandFileName( p_fileName );
+		format		= new BinaryDump( p_useMag, false, fileName.endsWith( BinaryDump.SPARSE_EXTENSION ) );
+		log			= p_log;
+	}
+
+	@Override
+	public String getName() {
+		return "binary dump " + fileName;
+	}
+
+	@Override
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.BLOCK;
+	}
+
+	@Override
+	@SuppressWarnings("resource")
+	public boolean open() {
+		try {
+			channel	= new FileOutputStream( fileName ).getChannel();
+			buffer	= ByteBuffer.allocateDirect( Common.SINK_WRITE_BUFFER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+			format.writeHeader( buffer );
+			if (format.isSparse()) sparseFrame = new byte[format.getFrameBytes()];
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Binary Dump: Error in opening " + fileName );
+			}
+			return false;
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Binary Dump: going to write " + (format.isSparse() ? "sparse frames " : "") + "to " + fileName );
+		return true;
+	}
+
+	@Override
+	public void onFrame( byte[] p_frame ) {
+		numFrames++;
+		if (!format.isSparse()) {
+			if (buffer.remaining() < p_frame.length) flush();
+			buffer.put( p_frame );
+			return;
+		}
+
+		int length = SensorData.toSparse( p_frame, 0, format.isUseMag(), sparseFrame, 0 );
+		if (buffer.remaining() < length + BinaryDump.BYTES_BLOCK_HEADER) flush();
+		if (blockStart < 0) {
+			blockStart	= buffer.position();
+			blockRaw	= 0;
+			buffer.position( blockStart + BinaryDump.BYTES_BLOCK_HEADER );
+		}
+		buffer.put( sparseFrame, 0, length );
+		blockRaw += p_frame.length;
+	}
+
+	@Override
+	public void onDrop( long p_numFrames ) {
+		// never called: the policy is BLOCK
+	}
+
+	@Override
+	public void close() {
+		flush();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			if (log != null) log.writeln( Log.ERROR, "Binary Dump: Error in closing " + fileName );
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Binary Dump: written " + numFrames + " frames (" + numBytes + " bytes) to " + fileName );
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void flush() {
+		// close the open block: raw size, sparse size
+		if (blockStart >= 0) {
+			buffer.putInt( blockStart, blockRaw ).putInt( blockStart + Integer.BYTES, buffer.position() - blockStart - BinaryDump.BYTES_BLOCK_HEADER );
+			blockStart = -1;
+		}
+		buffer.flip();
+		numBytes += buffer.remaining();
+		try {
+			while (buffer.hasRemaining()) channel.write( buffer );
+		} catch (IOException e) {
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Binary Dump: Error in writing " + fileName );
+			}
+		}
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Columnar sink: live export of the frames to a columnar dump (see ColumnarDump).
+ */
+package com.ultron.client;
+
+import java.io.IOException;
+
+import com.ultron.general.ColumnarDump;
+import com.ultron.general.FrameSink;
+import com.ultron.general.Log;
+import com.ultron.general.SensorData;
+
+public class ColumnarSink implements FrameSink {
+
+	/*
+	 * local variables
+	 */
+	private String				fileName;
+	private boolean				useMag;
+	private Log					log;
+	private ColumnarDump		dump		= null;
+	private long				numFrames	= 0;
+
+	/*
+	 * Constructor: p_fileName can contain %t (replaced with the actual date, like the text dump)
+	 */
+	public ColumnarSink( String p_fileName, boolean p_useMag, Log p_log ) {
+		fileName	= HubWriter.expandFileName( p_fileName );
+		useMag		= p_useMag;
+		log			= p_log;
+	}
+
+	@Override
+	public String getName() {
+		return "columnar dump " + fileName;
+	}
+
+	@Override
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.BLOCK;
+	}
+
+	@Override
+	public boolean open() {
+		try {
+			dump = new ColumnarDump( fileName, useMag );
+		} catch (IOException e) {
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Columnar Dump: Error in opening " + fileName );
+			}
+			return false;
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Columnar Dump: going to write to " + fileName );
+		return true;
+	}
+
+	@Override
+	public void onFrame( byte[] p_frame ) {
+		try {
+			dump.add( new SensorData( p_frame, useMag ) );
+			numFrames++;
+		} catch (IOException e) {
+			if (log != null) log.writeln( Log.ERROR, "Columnar Dump: Error in writing " + fileName + " - " + e.getMessage() );
+		}
+	}
+
+	@Override
+	public void onDrop( long p_numFrames ) {
+		// never called: the policy is BLOCK
+	}
+
+	@Override
+	public void close() {
+		try {
+			dump.close();
+		} catch (IOException e) {
+			if (log != null) log.writeln( Log.ERROR, "Columnar Dump: Error in closing " + fileName );
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Columnar Dump: written " + numFrames + " frames in " + dump.getNumChunks() + " chunks to " + fileName );
+	}
+
+}
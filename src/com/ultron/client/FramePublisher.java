@@ -0,0 +1,289 @@
+package com.ultron.client;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ultron.general.Common;
+import com.ultron.general.FrameSink;
+import com.ultron.general.Log;
+
+/**
+ * Live frames for a service embedding HubControl, as a java.util.concurrent.Flow.Publisher (reactive streams):
+ * no polling of a queue, and no unbounded buffer.
+ *
+ * The publisher is a FrameSink of the dispatcher of every dump (see HubControl.getFramePublisher): the subscribers
+ * stay subscribed across the dumps and are completed when HubControl quits (complete).
+ * Each subscriber has its own bounded buffer, filled by the sink's thread, and its own drain task run by the
+ * executor, so a slow subscriber delays neither the reader nor the sinks:
+ * - request(n) asks for n signals, each signal (onNext) is a batch of the frames buffered, up to maxBatch:
+ *   a subscriber that keeps up receives the frames one by one, one that lags behind catches up in batches
+ * - when the buffer is full its BufferPolicy decides: DROP_OLDEST (the default: the most recent frames are kept),
+ *   DROP_NEWEST, or CANCEL (the subscription ends with onError)
+ * There is no blocking policy: a subscriber must never slow down the reader. The frames are the arrays of the reader
+ * (no copies): they must not be modified.
+ *
+ * The default executor is ForkJoinPool.commonPool(), or a thread per task when the common pool has a single worker
+ * (as SubmissionPublisher does): subscribers whose onNext blocks should have an executor of their own.
+ */
+public class FramePublisher implements FrameSink, Flow.Publisher<List<byte[]>> {
+
+	public enum BufferPolicy { DROP_OLDEST, DROP_NEWEST, CANCEL }
+
+	/*
+	 * local variables
+	 */
+	private final int			maxBatch;
+	private final Executor		executor;
+	private final Log			log;
+	private volatile boolean	completed		= false;
+	private final CopyOnWriteArrayList<FrameSubscription>	subscriptions	= new CopyOnWriteArrayList<FrameSubscription>();
+
+	/*
+	 * Constructor:
+	 */
+	public FramePublisher( int p_maxBatch, Executor p_executor, Log p_log ) {
+		maxBatch	= Math.max( 1, p_maxBatch );
+		executor	= p_executor;
+		log			= p_log;
+	}
+
+	public FramePublisher( Log p_log ) {
+		this( Common.PUBLISHER_MAX_BATCH_FRAMES,
+				(ForkJoinPool.getCommonPoolParallelism() > 1 ? ForkJoinPool.commonPool() : r -> new Thread( r, "FramePublisher - signal" ).start()),
+				p_log );
+	}
+
+	/*
+	 * Public Methods
+	 */
+
+	/**
+	 * Subscribe with the default buffer: Common.PUBLISHER_BUFFER_FRAMES frames, DROP_OLDEST.
+	 */
+	@Override
+	public void subscribe( Flow.Subscriber<? super List<byte[]>> p_subscriber ) {
+		subscribe( p_subscriber, BufferPolicy.DROP_OLDEST, Common.PUBLISHER_BUFFER_FRAMES );
+	}
+
+	/**
+	 * Subscribe with a buffer of p_bufferFrames frames: the frames read from now on are delivered on demand.
+	 */
+	public void subscribe( Flow.Subscriber<? super List<byte[]>> p_subscriber, BufferPolicy p_policy, int p_bufferFrames ) {
+		if (p_subscriber == null) throw new NullPointerException( "Null subscriber" );
+
+		FrameSubscription s = new FrameSubscription( p_subscriber, p_policy, Math.max( 1, p_bufferFrames ) );
+		p_subscriber.onSubscribe( s );
+		subscriptions.add( s );
+		if (s.cancelled) subscriptions.remove( s );		// cancelled in onSubscribe
+		if (completed) s.complete();
+		if (log != null) log.writeln( Log.INFORMATION, "Publisher: new subscriber (" + p_policy + ", " + p_bufferFrames + " frames)" );
+	}
+
+	/**
+	 * No more frames: every subscriber receives the frames still buffered (on demand) and then onComplete.
+	 */
+	public void complete() {
+		completed = true;
+		for (FrameSubscription s : subscriptions) s.complete();
+	}
+
+	public int getNumSubscribers() {
+		return subscriptions.size();
+	}
+
+	@Override
+	public String getName() {
+		return "publisher";
+	}
+
+	@Override
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.DROP;
+	}
+
+	@Override
+	public boolean open() {
+		return true;
+	}
+
+	@Override
+	public void onFrame( byte[] p_frame ) {
+		for (int i = 0; i < subscriptions.size(); i++) subscriptions.get( i ).offer( p_frame );
+	}
+
+	@Override
+	public void onDrop( long p_numFrames ) {
+		for (FrameSubscription s : subscriptions) s.lost( p_numFrames );
+		if (log != null) log.writeln( Log.WARNING, "Publisher: " + p_numFrames + " frames lost by the publisher" );
+	}
+
+	/**
+	 * End of a dump: the subscribers stay subscribed for the next one.
+	 */
+	@Override
+	public void close() {
+		if (log != null && !subscriptions.isEmpty()) log.writeln( Log.INFORMATION, toString() );
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder( "Publisher: " + subscriptions.size() + " subscribers\n" );
+		for (FrameSubscription s : subscriptions) {
+			sb.append( "  subscriber (" + s.policy + "): delivered " + s.delivered + " frames in " + s.signals + " signals - dropped " + s.dropped + "\n" );
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Buffer and demand of a subscriber.
+	 * The buffer is filled by the sink's thread and emptied by the drain task, both under the subscription's lock;
+	 * the drain task runs in the executor one at a time (wip), so the signals of a subscriber never overlap.
+	 */
+	private class FrameSubscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super List<byte[]>>	subscriber;
+		private final BufferPolicy		policy;
+		private final byte[][]			buffer;
+		private int						head		= 0;		// oldest frame in the buffer
+		private int						count		= 0;
+		private final AtomicLong		requested	= new AtomicLong();		// signals asked and not yet sent
+		private final AtomicInteger		wip			= new AtomicInteger();	// drain requests not yet seen by the drain task
+		private volatile boolean		cancelled	= false;	// no more signals
+		private volatile boolean		done		= false;	// onComplete after the frames buffered
+		private volatile Throwable		error		= null;		// onError as soon as possible
+		private volatile long			delivered	= 0;
+		private volatile long			signals		= 0;
+		private volatile long			dropped		= 0;
+
+		FrameSubscription( Flow.Subscriber<? super List<byte[]>> p_subscriber, BufferPolicy p_policy, int p_bufferFrames ) {
+			subscriber	= p_subscriber;
+			policy		= p_policy;
+			buffer		= new byte[p_bufferFrames][];
+		}
+
+		@Override
+		public void request( long p_n ) {
+			if (p_n <= 0) {
+				error = new IllegalArgumentException( "request(" + p_n + "): the demand must be positive" );
+			} else {
+				// capped at Long.MAX_VALUE: unbounded demand
+				requested.getAndAccumulate( p_n, (r, n) -> (r + n < 0 ? Long.MAX_VALUE : r + n) );
+			}
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove( this );
+			synchronized (this) {
+				for (int i = 0; i < buffer.length; i++) buffer[i] = null;
+				count = 0;
+			}
+		}
+
+		void offer( byte[] p_frame ) {
+			synchronized (this) {
+				if (cancelled || done || error != null) return;
+				if (count == buffer.length) {
+					switch (policy) {
+					case DROP_OLDEST:
+						buffer[head] = null;
+						head = (head + 1) % buffer.length;
+						count--;
+						dropped++;
+						break;
+					case DROP_NEWEST:
+						dropped++;
+						return;
+					default: // CANCEL
+						error = new IllegalStateException( "Buffer of " + buffer.length + " frames full: subscriber too slow" );
+						break;
+					}
+				}
+				if (error == null) {
+					buffer[(head + count) % buffer.length] = p_frame;
+					count++;
+				}
+			}
+			signal();
+		}
+
+		synchronized void lost( long p_numFrames ) {
+			dropped += p_numFrames;
+		}
+
+		void complete() {
+			done = true;
+			signal();
+		}
+
+		// run the drain task, unless it is running: then it loops once more
+		private void signal() {
+			if (wip.getAndIncrement() != 0) return;
+			try {
+				executor.execute( this::drain );
+			} catch (RejectedExecutionException e) {
+				cancel();
+				if (log != null) log.writeln( Log.ERROR, "Publisher: subscriber cancelled, executor rejected the signal - " + e.getMessage() );
+			}
+		}
+
+		private void drain() {
+			int missed = 1;
+			for (;;) {
+				while (!cancelled) {
+					if (error != null) {
+						cancel();
+						subscriber.onError( error );
+						break;
+					}
+					List<byte[]> batch = (requested.get() > 0 ? poll() : null);
+					if (batch == null) {
+						if (done && isEmpty()) {
+							cancel();
+							subscriber.onComplete();
+						}
+						break;
+					}
+					if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+					delivered += batch.size();
+					signals++;
+					try {
+						subscriber.onNext( batch );
+					} catch (Throwable t) {
+						// a subscriber must not throw (reactive streams rule 2.13)
+						if (log != null) log.writeln( Log.ERROR, "Publisher: subscriber cancelled, onNext failed - " + t );
+						error = t;
+					}
+				}
+				missed = wip.addAndGet( -missed );
+				if (missed == 0) return;
+			}
+		}
+
+		// up to maxBatch frames, null if the buffer is empty
+		private synchronized List<byte[]> poll() {
+			if (count == 0) return null;
+			byte[][] batch = new byte[Math.min( count, maxBatch )][];
+			for (int i = 0; i < batch.length; i++) {
+				batch[i]		= buffer[head];
+				buffer[head]	= null;
+				head			= (head + 1) % buffer.length;
+			}
+			count -= batch.length;
+			return List.of( batch );
+		}
+
+		private synchronized boolean isEmpty() {
+			return count == 0;
+		}
+	}
+
+}
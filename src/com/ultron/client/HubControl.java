@@ -26,12 +26,27 @@ import java.net.UnknownHostException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ultron.general.Common;
 import com.ultron.general.CommandData;
+import com.ultron.general.Downsampler;
+import com.ultron.general.FrameDispatcher;
+import com.ultron.general.FrameJournal;
+import com.ultron.general.FrameSink;
+import com.ultron.general.LatestValueCache;
 import com.ultron.general.Log;
+import com.ultron.general.SpillingFrameQueue;
 
+/**
+ * The commands can come from several controllers (console, scheduler, remote API ...): they are
+ * serialized on this object, and the state can be read at any time without locking.
+ * The reader and the writers never take the lock: they only see volatile flags and the queue handoff
+ * (see HubReader.changeQueue and HubWriter.notifyReaderDeath).
+ */
 public class HubControl {
 
 	/*
@@ -43,9 +58,17 @@ public class HubControl {
 	private MyProperties			prop			= null; // command line properties
 	private HubReader 				readerThread	= null; // reader object (only one)
 	private ArrayList<HubWriter>	writerThread	= new ArrayList<HubWriter>();	// writer objects (one or more)
+	private FrameDispatcher			dispatcher		= null; // fan-out of the frames to the other sinks
+	private ArrayList<FrameSink>	fileSinks		= new ArrayList<FrameSink>();	// sinks of the dispatcher rotated with the dump file
+	private TriggeredRecorder		recorder		= null; // triggered recording (null -> the whole session goes to the dump file)
+	private LatestValueCache		latestValues	= null; // latest reading of each satellite, kept across the dumps
+	private FramePublisher			framePublisher	= null; // live frames for an embedding service, kept across the dumps
 	private Log						log				= null; // application log
 	private boolean					useMagnetometer = Common.DEFAULT_USE_MAGNETOMETER;
 	private HubControlState			currentState	= new HubControlState();
+	private boolean					initSent		= false; // last Init Sensors, sent again after a reconnection
+	private boolean					initSetRtc		= false;
+	private boolean					initSetSatellites = false;
 	
 	/*
 	 * Constructor:
@@ -80,13 +103,28 @@ public class HubControl {
 				
 		// read main properties
 		useMagnetometer = (prop.MAGNETOMETER.toUpperCase().equals("YES") ) ? true : false;
+		latestValues = new LatestValueCache( useMagnetometer );
+		framePublisher = new FramePublisher( log );
 		
 		log.writeln(Log.INFORMATION, "DUMP_FILE: " + prop.DUMP_FILE);
+		log.writeln(Log.INFORMATION, "BINARY_DUMP_FILE: " + prop.BINARY_DUMP_FILE);
+		log.writeln(Log.INFORMATION, "LIVE_STREAM_PORT: " + prop.LIVE_STREAM_PORT);
+		log.writeln(Log.INFORMATION, "MULTICAST_GROUP: " + prop.MULTICAST_GROUP + ":" + prop.MULTICAST_PORT);
+		log.writeln(Log.INFORMATION, "COLUMNAR_FILE: " + prop.COLUMNAR_FILE);
+		log.writeln(Log.INFORMATION, "DOWNSAMPLE: " + prop.DOWNSAMPLE_MODE + " x" + prop.DOWNSAMPLE_FACTOR +
+				" - DEADBAND accel " + prop.DEADBAND_ACCEL + " gyro " + prop.DEADBAND_GYRO + " mag " + prop.DEADBAND_MAG);
+		log.writeln(Log.INFORMATION, "ORIENTATION_FILE: " + prop.ORIENTATION_FILE + " - pairs " + prop.ORIENTATION_PAIRS);
 		log.writeln(Log.INFORMATION, "HUB_IP: " + prop.HUB_IP);
 		log.writeln(Log.INFORMATION, "HUB_PORT: " + prop.HUB_PORT);
+		log.writeln(Log.INFORMATION, "AUTO_RECONNECT: " + prop.AUTO_RECONNECT);
+		log.writeln(Log.INFORMATION, "JOURNAL: " + prop.JOURNAL + " - force " + prop.JOURNAL_FORCE);
+		log.writeln(Log.INFORMATION, "QUEUE_FRAMES: " + prop.QUEUE_FRAMES + " - SPILL_DIR " + prop.SPILL_DIR);
+		log.writeln(Log.INFORMATION, "TRIGGER_FILE: " + prop.TRIGGER_FILE + " - " + prop.TRIGGER_PRE_MS + "ms before, " + prop.TRIGGER_POST_MS + "ms after" +
+				" - accel " + prop.TRIGGER_ACCEL + " gyro " + prop.TRIGGER_GYRO + " validity " + prop.TRIGGER_VALIDITY);
 		log.writeln(Log.INFORMATION, "LOG_FILE: " + prop.LOG_FILE);
 		log.writeln(Log.INFORMATION, "LOG_LEVEL: " + prop.LOG_LEVEL);
 		log.writeln(Log.INFORMATION, "MAGNETOMETER: " + prop.MAGNETOMETER);
+		log.writeln(Log.INFORMATION, "FRAME_LAYOUTS: " + prop.FRAME_LAYOUTS);
 		log.writeln(Log.INFORMATION, "SATELLITES_LIST_ARRAY: " + Arrays.toString(prop.SATELLITES_LIST_ARRAY));
 
 		return true;
@@ -103,6 +141,13 @@ public class HubControl {
 		        	log.writeln(Log.ERROR, "===== ERROR: I waited for the Reader Thread to die but it dosn't want to");
 				}
 
+		// wait for the sinks (daemon threads: they would be cut while flushing their files)
+		if (dispatcher != null) {
+			dispatcher.close();
+			dispatcher.join( Common.DISPATCHER_CLOSE_TIMEOUT_MS );
+		}
+		framePublisher.complete();
+
 		// wait for still active threads
 		for (int i = 0; i < writerThread.size(); i++) {
 			if (writerThread.get(i).isAlive())
@@ -120,10 +165,9 @@ public class HubControl {
 		return true;
 	}
 
-	public boolean connect () {
+	public synchronized boolean connect () {
 		
         String	hostName	= prop.HUB_IP;
-        int 	portNumber	= Integer.parseInt(prop.HUB_PORT);
 
         // check state matrix
         if (! currentState.changeState(1)) {
@@ -139,18 +183,7 @@ public class HubControl {
         // create a new socket
         try {
         	
-        	log.writeln(Log.INFORMATION, "Trying to connect to " + hostName + ":" + portNumber);
-        	
-        	hubSocket = new Socket( );
-
-        	hubSocket.setSoTimeout( Common.SOCKET_TIMEOUT_MS );
-        	log.writeln(Log.INFORMATION, "Set SO_TIMEOUT to " + Common.SOCKET_TIMEOUT_MS + "ms");
-        	
-        	hubSocket.connect( new InetSocketAddress(hostName, portNumber) );
-        	log.writeln(Log.INFORMATION, "Connected succefsully to " + hostName + ":" + portNumber);
-        	
-        	inStream  = new DataInputStream( hubSocket.getInputStream());
-        	outStream = hubSocket.getOutputStream();
+        	openSocket( 0 );
 
         } catch (UnknownHostException e) {
 			e.printStackTrace();
@@ -167,7 +200,7 @@ public class HubControl {
 		return true;
 	}
 	
-	public boolean disconnect () {
+	public synchronized boolean disconnect () {
  
 		// check state matrix
         if (! currentState.changeState(6)) {
@@ -193,7 +226,7 @@ public class HubControl {
 		return true;
 	}
 
-	public boolean initSensors ( boolean b_set_rtc, boolean b_set_satellites ) {
+	public synchronized boolean initSensors ( boolean b_set_rtc, boolean b_set_satellites ) {
 		 
 		// check state matrix
         if (! currentState.changeState(2)) {
@@ -203,21 +236,21 @@ public class HubControl {
 	
 		// NOT_ACTIVE & SENDING
 		// (eventually SET_RTC & SET_SATELLITES)
-		CommandData	command = new CommandData (
-				outStream,
-				CommandData.WIFI_NOT_ACTIVE | 
-				CommandData.WIFI_SEND |
-				( b_set_rtc ? CommandData.WIFI_SET_RTC : CommandData.WIFI_VOID ) |
-				( b_set_satellites ? CommandData.WIFI_SET_SATELLITES : CommandData.WIFI_VOID ),
-				prop.SATELLITES_LIST_ARRAY,
-				log );
-		
-		return command.send();
+		if (! initCommand( b_set_rtc, b_set_satellites ).send()) {
+			return false;
+		}
+
+		// remember it for the reconnections
+		initSent			= true;
+		initSetRtc			= b_set_rtc;
+		initSetSatellites	= b_set_satellites;
+		return true;
 	}
 	
-	public boolean startDumping () {
+	public synchronized boolean startDumping () {
 
-		ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();	// queue where to put readed frames
+		boolean			triggered	= (prop.TRIGGER_FILE != null);		// only the frames around the events are recorded
+		Queue<byte[]>	queue		= (triggered ? null : newQueue());	// queue where to put readed frames
 
 		// check state matrix
         if (! currentState.changeState(3)) {
@@ -228,38 +261,62 @@ public class HubControl {
 		// prepare reading and writing thread
 		// reader
 		readerThread = new HubReader( inStream, queue, log, "1", useMagnetometer );
-		// writer
+		// writer (none for the triggered recording)
 		HubWriter hubWriter = null;
-		try {
-			hubWriter = new HubWriter( prop.DUMP_FILE, queue, log, String.valueOf(writerThread.size()+1), useMagnetometer, prop.SATELLITES_LIST_ARRAY.length );
-		} catch (FileNotFoundException e) {
-			readerThread = null;
-			return false;
+		if (! triggered) {
+			try {
+				hubWriter = new HubWriter( prop.DUMP_FILE, queue, log, String.valueOf(writerThread.size()+1), useMagnetometer, prop.SATELLITES_LIST_ARRAY.length );
+				hubWriter.setDownsampler( newDownsampler() );
+			} catch (FileNotFoundException e) {
+				readerThread = null;
+				return false;
+			}
+			writerThread.add(0, hubWriter);
+		}
+
+		// other sinks (the text dump is written by the writer)
+		dispatcher = new FrameDispatcher( log );
+		fileSinks = newFileSinks();
+		for (FrameSink sink : fileSinks) dispatcher.addSink( sink );
+		if (prop.LIVE_STREAM_PORT > 0) {
+			dispatcher.addSink( new LiveStreamServer( prop.LIVE_STREAM_PORT, useMagnetometer, log ) );
+		}
+		if (prop.MULTICAST_GROUP != null && prop.MULTICAST_PORT > 0) {
+			dispatcher.addSink( new MulticastPublisher( prop.MULTICAST_GROUP, prop.MULTICAST_PORT, log ) );
+		}
+		dispatcher.addSink( framePublisher );
+		if (triggered) {
+			recorder = new TriggeredRecorder( prop.TRIGGER_FILE, useMagnetometer, prop.TRIGGER_PRE_MS, prop.TRIGGER_POST_MS,
+					prop.TRIGGER_ACCEL, prop.TRIGGER_GYRO, prop.TRIGGER_VALIDITY.toUpperCase().equals("YES"), log );
+			dispatcher.addSink( recorder );
+		}
+		readerThread.setDispatcher( dispatcher );
+		readerThread.setLatestValues( latestValues );
+		readerThread.setLayoutByType( prop.FRAME_LAYOUTS.toUpperCase().equals("BY_TYPE") );
+		if (hubWriter != null) readerThread.setJournal( newJournal( hubWriter.getDumpFileName() ) );
+		if (prop.AUTO_RECONNECT.toUpperCase().equals("YES")) {
+			readerThread.setReconnector( this::reconnect );
 		}
-		writerThread.add(0, hubWriter);
 
 		// ACTIVE & SENDING
-		CommandData	command = new CommandData (	
-				outStream,
-				CommandData.WIFI_ACTIVE | 
-				CommandData.WIFI_SEND,
-				prop.SATELLITES_LIST_ARRAY,
-				log );
-		
-		if ( ! command.send() ) {
+		if ( ! activeCommand().send() ) {
 			readerThread = null;
+			dispatcher.close();
+			dispatcher.join( Common.DISPATCHER_CLOSE_TIMEOUT_MS );
+			dispatcher = null;
+			recorder = null;
 			return false;
 		};
 		
 		// start new threads to read from the hub & write to the file
 		readerThread.start();
-		writerThread.get(0).start();
+		if (hubWriter != null) hubWriter.start();
 		
 		return true;
 		
 	}
 	
-	public boolean stopDumping () {
+	public synchronized boolean stopDumping () {
 
 		// check state matrix
         if (! currentState.changeState(5)) {
@@ -276,20 +333,40 @@ public class HubControl {
 				log );
 		
 		if ( ! command.send() ) {
-			return false;
+			// the connection is lost (maybe the reader is trying to reconnect): stop anyway
+			log.writeln(Log.WARNING, "Stop Dumping: command not sent to the hub, stopping the threads anyway", Log.ECHO);
 		};
 
-		// stop the reading thread 
+		// stop the reading thread (and wait for it: the last frame it read still goes to the writer)
 		readerThread.stopReading();
+		try {
+			readerThread.join( 2L * Common.SOCKET_TIMEOUT_MS );
+		} catch (InterruptedException e) {
+			log.writeln(Log.WARNING, "Interrupted while waiting for the Reader Thread to stop");
+		}
 		readerThread	= null;
 
+		// the sinks drain the frames still in the ring and close: wait for them, so that their files
+		// are complete even if the application quits right after
+		dispatcher.close();
+		dispatcher.join( Common.DISPATCHER_CLOSE_TIMEOUT_MS );
+		log.writeln(Log.INFORMATION, dispatcher.toString());
+		dispatcher		= null;
+
 		// notify the writer that the reader has stopped
-		writerThread.get(0).notifyReaderDeath();
+		if (recorder == null) writerThread.get(0).notifyReaderDeath();
+		recorder		= null;
 
 		return true;
 	}
 	
-	public boolean changeDumpFile () {
+	public synchronized boolean changeDumpFile () {
+
+		// the triggered recording has a file per event
+		if (recorder != null) {
+			log.writeln(Log.WARNING, "Change Dump File: no dump file while recording the events", Log.ECHO);
+			return false;
+		}
 
 		// check state matrix
         if (! currentState.changeState(4)) {
@@ -297,13 +374,14 @@ public class HubControl {
         	return false;
         }
 
-		ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();	// new queue
+		Queue<byte[]> queue = newQueue();	// new queue
 		HubWriter oldHubWriter = writerThread.get(0);
 
         // create a new writer and start it
 		HubWriter hubWriter = null;
 		try {
 			hubWriter = new HubWriter( prop.DUMP_FILE, queue, log, String.valueOf(writerThread.size()+1), useMagnetometer, prop.SATELLITES_LIST_ARRAY.length );
+			hubWriter.setDownsampler( newDownsampler() );
 		} catch (FileNotFoundException e) {
 			readerThread = null;
 			return false;
@@ -311,17 +389,47 @@ public class HubControl {
 		writerThread.add(0, hubWriter);
 		writerThread.get(0).start();
 
-		// assign a new queue to the reader
-		readerThread.changeQueue(queue);
+		// assign a new queue (and journal) to the reader
+		readerThread.changeQueue( queue, newJournal( hubWriter.getDumpFileName() ) );
 		
 		// tell the old writer that no one will feed his queue anymore
 		oldHubWriter.notifyReaderDeath();
+
+		// the file sinks follow the text dump: each one goes on in a new file from the frames published from now on
+		rotateFileSinks();
 		
 		return true;
 		
 	}
 
-	public boolean quit () {
+	/*
+	 * Latest reading of each satellite (polled by status displays and health checks: no lock, no allocation)
+	 */
+	public LatestValueCache getLatestValues () {
+		return latestValues;
+	}
+
+	/*
+	 * Live frames as a Flow.Publisher, with backpressure (see FramePublisher): the subscribers receive the frames
+	 * of every dump until quit
+	 */
+	public FramePublisher getFramePublisher () {
+		return framePublisher;
+	}
+
+	/*
+	 * External trigger of the triggered recording
+	 */
+	public synchronized boolean trigger () {
+		if (recorder == null) {
+			log.writeln(Log.WARNING, "Trigger: not recording the events (TRIGGER_FILE not set or not dumping)", Log.ECHO);
+			return false;
+		}
+		recorder.trigger();
+		return true;
+	}
+
+	public synchronized boolean quit () {
 
 		// check state matrix
         if (! currentState.changeState(7)) {
@@ -335,8 +443,225 @@ public class HubControl {
 		return true;
 	}
 
+	/*
+	 * Current state (see HubControlState), without waiting for a command in progress
+	 */
+	public int getCurrentState () {
+		return currentState.getCurrentState();
+	}
 	
-	
+	/*
+	 * New connection to the hub after the reader lost it (called by the reader thread).
+	 * It retries with an exponential backoff (with jitter) until it succeeds or the reader is stopped,
+	 * then it sends again the last Init Sensors and the Start Dumping commands.
+	 * The reader keeps its queue: same writer, same dump file.
+	 */
+	private DataInputStream reconnect( HubReader p_reader ) {
+
+		long	delay	= Common.RECONNECT_MIN_DELAY_MS;
+		int		attempt	= 0;
+
+		while (! p_reader.isStopRequested()) {
+
+			// wait between delay/2 and delay: several clients do not retry all at the same time
+			long wait = delay / 2 + ThreadLocalRandom.current().nextLong( delay / 2 + 1 );
+			if (! sleepUnlessStopped( p_reader, wait )) break;
+			delay = Math.min( delay * 2, Common.RECONNECT_MAX_DELAY_MS );
+			attempt++;
+
+			// the commands to send again, read under the lock; the connection itself is made without it:
+			// a connect can take RECONNECT_MAX_DELAY_MS and the commands of the controllers must not wait for it
+			boolean sendInit, setRtc, setSatellites;
+			synchronized (this) {
+				if (p_reader.isStopRequested() || p_reader != readerThread) break;
+				sendInit		= initSent;
+				setRtc			= initSetRtc;
+				setSatellites	= initSetSatellites;
+			}
+
+			log.writeln(Log.WARNING, "Reconnecting to " + prop.HUB_IP + ":" + prop.HUB_PORT + " - attempt " + attempt, Log.ECHO);
+			Socket			socket;
+			DataInputStream	in;
+			OutputStream	out;
+			try {
+				socket	= newSocket( Common.RECONNECT_MAX_DELAY_MS );
+				in		= new DataInputStream( socket.getInputStream() );
+				out		= socket.getOutputStream();
+			} catch (IOException e) {
+				log.writeln(Log.WARNING, "Reconnection failed: " + e.getMessage());
+				continue;
+			}
+
+			// the hub starts again from the beginning: the same commands in a single write
+			CommandData[] commands = (sendInit ?
+					new CommandData[] { initCommand( out, setRtc, setSatellites ), activeCommand( out ) } :
+					new CommandData[] { activeCommand( out ) });
+			if (! CommandData.send( out, log, commands )) {
+				closeQuietly( socket );
+				continue;
+			}
+
+			// the new connection replaces the old one, unless the reader was stopped meanwhile
+			synchronized (this) {
+				if (p_reader.isStopRequested() || p_reader != readerThread) {
+					closeQuietly( socket );
+					break;
+				}
+				closeQuietly( hubSocket );
+				hubSocket	= socket;
+				inStream	= in;
+				outStream	= out;
+			}
+			return in;
+		}
+
+		log.writeln(Log.WARNING, "Reconnection abandoned after " + attempt + " attempts", Log.ECHO);
+		return null;
+	}
+
+	// false if the reader was stopped meanwhile
+	private static boolean sleepUnlessStopped( HubReader p_reader, long p_ms ) {
+		long end = System.currentTimeMillis() + p_ms;
+		for (long left = p_ms; left > 0 && ! p_reader.isStopRequested(); left = end - System.currentTimeMillis()) {
+			try {
+				Thread.sleep( Math.min( left, Common.SOCKET_TIMEOUT_MS ) );
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return ! p_reader.isStopRequested();
+	}
+
+	// socket to the hub with the streams (p_timeoutMs: connection timeout, 0 -> none)
+	private void openSocket( int p_timeoutMs ) throws IOException {
+		hubSocket	= newSocket( p_timeoutMs );
+		inStream	= new DataInputStream( hubSocket.getInputStream());
+		outStream	= hubSocket.getOutputStream();
+	}
+
+	// new connection to the hub, without touching the current one
+	private Socket newSocket( int p_timeoutMs ) throws IOException {
+
+        String	hostName	= prop.HUB_IP;
+        int 	portNumber	= Integer.parseInt(prop.HUB_PORT);
+
+    	log.writeln(Log.INFORMATION, "Trying to connect to " + hostName + ":" + portNumber);
+    	
+    	Socket socket = new Socket( );
+
+    	socket.setSoTimeout( Common.SOCKET_TIMEOUT_MS );
+    	log.writeln(Log.INFORMATION, "Set SO_TIMEOUT to " + Common.SOCKET_TIMEOUT_MS + "ms");
+    	socket.setKeepAlive( true );
+    	
+    	try {
+    		socket.connect( new InetSocketAddress(hostName, portNumber), p_timeoutMs );
+    	} catch (IOException e) {
+    		closeQuietly( socket );
+    		throw e;
+    	}
+    	log.writeln(Log.INFORMATION, "Connected succefsully to " + hostName + ":" + portNumber);
+    	
+    	return socket;
+	}
+
+	private void closeQuietly( Socket p_socket ) {
+		if (p_socket == null) return;
+		try {
+			p_socket.close();
+		} catch (IOException e) {
+			log.writeln(Log.WARNING, "Error closing the connection to the hub - " + e.getMessage());
+		}
+	}
+
+	// NOT_ACTIVE & SENDING (eventually SET_RTC & SET_SATELLITES)
+	private CommandData initCommand( boolean b_set_rtc, boolean b_set_satellites ) {
+		return initCommand( outStream, b_set_rtc, b_set_satellites );
+	}
+
+	private CommandData initCommand( OutputStream p_out, boolean b_set_rtc, boolean b_set_satellites ) {
+		return new CommandData (
+				p_out,
+				CommandData.WIFI_NOT_ACTIVE | 
+				CommandData.WIFI_SEND |
+				( b_set_rtc ? CommandData.WIFI_SET_RTC : CommandData.WIFI_VOID ) |
+				( b_set_satellites ? CommandData.WIFI_SET_SATELLITES : CommandData.WIFI_VOID ),
+				prop.SATELLITES_LIST_ARRAY,
+				log );
+	}
+
+	// ACTIVE & SENDING
+	private CommandData activeCommand() {
+		return activeCommand( outStream );
+	}
+
+	private CommandData activeCommand( OutputStream p_out ) {
+		return new CommandData (	
+				p_out,
+				CommandData.WIFI_ACTIVE | 
+				CommandData.WIFI_SEND,
+				prop.SATELLITES_LIST_ARRAY,
+				log );
+	}
+
+	/*
+	 * Write-ahead journal of a dump file (null -> no journal)
+	 */
+	private FrameJournal newJournal( String p_dumpFileName ) {
+		if (! prop.JOURNAL.toUpperCase().equals("YES")) return null;
+		try {
+			return new FrameJournal( p_dumpFileName, useMagnetometer, prop.JOURNAL_FORCE.toUpperCase().equals("YES") );
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.writeln(Log.ERROR, "===== ERROR: cannot create the journal of " + p_dumpFileName + " - " + e.getMessage(), Log.ECHO);
+			return null;
+		}
+	}
+
+	/*
+	 * Queue between the reader and a writer: bounded in memory, the rest spilled to disk (QUEUE_FRAMES 0 -> unbounded)
+	 */
+	private Queue<byte[]> newQueue() {
+		if (prop.QUEUE_FRAMES <= 0) return new ConcurrentLinkedQueue<byte[]>();
+		return new SpillingFrameQueue( prop.QUEUE_FRAMES, prop.SPILL_DIR );
+	}
+
+	/*
+	 * Reduction of the frames written to the dump file (null -> every frame)
+	 */
+	private Downsampler newDownsampler() {
+		int mode = Downsampler.parseMode( prop.DOWNSAMPLE_MODE );
+		if (mode == Downsampler.MODE_NONE) return null;
+		return new Downsampler( mode, prop.DOWNSAMPLE_FACTOR, useMagnetometer, prop.DEADBAND_ACCEL, prop.DEADBAND_GYRO, prop.DEADBAND_MAG );
+	}
+
+	/*
+	 * Sinks of the dispatcher writing files (their names can contain %t like the text dump)
+	 */
+	private ArrayList<FrameSink> newFileSinks() {
+		ArrayList<FrameSink> ret = new ArrayList<FrameSink>();
+		if (prop.BINARY_DUMP_FILE != null) ret.add( new BinaryDumpSink( prop.BINARY_DUMP_FILE, useMagnetometer, log ) );
+		if (prop.COLUMNAR_FILE != null) ret.add( new ColumnarSink( prop.COLUMNAR_FILE, useMagnetometer, log ) );
+		if (prop.ORIENTATION_FILE != null) ret.add( new OrientationSink( prop.ORIENTATION_FILE, prop.ORIENTATION_PAIRS, useMagnetometer, log ) );
+		return ret;
+	}
+
+	/*
+	 * Replace every file sink with a sink of a new file (the same file name, without %t or in the same second,
+	 * is not rotated: it would be truncated while the old sink is still writing it)
+	 */
+	private void rotateFileSinks() {
+		ArrayList<FrameSink> newSinks = newFileSinks();
+		for (int i = 0; i < fileSinks.size(); i++) {
+			FrameSink oldSink = fileSinks.get( i );
+			FrameSink newSink = newSinks.get( i );
+			if (newSink.getName().equals( oldSink.getName() )) {
+				log.writeln(Log.WARNING, "Change Dump File: " + oldSink.getName() + " not rotated (same file name, use %t)", Log.ECHO);
+			} else if (dispatcher.replaceSink( oldSink, newSink )) {
+				fileSinks.set( i, newSink );
+			}
+		}
+	}
+
 	/*
 	 * Main method
 	 */
@@ -366,6 +691,8 @@ public class HubControl {
 				"      : x - 2 + 3\n" +
 				"      : 4 - Change Dump File\n" +
 				"      : 5 - Stop Dumping (NO ACTIVE & SEND)\n" +
+				"      : t - Trigger (triggered recording)\n" +
+				"      : s - Status (latest reading of the satellites)\n" +
 				//"      : 6 - Deactivate Sensors (NO ACTIVE & SEND)\n" +
 				"      : 6 - Disconnect\n" +
 				"      : q - Quit\n"
@@ -395,6 +722,12 @@ public class HubControl {
 			case '5': // Stop Dumping (NOT ACTIVE & SEND)
 				hubCtrl.stopDumping();
 				break;
+			case 't': // record the frames around now
+				hubCtrl.trigger();
+				break;
+			case 's': // latest reading of the satellites
+				System.out.print(hubCtrl.getLatestValues().toString());
+				break;
 			//case '6': // Deactivate Sensors (NOT ACTIVE & SEND)
 			//	hubCtrl.initSensors(false, false);
 			//	break;
@@ -414,7 +747,7 @@ public class HubControl {
 
 class HubControlState {
 	// states matrix: rows -> current state; column -> next state
-	private boolean[][]				stateMatrix		= {
+	private static final boolean[][]	stateMatrix		= {
 			/* start         end -> 	start	1		2		3		4		5		6		q	*/	
 			/* initial state */			{false,	true,	false,	false,	false,	false,	false,	true},
 			/* 1 - connect */			{false,	false,	true,	false,	false,	false,	true,	false},
@@ -425,22 +758,29 @@ class HubControlState {
 			/* 6 - Disconnect */		{false,	true,	false,	false,	false,	false,	false,	true},
 			/* q - Quit */				{false,	false,	false,	false,	false,	false,	false,	false}
 	};
-	private int						currentState	= 0; // initial state
+	private final AtomicInteger		currentState	= new AtomicInteger( 0 ); // initial state
 	
+	/*
+	 * Move to p_newState if the matrix allows it from the current state.
+	 * Lock free: with concurrent requests exactly one of the legal transitions wins.
+	 */
 	public boolean changeState ( int p_newState ) {
-        // check state matrix
-        if (!stateMatrix[currentState][p_newState]) {
-        	// new state is incorrect
-        	return false;
-        }
-        // new state : valid
-        currentState = p_newState;
-        
-        return true;
+		while (true) {
+			int state = currentState.get();
+	        // check state matrix
+	        if (!stateMatrix[state][p_newState]) {
+	        	// new state is incorrect
+	        	return false;
+	        }
+	        // new state : valid (unless someone else changed the state meanwhile: check again)
+	        if (currentState.compareAndSet( state, p_newState )) {
+	        	return true;
+	        }
+		}
 	}
 	
 	public int getCurrentState () {
-		return currentState;
+		return currentState.get();
 	}
 
 	
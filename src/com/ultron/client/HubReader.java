@@ -4,15 +4,22 @@
  * - an input stream from the HUB (it can be obtained with socket.getInputStream() where socket is
  * 		an already connected socket to the HUB 
  * - a queue where it place the frames read and
+ * 		(null -> no queue: the frames go only to the dispatcher, e.g. for the triggered recording)
  */
 package com.ultron.client;
 
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Queue;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 
 import com.ultron.general.Common;
+import com.ultron.general.FrameDispatcher;
+import com.ultron.general.FrameJournal;
+import com.ultron.general.FrameLayout;
+import com.ultron.general.GapDetector;
+import com.ultron.general.LatestValueCache;
 import com.ultron.general.Log;
 import com.ultron.general.SensorData;
 
@@ -32,16 +39,48 @@ public class HubReader extends Thread {
 	 * local variables
 	 */
 	private DataInputStream					inStream	= null;	// input stream coming from the hub
-	private ConcurrentLinkedQueue<byte[]>	queue		= null;	// queue where to put readed frames
+	private volatile Queue<byte[]>			queue		= null;	// queue where to put readed frames (see changeQueue)
+	private volatile Queue<byte[]>			addingTo	= null;	// queue the reader is adding a frame to (null -> none)
 	private Log								log			= null;
-	private boolean							stopWorking	= false; // when set to FALSE -> the thread stops
+	private volatile boolean				stopWorking	= false; // when set to TRUE -> the thread stops
 	private boolean							useMag		= Common.DEFAULT_USE_MAGNETOMETER;
+	private GapDetector						gapDetector	= new GapDetector();	// real time check of the hub timestamps
+	private FrameDispatcher					dispatcher	= null;	// other consumers of the frames (can be null)
+	private LatestValueCache				latestValues = null;	// latest reading of each satellite (can be null)
+	private Reconnector						reconnector	= null;	// gives a new stream when the connection is lost (null -> stop)
+	private int								lastHubID;
+	private boolean							hasHubID	= false;
+	private int								numReconnections = 0;
+	private FrameJournal					journal		= null;	// write-ahead journal of the frames of journalQueue (null -> none)
+	private Queue<byte[]>					journalQueue = null;
+	private volatile FrameJournal			nextJournal	= null;	// journal of the queue set by changeQueue
+	private byte[][]						pending		= null;	// frames read, waiting for the journal commit
+	private int								numPending	= 0;
+	private boolean							layoutByType = false;	// true -> the size of each frame is given by its frameType
+	private long							numRefused	= 0;	// frames refused by the queue
+	private final Object					disconnectLock = new Object();	// guards disconnected and the DISCONNECTED markers
+	private boolean							disconnected = false;	// true -> waiting for a new connection
+
+	/**
+	 * Marker put into the queue when the connection to the hub is lost: the writer records the disconnection
+	 * and waits for the frames of the new connection.
+	 */
+	public static final byte[]				DISCONNECTED	= new byte[0];
+
+	/**
+	 * Supervisor of the connection: called by the reader thread when the connection is lost,
+	 * it returns the stream of a new connection (commands already sent again) or null to give up
+	 * (it should give up as soon as p_reader.isStopRequested()).
+	 */
+	public interface Reconnector {
+		DataInputStream reconnect( HubReader p_reader );
+	}
 	
 
 	/*
 	 * Constructor:
 	 */
-	public HubReader( DataInputStream p_in, ConcurrentLinkedQueue<byte[]> p_que, Log p_log, String p_threadName, boolean p_useMag ) {
+	public HubReader( DataInputStream p_in, Queue<byte[]> p_que, Log p_log, String p_threadName, boolean p_useMag ) {
 
 		inStream	= p_in;
 		queue 		= p_que;
@@ -52,15 +91,15 @@ public class HubReader extends Thread {
 		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": creating ..." );
 	}
 	
-	public HubReader( DataInputStream p_in, ConcurrentLinkedQueue<byte[]> p_que, Log p_log, String p_threadName ) {
+	public HubReader( DataInputStream p_in, Queue<byte[]> p_que, Log p_log, String p_threadName ) {
 		this( p_in, p_que, p_log, p_threadName, Common.DEFAULT_USE_MAGNETOMETER );
 	}
 
-	public HubReader( DataInputStream p_in, ConcurrentLinkedQueue<byte[]> p_que, Log p_log ) {
+	public HubReader( DataInputStream p_in, Queue<byte[]> p_que, Log p_log ) {
 		this( p_in, p_que, p_log, null );
 	}
 
-	public HubReader( DataInputStream p_in, ConcurrentLinkedQueue<byte[]> p_que ) {
+	public HubReader( DataInputStream p_in, Queue<byte[]> p_que ) {
 		this( p_in, p_que, null );
 	}
 
@@ -74,9 +113,69 @@ public class HubReader extends Thread {
 	
 	/**
 	 * change the queue.
+	 * When it returns the reader will not add any other frame to the old queue:
+	 * its writer can be told that the reader is gone (see HubWriter.notifyReaderDeath).
 	 */
-	public void changeQueue( ConcurrentLinkedQueue<byte[]> p_newQueue ) {
-		queue = p_newQueue;
+	public void changeQueue( Queue<byte[]> p_newQueue ) {
+		changeQueue( p_newQueue, null );
+	}
+
+	/**
+	 * change the queue and the journal (null -> none) of the frames added to it.
+	 * While the reader is reconnecting the new queue gets the DISCONNECTED marker too, so that its writer waits.
+	 */
+	public void changeQueue( Queue<byte[]> p_newQueue, FrameJournal p_newJournal ) {
+		synchronized (disconnectLock) {
+			Queue<byte[]> oldQueue = queue;
+			nextJournal = p_newJournal;
+			queue = p_newQueue;
+			// wait for a frame being added to the old queue (a matter of microseconds)
+			while (addingTo == oldQueue && oldQueue != null) Thread.yield();
+			if (disconnected && p_newQueue != null) p_newQueue.offer( DISCONNECTED );
+		}
+	}
+	
+	public boolean isStopRequested() {
+		return stopWorking;
+	}
+	
+	/**
+	 * set the write-ahead journal of the frames (before starting the thread): the frames are added to the queue
+	 * only after they are written to the journal, in blocks of the frames that arrived together.
+	 */
+	public void setJournal( FrameJournal p_journal ) {
+		journal			= p_journal;
+		journalQueue	= queue;
+	}
+	
+	/**
+	 * set the supervisor of the connection (before starting the thread).
+	 */
+	public void setReconnector( Reconnector p_reconnector ) {
+		reconnector = p_reconnector;
+	}
+	
+	/**
+	 * set the cache of the latest reading of each satellite (before starting the thread).
+	 */
+	public void setLatestValues( LatestValueCache p_latestValues ) {
+		latestValues = p_latestValues;
+	}
+	
+	/**
+	 * size every frame by the layout of its frameType (see FrameLayout) instead of reading full frames
+	 * (before starting the thread): the header is read first, then the records it announces.
+	 * Compact frames are expanded: the queue and the sinks get full frames anyway.
+	 */
+	public void setLayoutByType( boolean p_layoutByType ) {
+		layoutByType = p_layoutByType;
+	}
+	
+	/**
+	 * set the dispatcher publishing the frames to the other sinks (before starting the thread).
+	 */
+	public void setDispatcher( FrameDispatcher p_dispatcher ) {
+		dispatcher = p_dispatcher;
 	}
 	
 	/**
@@ -87,45 +186,113 @@ public class HubReader extends Thread {
     public void run() {
 		
 		int		nFrameSize	= (useMag ? SensorData.BYTES_WITH_MAG: SensorData.BYTES_WITHOUT_MAG);
+		int		nHeadSize	= (layoutByType ? SensorData.BYTES_HEADER_ONLY : nFrameSize);	// read before knowing the size of the frame
 		int		nBytesRead = 0;
 		int		nNumFrames = 0;
+		long	nBytesWire	= 0;	// bytes of the frames as sent by the hub
+		long	nMisplaced	= 0;	// frames with satellites in a slot their layout does not send (cleared)
+		long	nClearedBits = 0;
+		long	lastBytesWire = 0;
     	long	now;
     	long	startCicle, lenghtCicle, maxCicle = 0, minCicle = Long.MAX_VALUE, sumCicle = 0;
 
-		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": going to read " + nFrameSize + " bytes per frame" );
+		if (log != null) {
+			if (layoutByType)	log.writeln( Log.WARNING, "Reader Thread " + getName() + ": going to read the size of each frame from its frameType" );
+			else				log.writeln( Log.WARNING, "Reader Thread " + getName() + ": going to read " + nFrameSize + " bytes per frame" );
+		}
 		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": starting ..." );
 
         // main loop reading frames from the hub
 		startCicle = System.nanoTime();
 		
+    	pending = new byte[ Math.max( 1, Common.JOURNAL_BLOCK_BYTES / nFrameSize ) ][];
+    	byte[]	bFrame		= new byte[ nFrameSize ];
+    	int		nBytesFrame	= 0;	// bytes of bFrame already read
+    	int		nReadSize	= nHeadSize;	// bytes of bFrame to read
+    	FrameLayout	layout	= null;	// layout of the frame being read (null -> header not read yet or full frames)
+    	int		nTimeouts	= 0;	// consecutive read timeouts
+
 		// loop until user request
         while (!stopWorking ) {
 
-        	byte[]	bFrame = new byte[ nFrameSize ];
+        	String	failure	= null;
         	
-        	// read next buffer into the buffer
+        	// read the rest of the frame: a read can return part of it
         	try {
-				if ((nBytesRead = inStream.read(bFrame, 0, nFrameSize)) < 0) {
-			        // manage EOF: exit thread
-		    		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": EOF found!" );
-					break;
+				if ((nBytesRead = inStream.read(bFrame, nBytesFrame, nReadSize - nBytesFrame)) < 0) {
+					failure = "EOF found!";
 				}
+				nTimeouts = 0;
+			} catch (SocketTimeoutException e) {
+				// the hub sends a frame every few ms: some timeouts in a row mean it is gone
+				if (++nTimeouts < Common.READER_MAX_TIMEOUTS) continue;
+				failure = "no data for " + (nTimeouts * Common.SOCKET_TIMEOUT_MS) + "ms";
 			} catch (IOException e) {
 				e.printStackTrace();
 				if (log != null) {
 					log.writeln( Log.ERROR, "Reader Thread " + getName() + ": IO Exception!" );
 					e.printStackTrace( log.getOutputStream() );
 				}
+				failure = "IO Exception - " + e.getMessage();
 			}
-       	
-        	if (nBytesRead != nFrameSize) if (log != null) log.writeln( Log.ERROR, "Reader Thread " + getName() + ":  read only " + nBytesRead + " frames!" );
+
+        	// connection lost: go on with a new one (the frame being read is lost)
+        	if (failure != null) {
+	    		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": connection lost - " + failure, Log.ECHO );
+	    		if (stopWorking || !reconnect()) break;
+	    		nBytesFrame	= 0;
+	    		nReadSize	= nHeadSize;
+	    		layout		= null;
+	    		nTimeouts	= 0;
+	    		startCicle	= System.nanoTime();
+	    		continue;
+        	}
+
+        	nBytesFrame += nBytesRead;
+        	if (nBytesFrame < nReadSize) continue;
+
+        	// the header gives the size of the rest of the frame
+        	if (layoutByType && layout == null) {
+        		layout		= FrameLayout.of( bFrame, 0, useMag );
+        		nReadSize	= layout.getFrameBytes();
+        		continue;
+        	}
+        	nBytesWire	+= nReadSize;
+        	nBytesFrame	= 0;
+        	nReadSize	= nHeadSize;
+        	if (layout != null) {
+        		int cleared = layout.expand( bFrame, 0 );
+        		if (cleared > 0) {
+        			if (nMisplaced++ == 0 && log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": " + cleared +
+        					" satellites beyond the " + layout.getNumSensors() + " records of frame type " + layout.getFrameType() + " - removed from the bitmap (hub misconfigured?)", Log.ECHO );
+        			nClearedBits += cleared;
+        		}
+        		layout = null;
+        	}
+        	
         	if (log != null) log.writeln( Log.DEBUG, "Reader Thread " + getName() + ":  " + Arrays.toString(bFrame) );
         	
         	// count num of frames
         	nNumFrames++;
+
+        	// alert as soon as the hub loses (or repeats) frames
+        	if (gapDetector.check( bFrame ) != GapDetector.EVENT_NONE) {
+        		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": frame " + nNumFrames + " - " + gapDetector.lastEventToString(), Log.ECHO );
+        	}
  
-        	// put every frame into the queue
-        	queue.add( bFrame );
+        	// put every frame into the queue (through the journal, if any: the frames that arrived together are
+        	// written with a single write, before they can be formatted)
+        	pending[numPending++] = bFrame;
+        	if (numPending == pending.length || (journal == null && nextJournal == null) || ! isFrameWaiting( nHeadSize )) {
+        		flushPending();
+        	}
+        	
+        	// and publish it to the other sinks (the same array: no copies)
+        	if (dispatcher != null) dispatcher.publish( bFrame );
+        	if (latestValues != null) latestValues.update( bFrame );
+        	lastHubID	= SensorData.readHubID( bFrame );
+        	hasHubID	= true;
+        	bFrame		= new byte[ nFrameSize ];
         	
         	// performance calc
         	now = System.nanoTime();
@@ -136,10 +303,14 @@ public class HubReader extends Thread {
         	if (lenghtCicle < minCicle) minCicle = lenghtCicle;
         	startCicle = now;
         	if (log != null) log.writeln( Log.DEBUG, "Reader Thread " + getName() + ": frame " + nNumFrames + " - bytes read: " + 
-        												nBytesRead + " in " + Math.round(lenghtCicle/1000F) + "us" );
+        												(nBytesWire - lastBytesWire) + " in " + Math.round(lenghtCicle/1000F) + "us" );
+        	lastBytesWire = nBytesWire;
 	        	
         }
 
+		flushPending();
+		if (journal != null) closeJournal();
+
 		if (stopWorking) {  // stop requested
     		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": Someone has requested the thread to stop!" );
 		}
@@ -151,9 +322,112 @@ public class HubReader extends Thread {
 					"- max " + Math.round(maxCicle/1000F) + "us " +
 					"- min " + Math.round(minCicle/1000F) + "us " +
 					"- avg " + Math.round(sumCicle / nNumFrames /1000F) + "us" );
+			if (log != null && layoutByType) log.writeln( Log.INFORMATION, "Reader Thread " + getName() + ": read " + nBytesWire + " bytes - " +
+					Math.round( 100.0 * nBytesWire / ((long)nNumFrames * nFrameSize) ) + "% of the full frames" );
+			if (log != null && nMisplaced > 0) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": " + nMisplaced +
+					" frames with satellites beyond their layout - " + nClearedBits + " removed from the bitmaps" );
+			if (log != null) log.writeln( Log.INFORMATION, "Reader Thread " + getName() + ": reconnections " + numReconnections );
+			if (log != null && numRefused > 0) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": " + numRefused + " frames refused by the queue" );
+			if (log != null) log.writeln( Log.INFORMATION, "Reader Thread " + getName() + ": gaps\n" + gapDetector.toString() );
 
 		}
 		
 	}
+	
+	/*
+	 * Private methods
+	 */
+
+	// announce the queue before adding to it (and check it is still the current one) so that changeQueue can wait for the add
+	private Queue<byte[]> announceQueue() {
+    	Queue<byte[]> currentQueue;
+    	do {
+    		currentQueue	= queue;
+    		addingTo		= currentQueue;
+    	} while (currentQueue != queue);
+    	return currentQueue;
+	}
+
+	private void enqueue( byte[] p_frame ) {
+		Queue<byte[]> currentQueue = announceQueue();
+		if (currentQueue != null) offer( currentQueue, p_frame );
+    	addingTo = null;
+	}
+
+	// write the pending frames to the journal of the current queue, then add them to the queue
+	private void flushPending() {
+		if (numPending == 0) return;
+
+		Queue<byte[]> currentQueue = announceQueue();
+
+		// the journal follows the queue: a new dump file has its own journal
+		if (currentQueue != journalQueue) {
+			if (journal != null) closeJournal();
+			journal			= nextJournal;
+			journalQueue	= currentQueue;
+		}
+		if (journal != null) {
+			for (int i = 0; i < numPending; i++) journal.append( pending[i] );
+			if (! journal.commit() && log != null) log.writeln( Log.ERROR, "Reader Thread " + getName() + ": Error in writing " + journal.getFileName() );
+		}
+
+		for (int i = 0; i < numPending; i++) {
+			if (currentQueue != null) offer( currentQueue, pending[i] );
+			pending[i] = null;
+		}
+		numPending	= 0;
+		addingTo	= null;
+	}
+
+	// a queue refusing a frame (a SpillingFrameQueue closed by its writer) must not stop the reader: count it
+	private void offer( Queue<byte[]> p_queue, byte[] p_frame ) {
+		if (p_queue.offer( p_frame )) return;
+		if (numRefused++ == 0 && log != null) log.writeln( Log.ERROR, "Reader Thread " + getName() + ": the queue refuses the frames (writer gone?)", Log.ECHO );
+	}
+
+	// true if the next frame has already arrived (then the journal waits for it)
+	private boolean isFrameWaiting( int p_frameSize ) {
+		try {
+			return inStream.available() >= p_frameSize;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void closeJournal() {
+		if (! journal.close() && log != null) log.writeln( Log.ERROR, "Reader Thread " + getName() + ": Error in closing " + journal.getFileName() );
+		if (log != null) log.writeln( Log.INFORMATION, "Reader Thread " + getName() + ": journal " + journal.getFileName() + " - " +
+				journal.getNumFrames() + " frames in " + journal.getNumBlocks() + " blocks" );
+		journal = null;
+	}
+
+	// record the disconnection and ask the supervisor for a new connection: false -> stop reading
+	private boolean reconnect() {
+		if (reconnector == null) return false;
+
+		if (hasHubID) {
+			gapDetector.markDisconnect( lastHubID );
+			if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": " + gapDetector.lastEventToString() );
+		}
+		flushPending();
+		synchronized (disconnectLock) {
+			disconnected = true;
+			enqueue( DISCONNECTED );
+		}
+
+		DataInputStream newStream = reconnector.reconnect( this );
+
+		// before the first frame of the new connection (or the end of the reader): a queue changed from now on
+		// needs no marker
+		synchronized (disconnectLock) {
+			disconnected = false;
+		}
+		if (newStream == null) return false;
+
+		inStream = newStream;
+		numReconnections++;
+		if (log != null) log.writeln( Log.WARNING, "Reader Thread " + getName() + ": reconnected (" + numReconnections + ")", Log.ECHO );
+		return true;
+	}
 
 }
@@ -8,16 +8,26 @@
 package com.ultron.client;
 
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Locale;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Queue;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.ultron.general.Common;
+import com.ultron.general.CountingOutputStream;
+import com.ultron.general.Downsampler;
+import com.ultron.general.DumpIndex;
+import com.ultron.general.GapDetector;
+import com.ultron.general.GapIndex;
 import com.ultron.general.Log;
 import com.ultron.general.SensorData;
+import com.ultron.general.SpillingFrameQueue;
 
 /**
  * @author gianluca
@@ -33,18 +43,26 @@ public class HubWriter extends Thread {
 	/*
 	 * local variables
 	 */
-	private ConcurrentLinkedQueue<byte[]>	queue				= null;		// queue where to put read frames
+	private Queue<byte[]>					queue				= null;		// queue where to put read frames
 	private PrintStream						dumpFile			= null;		// here we write frames sent from the hub
+	private CountingOutputStream			dumpFileCounter		= null;		// offset in the dump file
+	private DumpIndex						dumpIndex			= null;		// sidecar file with frame/timestamp -> offset
+	private String							dumpFileName		= null;		// actual name of the dump file
+	private GapIndex						gapIndex			= null;		// sidecar file with lost/duplicated frames
+	private GapDetector						gapDetector			= new GapDetector();
 	private Log								log					= null;		// log file
-	private boolean							thereIsStillAReader	= true;		// true -> there is a reader feeding the queue
+	private volatile boolean				thereIsStillAReader	= true;		// true -> there is a reader feeding the queue
 																			// false -> there is no reader feeding the queue
 	private boolean							useMag				= Common.DEFAULT_USE_MAGNETOMETER;
 	private int								numActiveSatellites;			// number of effective satellites used
+	private SatelliteStatistics				statistics			= new SatelliteStatistics();	// rolling statistics per satellite
+	private Downsampler						downsampler			= null;		// reduction of the frames written (null -> every frame)
+	private int								numWritten			= 0;		// lines of the dump file
 
 	/*
 	 * Constructor:
 	 */
-	public HubWriter( String p_fileName, ConcurrentLinkedQueue<byte[]> p_que, Log p_log, String p_threadName, boolean p_useMag, int p_numActiveSatellites ) throws FileNotFoundException {
+	public HubWriter( String p_fileName, Queue<byte[]> p_que, Log p_log, String p_threadName, boolean p_useMag, int p_numActiveSatellites ) throws FileNotFoundException {
 		
 		// record the log's reference
 		log = p_log;
@@ -59,18 +77,15 @@ public class HubWriter extends Thread {
 		if ( p_threadName != null ) this.setName( p_threadName );
 
 		// open the dump file - append the actual date 
-		String 				fileName	= p_fileName;
-		SimpleDateFormat	dateFormat	= new SimpleDateFormat("yyyy-MM-dd_HH_mm_ss"); 
-		StringBuilder 		sb			= new StringBuilder( fileName );
-		fileName = sb.replace( fileName.lastIndexOf("%t"), 
-				fileName.lastIndexOf("%t")+2, 
-				dateFormat.format(new Date())).toString();
+		String 				fileName	= expandFileName( p_fileName );
 
 		if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": creating ..." );
 
 		try {
 
-			dumpFile = new PrintStream( fileName );
+			dumpFileCounter = new CountingOutputStream( new FileOutputStream( fileName ) );
+			dumpFile = new PrintStream( dumpFileCounter );
+			dumpFileName = fileName;
 			if (log != null) log.writeln( Log.INFORMATION, "Writer Thread " + getName() + ": going to write to " + fileName );
 
 		} catch (FileNotFoundException e) {
@@ -84,21 +99,37 @@ public class HubWriter extends Thread {
 			throw e;
 
 		} 
+
+		// the gap index is not vital: without it we just don't record the gaps
+		try {
+			gapIndex = new GapIndex( dumpFileName );
+		} catch (FileNotFoundException e) {
+			gapIndex = null;
+			if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": cannot create the gap index - " + e.getMessage() );
+		}
+
+		// neither is the dump index: without it a seek reads the dump from the start
+		try {
+			dumpIndex = new DumpIndex( dumpFileName );
+		} catch (FileNotFoundException e) {
+			dumpIndex = null;
+			if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": cannot create the dump index - " + e.getMessage() );
+		}
 	}
 
-	public HubWriter( String p_fileName, ConcurrentLinkedQueue<byte[]> p_que, Log p_log, String p_threadName, boolean p_useMag ) throws FileNotFoundException {
+	public HubWriter( String p_fileName, Queue<byte[]> p_que, Log p_log, String p_threadName, boolean p_useMag ) throws FileNotFoundException {
 		this( p_fileName, p_que, p_log, p_threadName, p_useMag, -1 );
 	}
 	
-	public HubWriter( String p_fileName, ConcurrentLinkedQueue<byte[]> p_que, Log p_log, String p_threadName ) throws FileNotFoundException {
+	public HubWriter( String p_fileName, Queue<byte[]> p_que, Log p_log, String p_threadName ) throws FileNotFoundException {
 		this( p_fileName, p_que, p_log, p_threadName, Common.DEFAULT_USE_MAGNETOMETER );
 	}
 	
-	public HubWriter( String p_fileName, ConcurrentLinkedQueue<byte[]> p_que, Log p_log ) throws FileNotFoundException {
+	public HubWriter( String p_fileName, Queue<byte[]> p_que, Log p_log ) throws FileNotFoundException {
 		this( p_fileName, p_que, p_log, null );
 	}
 	
-	public HubWriter( String p_fileName, ConcurrentLinkedQueue<byte[]> p_que ) throws FileNotFoundException {
+	public HubWriter( String p_fileName, Queue<byte[]> p_que ) throws FileNotFoundException {
 		this( p_fileName, p_que, null );
 	}
 	
@@ -109,6 +140,33 @@ public class HubWriter extends Thread {
 		thereIsStillAReader = false;
 	}
 
+	/**
+	 * Reduce the frames written to the dump file (to be called before start).
+	 * Statistics and gap detection still see every frame.
+	 */
+	public void setDownsampler( Downsampler p_downsampler ) {
+		downsampler = p_downsampler;
+	}
+
+	public SatelliteStatistics getStatistics() {
+		return statistics;
+	}
+
+	public String getDumpFileName() {
+		return dumpFileName;
+	}
+
+	/**
+	 * Replace the last %t of the file name with the actual date.
+	 */
+	static String expandFileName( String p_fileName ) {
+		int pos = p_fileName.lastIndexOf("%t");
+		if (pos < 0) return p_fileName;
+		SimpleDateFormat	dateFormat	= new SimpleDateFormat("yyyy-MM-dd_HH_mm_ss"); 
+		StringBuilder 		sb			= new StringBuilder( p_fileName );
+		return sb.replace( pos, pos+2, dateFormat.format(new Date())).toString();
+	}
+
 	/**
 	 * Execution method. Here the class start reading from the queue.
 	 * 
@@ -117,15 +175,19 @@ public class HubWriter extends Thread {
     public void run() {
 		
 		boolean	readAgain			= true;
+		boolean	reconnecting		= false;	// the reader lost the hub: wait for it without time limit
+		int		lastHubID			= 0;
 		int		numNonStopSleeps	= 0;
 		int		numFrames			= 0;
 		byte[]	frame;
     	long	now;
     	long	startCicle, lenghtCicle, maxCicle = 0, minCicle = Long.MAX_VALUE, sumCicle = 0;
-    	int[]	nValidFrames = new int[Common.MAX_SENSORS];	// valid frames for each satellite
 		
 		if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": starting ..." );
 
+		// publish the statistics via JMX
+		ObjectName statisticsName = registerStatistics();
+
 		// main cycle popping frames from the queue and write them to the dump file
 		startCicle = System.nanoTime();
 
@@ -142,16 +204,18 @@ public class HubWriter extends Thread {
 				// otherwise wait a bit for someone filling the queue
 				// exits also if we waited for too long
 				if ( ! thereIsStillAReader ) {
+					// a last frame may have been added between the poll and the notification
+					if ( ! queue.isEmpty() ) continue;
 					if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": There is not a reader and slept " + numNonStopSleeps + " times" );
 					break;
 				}
-				if ( numNonStopSleeps >= Common.WRITER_MAX_NUM_SLEEPS ) {
+				if ( numNonStopSleeps >= Common.WRITER_MAX_NUM_SLEEPS && ! reconnecting ) {
 					if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": Slept too much - " + numNonStopSleeps + " times" );
 					break;
 				}
 				
 				numNonStopSleeps++;
-				if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": The queue is empty, I am going to sleep - " + numNonStopSleeps );
+				if (log != null && ! reconnecting) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": The queue is empty, I am going to sleep - " + numNonStopSleeps );
 			
 				try {
 					Thread.sleep( Common.WRITER_SLEEP_FOR_EMPTY_QUEUE_MS );
@@ -164,6 +228,19 @@ public class HubWriter extends Thread {
 				
 			} 
 			
+        	// the reader lost the connection: record it in the gap index, the next frames come from a new connection
+        	if ( frame == HubReader.DISCONNECTED ) {
+        		if (numFrames > 0) {
+        			gapDetector.markDisconnect( lastHubID );
+        			if (gapIndex != null) gapIndex.append( numWritten, gapDetector );
+        		}
+        		if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": the reader is reconnecting to the hub" );
+        		reconnecting = true;
+        		continue;
+        	}
+        	reconnecting	= false;
+        	lastHubID		= SensorData.readHubID( frame );
+
         	if (log != null) log.writeln( Log.DEBUG, "Writer Thread " + getName() + ":  frame - " + Arrays.toString(frame) );
 			
 			// reset counts
@@ -171,23 +248,28 @@ public class HubWriter extends Thread {
 			numFrames++;
 				
 			// the frame is correct ... 
-			// translate it into ints/shorts/ floats and write them to the dump file
+			// translate it into ints/shorts/ floats
 			SensorData sensorDataFrame = new SensorData( frame, useMag, log );
 
-			// dump the frame
-        	dumpFile.println( sensorDataFrame.toString() );
+        	// record lost, duplicated and out of order frames in the gap index (at the line of the next frame written)
+        	if (gapDetector.check( frame ) != GapDetector.EVENT_NONE && gapIndex != null) {
+        		gapIndex.append( numWritten, gapDetector );
+        	}
+
+        	// write it to the dump file (or what is left of it after the downsampling)
+        	if (downsampler == null) {
+        		writeFrame( sensorDataFrame );
+        	} else {
+        		byte[] reduced = downsampler.process( frame );
+        		if (reduced == frame)	writeFrame( sensorDataFrame );
+        		else if (reduced != null)	writeFrame( new SensorData( reduced, useMag, log ) );
+        	}
         	
-        	// count valid frames per satellite
+        	// update the statistics and print the valid frames per satellite (over the sliding window)
+        	statistics.update( sensorDataFrame );
         	if (numActiveSatellites > 0) {
-            	for (int i = 0; i<numActiveSatellites; i++) {
-            		if (sensorDataFrame.isSatelliteValid(i)) nValidFrames[i]++;
-            	}
             	if ((numFrames % Common.WRITER_INTERVAL_PRINT_VALID_FRAMES) == 0) {
-            		if (log != null) log.write(Log.NONE, String.format((Locale)null, " %8d", numFrames ), Log.ECHO); 
-                	for (int i = 0; i<numActiveSatellites; i++) {
-                		if (log != null) log.write(Log.NONE, String.format((Locale)null, " %5.1f%%", (nValidFrames[i]*100F/numFrames)), Log.ECHO); 
-                	}
-            		if (log != null) log.write(Log.NONE, "\r", Log.ECHO); 
+            		if (log != null) log.write(Log.NONE, statistics.toValidityString( numActiveSatellites ) + "\r", Log.ECHO); 
             	}
         	}
         	
@@ -219,11 +301,69 @@ public class HubWriter extends Thread {
 					"- max " + Math.round(maxCicle/1000F) + "us " +
 					"- min " + Math.round(minCicle/1000F) + "us " +
 					"- avg " + Math.round(sumCicle / numFrames /1000F) + "us" );
+			if (log != null) log.writeln( Log.INFORMATION, "Writer Thread " + getName() + ": statistics\n" + 
+					statistics.snapshot().toString( numActiveSatellites > 0 ? numActiveSatellites : Common.MAX_SENSORS ) );
 		}
 		
+		if (log != null) log.writeln( Log.INFORMATION, "Writer Thread " + getName() + ": gaps\n" + gapDetector.toString() );
+
+		// the last incomplete window of the downsampling
+		if (downsampler != null) {
+			byte[] reduced = downsampler.flush();
+			if (reduced != null) writeFrame( new SensorData( reduced, useMag, log ) );
+			if (log != null) log.writeln( Log.INFORMATION, "Writer Thread " + getName() + ": downsampling " + downsampler.toString() );
+		}
+
+		// release the queue only when nobody can fill it any more and it is drained: after an idle exit the reader
+		// may still add frames (spilled ones included), left to the GC with the queue
+		if (queue instanceof SpillingFrameQueue) {
+			if (log != null) log.writeln( Log.INFORMATION, "Writer Thread " + getName() + ": queue " + queue.toString() );
+			if (! thereIsStillAReader && queue.isEmpty()) ((SpillingFrameQueue)queue).close();
+			else if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": queue left open - " + queue.size() + " frames not written" );
+		}
+
 		// close the dump file
 		dumpFile.close();
+		if (gapIndex != null) gapIndex.close();
+		if (dumpIndex != null) dumpIndex.close();
 		
+		unregisterStatistics( statisticsName );
+		
+	}
+	
+	/*
+	 * Private methods
+	 */
+
+	// index the frame (every DumpIndex interval lines) and dump it
+	private void writeFrame( SensorData p_frame ) {
+		if (dumpIndex != null && dumpIndex.isIndexed( numWritten )) {
+			dumpIndex.append( numWritten, p_frame.getTimestamp(), dumpFileCounter.getCount(), System.currentTimeMillis() );
+		}
+		dumpFile.println( p_frame.toString() );
+		numWritten++;
+	}
+
+	private ObjectName registerStatistics() {
+		try {
+			MBeanServer	server	= ManagementFactory.getPlatformMBeanServer();
+			ObjectName	name	= new ObjectName( "com.ultron.client:type=SatelliteStatistics,name=Writer-" + getName() );
+			if (server.isRegistered( name )) server.unregisterMBean( name );
+			server.registerMBean( statistics, name );
+			return name;
+		} catch (Exception e) {
+			if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": statistics not registered in JMX - " + e.getMessage() );
+			return null;
+		}
+	}
+	
+	private void unregisterStatistics( ObjectName p_name ) {
+		if (p_name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( p_name );
+		} catch (Exception e) {
+			if (log != null) log.writeln( Log.WARNING, "Writer Thread " + getName() + ": statistics not unregistered from JMX - " + e.getMessage() );
+		}
 	}
 	
 }
@@ -0,0 +1,215 @@
+/**
+ * Live stream server: re-broadcasts the frames read from the hub to any number of TCP subscribers
+ * (viewers) while HubControl records.
+ *
+ * Protocol:
+ * - the subscriber connects and sends a request of 2 LITTLE_ENDIAN ints:
+ *   satellite mask (bit i -> sensor record i; 0 -> full frames) and decimation (n -> one frame every n)
+ * - the server sends the raw frames (see SensorData) as they arrive from the hub:
+ *   full frames, or the 16 bytes header followed by the records selected by the mask (in slot order);
+ *   the bitmap of that header keeps only the satellites of the mask
+ */
+package com.ultron.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ultron.general.Common;
+import com.ultron.general.FrameSink;
+import com.ultron.general.Log;
+import com.ultron.general.SensorData;
+
+/**
+ * The frames are sent with non blocking gathering writes of slices of the frame array (no copies of the
+ * records: a subscriber with a mask gets its own copy of the header, with the masked bitmap).
+ * A subscriber whose previous frame is still pending simply skips the new frames until its socket
+ * drains: a slow viewer never blocks the other viewers nor the recording path.
+ *
+ */
+public class LiveStreamServer implements FrameSink {
+
+	public static final int			BYTES_REQUEST		= Integer.BYTES * 2;
+
+	/*
+	 * local variables
+	 */
+	private int						port;
+	private int						recordBytes;
+	private Log						log;
+	private ServerSocketChannel		serverChannel		= null;
+	private Thread					acceptThread		= null;
+	private final CopyOnWriteArrayList<Subscriber>	subscribers	= new CopyOnWriteArrayList<Subscriber>();
+
+	/*
+	 * Constructor:
+	 */
+	public LiveStreamServer( int p_port, boolean p_useMag, Log p_log ) {
+		port		= p_port;
+		recordBytes	= (p_useMag ? SensorData.BYTES_WITH_MAG - SensorData.BYTES_HEADER_ONLY : SensorData.BYTES_WITHOUT_MAG - SensorData.BYTES_HEADER_ONLY) / Common.MAX_SENSORS;
+		log			= p_log;
+	}
+
+	@Override
+	public String getName() {
+		return "live stream :" + port;
+	}
+
+	@Override
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.DROP;
+	}
+
+	@Override
+	public boolean open() {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind( new InetSocketAddress( port ) );
+		} catch (IOException e) {
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Live Stream: Could not listen on port " + port, Log.ECHO );
+			}
+			return false;
+		}
+
+		// subscribers are accepted in a separate thread and then served by the sink's thread
+		acceptThread = new Thread( "LiveStreamServer - accept :" + port ) {
+			@Override
+			public void run() {
+				while (serverChannel.isOpen()) {
+					try {
+						SocketChannel channel = serverChannel.accept();
+						channel.configureBlocking( false );
+						channel.socket().setTcpNoDelay( true );
+						subscribers.add( new Subscriber( channel ) );
+						if (log != null) log.writeln( Log.INFORMATION, "Live Stream: new subscriber " + channel.socket().getRemoteSocketAddress(), Log.ECHO );
+					} catch (IOException e) {
+						if (serverChannel.isOpen() && log != null) log.writeln( Log.WARNING, "Live Stream: error accepting a subscriber - " + e.getMessage() );
+					}
+				}
+			}
+		};
+		acceptThread.setDaemon( true );
+		acceptThread.start();
+
+		if (log != null) log.writeln( Log.INFORMATION, "Live Stream: listening on port " + port, Log.ECHO );
+		return true;
+	}
+
+	@Override
+	public void onFrame( byte[] p_frame ) {
+		for (int i = 0; i < subscribers.size(); i++) {
+			Subscriber s = subscribers.get( i );
+			try {
+				s.send( p_frame );
+			} catch (IOException e) {
+				if (log != null) log.writeln( Log.INFORMATION, "Live Stream: subscriber gone - sent " + s.numSent + " frames, skipped " + s.numSkipped );
+				s.close();
+				subscribers.remove( s );
+			}
+		}
+	}
+
+	@Override
+	public void onDrop( long p_numFrames ) {
+		if (log != null) log.writeln( Log.WARNING, "Live Stream: " + p_numFrames + " frames lost by the server" );
+	}
+
+	@Override
+	public void close() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			if (log != null) log.writeln( Log.WARNING, "Live Stream: error closing the server - " + e.getMessage() );
+		}
+		for (Subscriber s : subscribers) s.close();
+		subscribers.clear();
+		if (log != null) log.writeln( Log.INFORMATION, "Live Stream: closed", Log.ECHO );
+	}
+
+	public int getNumSubscribers() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Single subscriber: its request and the slices of the frame being sent
+	 */
+	private class Subscriber {
+
+		private final SocketChannel		channel;
+		private final ByteBuffer		request		= ByteBuffer.allocate( BYTES_REQUEST ).order( ByteOrder.LITTLE_ENDIAN );
+		private boolean					subscribed	= false;
+		private int						mask;
+		private int						decimation;
+		private long					numFrames	= 0;
+		private long					numSent		= 0;
+		private long					numSkipped	= 0;
+		private final ByteBuffer[]		slices		= new ByteBuffer[1 + Common.MAX_SENSORS];
+		private final byte[]			header		= new byte[SensorData.BYTES_HEADER_ONLY];	// with the masked bitmap
+		private final ByteBuffer		headerBuf	= ByteBuffer.wrap( header ).order( ByteOrder.LITTLE_ENDIAN );
+		private int						numSlices	= 0;
+
+		Subscriber( SocketChannel p_channel ) {
+			channel = p_channel;
+		}
+
+		void send( byte[] p_frame ) throws IOException {
+
+			// the request arrives asynchronously
+			if (!subscribed) {
+				if (channel.read( request ) < 0) throw new IOException( "EOF" );
+				if (request.hasRemaining()) return;
+				request.flip();
+				mask		= request.getInt();
+				decimation	= Math.max( 1, request.getInt() );
+				subscribed	= true;
+			}
+
+			if ((numFrames++ % decimation) != 0) return;
+
+			// previous frame not yet gone: flush it and skip this one
+			if (pending()) {
+				channel.write( slices, 0, numSlices );
+				numSkipped++;
+				return;
+			}
+
+			if (mask == 0) {
+				slices[0] = ByteBuffer.wrap( p_frame );
+				numSlices = 1;
+			} else {
+				// the previous frame is gone: its header can be overwritten
+				System.arraycopy( p_frame, 0, header, 0, SensorData.BYTES_HEADER_ONLY );
+				headerBuf.putInt( 12, headerBuf.getInt( 12 ) & mask );
+				headerBuf.clear();
+				slices[0] = headerBuf;
+				numSlices = 1;
+				for (int m = mask; m != 0; m &= (m - 1)) {
+					int i = Integer.numberOfTrailingZeros( m );
+					if (i >= Common.MAX_SENSORS) break;
+					slices[numSlices++] = ByteBuffer.wrap( p_frame, SensorData.BYTES_HEADER_ONLY + i * recordBytes, recordBytes );
+				}
+			}
+			channel.write( slices, 0, numSlices );
+			numSent++;
+		}
+
+		boolean pending() {
+			return numSlices > 0 && slices[numSlices - 1].hasRemaining();
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+}
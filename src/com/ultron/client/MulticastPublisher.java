@@ -0,0 +1,177 @@
+/**
+ * Multicast publisher: re-publishes every frame read from the hub as UDP datagrams on a multicast group,
+ * so that several machines of the lab can receive the stream of the only TCP client of the hub.
+ *
+ * Datagram (LITTLE_ENDIAN like the hub frames):
+ * - header: MAGIC (int), datagram sequence (long), sequence of the first frame (long),
+ *   number of frames (int), frame size in bytes (int)
+ * - the frames, one after the other
+ * At high rates several frames are batched in one datagram (up to Common.MULTICAST_MAX_DATAGRAM_BYTES).
+ * See MulticastReceiver for the other side.
+ */
+package com.ultron.client;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+
+import com.ultron.general.Common;
+import com.ultron.general.FrameSink;
+import com.ultron.general.Log;
+
+public class MulticastPublisher implements FrameSink {
+
+	public static final int			MAGIC				= 0x4D425548;	// "HUBM"
+	public static final int			BYTES_HEADER		=
+			Integer.BYTES +		// magic
+			Long.BYTES +		// datagram sequence
+			Long.BYTES +		// first frame sequence
+			Integer.BYTES +		// number of frames
+			Integer.BYTES;		// frame size
+
+	/*
+	 * local variables
+	 */
+	private String					group;
+	private int						port;
+	private Log						log;
+	private InetSocketAddress		target				= null;
+	private DatagramChannel			channel				= null;
+	private final ByteBuffer		datagram			= ByteBuffer.allocateDirect( Common.MULTICAST_MAX_DATAGRAM_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+	private long					datagramSeq			= 0;
+	private long					frameSeq			= 0;			// sequence of the next frame
+	private int						batchFrames			= 0;			// frames in the datagram being built
+	private int						batchFrameBytes		= 0;
+	private long					batchStartNs		= 0;
+	private long					lastFrameNs			= 0;
+	private long					numErrors			= 0;
+
+	/*
+	 * Constructor:
+	 */
+	public MulticastPublisher( String p_group, int p_port, Log p_log ) {
+		group	= p_group;
+		port	= p_port;
+		log		= p_log;
+	}
+
+	@Override
+	public String getName() {
+		return "multicast " + group + ":" + port;
+	}
+
+	@Override
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.DROP;
+	}
+
+	@Override
+	public boolean open() {
+		try {
+			InetAddress address = InetAddress.getByName( group );
+			target	= new InetSocketAddress( address, port );
+			channel	= DatagramChannel.open( address instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET );
+			channel.setOption( StandardSocketOptions.IP_MULTICAST_TTL, Common.MULTICAST_TTL );
+			channel.setOption( StandardSocketOptions.IP_MULTICAST_LOOP, true );
+		} catch (IOException e) {
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Multicast: Error in opening " + group + ":" + port, Log.ECHO );
+			}
+			return false;
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Multicast: publishing to " + group + ":" + port, Log.ECHO );
+		return true;
+	}
+
+	@Override
+	public void onFrame( byte[] p_frame ) {
+
+		long	now			= System.nanoTime();
+		boolean	highRate	= (now - lastFrameNs) < Common.MULTICAST_HIGH_RATE_INTERVAL_NS;
+		lastFrameNs = now;
+
+		// a frame of a different size or no room left: send what we have
+		if (batchFrames > 0 && (p_frame.length != batchFrameBytes || datagram.remaining() < p_frame.length)) {
+			flush();
+		}
+
+		if (batchFrames == 0) {
+			if (BYTES_HEADER + p_frame.length > datagram.capacity()) {
+				// cannot happen with the hub frames: just count it
+				numErrors++;
+				frameSeq++;
+				return;
+			}
+			datagram.clear();
+			datagram.position( BYTES_HEADER );
+			batchFrameBytes	= p_frame.length;
+			batchStartNs	= now;
+		}
+
+		datagram.put( p_frame );
+		batchFrames++;
+
+		// at low rates each frame leaves immediately, at high rates they are batched
+		if (!highRate || datagram.remaining() < batchFrameBytes || now - batchStartNs >= Common.MULTICAST_MAX_BATCH_DELAY_NS) {
+			flush();
+		}
+	}
+
+	/**
+	 * No new frame (a pause, a reconnection, the end of the dump): a partial batch leaves after
+	 * Common.MULTICAST_MAX_BATCH_DELAY_NS anyway.
+	 */
+	@Override
+	public void onIdle() {
+		if (batchFrames > 0 && System.nanoTime() - batchStartNs >= Common.MULTICAST_MAX_BATCH_DELAY_NS) flush();
+	}
+
+	@Override
+	public void onDrop( long p_numFrames ) {
+		// the receivers see the hole in the frame sequence
+		flush();
+		frameSeq += p_numFrames;
+	}
+
+	@Override
+	public void close() {
+		flush();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			if (log != null) log.writeln( Log.WARNING, "Multicast: error closing the channel - " + e.getMessage() );
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Multicast: sent " + datagramSeq + " datagrams (" + frameSeq + " frames) - errors " + numErrors );
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void flush() {
+		if (batchFrames == 0) return;
+
+		datagram.putInt( 0, MAGIC );
+		datagram.putLong( 4, datagramSeq++ );
+		datagram.putLong( 12, frameSeq );
+		datagram.putInt( 20, batchFrames );
+		datagram.putInt( 24, batchFrameBytes );
+		datagram.flip();
+		try {
+			channel.send( datagram, target );
+		} catch (IOException e) {
+			numErrors++;
+		}
+
+		frameSeq	+= batchFrames;
+		batchFrames	= 0;
+		datagram.clear();
+	}
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Multicast receiver: the other side of MulticastPublisher.
+ * It joins the multicast group, splits the datagrams back into frames and puts them into a queue,
+ * exactly like HubReader does with the frames read from the hub: the same queue can feed a HubWriter.
+ * Lost datagrams are found through the frame sequence in the datagram header.
+ */
+package com.ultron.client;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.ultron.general.Common;
+import com.ultron.general.Log;
+
+public class MulticastReceiver extends Thread {
+
+	/*
+	 * local variables
+	 */
+	private String							group;
+	private int								port;
+	private Queue<byte[]>					queue			= null;		// queue where to put received frames
+	private Log								log				= null;
+	private volatile boolean				stopWorking		= false;
+	private long							nextFrameSeq	= -1;		// expected sequence of the next frame
+	private long							numFrames		= 0;
+	private long							numLostFrames	= 0;
+	private long							numGaps			= 0;
+	private long							numDiscarded	= 0;		// duplicated, late or malformed
+
+	/*
+	 * Constructor:
+	 */
+	public MulticastReceiver( String p_group, int p_port, Queue<byte[]> p_que, Log p_log, String p_threadName ) {
+		group	= p_group;
+		port	= p_port;
+		queue	= p_que;
+		log		= p_log;
+		if ( p_threadName != null ) this.setName( p_threadName );
+	}
+
+	public MulticastReceiver( String p_group, int p_port, Queue<byte[]> p_que, Log p_log ) {
+		this( p_group, p_port, p_que, p_log, null );
+	}
+
+	/**
+	 * Public Methods
+	 */
+	public void stopReceiving() {
+		stopWorking = true;
+	}
+
+	public long getNumFrames()		{ return numFrames; }
+
+	public long getNumLostFrames()	{ return numLostFrames; }
+
+	public long getNumGaps()		{ return numGaps; }
+
+	/**
+	 * Execution method. Here the class start receiving datagrams.
+	 */
+	@Override
+	public void run() {
+
+		byte[]			buf		= new byte[Common.MULTICAST_MAX_DATAGRAM_BYTES];
+		DatagramPacket	packet	= new DatagramPacket( buf, buf.length );
+		ByteBuffer		header	= ByteBuffer.wrap( buf ).order( ByteOrder.LITTLE_ENDIAN );
+		InetSocketAddress	groupAddress;
+
+		try (MulticastSocket socket = new MulticastSocket( port )) {
+
+			groupAddress = new InetSocketAddress( InetAddress.getByName( group ), port );
+			socket.joinGroup( groupAddress, null );
+			socket.setSoTimeout( Common.MULTICAST_RECEIVE_TIMEOUT_MS );
+			socket.setReceiveBufferSize( Common.MULTICAST_RECEIVE_BUFFER_BYTES );
+			if (log != null) log.writeln( Log.WARNING, "Multicast Receiver " + getName() + ": joined " + group + ":" + port );
+
+			while (!stopWorking) {
+
+				try {
+					packet.setLength( buf.length );
+					socket.receive( packet );
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+
+				int len = packet.getLength();
+				if (len < MulticastPublisher.BYTES_HEADER || header.getInt( 0 ) != MulticastPublisher.MAGIC) {
+					numDiscarded++;
+					continue;
+				}
+
+				long	datagramSeq	= header.getLong( 4 );
+				long	firstSeq	= header.getLong( 12 );
+				int		count		= header.getInt( 20 );
+				int		frameBytes	= header.getInt( 24 );
+
+				if (frameBytes <= 0 || count <= 0 || MulticastPublisher.BYTES_HEADER + count * frameBytes > len) {
+					numDiscarded++;
+					continue;
+				}
+
+				// the publisher has been restarted: start again from its sequence
+				if (datagramSeq == 0) nextFrameSeq = firstSeq;
+
+				if (nextFrameSeq >= 0 && firstSeq < nextFrameSeq) {
+					// duplicated or arrived too late: the queue is already beyond it
+					numDiscarded++;
+					continue;
+				}
+				if (nextFrameSeq >= 0 && firstSeq > nextFrameSeq) {
+					numGaps++;
+					numLostFrames += firstSeq - nextFrameSeq;
+					if (log != null) log.writeln( Log.WARNING, "Multicast Receiver " + getName() + ": lost " + (firstSeq - nextFrameSeq) + " frames", Log.ECHO );
+				}
+
+				// split the datagram into frames
+				for (int i = 0; i < count; i++) {
+					int start = MulticastPublisher.BYTES_HEADER + i * frameBytes;
+					queue.add( Arrays.copyOfRange( buf, start, start + frameBytes ) );
+				}
+				numFrames += count;
+				nextFrameSeq = firstSeq + count;
+			}
+
+			socket.leaveGroup( groupAddress, null );
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (log != null) {
+				log.writeln( Log.ERROR, "Multicast Receiver " + getName() + ": IO Exception!" );
+				e.printStackTrace( log.getOutputStream() );
+			}
+		}
+
+		if (log != null) log.writeln( Log.INFORMATION, "Multicast Receiver " + getName() + ": closing - received " + numFrames + " frames" +
+				" - lost " + numLostFrames + " frames in " + numGaps + " gaps - discarded " + numDiscarded + " datagrams" );
+	}
+
+	/*
+	 * Main method: record the multicast stream into a dump file
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 3) {
+			System.err.println("usage: java MulticastReceiver group port dumpFile [YES|NO magnetometer] [logFile]");
+			System.exit(1);
+		}
+
+		boolean	useMag	= (args.length > 3 ? args[3].toUpperCase().equals("YES") : Common.DEFAULT_USE_MAGNETOMETER);
+		Log		log		= new Log( Common.DEFAULT_LOG_LEVEL, (args.length > 4 ? args[4] : "") );
+
+		ConcurrentLinkedQueue<byte[]>	queue		= new ConcurrentLinkedQueue<byte[]>();
+		MulticastReceiver				receiver	= new MulticastReceiver( args[0], Integer.parseInt( args[1] ), queue, log, "1" );
+		HubWriter						writer		= null;
+		try {
+			writer = new HubWriter( args[2], queue, log, "1", useMag );
+		} catch (FileNotFoundException e) {
+			System.exit(1);
+		}
+
+		receiver.start();
+		writer.start();
+
+		System.out.println("Enter : q - Quit");
+		// q, or the end of the standard input
+		int c;
+		while ((c = System.in.read()) != 'q' && c != -1) { }
+
+		receiver.stopReceiving();
+		try {
+			receiver.join();
+		} catch (InterruptedException e) { }
+		writer.notifyReaderDeath();
+		try {
+			writer.join();
+		} catch (InterruptedException e) { }
+		log.close();
+	}
+
+}
@@ -26,6 +26,30 @@ class MyProperties {
 	public String 	HUB_PORT;
 	public String[]	SATELLITES_LIST_ARRAY;
 	public String 	DUMP_FILE;
+	public String 	BINARY_DUMP_FILE;		// optional: binary copy of the frames (sparse if the name ends with .bins)
+	public int		LIVE_STREAM_PORT;		// optional: port of the live stream server (0 -> no server)
+	public String	MULTICAST_GROUP;		// optional: multicast group where to publish the frames
+	public int		MULTICAST_PORT;
+	public String	COLUMNAR_FILE;			// optional: live columnar export
+	public String	DOWNSAMPLE_MODE;		// optional: NONE, DECIMATE, AVERAGE or DEADBAND (dump file only)
+	public int		DOWNSAMPLE_FACTOR;		// frames per written frame (DEADBAND: max frames between written frames)
+	public int		DEADBAND_ACCEL;			// DEADBAND: changes that write a frame (raw units, < 0 -> not checked)
+	public int		DEADBAND_GYRO;
+	public int		DEADBAND_MAG;
+	public String	ORIENTATION_FILE;		// optional: orientation derived from the quaternions
+	public String	ORIENTATION_PAIRS;		// relative rotations written to ORIENTATION_FILE (e.g. "0-1, 1-2")
+	public String	AUTO_RECONNECT;			// YES: reconnect to the hub when the connection is lost while dumping
+	public String	JOURNAL;				// YES: write-ahead journal of the raw frames next to the dump file
+	public String	JOURNAL_FORCE;			// YES: force every journal block to the disk
+	public int		QUEUE_FRAMES;			// frames of the writer queue kept in memory, the others are spilled (0 -> no limit)
+	public String	SPILL_DIR;				// directory of the spilled frames (empty -> temporary directory)
+	public String	TRIGGER_FILE;			// optional: triggered recording to this file (one per event) instead of the dump file
+	public int		TRIGGER_PRE_MS;			// recorded before the trigger
+	public int		TRIGGER_POST_MS;		// recorded after the trigger
+	public int		TRIGGER_ACCEL;			// accelerometer magnitude firing a trigger (raw units, 0 -> not checked)
+	public int		TRIGGER_GYRO;			// gyroscope magnitude firing a trigger (raw units, 0 -> not checked)
+	public String	TRIGGER_VALIDITY;		// YES: a satellite no longer valid fires a trigger
+	public String	FRAME_LAYOUTS;			// BY_TYPE: the hub sends frames sized by their frameType (FIXED: always full frames)
 
 	public MyProperties( ) {		
 	}
@@ -67,6 +91,41 @@ class MyProperties {
 		SATELLITES_LIST = prop.getProperty( "SATELLITES_LIST" );
 		SATELLITES_LIST_ARRAY = SATELLITES_LIST.split("\\s*,\\s*");		
 		DUMP_FILE = prop.getProperty("DUMP_FILE");
+		BINARY_DUMP_FILE = prop.getProperty("BINARY_DUMP_FILE");
+		try { LIVE_STREAM_PORT = Integer.parseInt(prop.getProperty("LIVE_STREAM_PORT")); }
+		catch (Exception e) { LIVE_STREAM_PORT = 0; }
+		MULTICAST_GROUP = prop.getProperty("MULTICAST_GROUP");
+		try { MULTICAST_PORT = Integer.parseInt(prop.getProperty("MULTICAST_PORT")); }
+		catch (Exception e) { MULTICAST_PORT = 0; }
+		COLUMNAR_FILE = prop.getProperty("COLUMNAR_FILE");
+		DOWNSAMPLE_MODE = prop.getProperty("DOWNSAMPLE_MODE", "NONE");
+		try { DOWNSAMPLE_FACTOR = Integer.parseInt(prop.getProperty("DOWNSAMPLE_FACTOR")); }
+		catch (Exception e) { DOWNSAMPLE_FACTOR = 1; }
+		try { DEADBAND_ACCEL = Integer.parseInt(prop.getProperty("DEADBAND_ACCEL")); }
+		catch (Exception e) { DEADBAND_ACCEL = 0; }
+		try { DEADBAND_GYRO = Integer.parseInt(prop.getProperty("DEADBAND_GYRO")); }
+		catch (Exception e) { DEADBAND_GYRO = 0; }
+		try { DEADBAND_MAG = Integer.parseInt(prop.getProperty("DEADBAND_MAG")); }
+		catch (Exception e) { DEADBAND_MAG = 0; }
+		ORIENTATION_FILE = prop.getProperty("ORIENTATION_FILE");
+		ORIENTATION_PAIRS = prop.getProperty("ORIENTATION_PAIRS", "");
+		AUTO_RECONNECT = prop.getProperty("AUTO_RECONNECT", "YES");
+		JOURNAL = prop.getProperty("JOURNAL", "NO");
+		JOURNAL_FORCE = prop.getProperty("JOURNAL_FORCE", "NO");
+		try { QUEUE_FRAMES = Integer.parseInt(prop.getProperty("QUEUE_FRAMES")); }
+		catch (Exception e) { QUEUE_FRAMES = 8192; }
+		SPILL_DIR = prop.getProperty("SPILL_DIR", "");
+		TRIGGER_FILE = prop.getProperty("TRIGGER_FILE");
+		try { TRIGGER_PRE_MS = Integer.parseInt(prop.getProperty("TRIGGER_PRE_MS")); }
+		catch (Exception e) { TRIGGER_PRE_MS = 5000; }
+		try { TRIGGER_POST_MS = Integer.parseInt(prop.getProperty("TRIGGER_POST_MS")); }
+		catch (Exception e) { TRIGGER_POST_MS = 5000; }
+		try { TRIGGER_ACCEL = Integer.parseInt(prop.getProperty("TRIGGER_ACCEL")); }
+		catch (Exception e) { TRIGGER_ACCEL = 0; }
+		try { TRIGGER_GYRO = Integer.parseInt(prop.getProperty("TRIGGER_GYRO")); }
+		catch (Exception e) { TRIGGER_GYRO = 0; }
+		TRIGGER_VALIDITY = prop.getProperty("TRIGGER_VALIDITY", "NO");
+		FRAME_LAYOUTS = prop.getProperty("FRAME_LAYOUTS", "FIXED");
 	}
 
 	public boolean openAlePropertyFile ( String p_str ) {
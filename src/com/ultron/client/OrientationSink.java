@@ -0,0 +1,115 @@
+/**
+ * Orientation sink: writes the orientation derived from each frame (see OrientationDump) to a side file.
+ */
+package com.ultron.client;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ultron.general.Common;
+import com.ultron.general.FrameSink;
+import com.ultron.general.Log;
+import com.ultron.general.OrientationDump;
+
+/**
+ * The records are encoded straight into a direct buffer, written to the file with large sequential writes:
+ * nothing is allocated per frame. One record per frame received, so the file lines up with the binary dump:
+ * the overflow policy is BLOCK.
+ *
+ */
+public class OrientationSink implements FrameSink {
+
+	/*
+	 * local variables
+	 */
+	private String				fileName;
+	private boolean				useMag;
+	private OrientationDump		format;
+	private Log					log;
+	private FileChannel			channel		= null;
+	private ByteBuffer			buffer		= null;
+	private long				numFrames	= 0;
+
+	/*
+	 * Constructor: p_fileName can contain %t (replaced with the actual date, like the text dump),
+	 * p_pairs the satellite slots of the relative rotations ("a-b, c-d", see OrientationDump.parsePairs)
+	 */
+	public OrientationSink( String p_fileName, String p_pairs, boolean p_useMag, Log p_log ) {
+		int[][] pairs = OrientationDump.parsePairs( p_pairs );
+		fileName	= HubWriter.expandFileName( p_fileName );
+		useMag		= p_useMag;
+		format		= new OrientationDump( pairs[0], pairs[1] );
+		log			= p_log;
+	}
+
+	@Override
+	public String getName() {
+		return "orientation " + fileName;
+	}
+
+	@Override
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.BLOCK;
+	}
+
+	@Override
+	@SuppressWarnings("resource")
+	public boolean open() {
+		try {
+			channel	= new FileOutputStream( fileName ).getChannel();
+			buffer	= ByteBuffer.allocateDirect( Math.max( Common.SINK_WRITE_BUFFER_BYTES, format.headerBytes() + format.recordBytes() ) );
+			format.writeHeader( buffer );
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Orientation: Error in opening " + fileName );
+			}
+			return false;
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Orientation: going to write to " + fileName + " (" + format.getNumPairs() + " pairs)" );
+		return true;
+	}
+
+	@Override
+	public void onFrame( byte[] p_frame ) {
+		if (buffer.remaining() < format.recordBytes()) flush();
+		format.encode( p_frame, useMag, buffer );
+		numFrames++;
+	}
+
+	@Override
+	public void onDrop( long p_numFrames ) {
+		// never called: the policy is BLOCK
+	}
+
+	@Override
+	public void close() {
+		flush();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			if (log != null) log.writeln( Log.ERROR, "Orientation: Error in closing " + fileName );
+		}
+		if (log != null) log.writeln( Log.INFORMATION, "Orientation: written " + numFrames + " records to " + fileName );
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void flush() {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) channel.write( buffer );
+		} catch (IOException e) {
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Orientation: Error in writing " + fileName );
+			}
+		}
+		buffer.clear();
+	}
+
+}
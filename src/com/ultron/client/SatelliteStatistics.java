@@ -0,0 +1,384 @@
+/**
+ * Statistics Class: streaming per-satellite statistics computed frame by frame.
+ * It keeps:
+ * - the validity of each satellite over a sliding window of frames (and since the start)
+ * - the dropout run lengths (consecutive invalid frames after the satellite has been seen)
+ * - the gaps between consecutive hub timestamps
+ * - min / max / mean / variance of every channel (SensorData.CH_xxx) of the valid satellites over the window
+ *   (the magnetometer only if the hub has one)
+ */
+package com.ultron.client;
+
+import java.util.Locale;
+
+import com.ultron.general.Common;
+import com.ultron.general.SensorData;
+
+/**
+ * All the state lives in primitive arrays allocated once in the constructor, every update is O(1)
+ * per satellite and channel. Updates come from one thread (the writer), snapshots and the JMX
+ * getters can be called from any thread: both are synchronized on this object.
+ *
+ * The channel statistics are kept per block of the window (Common.STATISTICS_WINDOW_BLOCKS blocks, each with
+ * its min, max and Welford's mean and sum of squares): a new block replaces the oldest one, and the getters
+ * merge the blocks (Chan's formula). So they cover the last windowSize frames, less the part of a block not
+ * yet filled again: a satellite that went bad a window ago does not look fine any more.
+ */
+public class SatelliteStatistics implements SatelliteStatisticsMBean {
+
+	private static final int	SLOT_MASK		= (1 << Common.MAX_SENSORS) - 1;
+
+	/*
+	 * local variables
+	 */
+	private final int			windowSize;						// length of the sliding window (frames)
+	private final int[]			windowBitmaps;					// ring with the bitmap of the last windowSize frames
+	private int					windowPos		= 0;			// next position to be written in the ring
+	private int					windowFill		= 0;			// number of frames in the ring
+	private final int[]			windowValid		= new int[Common.MAX_SENSORS];	// valid frames per satellite in the window
+
+	private long				numFrames		= 0;
+	private final long[]		totalValid		= new long[Common.MAX_SENSORS];	// valid frames per satellite since start
+
+	private final boolean[]		everValid		= new boolean[Common.MAX_SENSORS];
+	private final int[]			currentDropout	= new int[Common.MAX_SENSORS];	// length of the running dropout
+	private final int[]			maxDropout		= new int[Common.MAX_SENSORS];	// longest dropout
+	private final long[]		numDropouts		= new long[Common.MAX_SENSORS];	// number of dropouts
+
+	private boolean				hasTimestamp	= false;
+	private int					lastTimestamp;
+	private long				minGap			= Long.MAX_VALUE;
+	private long				maxGap			= Long.MIN_VALUE;
+	private long				sumGap			= 0;
+	private long				numGaps			= 0;
+
+	// channel statistics per block of the window, indexed [ (block * MAX_SENSORS + satIdx) * NUM_CHANNELS + channel ]
+	private final int			blockFrames;					// frames per block
+	private final int			numBlocks;
+	private int					block			= 0;			// block being filled
+	private int					blockFill		= 0;			// frames in the block being filled
+	private final int[]			blockValid;						// valid frames per block and satellite
+	private final float[]		chMin;
+	private final float[]		chMax;
+	private final double[]		chMean;
+	private final double[]		chM2;							// Welford's sum of squares
+
+	/*
+	 * Constructor:
+	 */
+	public SatelliteStatistics( int p_windowSize ) {
+		windowSize		= (p_windowSize > 0 ? p_windowSize : Common.STATISTICS_WINDOW_FRAMES);
+		windowBitmaps	= new int[windowSize];
+		blockFrames		= Math.max( 1, windowSize / Common.STATISTICS_WINDOW_BLOCKS );
+		numBlocks		= (windowSize + blockFrames - 1) / blockFrames;
+		blockValid		= new int[numBlocks * Common.MAX_SENSORS];
+		chMin			= new float[numBlocks * Common.MAX_SENSORS * SensorData.NUM_CHANNELS];
+		chMax			= new float[chMin.length];
+		chMean			= new double[chMin.length];
+		chM2			= new double[chMin.length];
+		reset();
+	}
+
+	public SatelliteStatistics( ) {
+		this( Common.STATISTICS_WINDOW_FRAMES );
+	}
+
+	/**
+	 * Account a new frame.
+	 */
+	public synchronized void update( SensorData p_frame ) {
+
+		int bitmap = p_frame.getBitmap() & SLOT_MASK;
+
+		numFrames++;
+
+		// sliding window: the oldest frame leaves the window, the new one enters
+		if (windowFill == windowSize) {
+			for (int old = windowBitmaps[windowPos]; old != 0; old &= (old - 1)) {
+				windowValid[Integer.numberOfTrailingZeros(old)]--;
+			}
+		} else {
+			windowFill++;
+		}
+		windowBitmaps[windowPos] = bitmap;
+		windowPos = (windowPos + 1) % windowSize;
+
+		// the block is full: the next one (the oldest) is emptied and refilled
+		if (blockFill == blockFrames) {
+			block = (block + 1) % numBlocks;
+			blockFill = 0;
+			clearBlock( block );
+		}
+		blockFill++;
+		boolean useMag = p_frame.isUseMag();
+
+		// timestamp gaps
+		int timestamp = p_frame.getTimestamp();
+		if (hasTimestamp) {
+			long gap = (long)timestamp - lastTimestamp;
+			if (gap < minGap) minGap = gap;
+			if (gap > maxGap) maxGap = gap;
+			sumGap += gap;
+			numGaps++;
+		}
+		lastTimestamp = timestamp;
+		hasTimestamp = true;
+
+		for (int i = 0; i < Common.MAX_SENSORS; i++) {
+
+			if ((bitmap & (1 << i)) == 0) {
+				// dropouts are counted only for satellites that have been seen at least once
+				if (everValid[i]) {
+					if (currentDropout[i] == 0) numDropouts[i]++;
+					currentDropout[i]++;
+					if (currentDropout[i] > maxDropout[i]) maxDropout[i] = currentDropout[i];
+				}
+				continue;
+			}
+
+			everValid[i] = true;
+			currentDropout[i] = 0;
+			windowValid[i]++;
+			totalValid[i]++;
+			int n = ++blockValid[block * Common.MAX_SENSORS + i];
+
+			// channels: min, max and Welford's running mean / variance of the block (no magnetometer: always 0)
+			int base = (block * Common.MAX_SENSORS + i) * SensorData.NUM_CHANNELS;
+			for (int ch = 0; ch < SensorData.NUM_CHANNELS; ch++) {
+				if (!useMag && ch >= SensorData.CH_MAG_X && ch <= SensorData.CH_MAG_Z) continue;
+				float value = p_frame.getChannel(i, ch);
+				int k = base + ch;
+				if (value < chMin[k]) chMin[k] = value;
+				if (value > chMax[k]) chMax[k] = value;
+				double delta = value - chMean[k];
+				chMean[k] += delta / n;
+				chM2[k] += delta * (value - chMean[k]);
+			}
+		}
+	}
+
+	/**
+	 * Consistent copy of the statistics.
+	 */
+	public synchronized Snapshot snapshot() {
+		return new Snapshot( this );
+	}
+
+	/**
+	 * One line with the window validity of the first p_numSatellites satellites (for the console).
+	 */
+	public synchronized String toValidityString( int p_numSatellites ) {
+		StringBuilder sb = new StringBuilder( String.format((Locale)null, " %8d", numFrames ) );
+		for (int i = 0; i < p_numSatellites && i < Common.MAX_SENSORS; i++) {
+			sb.append( String.format((Locale)null, " %5.1f%%", windowPercent(i) ) );
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * JMX attributes and operations
+	 */
+	@Override
+	public synchronized void reset() {
+		windowPos = 0;
+		windowFill = 0;
+		block = 0;
+		blockFill = 0;
+		numFrames = 0;
+		hasTimestamp = false;
+		minGap = Long.MAX_VALUE;
+		maxGap = Long.MIN_VALUE;
+		sumGap = 0;
+		numGaps = 0;
+		for (int i = 0; i < Common.MAX_SENSORS; i++) {
+			windowValid[i] = 0;
+			totalValid[i] = 0;
+			everValid[i] = false;
+			currentDropout[i] = 0;
+			maxDropout[i] = 0;
+			numDropouts[i] = 0;
+		}
+		for (int b = 0; b < numBlocks; b++) clearBlock( b );
+	}
+
+	@Override
+	public synchronized long getNumFrames()				{ return numFrames; }
+
+	@Override
+	public int getWindowSize()							{ return windowSize; }
+
+	@Override
+	public synchronized double[] getWindowValidPercent() {
+		double[] ret = new double[Common.MAX_SENSORS];
+		for (int i = 0; i < Common.MAX_SENSORS; i++) ret[i] = windowPercent(i);
+		return ret;
+	}
+
+	@Override
+	public synchronized double[] getTotalValidPercent() {
+		double[] ret = new double[Common.MAX_SENSORS];
+		for (int i = 0; i < Common.MAX_SENSORS; i++) ret[i] = (numFrames == 0 ? 0 : totalValid[i] * 100D / numFrames);
+		return ret;
+	}
+
+	@Override
+	public synchronized int[] getCurrentDropout()		{ return currentDropout.clone(); }
+
+	@Override
+	public synchronized int[] getMaxDropout()			{ return maxDropout.clone(); }
+
+	@Override
+	public synchronized long[] getNumDropouts()			{ return numDropouts.clone(); }
+
+	@Override
+	public synchronized long getMinTimestampGap()		{ return (numGaps == 0 ? 0 : minGap); }
+
+	@Override
+	public synchronized long getMaxTimestampGap()		{ return (numGaps == 0 ? 0 : maxGap); }
+
+	@Override
+	public synchronized double getMeanTimestampGap()	{ return (numGaps == 0 ? 0 : (double)sumGap / numGaps); }
+
+	@Override
+	public synchronized float[] getChannelMin( int p_satIdx ) {
+		float[] ret = new float[SensorData.NUM_CHANNELS];
+		mergeBlocks( p_satIdx, ret, null, null, null );
+		return ret;
+	}
+
+	@Override
+	public synchronized float[] getChannelMax( int p_satIdx ) {
+		float[] ret = new float[SensorData.NUM_CHANNELS];
+		mergeBlocks( p_satIdx, null, ret, null, null );
+		return ret;
+	}
+
+	@Override
+	public synchronized double[] getChannelMean( int p_satIdx ) {
+		double[] ret = new double[SensorData.NUM_CHANNELS];
+		mergeBlocks( p_satIdx, null, null, ret, null );
+		return ret;
+	}
+
+	@Override
+	public synchronized double[] getChannelVariance( int p_satIdx ) {
+		double[] ret = new double[SensorData.NUM_CHANNELS];
+		mergeBlocks( p_satIdx, null, null, null, ret );
+		return ret;
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void clearBlock( int p_block ) {
+		int from = p_block * Common.MAX_SENSORS;
+		for (int i = from; i < from + Common.MAX_SENSORS; i++) blockValid[i] = 0;
+		for (int k = from * SensorData.NUM_CHANNELS; k < (from + Common.MAX_SENSORS) * SensorData.NUM_CHANNELS; k++) {
+			chMin[k] = Float.POSITIVE_INFINITY;
+			chMax[k] = Float.NEGATIVE_INFINITY;
+			chMean[k] = 0;
+			chM2[k] = 0;
+		}
+	}
+
+	// statistics of the window of a satellite from its blocks (arrays of NUM_CHANNELS, null if not wanted):
+	// min > max for a channel never valid in the window
+	private void mergeBlocks( int p_satIdx, float[] p_min, float[] p_max, double[] p_mean, double[] p_variance ) {
+		for (int ch = 0; ch < SensorData.NUM_CHANNELS; ch++) {
+			float	min		= Float.POSITIVE_INFINITY;
+			float	max		= Float.NEGATIVE_INFINITY;
+			long	n		= 0;
+			double	mean	= 0;
+			double	m2		= 0;
+			for (int b = 0; b < numBlocks; b++) {
+				int	nb	= blockValid[b * Common.MAX_SENSORS + p_satIdx];
+				int	k	= (b * Common.MAX_SENSORS + p_satIdx) * SensorData.NUM_CHANNELS + ch;
+				if (nb == 0 || chMin[k] > chMax[k]) continue;
+				if (chMin[k] < min) min = chMin[k];
+				if (chMax[k] > max) max = chMax[k];
+				double delta = chMean[k] - mean;
+				long total = n + nb;
+				mean += delta * nb / total;
+				m2 += chM2[k] + delta * delta * n * nb / total;
+				n = total;
+			}
+			if (p_min != null) p_min[ch] = min;
+			if (p_max != null) p_max[ch] = max;
+			if (p_mean != null) p_mean[ch] = mean;
+			if (p_variance != null) p_variance[ch] = (n < 2 ? 0 : m2 / (n - 1));
+		}
+	}
+
+	private double windowPercent( int p_satIdx ) {
+		return (windowFill == 0 ? 0 : windowValid[p_satIdx] * 100D / windowFill);
+	}
+
+	/**
+	 * Immutable copy of the statistics, built under the statistics' lock.
+	 */
+	public static class Snapshot {
+
+		public final long		numFrames;
+		public final int		windowFrames;
+		public final double[]	windowValidPercent;
+		public final double[]	totalValidPercent;
+		public final int[]		currentDropout;
+		public final int[]		maxDropout;
+		public final long[]		numDropouts;
+		public final long		minTimestampGap;
+		public final long		maxTimestampGap;
+		public final double		meanTimestampGap;
+		public final float[][]	channelMin;			// [satIdx][channel]
+		public final float[][]	channelMax;
+		public final double[][]	channelMean;
+		public final double[][]	channelVariance;
+
+		private Snapshot( SatelliteStatistics p_stat ) {
+			numFrames			= p_stat.numFrames;
+			windowFrames		= p_stat.windowFill;
+			windowValidPercent	= p_stat.getWindowValidPercent();
+			totalValidPercent	= p_stat.getTotalValidPercent();
+			currentDropout		= p_stat.getCurrentDropout();
+			maxDropout			= p_stat.getMaxDropout();
+			numDropouts			= p_stat.getNumDropouts();
+			minTimestampGap		= p_stat.getMinTimestampGap();
+			maxTimestampGap		= p_stat.getMaxTimestampGap();
+			meanTimestampGap	= p_stat.getMeanTimestampGap();
+			channelMin			= new float[Common.MAX_SENSORS][];
+			channelMax			= new float[Common.MAX_SENSORS][];
+			channelMean			= new double[Common.MAX_SENSORS][];
+			channelVariance		= new double[Common.MAX_SENSORS][];
+			for (int i = 0; i < Common.MAX_SENSORS; i++) {
+				channelMin[i]		= p_stat.getChannelMin(i);
+				channelMax[i]		= p_stat.getChannelMax(i);
+				channelMean[i]		= p_stat.getChannelMean(i);
+				channelVariance[i]	= p_stat.getChannelVariance(i);
+			}
+		}
+
+		/**
+		 * Multi line description of the first p_numSatellites satellites (for the log).
+		 */
+		public String toString( int p_numSatellites ) {
+			StringBuilder sb = new StringBuilder();
+			sb.append( String.format((Locale)null, "frames %d - timestamp gap min %d max %d avg %.2f%n",
+					numFrames, minTimestampGap, maxTimestampGap, meanTimestampGap ) );
+			for (int i = 0; i < p_numSatellites && i < Common.MAX_SENSORS; i++) {
+				sb.append( String.format((Locale)null, "sat %2d: valid %5.1f%% (window) %5.1f%% (total) - dropouts %d max %d current %d%n",
+						i, windowValidPercent[i], totalValidPercent[i], numDropouts[i], maxDropout[i], currentDropout[i] ) );
+				for (int ch = 0; ch < SensorData.NUM_CHANNELS; ch++) {
+					if (channelMin[i][ch] > channelMax[i][ch]) continue; // never valid
+					sb.append( String.format((Locale)null, "        %-8s min %12.4f max %12.4f mean %12.4f var %14.4f%n",
+							SensorData.getChannelName( ch ), channelMin[i][ch], channelMax[i][ch], channelMean[i][ch], channelVariance[i][ch] ) );
+				}
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return toString( Common.MAX_SENSORS );
+		}
+	}
+
+}
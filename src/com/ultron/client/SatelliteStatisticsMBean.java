@@ -0,0 +1,40 @@
+/**
+ * JMX view of the rolling statistics computed by SatelliteStatistics.
+ * Every array attribute is indexed by satellite slot (0 .. Common.MAX_SENSORS-1).
+ */
+package com.ultron.client;
+
+public interface SatelliteStatisticsMBean {
+
+	public long		getNumFrames();
+
+	public int		getWindowSize();
+
+	public double[]	getWindowValidPercent();
+
+	public double[]	getTotalValidPercent();
+
+	public int[]	getCurrentDropout();
+
+	public int[]	getMaxDropout();
+
+	public long[]	getNumDropouts();
+
+	public long		getMinTimestampGap();
+
+	public long		getMaxTimestampGap();
+
+	public double	getMeanTimestampGap();
+
+	// per channel statistics of a satellite over the window (channels are SensorData.CH_xxx)
+	public float[]	getChannelMin( int p_satIdx );
+
+	public float[]	getChannelMax( int p_satIdx );
+
+	public double[]	getChannelMean( int p_satIdx );
+
+	public double[]	getChannelVariance( int p_satIdx );
+
+	public void		reset();
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Triggered recorder: instead of the whole session, it records only the frames around the events.
+ */
+package com.ultron.client;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+import com.ultron.general.Common;
+import com.ultron.general.FrameSink;
+import com.ultron.general.Log;
+import com.ultron.general.SensorData;
+
+/**
+ * The last preFrames frames are always kept in a preallocated ring (nothing is allocated per frame).
+ * When a trigger fires, the ring is written to a new event file (text, like the dump file) followed by the
+ * next postFrames frames; a trigger during the post-trigger capture extends it.
+ *
+ * Triggers:
+ * - accelerometer or gyroscope magnitude of a valid satellite above a threshold (raw units, <= 0 -> not checked)
+ * - validity drop: a satellite valid in the previous frame is not valid anymore
+ * - external: trigger() (e.g. from the console)
+ *
+ * The file name can contain %t (date of the event) and %n (number of the event); without %n the number
+ * is added before the extension. The sink must not lose frames: its overflow policy is BLOCK.
+ */
+public class TriggeredRecorder implements FrameSink {
+
+	// reasons of a trigger
+	public static final int		TRIGGER_ACCEL		= (1 << 0);
+	public static final int		TRIGGER_GYRO		= (1 << 1);
+	public static final int		TRIGGER_VALIDITY	= (1 << 2);
+	public static final int		TRIGGER_EXTERNAL	= (1 << 3);
+
+	/*
+	 * local variables
+	 */
+	private final String		fileName;
+	private final boolean		useMag;
+	private final Log			log;
+	private final byte[][]		ring;						// last frames (copies)
+	private int					ringHead		= 0;		// oldest frame
+	private int					ringSize		= 0;
+	private final int			postFrames;
+	private final float			accelSquared;				// thresholds squared (<= 0 -> not checked)
+	private final float			gyroSquared;
+	private final boolean		validityDrop;
+	private volatile boolean	externalTrigger	= false;
+	private int					lastBitmap		= -1;		// -1 -> no previous frame
+	private PrintStream			eventFile		= null;		// event being recorded (null -> none)
+	private String				eventFileName	= null;
+	private int					postLeft		= 0;		// frames still to record after the last trigger
+	private int					eventReasons	= 0;
+	private long				eventFrames		= 0;
+	private int					numEvents		= 0;
+	private long				numFrames		= 0;
+	private long				numRecorded		= 0;
+
+	/*
+	 * Constructor: p_preMs and p_postMs are turned into frames at the nominal rate of the hub
+	 */
+	public TriggeredRecorder( String p_fileName, boolean p_useMag, int p_preMs, int p_postMs, int p_accel, int p_gyro, boolean p_validityDrop, Log p_log ) {
+		int preFrames	= Math.max( 1, p_preMs / Common.DEFAULT_SAMPLE_FREQUENCY_MS );
+		fileName		= p_fileName;
+		useMag			= p_useMag;
+		log				= p_log;
+		ring			= new byte[preFrames][p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG];
+		postFrames		= Math.max( 0, p_postMs / Common.DEFAULT_SAMPLE_FREQUENCY_MS );
+		accelSquared	= (p_accel > 0 ? (float)p_accel * p_accel : -1F);
+		gyroSquared		= (p_gyro > 0 ? (float)p_gyro * p_gyro : -1F);
+		validityDrop	= p_validityDrop;
+	}
+
+	/**
+	 * Public Methods
+	 * fire a trigger at the next frame (any thread).
+	 */
+	public void trigger() {
+		externalTrigger = true;
+	}
+
+	public int getNumEvents() {
+		return numEvents;
+	}
+
+	@Override
+	public String getName() {
+		return "triggered recorder " + fileName;
+	}
+
+	@Override
+	public OverflowPolicy getOverflowPolicy() {
+		return OverflowPolicy.BLOCK;
+	}
+
+	@Override
+	public boolean open() {
+		if (log != null) log.writeln( Log.INFORMATION, "Trigger: recording events to " + fileName + " - " + ring.length + " frames before, " + postFrames + " after" );
+		return true;
+	}
+
+	@Override
+	public void onFrame( byte[] p_frame ) {
+		numFrames++;
+
+		int reasons = check( p_frame );
+		if (reasons != 0) {
+			if (eventFile == null) startEvent( reasons );
+			else eventReasons |= reasons;
+			postLeft = postFrames;
+		}
+
+		if (eventFile != null) {
+			writeFrame( p_frame );
+			if (reasons == 0) postLeft--;
+			if (postLeft <= 0) endEvent();
+		} else {
+			keep( p_frame );
+		}
+	}
+
+	@Override
+	public void onDrop( long p_numFrames ) {
+		// never called: the policy is BLOCK
+	}
+
+	@Override
+	public void close() {
+		if (eventFile != null) endEvent();
+		if (log != null) log.writeln( Log.INFORMATION, "Trigger: " + numEvents + " events - recorded " + numRecorded + " of " + numFrames + " frames" );
+	}
+
+	/**
+	 * Reasons (TRIGGER_xxx) of a trigger, as a string.
+	 */
+	public static String reasonsToString( int p_reasons ) {
+		StringBuilder sb = new StringBuilder();
+		if ((p_reasons & TRIGGER_ACCEL) != 0)		sb.append( " accel" );
+		if ((p_reasons & TRIGGER_GYRO) != 0)		sb.append( " gyro" );
+		if ((p_reasons & TRIGGER_VALIDITY) != 0)	sb.append( " validity" );
+		if ((p_reasons & TRIGGER_EXTERNAL) != 0)	sb.append( " external" );
+		return sb.toString().trim();
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// triggers fired by the frame
+	private int check( byte[] p_frame ) {
+		int reasons	= 0;
+		int bitmap	= SensorData.readBitmap( p_frame );
+
+		if (externalTrigger) {
+			externalTrigger = false;
+			reasons |= TRIGGER_EXTERNAL;
+		}
+		if (validityDrop && lastBitmap != -1 && (lastBitmap & ~bitmap) != 0) reasons |= TRIGGER_VALIDITY;
+		lastBitmap = bitmap;
+
+		if (accelSquared > 0 || gyroSquared > 0) {
+			for (int s = 0; s < Common.MAX_SENSORS; s++) {
+				if ((bitmap & (1 << s)) == 0) continue;
+				if (accelSquared > 0 && magnitudeSquared( p_frame, s, SensorData.CH_ACCEL_X ) > accelSquared)	reasons |= TRIGGER_ACCEL;
+				if (gyroSquared > 0 && magnitudeSquared( p_frame, s, SensorData.CH_GYRO_X ) > gyroSquared)		reasons |= TRIGGER_GYRO;
+			}
+		}
+		return reasons;
+	}
+
+	private float magnitudeSquared( byte[] p_frame, int p_satIdx, int p_firstChannel ) {
+		float x = SensorData.readChannel( p_frame, useMag, p_satIdx, p_firstChannel );
+		float y = SensorData.readChannel( p_frame, useMag, p_satIdx, p_firstChannel + 1 );
+		float z = SensorData.readChannel( p_frame, useMag, p_satIdx, p_firstChannel + 2 );
+		return x * x + y * y + z * z;
+	}
+
+	// copy the frame into the ring (over the oldest one when full)
+	private void keep( byte[] p_frame ) {
+		int idx;
+		if (ringSize < ring.length) {
+			idx = (ringHead + ringSize) % ring.length;
+			ringSize++;
+		} else {
+			idx = ringHead;
+			ringHead = (ringHead + 1) % ring.length;
+		}
+		System.arraycopy( p_frame, 0, ring[idx], 0, p_frame.length );
+	}
+
+	// open the event file and write the frames before the trigger
+	private void startEvent( int p_reasons ) {
+		numEvents++;
+		eventFileName	= eventFileName( numEvents );
+		eventReasons	= p_reasons;
+		eventFrames		= 0;
+		try {
+			eventFile = new PrintStream( new BufferedOutputStream( new FileOutputStream( eventFileName ), Common.SINK_WRITE_BUFFER_BYTES ) );
+		} catch (FileNotFoundException e) {
+			eventFile = null;
+			if (log != null) {
+				e.printStackTrace( log.getOutputStream() );
+				log.writeln( Log.ERROR, "Trigger: Error in opening " + eventFileName );
+			}
+			return;
+		}
+		if (log != null) log.writeln( Log.WARNING, "Trigger: event " + numEvents + " (" + reasonsToString( p_reasons ) + ") recording to " + eventFileName, Log.ECHO );
+
+		for (int i = 0; i < ringSize; i++) writeFrame( ring[(ringHead + i) % ring.length] );
+		ringHead = 0;
+		ringSize = 0;
+	}
+
+	private void endEvent() {
+		eventFile.close();
+		if (eventFile.checkError() && log != null) log.writeln( Log.ERROR, "Trigger: Error in writing " + eventFileName );
+		if (log != null) log.writeln( Log.INFORMATION, "Trigger: event " + numEvents + " (" + reasonsToString( eventReasons ) + ") - written " + eventFrames + " frames to " + eventFileName );
+		eventFile	= null;
+		postLeft	= 0;
+	}
+
+	private void writeFrame( byte[] p_frame ) {
+		eventFile.println( new SensorData( p_frame, useMag ).toString() );
+		eventFrames++;
+		numRecorded++;
+	}
+
+	// %t -> date, %n -> number of the event (added before the extension if missing)
+	private String eventFileName( int p_event ) {
+		String name = HubWriter.expandFileName( fileName );
+		if (name.contains( "%n" )) return name.replace( "%n", String.valueOf( p_event ) );
+		int dot = name.lastIndexOf( '.' );
+		if (dot <= Math.max( name.lastIndexOf( '/' ), name.lastIndexOf( '\\' ) )) return name + "_" + p_event;
+		return name.substring( 0, dot ) + "_" + p_event + name.substring( dot );
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.ultron.general;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary dump file format: the raw frames as they are sent by the hub, preceded by a small header.
+ *
+ * Header (LITTLE_ENDIAN like the hub frames):
+ * - MAGIC (int)
+ * - VERSION (int)
+ * - flags (int): FLAG_MAG -> frames with magnetometer, FLAG_COMPRESSED -> frames in deflated blocks,
+ *   FLAG_SPARSE -> sparse frames in blocks, FLAG_CHANNEL -> frames encoded by SensorChannelCodec in blocks
+ * - frame size in bytes (int, of the full frames)
+ *
+ * A compressed dump (COMPRESSED_EXTENSION) is a sequence of independent blocks, so that they can be
+ * compressed and decompressed in parallel: raw size (int), compressed size (int), deflated frames.
+ *
+ * A sparse dump (SPARSE_EXTENSION) has the same blocks, with the frames in sparse form instead of deflated
+ * (see SensorData.toSparse): only the records of the satellites in the bitmap are stored. With 5 satellites
+ * out of 11 a frame takes less than half the space, and expanding it costs a few copies.
+ *
+ * A channel dump (CHANNEL_EXTENSION) has the same blocks again, with the frames encoded by SensorChannelCodec
+ * (deltas and XOR of the channels, the codec is reset at every block): smaller than deflated frames and faster
+ * to decode, and the frames come back exactly as they were written.
+ */
+public class BinaryDump {
+
+	public static final int		MAGIC			= 0x44425548;	// "HUBD"
+	public static final int		VERSION			= 1;
+	public static final int		BYTES_HEADER	= Integer.BYTES * 4;
+	public static final String	EXTENSION		= ".bin";
+	public static final String	COMPRESSED_EXTENSION	= ".binz";
+	public static final String	SPARSE_EXTENSION		= ".bins";
+	public static final String	CHANNEL_EXTENSION		= ".binc";
+	public static final int		BYTES_BLOCK_HEADER		= Integer.BYTES * 2;
+
+	// flags
+	public static final int		FLAG_MAG		= (1 << 0);
+	public static final int		FLAG_COMPRESSED	= (1 << 1);
+	public static final int		FLAG_SPARSE		= (1 << 2);
+	public static final int		FLAG_CHANNEL	= (1 << 3);
+
+	/*
+	 * local variables
+	 */
+	private int					flags;
+	private int					frameBytes;
+
+	/*
+	 * Constructors
+	 */
+	public BinaryDump( boolean p_useMag, boolean p_compressed, boolean p_sparse, boolean p_channel ) {
+		flags		= (p_useMag ? FLAG_MAG : 0) | (p_compressed ? FLAG_COMPRESSED : 0) | (p_sparse ? FLAG_SPARSE : 0) |
+						(p_channel ? FLAG_CHANNEL : 0);
+		frameBytes	= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+	}
+
+	public BinaryDump( boolean p_useMag, boolean p_compressed, boolean p_sparse ) {
+		this( p_useMag, p_compressed, p_sparse, false );
+	}
+
+	public BinaryDump( boolean p_useMag, boolean p_compressed ) {
+		this( p_useMag, p_compressed, false );
+	}
+
+	public BinaryDump( boolean p_useMag ) {
+		this( p_useMag, false );
+	}
+
+	private BinaryDump( int p_flags, int p_frameBytes ) {
+		flags		= p_flags;
+		frameBytes	= p_frameBytes;
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public boolean isUseMag()	{ return (flags & FLAG_MAG) != 0; }
+
+	public boolean isCompressed()	{ return (flags & FLAG_COMPRESSED) != 0; }
+
+	public boolean isSparse()	{ return (flags & FLAG_SPARSE) != 0; }
+
+	public boolean isChannel()	{ return (flags & FLAG_CHANNEL) != 0; }
+
+	public int getFlags()		{ return flags; }
+
+	public int getFrameBytes()	{ return frameBytes; }
+
+	public void writeHeader( ByteBuffer p_buf ) {
+		ByteOrder order = p_buf.order();
+		p_buf.order( ByteOrder.LITTLE_ENDIAN );
+		p_buf.putInt( MAGIC ).putInt( VERSION ).putInt( flags ).putInt( frameBytes );
+		p_buf.order( order );
+	}
+
+	public byte[] header() {
+		ByteBuffer buf = ByteBuffer.allocate( BYTES_HEADER );
+		writeHeader( buf );
+		return buf.array();
+	}
+
+	/**
+	 * Read the header at the current position of the buffer.
+	 * Returns null if the buffer does not start with a binary dump header.
+	 */
+	public static BinaryDump readHeader( ByteBuffer p_buf ) {
+		if (p_buf.remaining() < BYTES_HEADER) return null;
+		ByteOrder order = p_buf.order();
+		p_buf.order( ByteOrder.LITTLE_ENDIAN );
+		try {
+			if (p_buf.getInt() != MAGIC) return null;
+			if (p_buf.getInt() != VERSION) return null;
+			return new BinaryDump( p_buf.getInt(), p_buf.getInt() );
+		} finally {
+			p_buf.order( order );
+		}
+	}
+
+	/**
+	 * Header of a dump file, null if the file is not a binary dump (e.g. a text dump).
+	 */
+	public static BinaryDump readHeader( String p_fileName ) throws IOException {
+		try (InputStream in = new FileInputStream( p_fileName )) {
+			return readHeader( in );
+		}
+	}
+
+	public static BinaryDump readHeader( InputStream p_in ) throws IOException {
+		byte[] buf = new byte[BYTES_HEADER];
+		int n = 0;
+		while (n < BYTES_HEADER) {
+			int r = p_in.read( buf, n, BYTES_HEADER - n );
+			if (r < 0) return null;
+			n += r;
+		}
+		return readHeader( ByteBuffer.wrap( buf ) );
+	}
+
+}
@@ -0,0 +1,486 @@
+package com.ultron.general;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Columnar dump file: frames stored per satellite and per channel, in chunks, for analysis.
+ *
+ * Layout (LITTLE_ENDIAN like the hub frames):
+ * - header: MAGIC (int), VERSION (int), flags (int: BinaryDump.FLAG_MAG), frames per chunk (int)
+ * - chunks of n frames: timestamps (int[n]), bitmaps (int[n]), the satelliteIDs of each slot (int[n] per slot)
+ *   and then, for each satellite slot and for each channel (SensorData.CH_xxx, magnetometer only with FLAG_MAG),
+ *   the n values packed as short[n] (accel, gyro, mag) or float[n] (quaternion)
+ * - index: for each chunk its offset (long), n (int), min and max timestamp (int, int),
+ *   the min and max satelliteID (int, int) of each slot and the min and max (float, float) of each slot
+ *   and channel, over the valid frames
+ * - trailer: offset of the index (long), number of chunks (int), MAGIC (int)
+ *
+ * A query reads the index, skips the chunks outside the time range (or outside a value range)
+ * and reads only the timestamp, bitmap and requested columns of the other chunks. A query by satellite ID
+ * (a satellite may change slot) reads the slots whose satelliteID range holds it.
+ * This class is the writer, see ColumnarDump.Reader for queries.
+ */
+public class ColumnarDump {
+
+	public static final int		MAGIC			= 0x43425548;	// "HUBC"
+	public static final int		VERSION			= 2;
+	public static final int		BYTES_HEADER	= Integer.BYTES * 4;
+	public static final int		BYTES_TRAILER	= Long.BYTES + Integer.BYTES * 2;
+	public static final String	EXTENSION		= ".col";
+
+	private static final int	NUM_COLUMNS		= Common.MAX_SENSORS * SensorData.NUM_CHANNELS;
+	private static final int	BYTES_INDEX_ENTRY = Long.BYTES + Integer.BYTES * 3 + Integer.BYTES * 2 * Common.MAX_SENSORS + Float.BYTES * 2 * NUM_COLUMNS;
+
+	/*
+	 * local variables
+	 */
+	private final boolean		useMag;
+	private final int			chunkFrames;
+	private FileChannel			channel;
+	private long				position;						// where the next chunk goes
+
+	// chunk being built
+	private int					n				= 0;
+	private final int[]			timestamps;
+	private final int[]			bitmaps;
+	private final int[][]		satelliteIDs;					// [slot][frame]
+	private final float[][]		columns;						// [slot * NUM_CHANNELS + channel][frame]
+	private final float[]		colMin			= new float[NUM_COLUMNS];
+	private final float[]		colMax			= new float[NUM_COLUMNS];
+	private final int[]			idMin			= new int[Common.MAX_SENSORS];
+	private final int[]			idMax			= new int[Common.MAX_SENSORS];
+	private int					minTs, maxTs;
+
+	// index of the chunks already written
+	private ByteBuffer			index;
+	private int					numChunks		= 0;
+	private ByteBuffer			chunkBuffer;
+
+	/*
+	 * Constructor: create the file and write its header
+	 */
+	@SuppressWarnings("resource")
+	public ColumnarDump( String p_fileName, boolean p_useMag, int p_chunkFrames ) throws IOException {
+		useMag		= p_useMag;
+		chunkFrames	= (p_chunkFrames > 0 ? p_chunkFrames : Common.COLUMNAR_CHUNK_FRAMES);
+		timestamps	= new int[chunkFrames];
+		bitmaps		= new int[chunkFrames];
+		satelliteIDs	= new int[Common.MAX_SENSORS][chunkFrames];
+		columns		= new float[NUM_COLUMNS][chunkFrames];
+		chunkBuffer	= ByteBuffer.allocateDirect( chunkBytes( chunkFrames, useMag ) ).order( ByteOrder.LITTLE_ENDIAN );
+		index		= ByteBuffer.allocate( BYTES_INDEX_ENTRY * 64 ).order( ByteOrder.LITTLE_ENDIAN );
+
+		channel		= new FileOutputStream( p_fileName ).getChannel();
+		ByteBuffer header = ByteBuffer.allocate( BYTES_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION ).putInt( useMag ? BinaryDump.FLAG_MAG : 0 ).putInt( chunkFrames );
+		header.flip();
+		writeFully( header );
+		position	= BYTES_HEADER;
+		resetChunk();
+	}
+
+	public ColumnarDump( String p_fileName, boolean p_useMag ) throws IOException {
+		this( p_fileName, p_useMag, Common.COLUMNAR_CHUNK_FRAMES );
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public void add( SensorData p_frame ) throws IOException {
+
+		int ts = p_frame.getTimestamp();
+		int bm = p_frame.getBitmap();
+		timestamps[n]	= ts;
+		bitmaps[n]		= bm;
+		if (ts < minTs) minTs = ts;
+		if (ts > maxTs) maxTs = ts;
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			boolean valid = (bm & (1 << s)) != 0;
+			int id = (valid ? p_frame.getSatelliteID( s ) : 0);
+			satelliteIDs[s][n] = id;
+			if (valid) {
+				if (id < idMin[s]) idMin[s] = id;
+				if (id > idMax[s]) idMax[s] = id;
+			}
+			int base = s * SensorData.NUM_CHANNELS;
+			for (int ch = 0; ch < SensorData.NUM_CHANNELS; ch++) {
+				float v = (valid ? p_frame.getChannel( s, ch ) : 0F);
+				columns[base + ch][n] = v;
+				if (valid) {
+					if (v < colMin[base + ch]) colMin[base + ch] = v;
+					if (v > colMax[base + ch]) colMax[base + ch] = v;
+				}
+			}
+		}
+
+		if (++n == chunkFrames) writeChunk();
+	}
+
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	/**
+	 * Write the last chunk, the index and the trailer.
+	 */
+	public void close() throws IOException {
+		if (n > 0) writeChunk();
+
+		long indexOffset = position;
+		index.flip();
+		writeFully( index );
+
+		ByteBuffer trailer = ByteBuffer.allocate( BYTES_TRAILER ).order( ByteOrder.LITTLE_ENDIAN );
+		trailer.putLong( indexOffset ).putInt( numChunks ).putInt( MAGIC );
+		trailer.flip();
+		writeFully( trailer );
+		channel.close();
+	}
+
+	/*
+	 * Layout of a chunk
+	 */
+	public static boolean isChannelStored( int p_channel, boolean p_useMag ) {
+		return p_useMag || p_channel < SensorData.CH_MAG_X || p_channel > SensorData.CH_MAG_Z;
+	}
+
+	public static int channelBytes( int p_channel ) {
+		return (p_channel >= SensorData.CH_QUAT_W ? Float.BYTES : Short.BYTES);
+	}
+
+	private static int slotBytes( int p_n, boolean p_useMag ) {
+		int ret = 0;
+		for (int ch = 0; ch < SensorData.NUM_CHANNELS; ch++) {
+			if (isChannelStored( ch, p_useMag )) ret += channelBytes( ch ) * p_n;
+		}
+		return ret;
+	}
+
+	public static int chunkBytes( int p_n, boolean p_useMag ) {
+		return Integer.BYTES * (2 + Common.MAX_SENSORS) * p_n + slotBytes( p_n, p_useMag ) * Common.MAX_SENSORS;
+	}
+
+	/**
+	 * Offset of the satelliteIDs of a slot from the start of a chunk of p_n frames.
+	 */
+	public static int satelliteIDOffset( int p_n, int p_slot ) {
+		return Integer.BYTES * (2 + p_slot) * p_n;
+	}
+
+	/**
+	 * Offset of a column from the start of a chunk of p_n frames.
+	 */
+	public static int columnOffset( int p_n, int p_slot, int p_channel, boolean p_useMag ) {
+		int ret = Integer.BYTES * (2 + Common.MAX_SENSORS) * p_n + p_slot * slotBytes( p_n, p_useMag );
+		for (int ch = 0; ch < p_channel; ch++) {
+			if (isChannelStored( ch, p_useMag )) ret += channelBytes( ch ) * p_n;
+		}
+		return ret;
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void resetChunk() {
+		n = 0;
+		minTs = Integer.MAX_VALUE;
+		maxTs = Integer.MIN_VALUE;
+		for (int k = 0; k < NUM_COLUMNS; k++) {
+			colMin[k] = Float.POSITIVE_INFINITY;
+			colMax[k] = Float.NEGATIVE_INFINITY;
+		}
+		Arrays.fill( idMin, Integer.MAX_VALUE );
+		Arrays.fill( idMax, Integer.MIN_VALUE );
+	}
+
+	private void writeChunk() throws IOException {
+
+		ByteBuffer buf = chunkBuffer;
+		buf.clear();
+		for (int i = 0; i < n; i++) buf.putInt( timestamps[i] );
+		for (int i = 0; i < n; i++) buf.putInt( bitmaps[i] );
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			for (int i = 0; i < n; i++) buf.putInt( satelliteIDs[s][i] );
+		}
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			for (int ch = 0; ch < SensorData.NUM_CHANNELS; ch++) {
+				if (!isChannelStored( ch, useMag )) continue;
+				float[] col = columns[s * SensorData.NUM_CHANNELS + ch];
+				if (channelBytes( ch ) == Float.BYTES) {
+					for (int i = 0; i < n; i++) buf.putFloat( col[i] );
+				} else {
+					for (int i = 0; i < n; i++) buf.putShort( (short)col[i] );
+				}
+			}
+		}
+		buf.flip();
+		long chunkOffset = position;
+		writeFully( buf );
+
+		// index entry
+		if (index.remaining() < BYTES_INDEX_ENTRY) {
+			ByteBuffer bigger = ByteBuffer.allocate( index.capacity() * 2 ).order( ByteOrder.LITTLE_ENDIAN );
+			index.flip();
+			bigger.put( index );
+			index = bigger;
+		}
+		index.putLong( chunkOffset ).putInt( n ).putInt( minTs ).putInt( maxTs );
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			index.putInt( idMin[s] ).putInt( idMax[s] );
+		}
+		for (int k = 0; k < NUM_COLUMNS; k++) {
+			index.putFloat( colMin[k] ).putFloat( colMax[k] );
+		}
+		numChunks++;
+
+		resetChunk();
+	}
+
+	private void writeFully( ByteBuffer p_buf ) throws IOException {
+		while (p_buf.hasRemaining()) position += channel.write( p_buf );
+	}
+
+	/**
+	 * Query side of a columnar dump.
+	 */
+	public static class Reader implements AutoCloseable {
+
+		private final RandomAccessFile	file;
+		private final FileChannel		channel;
+		private final boolean			useMag;
+		private final int				numChunks;
+		private final long[]			chunkOffset;
+		private final int[]				chunkFrames;
+		private final int[]				chunkMinTs;
+		private final int[]				chunkMaxTs;
+		private final int[]				chunkMinId;				// [chunk * MAX_SENSORS + slot]
+		private final int[]				chunkMaxId;
+		private final float[]			chunkMin;				// [chunk * NUM_COLUMNS + column]
+		private final float[]			chunkMax;
+		private long					bytesRead		= 0;
+
+		public Reader( String p_fileName ) throws IOException {
+
+			file	= new RandomAccessFile( p_fileName, "r" );
+			channel	= file.getChannel();
+
+			ByteBuffer header = read( 0, BYTES_HEADER );
+			if (header.getInt() != MAGIC) {
+				close();
+				throw new IOException( "Not a columnar dump: " + p_fileName );
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				close();
+				throw new IOException( "Columnar dump version " + version + " (expected " + VERSION + "), export it again: " + p_fileName );
+			}
+			useMag = (header.getInt() & BinaryDump.FLAG_MAG) != 0;
+
+			ByteBuffer trailer = read( channel.size() - BYTES_TRAILER, BYTES_TRAILER );
+			long indexOffset = trailer.getLong();
+			numChunks = trailer.getInt();
+			if (trailer.getInt() != MAGIC) {
+				close();
+				throw new IOException( "Columnar dump not closed: " + p_fileName );
+			}
+
+			chunkOffset	= new long[numChunks];
+			chunkFrames	= new int[numChunks];
+			chunkMinTs	= new int[numChunks];
+			chunkMaxTs	= new int[numChunks];
+			chunkMinId	= new int[numChunks * Common.MAX_SENSORS];
+			chunkMaxId	= new int[numChunks * Common.MAX_SENSORS];
+			chunkMin	= new float[numChunks * NUM_COLUMNS];
+			chunkMax	= new float[numChunks * NUM_COLUMNS];
+
+			ByteBuffer idx = read( indexOffset, numChunks * BYTES_INDEX_ENTRY );
+			for (int c = 0; c < numChunks; c++) {
+				chunkOffset[c]	= idx.getLong();
+				chunkFrames[c]	= idx.getInt();
+				chunkMinTs[c]	= idx.getInt();
+				chunkMaxTs[c]	= idx.getInt();
+				for (int s = 0; s < Common.MAX_SENSORS; s++) {
+					chunkMinId[c * Common.MAX_SENSORS + s] = idx.getInt();
+					chunkMaxId[c * Common.MAX_SENSORS + s] = idx.getInt();
+				}
+				for (int k = 0; k < NUM_COLUMNS; k++) {
+					chunkMin[c * NUM_COLUMNS + k] = idx.getFloat();
+					chunkMax[c * NUM_COLUMNS + k] = idx.getFloat();
+				}
+			}
+			bytesRead = 0;
+		}
+
+		public boolean isUseMag()						{ return useMag; }
+
+		public int getNumChunks()						{ return numChunks; }
+
+		public int getChunkFrames( int p_chunk )		{ return chunkFrames[p_chunk]; }
+
+		public int getChunkMinTimestamp( int p_chunk )	{ return chunkMinTs[p_chunk]; }
+
+		public int getChunkMaxTimestamp( int p_chunk )	{ return chunkMaxTs[p_chunk]; }
+
+		/**
+		 * Range of the satelliteIDs of a slot in a chunk (valid frames): MAX_VALUE, MIN_VALUE if never valid.
+		 */
+		public int getChunkMinSatelliteID( int p_chunk, int p_slot ) { return chunkMinId[p_chunk * Common.MAX_SENSORS + p_slot]; }
+
+		public int getChunkMaxSatelliteID( int p_chunk, int p_slot ) { return chunkMaxId[p_chunk * Common.MAX_SENSORS + p_slot]; }
+
+		public float getChunkMin( int p_chunk, int p_slot, int p_channel ) { return chunkMin[p_chunk * NUM_COLUMNS + p_slot * SensorData.NUM_CHANNELS + p_channel]; }
+
+		public float getChunkMax( int p_chunk, int p_slot, int p_channel ) { return chunkMax[p_chunk * NUM_COLUMNS + p_slot * SensorData.NUM_CHANNELS + p_channel]; }
+
+		/**
+		 * Bytes read by the queries (the index excluded).
+		 */
+		public long getBytesRead()						{ return bytesRead; }
+
+		/**
+		 * Values of one channel of a satellite slot with timestamp in [p_fromTs, p_toTs] (valid frames only).
+		 */
+		public Series query( int p_slot, int p_channel, int p_fromTs, int p_toTs ) throws IOException {
+			return query( p_slot, p_channel, p_fromTs, p_toTs, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY );
+		}
+
+		/**
+		 * As above, keeping only values in [p_minValue, p_maxValue]: chunks are skipped also by their min/max.
+		 */
+		public Series query( int p_slot, int p_channel, int p_fromTs, int p_toTs, float p_minValue, float p_maxValue ) throws IOException {
+
+			if (!isChannelStored( p_channel, useMag )) throw new IllegalArgumentException( "Channel not stored: " + SensorData.getChannelName( p_channel ) );
+
+			Series	ret		= new Series();
+			int		col		= p_slot * SensorData.NUM_CHANNELS + p_channel;
+			int		width	= channelBytes( p_channel );
+
+			for (int c = 0; c < numChunks; c++) {
+
+				// pruning by time and by value
+				if (chunkMaxTs[c] < p_fromTs || chunkMinTs[c] > p_toTs) continue;
+				if (chunkMax[c * NUM_COLUMNS + col] < p_minValue || chunkMin[c * NUM_COLUMNS + col] > p_maxValue) continue;
+
+				int			n		= chunkFrames[c];
+				ByteBuffer	tsBm	= read( chunkOffset[c], Integer.BYTES * 2 * n );
+				ByteBuffer	values	= read( chunkOffset[c] + columnOffset( n, p_slot, p_channel, useMag ), width * n );
+
+				for (int i = 0; i < n; i++) {
+					int		ts	= tsBm.getInt( i * Integer.BYTES );
+					int		bm	= tsBm.getInt( (n + i) * Integer.BYTES );
+					if (ts < p_fromTs || ts > p_toTs || (bm & (1 << p_slot)) == 0) continue;
+					float	v	= (width == Float.BYTES ? values.getFloat( i * width ) : values.getShort( i * width ));
+					if (v < p_minValue || v > p_maxValue) continue;
+					ret.add( ts, v );
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * Values of one channel of a satellite, by its ID, with timestamp in [p_fromTs, p_toTs], whatever its slot.
+		 */
+		public Series querySatellite( int p_satelliteID, int p_channel, int p_fromTs, int p_toTs ) throws IOException {
+			return querySatellite( p_satelliteID, p_channel, p_fromTs, p_toTs, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY );
+		}
+
+		/**
+		 * As above, keeping only values in [p_minValue, p_maxValue]: in a chunk only the slots whose satelliteID
+		 * and value ranges can match are read.
+		 */
+		public Series querySatellite( int p_satelliteID, int p_channel, int p_fromTs, int p_toTs, float p_minValue, float p_maxValue ) throws IOException {
+
+			if (!isChannelStored( p_channel, useMag )) throw new IllegalArgumentException( "Channel not stored: " + SensorData.getChannelName( p_channel ) );
+
+			Series			ret		= new Series();
+			int				width	= channelBytes( p_channel );
+			int[]			slots	= new int[Common.MAX_SENSORS];
+			ByteBuffer[]	ids		= new ByteBuffer[Common.MAX_SENSORS];
+			ByteBuffer[]	values	= new ByteBuffer[Common.MAX_SENSORS];
+
+			for (int c = 0; c < numChunks; c++) {
+
+				if (chunkMaxTs[c] < p_fromTs || chunkMinTs[c] > p_toTs) continue;
+
+				// slots that may hold the satellite in this chunk
+				int numSlots = 0;
+				for (int s = 0; s < Common.MAX_SENSORS; s++) {
+					int col = s * SensorData.NUM_CHANNELS + p_channel;
+					if (chunkMinId[c * Common.MAX_SENSORS + s] > p_satelliteID || chunkMaxId[c * Common.MAX_SENSORS + s] < p_satelliteID) continue;
+					if (chunkMax[c * NUM_COLUMNS + col] < p_minValue || chunkMin[c * NUM_COLUMNS + col] > p_maxValue) continue;
+					slots[numSlots++] = s;
+				}
+				if (numSlots == 0) continue;
+
+				int			n		= chunkFrames[c];
+				ByteBuffer	tsBm	= read( chunkOffset[c], Integer.BYTES * 2 * n );
+				for (int k = 0; k < numSlots; k++) {
+					ids[k]		= read( chunkOffset[c] + satelliteIDOffset( n, slots[k] ), Integer.BYTES * n );
+					values[k]	= read( chunkOffset[c] + columnOffset( n, slots[k], p_channel, useMag ), width * n );
+				}
+
+				for (int i = 0; i < n; i++) {
+					int ts	= tsBm.getInt( i * Integer.BYTES );
+					int bm	= tsBm.getInt( (n + i) * Integer.BYTES );
+					if (ts < p_fromTs || ts > p_toTs) continue;
+					for (int k = 0; k < numSlots; k++) {
+						if ((bm & (1 << slots[k])) == 0 || ids[k].getInt( i * Integer.BYTES ) != p_satelliteID) continue;
+						float v = (width == Float.BYTES ? values[k].getFloat( i * width ) : values[k].getShort( i * width ));
+						if (v >= p_minValue && v <= p_maxValue) ret.add( ts, v );
+						break;
+					}
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+
+		private ByteBuffer read( long p_offset, int p_len ) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate( p_len ).order( ByteOrder.LITTLE_ENDIAN );
+			while (buf.hasRemaining()) {
+				if (channel.read( buf, p_offset + buf.position() ) < 0) throw new IOException( "Unexpected end of columnar dump" );
+			}
+			buf.flip();
+			bytesRead += p_len;
+			return buf;
+		}
+	}
+
+	/**
+	 * Result of a query: timestamps and values in primitive arrays.
+	 */
+	public static class Series {
+
+		private int[]		timestamps	= new int[1024];
+		private float[]		values		= new float[1024];
+		private int			size		= 0;
+
+		void add( int p_ts, float p_value ) {
+			if (size == timestamps.length) {
+				timestamps	= Arrays.copyOf( timestamps, size * 2 );
+				values		= Arrays.copyOf( values, size * 2 );
+			}
+			timestamps[size]	= p_ts;
+			values[size]		= p_value;
+			size++;
+		}
+
+		public int size()					{ return size; }
+
+		public int getTimestamp( int p_i )	{ return timestamps[p_i]; }
+
+		public float getValue( int p_i )	{ return values[p_i]; }
+	}
+
+}
@@ -40,6 +40,9 @@ public class CommandData {
 			Integer.BYTES + 						// rtc_value
 			Integer.BYTES + 						// num_of_sat
 			Integer.BYTES * Common.MAX_SAT_SENSORS;	// satellite_ids[ MAX_SAT_SENSORS ]
+
+	// buffer shared by the senders (heap: written with OutputStream.write)
+	private static final ByteBuffer sendBuffer = ByteBuffer.allocate( BYTES_SENT_TO_HUB * WireCodec.MAX_PIPELINED ).order( ByteOrder.LITTLE_ENDIAN );
 	
 	/*
 	 * Constructors
@@ -65,32 +68,17 @@ public class CommandData {
 	}
 	
 	public CommandData( byte[] p_command, Log p_log ) {
-		
-		ByteBuffer buf = ByteBuffer.wrap( p_command );
-		
-		// Hub speaks LITTLE_ENDIAN "language"
-		buf.order( ByteOrder.LITTLE_ENDIAN );
-
-    	// translate the command from byte
-		command 	= buf.getInt();
-		rtc_value	= buf.getInt();
-		num_of_sat	= buf.getInt();
-		for (int i = 0; i<Common.MAX_SAT_SENSORS; i++) {
-			satellite_ids[i] = buf.getInt();
-		}
-			
-		if (log != null) {
-			log.writeln(Log.INFORMATION, "	----" );
-			log.writeln(Log.INFORMATION, "	received command: " + command + " - " + Log.int32ToBin( command ));
-			log.writeln(Log.INFORMATION, "	             rtc: " + Integer.toHexString( rtc_value ));
-			log.writeln(Log.INFORMATION, "	      num_of_sat: " + Integer.toString( num_of_sat ));
-			log.writeln(Log.INFORMATION, "	      satellites: " + Arrays.toString( satellite_ids ));
-			log.writeln(Log.INFORMATION, "	----" );
-		}
+		this( p_log );
+		decode( ByteBuffer.wrap( p_command ) );
+	}
 
+	/*
+	 * Empty command, to be filled by decode (and reused for every command received)
+	 */
+	public CommandData( Log p_log ) {
+		log = p_log;
 	}
 
-		
 	/*
 	 * Public Methods
 	 */
@@ -98,7 +86,7 @@ public class CommandData {
 		command 	= 0;
 		rtc_value	= 0;
 		num_of_sat	= 0;
-		satellite_ids = null;
+		Arrays.fill( satellite_ids, 0 );
 		
 		return true;
 	}
@@ -107,47 +95,98 @@ public class CommandData {
 	 * Send data to the hub
 	 */
 	public boolean send() {
+		return send( outStream, log, this );
+	}
 
-		if (log != null) {
-			log.writeln(Log.INFORMATION, "	----" );
-			log.writeln(Log.INFORMATION, "	sending command: " + command + " - " + Log.int32ToBin( command ));
-			log.writeln(Log.INFORMATION, "	            rtc: " + Integer.toHexString( rtc_value ));
-			log.writeln(Log.INFORMATION, "	     num_of_sat: " + Integer.toString( num_of_sat ));
-			log.writeln(Log.INFORMATION, "	     satellites: " + Arrays.toString( satellite_ids ));
-			log.writeln(Log.INFORMATION, "	----" );
+	/*
+	 * Send several commands to the hub with a single write (see WireCodec)
+	 */
+	public static boolean send( OutputStream p_outStream, Log p_log, CommandData... p_commands ) {
+
+		for (CommandData command : p_commands) command.logCommand( "sending command" );
+
+		// send command to the hub via socket stream
+		synchronized (sendBuffer) {
+			try {
+
+				WireCodec.writeCommands( p_outStream, sendBuffer, p_commands );
+
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (p_log != null) {
+					e.printStackTrace( p_log.getOutputStream() );
+					p_log.writeln( Log.ERROR, "===== ERROR: Error in sending commands to the hub" );
+				}
+				return false;
+			}
 		}
 
-		// prepare the "string" commend to send
-		ByteBuffer	buf	= ByteBuffer.allocate(BYTES_SENT_TO_HUB);
-		
+		return true;
+	}
+
+	/**
+	 * Append the command to p_out (cloud_to_hub_t layout, LITTLE_ENDIAN): false if it does not fit.
+	 */
+	public boolean encode( ByteBuffer p_out ) {
+
+		if (p_out.remaining() < BYTES_SENT_TO_HUB) return false;
+
 		// Hub speaks LITTLE_ENDIAN "language"
-		buf.order( ByteOrder.LITTLE_ENDIAN );
-		
-		buf.putInt(command);
-		buf.putInt(rtc_value);
-		buf.putInt(num_of_sat);
-		for (int i = 0; i<num_of_sat; i++) {
-			buf.putInt(satellite_ids[i]);
+		ByteOrder order = p_out.order();
+		p_out.order( ByteOrder.LITTLE_ENDIAN );
+
+		p_out.putInt(command);
+		p_out.putInt(rtc_value);
+		p_out.putInt(num_of_sat);
+		for (int i = 0; i<Common.MAX_SAT_SENSORS; i++) {
+			p_out.putInt( i < num_of_sat ? satellite_ids[i] : 0 );
+		}
+		if (log != null && log.getLogLevel() >= Log.DEBUG) {
+			log.writeln(Log.DEBUG, toHex( p_out, p_out.position() - BYTES_SENT_TO_HUB, BYTES_SENT_TO_HUB ));
 		}
-		if (log != null) log.writeln(Log.DEBUG, Arrays.toString( buf.array() ));
 
-		// send command to the hub via socket stream
-		try {
+		p_out.order( order );
+		return true;
+	}
 
-			outStream.write( buf.array() );
+	/**
+	 * Read the next command of p_in into this object (see WireCodec for the results).
+	 * A num_of_sat out of range makes the command invalid.
+	 */
+	public int decode( ByteBuffer p_in ) {
 
-		} catch (IOException e) {
-			e.printStackTrace();
-			if (log != null) {
-				e.printStackTrace( log.getOutputStream() );
-				log.writeln( Log.ERROR, "===== ERROR: Error in sending commands to the hub" );
-			}
-			return false;
+		if (p_in.remaining() < BYTES_SENT_TO_HUB) return WireCodec.DECODE_SHORT;
+
+		// Hub speaks LITTLE_ENDIAN "language"
+		ByteOrder order = p_in.order();
+		p_in.order( ByteOrder.LITTLE_ENDIAN );
+
+    	// translate the command from byte
+		command 	= p_in.getInt();
+		rtc_value	= p_in.getInt();
+		num_of_sat	= p_in.getInt();
+		for (int i = 0; i<Common.MAX_SAT_SENSORS; i++) {
+			satellite_ids[i] = p_in.getInt();
 		}
-		
-		return true;
+		p_in.order( order );
+
+		logCommand( "received command" );
+
+		if (num_of_sat < 0 || num_of_sat > Common.MAX_SAT_SENSORS) {
+			if (log != null) log.writeln(Log.WARNING, "	invalid num_of_sat: " + num_of_sat );
+			return WireCodec.DECODE_INVALID;
+		}
+		return WireCodec.DECODE_OK;
 	}
-	
+
+	public int getCommand()						{ return command; }
+
+	public int getRtcValue()					{ return rtc_value; }
+
+	public int getNumOfSat()					{ return num_of_sat; }
+
+	public int getSatelliteID( int p_idx )		{ return satellite_ids[p_idx]; }
+
 	/*
 	 * Methods for setting correct command
 	 */
@@ -159,4 +198,31 @@ public class CommandData {
 
 	public boolean wifiIsSetSAT ()		{ return ( (command & WIFI_SET_SATELLITES) != 0 ); }
 
+	/*
+	 * Private methods
+	 */
+	private void logCommand( String p_what ) {
+		if (log == null || log.getLogLevel() < Log.INFORMATION) return;
+
+		StringBuilder satellites = new StringBuilder( "[" );
+		for (int i = 0; i < Math.min( Math.max( num_of_sat, 0 ), Common.MAX_SAT_SENSORS ); i++) {
+			satellites.append( i == 0 ? "" : ", " ).append( satellite_ids[i] );
+		}
+		log.writeln(Log.INFORMATION, "	----" );
+		log.writeln(Log.INFORMATION, "	" + p_what + ": " + command + " - " + Log.int32ToBin( command ));
+		log.writeln(Log.INFORMATION, "	            rtc: " + Integer.toHexString( rtc_value ));
+		log.writeln(Log.INFORMATION, "	     num_of_sat: " + Integer.toString( num_of_sat ));
+		log.writeln(Log.INFORMATION, "	     satellites: " + satellites.append( "]" ));
+		log.writeln(Log.INFORMATION, "	----" );
+	}
+
+	private static String toHex( ByteBuffer p_buf, int p_offset, int p_length ) {
+		StringBuilder ret = new StringBuilder( p_length * 3 );
+		for (int i = 0; i < p_length; i++) {
+			int b = p_buf.get( p_offset + i ) & 0xFF;
+			ret.append( i == 0 ? "" : " " ).append( Character.forDigit( b >> 4, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+		}
+		return ret.toString();
+	}
+
 }
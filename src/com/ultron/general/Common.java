@@ -4,6 +4,9 @@ public class Common {
 	
 	// socket specific constants
 	public static final int		SOCKET_TIMEOUT_MS					= 500; // connection timeout
+	public static final int		READER_MAX_TIMEOUTS					= 4;		// read timeouts in a row meaning the connection is lost
+	public static final int		RECONNECT_MIN_DELAY_MS				= 250;		// first wait before reconnecting (doubled at each attempt)
+	public static final int		RECONNECT_MAX_DELAY_MS				= 10000;	// max wait between two attempts
 
 	// number of sensors constants
 	public static final int		MAX_SENSORS							= 11;
@@ -18,11 +21,52 @@ public class Common {
 	public static final int		WRITER_SLEEP_EVERY_CYCLE_MS			= 1;
 	public static final int		WRITER_INTERVAL_PRINT_VALID_FRAMES	= 50;
 
+	// frame dispatcher constants
+	public static final int		DISPATCHER_RING_SIZE				= 4096;		// frames in the ring (about 40s at 100Hz)
+	public static final long	DISPATCHER_IDLE_WAIT_NS				= 200000L;	// wait of an idle sink (or of a blocked reader)
+	public static final long	DISPATCHER_CLOSE_TIMEOUT_MS			= 30000L;	// wait for each sink to flush and close (stop, quit)
+	public static final int		SINK_WRITE_BUFFER_BYTES				= 65536;	// buffer of the sinks writing to file
+
+	// frame publisher constants
+	public static final int		PUBLISHER_BUFFER_FRAMES				= 1024;		// frames buffered for a subscriber (about 10s at 100Hz)
+	public static final int		PUBLISHER_MAX_BATCH_FRAMES			= 64;		// frames of a signal at most
+
+	// writer queue constants
+	public static final int		SPILL_SEGMENT_BYTES					= 16 << 20;	// segment file of the frames spilled by the writer queue
+
+	// multicast constants
+	public static final int		MULTICAST_MAX_DATAGRAM_BYTES		= 1472;		// fits an ethernet frame (1500 - IP - UDP headers)
+	public static final int		MULTICAST_TTL						= 1;		// local network only
+	public static final long	MULTICAST_HIGH_RATE_INTERVAL_NS		= 2000000L;	// frames closer than this are batched
+	public static final long	MULTICAST_MAX_BATCH_DELAY_NS		= 5000000L;	// max time a frame waits in a batch
+	public static final int		MULTICAST_RECEIVE_TIMEOUT_MS		= 500;
+	public static final int		MULTICAST_RECEIVE_BUFFER_BYTES		= 1 << 20;	// absorbs bursts of datagrams
+
+	// statistics specific constants
+	public static final int		STATISTICS_WINDOW_FRAMES			= 500;		// sliding window of the statistics (5s at 100Hz)
+	public static final int		STATISTICS_WINDOW_BLOCKS			= 10;		// blocks of the window for the channel statistics
+
 	// log specific constants
 	public static final int		DEFAULT_LOG_LEVEL					= 2;
 	
 	// dump file specific constants
 	public static final String	FIELD_SEPARATOR						= "\t";
+	public static final String	GAP_INDEX_EXTENSION					= ".gaps";	// sidecar file with the frame gaps
+	public static final int		COLUMNAR_CHUNK_FRAMES				= 4096;		// frames per chunk of a columnar dump
+	public static final String	DUMP_INDEX_EXTENSION				= ".idx";	// sidecar file with the frame offsets
+	public static final int		DUMP_INDEX_INTERVAL_FRAMES			= 1000;		// one index entry every n frames
+	public static final int		CONVERTER_CHUNK_BYTES				= 4 << 20;	// piece of a dump processed by one task of the tools
+	public static final int		MERGE_CHUNK_BYTES					= 1 << 20;	// piece of a dump read ahead by the merge tool
+	public static final int		MERGE_READAHEAD_CHUNKS				= 2;		// chunks decoded ahead for each merged file
+	public static final int		MERGE_BATCH_FRAMES					= 4096;		// frames encoded and written at once by the merge tool
+	public static final int		MERGE_MAX_HOLD_PERIODS				= 2;		// resampling: a frame is repeated at most for n periods
+	public static final String	JOURNAL_EXTENSION					= ".journal";	// sidecar write-ahead journal of the raw frames
+	public static final int		JOURNAL_BLOCK_BYTES					= 1 << 16;	// max frames written to the journal at once
+	
+	// gap detection constants
+	public static final int		MAX_HUBS							= 16;		// hubs tracked by a single gap detector
+	public static final int		GAP_LEARN_FRAMES					= 16;		// frames used to learn the expected interval
+	public static final float	GAP_TOLERANCE						= 1.5F;		// a delta above tolerance * interval is a gap
 	
 	// server simulator specific constants
 	public static final int		DEFAULT_SAMPLE_FREQUENCY_MS			= 10;
@@ -0,0 +1,35 @@
+package com.ultron.general;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream keeping the count of the bytes written through it
+ * (i.e. the offset in the file of the next byte).
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+	private long	count	= 0;
+
+	public CountingOutputStream( OutputStream p_out ) {
+		super( p_out );
+	}
+
+	@Override
+	public void write( int p_byte ) throws IOException {
+		out.write( p_byte );
+		count++;
+	}
+
+	@Override
+	public void write( byte[] p_buf, int p_off, int p_len ) throws IOException {
+		out.write( p_buf, p_off, p_len );
+		count += p_len;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+}
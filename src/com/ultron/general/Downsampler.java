@@ -0,0 +1,246 @@
+package com.ultron.general;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reduction of the frames written to the dump file (see HubWriter), configured per writer:
+ * - MODE_DECIMATE: one frame every factor frames
+ * - MODE_AVERAGE: one frame every factor frames, with the mean of each satellite over the frames where it was valid
+ *   (accel/gyro/mag rounded, quaternions averaged after aligning their sign, then normalised)
+ * - MODE_DEADBAND: a frame is written only if the accel, gyro or mag of a valid satellite moved more than its
+ *   dead band since the last written frame, if the valid satellites changed, or every factor frames anyway
+ *
+ * It works on raw frames with primitive state per satellite, in the writer thread only (not thread safe).
+ * The frames sent to the other sinks (live stream, multicast ...) are not affected.
+ */
+public class Downsampler {
+
+	// modes
+	public static final int			MODE_NONE		= 0;
+	public static final int			MODE_DECIMATE	= 1;
+	public static final int			MODE_AVERAGE	= 2;
+	public static final int			MODE_DEADBAND	= 3;
+
+	private static final String[]	MODE_NAMES		= { "NONE", "DECIMATE", "AVERAGE", "DEADBAND" };
+
+	private static final int		VECTOR_CHANNELS	= SensorData.CH_QUAT_W;		// accel, gyro, mag
+	private static final int		QUAT_CHANNELS	= 4;
+
+	/*
+	 * local variables
+	 */
+	private final int			mode;
+	private final int			factor;
+	private final boolean		useMag;
+	private final int[]			deadband		= new int[3];		// accel, gyro, mag (< 0: not checked)
+	private int					count			= 0;				// frames in the window / since the last written frame
+	private long				numIn			= 0;
+	private long				numOut			= 0;
+
+	// average
+	private final long[]		sum				= new long[Common.MAX_SENSORS * VECTOR_CHANNELS];
+	private final double[]		quatSum			= new double[Common.MAX_SENSORS * QUAT_CHANNELS];
+	private final float[]		quatRef			= new float[Common.MAX_SENSORS * QUAT_CHANNELS];
+	private final int[]			numValid		= new int[Common.MAX_SENSORS];
+	private int					firstTimestamp;
+	private int					bitmap;
+	private final int			recordBytes;
+	private final byte[]		lastValid;							// per slot: record of the last frame where it was valid
+	private final byte[]		out;
+	private final ByteBuffer	outBuf;
+
+	// dead band
+	private final short[]		lastWritten		= new short[Common.MAX_SENSORS * VECTOR_CHANNELS];
+	private int					lastBitmap;
+	private boolean				hasWritten		= false;
+
+	/*
+	 * Constructor
+	 */
+	public Downsampler( int p_mode, int p_factor, boolean p_useMag, int p_accelDeadband, int p_gyroDeadband, int p_magDeadband ) {
+		mode		= p_mode;
+		factor		= Math.max( 1, p_factor );
+		useMag		= p_useMag;
+		deadband[0]	= p_accelDeadband;
+		deadband[1]	= p_gyroDeadband;
+		deadband[2]	= p_magDeadband;
+		out			= new byte[p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG];
+		recordBytes	= (out.length - SensorData.BYTES_HEADER_ONLY) / Common.MAX_SENSORS;
+		lastValid	= new byte[Common.MAX_SENSORS * recordBytes];
+		outBuf		= ByteBuffer.wrap( out ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	public Downsampler( int p_mode, int p_factor, boolean p_useMag ) {
+		this( p_mode, p_factor, p_useMag, 0, 0, 0 );
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public int getMode()			{ return mode; }
+
+	public long getNumIn()			{ return numIn; }
+
+	public long getNumOut()			{ return numOut; }
+
+	/**
+	 * Frame to write for the frame received: the frame itself, a frame owned by the downsampler
+	 * (valid until the next call), or null if nothing has to be written.
+	 */
+	public byte[] process( byte[] p_frame ) {
+		numIn++;
+		byte[] ret;
+		switch (mode) {
+			case MODE_DECIMATE:	ret = decimate( p_frame );	break;
+			case MODE_AVERAGE:	ret = average( p_frame );	break;
+			case MODE_DEADBAND:	ret = deadband( p_frame );	break;
+			default:			ret = p_frame;
+		}
+		if (ret != null) numOut++;
+		return ret;
+	}
+
+	/**
+	 * Frame of an incomplete averaging window (at the end of the dump), null if none.
+	 */
+	public byte[] flush() {
+		if (mode != MODE_AVERAGE || count == 0) return null;
+		numOut++;
+		return closeWindow();
+	}
+
+	@Override
+	public String toString() {
+		return modeName( mode ) + (mode == MODE_NONE ? "" : " x" + factor) +
+				(mode == MODE_DEADBAND ? " (dead band accel " + deadband[0] + " gyro " + deadband[1] + " mag " + deadband[2] + ")" : "") +
+				" - written " + numOut + " of " + numIn + " frames";
+	}
+
+	public static int parseMode( String p_name ) {
+		if (p_name != null) {
+			for (int i = 0; i < MODE_NAMES.length; i++) {
+				if (MODE_NAMES[i].equalsIgnoreCase( p_name.trim() )) return i;
+			}
+		}
+		return MODE_NONE;
+	}
+
+	public static String modeName( int p_mode ) {
+		return (p_mode >= 0 && p_mode < MODE_NAMES.length ? MODE_NAMES[p_mode] : "unknown");
+	}
+
+	/*
+	 * Private methods
+	 */
+	private byte[] decimate( byte[] p_frame ) {
+		boolean write = (count == 0);
+		count = (count + 1) % factor;
+		return (write ? p_frame : null);
+	}
+
+	private byte[] average( byte[] p_frame ) {
+
+		if (count == 0) {
+			firstTimestamp	= SensorData.readTimestamp( p_frame );
+			bitmap			= 0;
+		}
+		count++;
+
+		int frameBitmap = SensorData.readBitmap( p_frame );
+		bitmap |= frameBitmap;
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			if ((frameBitmap & (1 << s)) == 0) continue;
+
+			// satelliteID and padding of the written record come from a frame where the satellite was valid
+			System.arraycopy( p_frame, SensorData.BYTES_HEADER_ONLY + s * recordBytes, lastValid, s * recordBytes, recordBytes );
+
+			for (int ch = 0; ch < VECTOR_CHANNELS; ch++) {
+				sum[s * VECTOR_CHANNELS + ch] += (long)SensorData.readChannel( p_frame, useMag, s, ch );
+			}
+
+			// q and -q are the same rotation: align every quaternion with the first one of the window
+			float	w		= SensorData.readChannel( p_frame, useMag, s, SensorData.CH_QUAT_W );
+			float	x		= SensorData.readChannel( p_frame, useMag, s, SensorData.CH_QUAT_X );
+			float	y		= SensorData.readChannel( p_frame, useMag, s, SensorData.CH_QUAT_Y );
+			float	z		= SensorData.readChannel( p_frame, useMag, s, SensorData.CH_QUAT_Z );
+			int		q		= s * QUAT_CHANNELS;
+			if (numValid[s] == 0) {
+				quatRef[q] = w; quatRef[q + 1] = x; quatRef[q + 2] = y; quatRef[q + 3] = z;
+			}
+			double sign = (w * quatRef[q] + x * quatRef[q + 1] + y * quatRef[q + 2] + z * quatRef[q + 3] < 0 ? -1.0 : 1.0);
+			quatSum[q]		+= sign * w;
+			quatSum[q + 1]	+= sign * x;
+			quatSum[q + 2]	+= sign * y;
+			quatSum[q + 3]	+= sign * z;
+
+			numValid[s]++;
+		}
+
+		// the last frame of the window gives the header bytes that are not averaged (and the records of the
+		// satellites never valid in the window)
+		System.arraycopy( p_frame, 0, out, 0, Math.min( p_frame.length, out.length ) );
+		return (count < factor ? null : closeWindow());
+	}
+
+	// write the averages into out (holding the last frame of the window) and reset the window:
+	// the record of a satellite valid in the window starts from its last valid record
+	private byte[] closeWindow() {
+
+		int lastTimestamp = outBuf.getInt( 8 );
+		outBuf.putInt( 8, firstTimestamp + (lastTimestamp - firstTimestamp) / 2 );		// middle of the window
+		outBuf.putInt( 12, bitmap );
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			int n = numValid[s];
+			if (n == 0) continue;
+
+			System.arraycopy( lastValid, s * recordBytes, out, SensorData.BYTES_HEADER_ONLY + s * recordBytes, recordBytes );
+			for (int ch = 0; ch < VECTOR_CHANNELS; ch++) {
+				int offset = SensorData.channelOffset( useMag, s, ch );
+				if (offset >= 0) outBuf.putShort( offset, (short)Math.round( (double)sum[s * VECTOR_CHANNELS + ch] / n ) );
+				sum[s * VECTOR_CHANNELS + ch] = 0;
+			}
+
+			int		q		= s * QUAT_CHANNELS;
+			double	norm	= Math.sqrt( quatSum[q] * quatSum[q] + quatSum[q + 1] * quatSum[q + 1] +
+										 quatSum[q + 2] * quatSum[q + 2] + quatSum[q + 3] * quatSum[q + 3] );
+			for (int k = 0; k < QUAT_CHANNELS; k++) {
+				if (norm > 0) outBuf.putFloat( SensorData.channelOffset( useMag, s, SensorData.CH_QUAT_W + k ), (float)(quatSum[q + k] / norm) );
+				quatSum[q + k] = 0;
+			}
+			numValid[s] = 0;
+		}
+
+		count = 0;
+		return out;
+	}
+
+	private byte[] deadband( byte[] p_frame ) {
+
+		int		frameBitmap	= SensorData.readBitmap( p_frame );
+		boolean	write		= !hasWritten || frameBitmap != lastBitmap || ++count >= factor;
+
+		for (int s = 0; s < Common.MAX_SENSORS && !write; s++) {
+			if ((frameBitmap & (1 << s)) == 0) continue;
+			for (int ch = 0; ch < VECTOR_CHANNELS && !write; ch++) {
+				int band = deadband[ch / 3];
+				if (band < 0 || (!useMag && ch >= SensorData.CH_MAG_X)) continue;
+				write = Math.abs( SensorData.readChannel( p_frame, useMag, s, ch ) - lastWritten[s * VECTOR_CHANNELS + ch] ) > band;
+			}
+		}
+		if (!write) return null;
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			if ((frameBitmap & (1 << s)) == 0) continue;
+			for (int ch = 0; ch < VECTOR_CHANNELS; ch++) {
+				lastWritten[s * VECTOR_CHANNELS + ch] = (short)SensorData.readChannel( p_frame, useMag, s, ch );
+			}
+		}
+		lastBitmap	= frameBitmap;
+		hasWritten	= true;
+		count		= 0;
+		return p_frame;
+	}
+
+}
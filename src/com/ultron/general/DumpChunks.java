@@ -0,0 +1,379 @@
+package com.ultron.general;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A dump file (text, binary, compressed, sparse or channel binary, see BinaryDump) split into chunks that can be
+ * decoded independently, e.g. in parallel by the offline tools: text chunks end at a line boundary,
+ * binary chunks at a frame boundary, compressed, sparse and channel chunks are the blocks of the file.
+ * Whatever the format, a chunk is decoded into raw frames (LITTLE_ENDIAN, as sent by the hub),
+ * and raw frames can be encoded back in any format.
+ *
+ * decode() and encode() can be called concurrently: the file channel is only read at absolute positions.
+ */
+public class DumpChunks implements AutoCloseable {
+
+	// dump formats
+	public static final int		FORMAT_TEXT			= 0;
+	public static final int		FORMAT_BINARY		= 1;
+	public static final int		FORMAT_COMPRESSED	= 2;
+	public static final int		FORMAT_SPARSE		= 3;
+	public static final int		FORMAT_CHANNEL		= 4;
+
+	private static final int	SCAN_BYTES			= 65536;	// window used to look for a line end
+
+	/**
+	 * A piece of the file
+	 */
+	public static class Chunk {
+
+		private final int	index;
+		private final long	offset;
+		private final int	length;
+		private final int	rawBytes;		// block formats only: size of the expanded block
+
+		Chunk( int p_index, long p_offset, int p_length, int p_rawBytes ) {
+			index		= p_index;
+			offset		= p_offset;
+			length		= p_length;
+			rawBytes	= p_rawBytes;
+		}
+
+		public int getIndex()		{ return index; }
+
+		public long getOffset()		{ return offset; }
+
+		public int getLength()		{ return length; }
+
+		/** compressed, sparse and channel only: size of the frames of the block */
+		public int getRawBytes()	{ return rawBytes; }
+	}
+
+	/**
+	 * Filter on the frame header applied while decoding: a text line rejected by the filter is not parsed.
+	 */
+	public interface HeaderFilter {
+		boolean accept( int p_hubID, int p_timestamp, int p_bitmap );
+	}
+
+	/*
+	 * local variables
+	 */
+	private final FileChannel	channel;
+	private final int			format;
+	private final boolean		useMag;
+	private final int			frameBytes;
+	private final long			fileBytes;
+	private final List<Chunk>	chunks;
+	private final AtomicLong	skippedLines	= new AtomicLong();		// text lines that are not frames
+
+	/*
+	 * Constructor: split the file into chunks of about p_chunkBytes
+	 */
+	public DumpChunks( String p_fileName, int p_chunkBytes ) throws IOException {
+
+		channel		= FileChannel.open( Paths.get( p_fileName ), StandardOpenOption.READ );
+		fileBytes	= channel.size();
+
+		List<Chunk>	list	= new ArrayList<Chunk>();
+
+		try {
+			BinaryDump header = BinaryDump.readHeader( p_fileName );
+			if (header == null) {
+
+				byte[]	first	= read( 0, (int)Math.min( fileBytes, SCAN_BYTES ) );
+				format		= FORMAT_TEXT;
+				useMag		= (first.length > 0 ? TextFrames.isUseMag( first, 0, first.length ) : Common.DEFAULT_USE_MAGNETOMETER);
+				frameBytes	= (useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+
+				long pos = 0;
+				while (pos < fileBytes) {
+					long end = (fileBytes - pos > p_chunkBytes ? lineEnd( pos + p_chunkBytes ) : fileBytes);
+					list.add( new Chunk( list.size(), pos, (int)(end - pos), 0 ) );
+					pos = end;
+				}
+
+			} else if (!header.isCompressed() && !header.isSparse() && !header.isChannel()) {
+
+				format		= FORMAT_BINARY;
+				useMag		= header.isUseMag();
+				frameBytes	= header.getFrameBytes();
+
+				// a truncated last frame is ignored
+				int		chunkBytes	= Math.max( 1, p_chunkBytes / frameBytes ) * frameBytes;
+				long	end			= BinaryDump.BYTES_HEADER + (fileBytes - BinaryDump.BYTES_HEADER) / frameBytes * frameBytes;
+				for (long pos = BinaryDump.BYTES_HEADER; pos < end; pos += chunkBytes) {
+					list.add( new Chunk( list.size(), pos, (int)Math.min( chunkBytes, end - pos ), 0 ) );
+				}
+
+			} else {
+
+				format		= (header.isChannel() ? FORMAT_CHANNEL : header.isSparse() ? FORMAT_SPARSE : FORMAT_COMPRESSED);
+				useMag		= header.isUseMag();
+				frameBytes	= header.getFrameBytes();
+
+				// walk the block headers; a truncated last block is ignored
+				long pos = BinaryDump.BYTES_HEADER;
+				while (pos + BinaryDump.BYTES_BLOCK_HEADER <= fileBytes) {
+					ByteBuffer	blockHeader	= ByteBuffer.wrap( read( pos, BinaryDump.BYTES_BLOCK_HEADER ) ).order( ByteOrder.LITTLE_ENDIAN );
+					int			rawBytes	= blockHeader.getInt();
+					int			length		= BinaryDump.BYTES_BLOCK_HEADER + blockHeader.getInt();
+					if (rawBytes < 0 || length < BinaryDump.BYTES_BLOCK_HEADER || pos + length > fileBytes) break;
+					list.add( new Chunk( list.size(), pos, length, rawBytes ) );
+					pos += length;
+				}
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		chunks = Collections.unmodifiableList( list );
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public int getFormat()				{ return format; }
+
+	public boolean isUseMag()			{ return useMag; }
+
+	public int getFrameBytes()			{ return frameBytes; }
+
+	public long getFileBytes()			{ return fileBytes; }
+
+	public List<Chunk> getChunks()		{ return chunks; }
+
+	public long getSkippedLines()		{ return skippedLines.get(); }
+
+	/**
+	 * Raw frames of a chunk, in a LITTLE_ENDIAN buffer ready to be read.
+	 * p_inflater is used only for compressed dumps (one per thread).
+	 */
+	public ByteBuffer decode( Chunk p_chunk, Inflater p_inflater ) throws IOException {
+		return decode( p_chunk, p_inflater, null );
+	}
+
+	/**
+	 * Raw frames of a chunk accepted by p_filter (null: all the frames).
+	 */
+	public ByteBuffer decode( Chunk p_chunk, Inflater p_inflater, HeaderFilter p_filter ) throws IOException {
+
+		byte[] in = read( p_chunk.offset, p_chunk.length );
+
+		if (format == FORMAT_BINARY) return filter( ByteBuffer.wrap( in ).order( ByteOrder.LITTLE_ENDIAN ), p_filter );
+
+		if (format == FORMAT_SPARSE) {
+			byte[]	raw	= new byte[p_chunk.rawBytes];
+			int		pos	= BinaryDump.BYTES_BLOCK_HEADER;
+			int		n	= 0;
+			while (pos + SensorData.BYTES_HEADER_ONLY <= in.length && n + frameBytes <= raw.length) {
+				if (pos + SensorData.sparseBytes( useMag, SensorData.readBitmap( in, pos ) ) > in.length) break;
+				pos = SensorData.fromSparse( in, pos, useMag, raw, n );
+				n += frameBytes;
+			}
+			if (pos != in.length || n != raw.length) throw new IOException( "Corrupted block at offset " + p_chunk.offset );
+			return filter( ByteBuffer.wrap( raw ).order( ByteOrder.LITTLE_ENDIAN ), p_filter );
+		}
+
+		if (format == FORMAT_CHANNEL) {
+			try {
+				return filter( SensorChannelCodec.decodeBlock( ByteBuffer.wrap( in ), useMag ), p_filter );
+			} catch (IllegalArgumentException e) {
+				throw new IOException( "Corrupted block at offset " + p_chunk.offset + ": " + e.getMessage() );
+			}
+		}
+
+		if (format == FORMAT_COMPRESSED) {
+			byte[] raw = new byte[p_chunk.rawBytes];
+			p_inflater.reset();
+			p_inflater.setInput( in, BinaryDump.BYTES_BLOCK_HEADER, in.length - BinaryDump.BYTES_BLOCK_HEADER );
+			try {
+				int n = 0;
+				while (n < raw.length && !p_inflater.finished()) {
+					int r = p_inflater.inflate( raw, n, raw.length - n );
+					if (r == 0 && (p_inflater.needsInput() || p_inflater.needsDictionary())) break;
+					n += r;
+				}
+				if (n != raw.length || raw.length % frameBytes != 0) throw new IOException( "Corrupted block at offset " + p_chunk.offset );
+			} catch (DataFormatException e) {
+				throw new IOException( "Corrupted block at offset " + p_chunk.offset + ": " + e.getMessage() );
+			}
+			return filter( ByteBuffer.wrap( raw ).order( ByteOrder.LITTLE_ENDIAN ), p_filter );
+		}
+
+		// text: one frame per line at most
+		int lines = 1;
+		for (int i = 0; i < in.length; i++) {
+			if (in[i] == '\n') lines++;
+		}
+		ByteBuffer	out		= ByteBuffer.allocate( lines * frameBytes ).order( ByteOrder.LITTLE_ENDIAN );
+		int[]		header	= new int[3];
+		int			pos		= 0;
+		while (pos < in.length) {
+			int next;
+			if (p_filter != null && TextFrames.parseHeader( in, pos, in.length, header ) &&
+					!p_filter.accept( header[0], header[1], header[2] )) {
+				next = TextFrames.nextLine( in, pos, in.length );
+			} else {
+				next = TextFrames.parseLine( in, pos, in.length, useMag, out );
+			}
+			if (next < 0) {
+				next = TextFrames.nextLine( in, pos, in.length );
+				if (!isBlank( in, pos, next )) skippedLines.incrementAndGet();
+			}
+			pos = next;
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Encode raw frames (as returned by decode) in a dump format, without the file header.
+	 * p_deflater is used only for compressed dumps (one per thread).
+	 */
+	public static ByteBuffer encode( ByteBuffer p_frames, int p_format, boolean p_useMag, Deflater p_deflater ) {
+
+		if (p_format == FORMAT_BINARY) return p_frames.duplicate();
+
+		if (p_format == FORMAT_SPARSE) {
+			int		frameBytes	= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+			int		rawBytes	= p_frames.remaining() / frameBytes * frameBytes;
+			int		start		= p_frames.arrayOffset() + p_frames.position();
+			byte[]	out			= new byte[BinaryDump.BYTES_BLOCK_HEADER + rawBytes];	// a sparse frame is never larger
+			int		n			= BinaryDump.BYTES_BLOCK_HEADER;
+			for (int offset = start; offset < start + rawBytes; offset += frameBytes) {
+				n = SensorData.toSparse( p_frames.array(), offset, p_useMag, out, n );
+			}
+			ByteBuffer ret = ByteBuffer.wrap( out, 0, n ).order( ByteOrder.LITTLE_ENDIAN );
+			ret.putInt( 0, rawBytes ).putInt( Integer.BYTES, n - BinaryDump.BYTES_BLOCK_HEADER );
+			return ret;
+		}
+
+		if (p_format == FORMAT_CHANNEL) return SensorChannelCodec.encodeBlock( p_frames, p_useMag );
+
+		if (p_format == FORMAT_COMPRESSED) {
+			p_deflater.reset();
+			p_deflater.setInput( p_frames.array(), p_frames.arrayOffset() + p_frames.position(), p_frames.remaining() );
+			p_deflater.finish();
+			byte[]	out	= new byte[BinaryDump.BYTES_BLOCK_HEADER + p_frames.remaining() + p_frames.remaining() / 100 + 64];
+			int		n	= BinaryDump.BYTES_BLOCK_HEADER;
+			while (!p_deflater.finished()) {
+				if (n == out.length) out = Arrays.copyOf( out, out.length * 2 );
+				n += p_deflater.deflate( out, n, out.length - n );
+			}
+			ByteBuffer ret = ByteBuffer.wrap( out, 0, n ).order( ByteOrder.LITTLE_ENDIAN );
+			ret.putInt( 0, p_frames.remaining() ).putInt( Integer.BYTES, n - BinaryDump.BYTES_BLOCK_HEADER );
+			return ret;
+		}
+
+		// text, as written by HubWriter
+		int				frameBytes	= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		byte[]			frame		= new byte[frameBytes];
+		ByteBuffer		frames		= p_frames.duplicate();
+		StringBuilder	sb			= new StringBuilder( frames.remaining() * 2 );
+		String			newLine		= System.lineSeparator();
+		while (frames.remaining() >= frameBytes) {
+			frames.get( frame );
+			TextFrames.format( frame, p_useMag, sb );
+			sb.append( newLine );
+		}
+		return ByteBuffer.wrap( sb.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+	}
+
+	/**
+	 * File header of a dump format (empty for text dumps).
+	 */
+	public static ByteBuffer header( int p_format, boolean p_useMag ) {
+		if (p_format == FORMAT_TEXT) return ByteBuffer.allocate( 0 );
+		return ByteBuffer.wrap( new BinaryDump( p_useMag, p_format == FORMAT_COMPRESSED, p_format == FORMAT_SPARSE, p_format == FORMAT_CHANNEL ).header() );
+	}
+
+	/**
+	 * Dump format given by the extension of a file name (text if not a binary extension).
+	 */
+	public static int formatOf( String p_fileName ) {
+		if (p_fileName.endsWith( BinaryDump.COMPRESSED_EXTENSION )) return FORMAT_COMPRESSED;
+		if (p_fileName.endsWith( BinaryDump.SPARSE_EXTENSION )) return FORMAT_SPARSE;
+		if (p_fileName.endsWith( BinaryDump.CHANNEL_EXTENSION )) return FORMAT_CHANNEL;
+		if (p_fileName.endsWith( BinaryDump.EXTENSION )) return FORMAT_BINARY;
+		return FORMAT_TEXT;
+	}
+
+	public static String formatName( int p_format ) {
+		switch (p_format) {
+			case FORMAT_BINARY:		return "binary";
+			case FORMAT_COMPRESSED:	return "compressed";
+			case FORMAT_SPARSE:		return "sparse";
+			case FORMAT_CHANNEL:	return "channel";
+			default:				return "text";
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/*
+	 * Private methods
+	 */
+	private byte[] read( long p_offset, int p_length ) throws IOException {
+		byte[]		ret	= new byte[p_length];
+		ByteBuffer	buf	= ByteBuffer.wrap( ret );
+		while (buf.hasRemaining()) {
+			if (channel.read( buf, p_offset + buf.position() ) < 0) throw new IOException( "Unexpected end of file" );
+		}
+		return ret;
+	}
+
+	// position after the first '\n' at or after p_pos (end of file if none)
+	private long lineEnd( long p_pos ) throws IOException {
+		long pos = p_pos;
+		while (pos < fileBytes) {
+			byte[] window = read( pos, (int)Math.min( SCAN_BYTES, fileBytes - pos ) );
+			for (int i = 0; i < window.length; i++) {
+				if (window[i] == '\n') return pos + i + 1;
+			}
+			pos += window.length;
+		}
+		return fileBytes;
+	}
+
+	// keep only the frames accepted by the filter (in place)
+	private ByteBuffer filter( ByteBuffer p_frames, HeaderFilter p_filter ) {
+		if (p_filter == null) return p_frames;
+		byte[]	buf	= p_frames.array();
+		int		n	= 0;
+		for (int pos = 0; pos + frameBytes <= p_frames.limit(); pos += frameBytes) {
+			if (p_filter.accept( SensorData.readHubID( p_frames, pos ), SensorData.readTimestamp( p_frames, pos ), SensorData.readBitmap( p_frames, pos ) )) {
+				if (n != pos) System.arraycopy( buf, pos, buf, n, frameBytes );
+				n += frameBytes;
+			}
+		}
+		p_frames.limit( n );
+		return p_frames;
+	}
+
+	private static boolean isBlank( byte[] p_buf, int p_start, int p_end ) {
+		for (int i = p_start; i < p_end; i++) {
+			if (p_buf[i] > ' ') return false;
+		}
+		return true;
+	}
+
+}
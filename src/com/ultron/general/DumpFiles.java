@@ -0,0 +1,167 @@
+package com.ultron.general;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.Inflater;
+
+/**
+ * Streams of the frames of a dump file of any format (text, binary, compressed or sparse, see DumpChunks),
+ * instead of the BufferedReader + SensorData(String, int) loop of every tool:
+ *
+ *     try (Stream<SensorData> frames = DumpFiles.stream( fileName )) {
+ *         long n = frames.parallel().filter( f -> f.isSatelliteValid( 3 ) ).count();
+ *     }
+ *
+ * The spliterator splits at the chunk boundaries of DumpChunks, so a parallel stream decodes the chunks
+ * on all the cores. Each spliterator decodes a chunk at a time and refills ONE SensorData (see SensorData.read)
+ * for all its frames: no garbage per frame, but a frame is valid only until the next one is consumed.
+ * A frame kept (collect, sorted, a queue...) must be copied first, e.g. new SensorData( f.toByteArray(), useMag ).
+ *
+ * The stream must be closed (try-with-resources) to close the file. I/O errors and corrupted chunks are
+ * thrown as UncheckedIOException.
+ */
+public class DumpFiles {
+
+	private DumpFiles() {
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public static Stream<SensorData> stream( String p_fileName ) throws IOException {
+		return stream( p_fileName, null );
+	}
+
+	/**
+	 * Frames accepted by p_filter (null: all the frames): text lines rejected are not even parsed.
+	 */
+	public static Stream<SensorData> stream( String p_fileName, DumpChunks.HeaderFilter p_filter ) throws IOException {
+		DumpChunks dump = new DumpChunks( p_fileName, Common.CONVERTER_CHUNK_BYTES );
+		return StreamSupport.stream( spliterator( dump, p_filter ), false ).onClose( () -> {
+			try {
+				dump.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+		} );
+	}
+
+	/**
+	 * Spliterator over the frames of a dump already open (closed by the caller), e.g. to stream several dumps.
+	 */
+	public static Spliterator<SensorData> spliterator( DumpChunks p_dump, DumpChunks.HeaderFilter p_filter ) {
+		return new FrameSpliterator( p_dump, p_filter, 0, p_dump.getChunks().size() );
+	}
+
+	/*
+	 * Spliterator of a range of chunks
+	 */
+	private static class FrameSpliterator implements Spliterator<SensorData> {
+
+		private final DumpChunks				dump;
+		private final DumpChunks.HeaderFilter	filter;
+		private final int						frameBytes;
+		private int								next;				// next chunk to decode
+		private int								end;				// chunks [next, end)
+		private ByteBuffer						frames	= null;		// frames of the chunk being consumed
+		private SensorData						view	= null;		// refilled for every frame
+		private Inflater						inflater = null;	// compressed dumps only
+
+		FrameSpliterator( DumpChunks p_dump, DumpChunks.HeaderFilter p_filter, int p_first, int p_end ) {
+			dump		= p_dump;
+			filter		= p_filter;
+			frameBytes	= p_dump.getFrameBytes();
+			next		= p_first;
+			end			= p_end;
+		}
+
+		@Override
+		public boolean tryAdvance( Consumer<? super SensorData> p_action ) {
+			if (!nextChunk()) return false;
+			p_action.accept( nextFrame() );
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining( Consumer<? super SensorData> p_action ) {
+			while (nextChunk()) {
+				while (frames.remaining() >= frameBytes) p_action.accept( nextFrame() );
+			}
+		}
+
+		/**
+		 * Half of the chunks left (the first half, with the frames already decoded: the order is kept).
+		 */
+		@Override
+		public Spliterator<SensorData> trySplit() {
+			int n = end - next;
+			if (n < 2) return null;
+			FrameSpliterator prefix = new FrameSpliterator( dump, filter, next, next + n / 2 );
+			prefix.frames	= frames;
+			frames			= null;
+			next			= prefix.end;
+			return prefix;
+		}
+
+		/**
+		 * Exact for the binary formats (before a filter), from the size of the chunks for text dumps.
+		 */
+		@Override
+		public long estimateSize() {
+			long bytes = (frames != null ? frames.remaining() : 0);
+			List<DumpChunks.Chunk> chunks = dump.getChunks();
+			for (int i = next; i < end; i++) bytes += frameBytes( chunks.get( i ) );
+			return bytes / frameBytes;
+		}
+
+		@Override
+		public int characteristics() {
+			int ret = ORDERED | NONNULL;
+			if (filter == null && dump.getFormat() != DumpChunks.FORMAT_TEXT) ret |= SIZED | SUBSIZED;
+			return ret;
+		}
+
+		// true if there is a frame to consume, decoding the next chunks if needed
+		private boolean nextChunk() {
+			while (frames == null || frames.remaining() < frameBytes) {
+				if (next >= end) {
+					if (inflater != null) inflater.end();
+					inflater = null;
+					return false;
+				}
+				if (inflater == null && dump.getFormat() == DumpChunks.FORMAT_COMPRESSED) inflater = new Inflater();
+				try {
+					frames = dump.decode( dump.getChunks().get( next++ ), inflater, filter );
+				} catch (IOException e) {
+					throw new UncheckedIOException( e );
+				}
+			}
+			return true;
+		}
+
+		private SensorData nextFrame() {
+			if (view == null) view = new SensorData( dump.isUseMag() );
+			int offset = frames.position();
+			frames.position( offset + frameBytes );
+			return view.read( frames, offset, -1 );
+		}
+
+		// frames of a chunk, in bytes
+		private long frameBytes( DumpChunks.Chunk p_chunk ) {
+			switch (dump.getFormat()) {
+				case DumpChunks.FORMAT_COMPRESSED:
+				case DumpChunks.FORMAT_SPARSE:
+				case DumpChunks.FORMAT_CHANNEL:	return p_chunk.getRawBytes();
+				case DumpChunks.FORMAT_BINARY:	return p_chunk.getLength();
+				default:						return p_chunk.getLength() / 2;		// a text line is about twice a raw frame
+			}
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.ultron.general;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Sparse index of a text dump file (dump file name + Common.DUMP_INDEX_EXTENSION):
+ * every Common.DUMP_INDEX_INTERVAL_FRAMES frames it records where the frame starts in the dump.
+ *
+ * Layout (LITTLE_ENDIAN like the hub frames):
+ * - header: MAGIC (int), VERSION (int), interval (int)
+ * - one record per indexed frame: frame number (int), hub timestamp (int), byte offset (long),
+ *   host time in ms when the frame was written (long, since VERSION 2)
+ *
+ * The host times relate the hub clock to the host clock (see clockOffset): dumps of different hubs
+ * recorded in the same session can be aligned with them (see the DumpMerge tool).
+ *
+ * The writer is used by HubWriter, load() gives the index back for seeking (see DumpReader).
+ */
+public class DumpIndex {
+
+	public static final int		MAGIC			= 0x58444948;	// "HIDX"
+	public static final int		VERSION			= 2;
+	public static final int		BYTES_HEADER	= Integer.BYTES * 3;
+	public static final int		BYTES_RECORD	= Integer.BYTES * 2 + Long.BYTES * 2;
+	private static final int	BYTES_RECORD_V1	= Integer.BYTES * 2 + Long.BYTES;
+
+	/*
+	 * local variables: writer
+	 */
+	private OutputStream		out				= null;
+	private final ByteBuffer	record			= ByteBuffer.allocate( BYTES_RECORD ).order( ByteOrder.LITTLE_ENDIAN );
+
+	/*
+	 * local variables: index
+	 */
+	private int					interval;
+	private int					size			= 0;
+	private int[]				frameNumbers;
+	private int[]				timestamps;
+	private long[]				offsets;
+	private long[]				wallTimes;		// null for VERSION 1 indexes
+
+	/*
+	 * Constructor: create the index next to the dump file
+	 */
+	public DumpIndex( String p_dumpFileName, int p_interval ) throws FileNotFoundException {
+		interval	= (p_interval > 0 ? p_interval : Common.DUMP_INDEX_INTERVAL_FRAMES);
+		out			= new BufferedOutputStream( new FileOutputStream( p_dumpFileName + Common.DUMP_INDEX_EXTENSION ) );
+		ByteBuffer header = ByteBuffer.allocate( BYTES_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION ).putInt( interval );
+		try {
+			out.write( header.array() );
+		} catch (IOException e) {
+			close();
+			throw new FileNotFoundException( "Cannot write dump index header: " + e.getMessage() );
+		}
+	}
+
+	public DumpIndex( String p_dumpFileName ) throws FileNotFoundException {
+		this( p_dumpFileName, Common.DUMP_INDEX_INTERVAL_FRAMES );
+	}
+
+	private DumpIndex( int p_interval, int p_size, boolean p_hasWallTimes ) {
+		interval		= p_interval;
+		frameNumbers	= new int[p_size];
+		timestamps		= new int[p_size];
+		offsets			= new long[p_size];
+		wallTimes		= (p_hasWallTimes ? new long[p_size] : null);
+	}
+
+	/*
+	 * Writer methods
+	 */
+
+	/**
+	 * True if the frame has to be indexed.
+	 */
+	public boolean isIndexed( int p_frameNumber ) {
+		return (p_frameNumber % interval) == 0;
+	}
+
+	public boolean append( int p_frameNumber, int p_timestamp, long p_offset, long p_wallTime ) {
+		if (out == null) return false;
+		record.clear();
+		record.putInt( p_frameNumber ).putInt( p_timestamp ).putLong( p_offset ).putLong( p_wallTime );
+		try {
+			out.write( record.array(), 0, BYTES_RECORD );
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	public void close() {
+		if (out == null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		out = null;
+	}
+
+	/*
+	 * Index methods
+	 */
+
+	/**
+	 * Read the index of a dump file. Returns null if there is no (valid) index.
+	 */
+	public static DumpIndex load( String p_dumpFileName ) {
+
+		try (RandomAccessFile file = new RandomAccessFile( p_dumpFileName + Common.DUMP_INDEX_EXTENSION, "r" )) {
+
+			byte[] buf = new byte[(int)file.length()];
+			file.readFully( buf );
+			ByteBuffer in = ByteBuffer.wrap( buf ).order( ByteOrder.LITTLE_ENDIAN );
+			if (in.remaining() < BYTES_HEADER || in.getInt() != MAGIC) return null;
+			int version = in.getInt();
+			if (version != 1 && version != VERSION) return null;
+
+			// a truncated last record is ignored
+			int			recordBytes	= (version == 1 ? BYTES_RECORD_V1 : BYTES_RECORD);
+			DumpIndex	ret			= new DumpIndex( in.getInt(), in.remaining() / recordBytes, version != 1 );
+			while (in.remaining() >= recordBytes) {
+				ret.frameNumbers[ret.size]	= in.getInt();
+				ret.timestamps[ret.size]	= in.getInt();
+				ret.offsets[ret.size]		= in.getLong();
+				if (ret.wallTimes != null) ret.wallTimes[ret.size] = in.getLong();
+				ret.size++;
+			}
+			return ret;
+
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public int size()						{ return size; }
+
+	public int getInterval()				{ return interval; }
+
+	public int getFrameNumber( int p_i )	{ return frameNumbers[p_i]; }
+
+	public int getTimestamp( int p_i )		{ return timestamps[p_i]; }
+
+	public long getOffset( int p_i )		{ return offsets[p_i]; }
+
+	public boolean hasWallTimes()			{ return wallTimes != null && size > 0; }
+
+	public long getWallTime( int p_i )		{ return wallTimes[p_i]; }
+
+	/**
+	 * Host time (ms) minus hub timestamp, as the median over the entries: the median ignores
+	 * the entries written late by a writer lagging behind the reader.
+	 * Only meaningful if hasWallTimes() and the hub timestamps are in ms.
+	 */
+	public long clockOffset() {
+		long[] deltas = new long[size];
+		for (int i = 0; i < size; i++) deltas[i] = wallTimes[i] - timestamps[i];
+		Arrays.sort( deltas );
+		return deltas[size / 2];
+	}
+
+	/**
+	 * Last entry at or before the frame (-1 if none).
+	 */
+	public int findFrame( int p_frameNumber ) {
+		return search( frameNumbers, p_frameNumber );
+	}
+
+	/**
+	 * Last entry with timestamp lower than (or equal to) the timestamp (-1 if none).
+	 * The hub timestamps are supposed to be increasing.
+	 */
+	public int findTimestamp( int p_timestamp ) {
+		return search( timestamps, p_timestamp );
+	}
+
+	/**
+	 * Last entry with byte offset lower than (or equal to) the offset (-1 if none).
+	 */
+	public int findOffset( long p_offset ) {
+		int lo = 0, hi = size - 1, ret = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (offsets[mid] <= p_offset) {
+				ret = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// binary search of the last element <= p_key
+	private int search( int[] p_keys, int p_key ) {
+		int lo = 0, hi = size - 1, ret = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (p_keys[mid] <= p_key) {
+				ret = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,135 @@
+package com.ultron.general;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader of a text dump file (written by HubWriter) able to start from any frame or timestamp.
+ * With the DumpIndex of the file the seek is a binary search in the index followed by
+ * at most DumpIndex.getInterval() lines read; without index the file is read from the start.
+ */
+public class DumpReader implements AutoCloseable {
+
+	/*
+	 * local variables
+	 */
+	private final RandomAccessFile	file;
+	private final FileChannel		channel;
+	private final DumpIndex			index;				// null -> no index
+	private BufferedReader			reader;
+	private int						frameNumber;		// number of the frame returned by the next readLine
+	private String					pending		= null;	// line already read by a seek
+
+	/*
+	 * Constructor
+	 */
+	public DumpReader( String p_fileName ) throws IOException {
+		file	= new RandomAccessFile( p_fileName, "r" );
+		channel	= file.getChannel();
+		index	= DumpIndex.load( p_fileName );
+		position( 0, 0 );
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public boolean hasIndex() {
+		return index != null;
+	}
+
+	/**
+	 * Number of the frame returned by the next readLine (0 is the first line of the dump).
+	 */
+	public int getFrameNumber() {
+		return frameNumber;
+	}
+
+	/**
+	 * The next readLine returns the frame p_frameNumber.
+	 */
+	public void seekFrame( int p_frameNumber ) throws IOException {
+		int i = (index != null ? index.findFrame( p_frameNumber ) : -1);
+		if (i >= 0) {
+			position( index.getOffset( i ), index.getFrameNumber( i ) );
+		} else if (p_frameNumber < frameNumber) {
+			position( 0, 0 );
+		}
+		while (frameNumber < p_frameNumber && readLine() != null) { }
+	}
+
+	/**
+	 * The next readLine returns the first frame with timestamp >= p_timestamp.
+	 */
+	public void seekTimestamp( int p_timestamp ) throws IOException {
+		int i = (index != null ? index.findTimestamp( p_timestamp ) : -1);
+		if (i >= 0) {
+			position( index.getOffset( i ), index.getFrameNumber( i ) );
+		} else {
+			position( 0, 0 );
+		}
+
+		String line;
+		while ((line = readLine()) != null) {
+			if (lineTimestamp( line ) >= p_timestamp) {
+				// give it back to the next readLine
+				pending = line;
+				frameNumber--;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Next line of the dump, null at the end of file.
+	 */
+	public String readLine() throws IOException {
+		String line;
+		if (pending != null) {
+			line = pending;
+			pending = null;
+		} else {
+			line = reader.readLine();
+		}
+		if (line != null) frameNumber++;
+		return line;
+	}
+
+	/**
+	 * Next frame of the dump, null at the end of file.
+	 */
+	public SensorData next() throws IOException {
+		int		idx		= frameNumber;
+		String	line	= readLine();
+		return (line == null ? null : new SensorData( line, idx ));
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Hub timestamp of a line of the dump (third field) without parsing the whole line.
+	 */
+	public static int lineTimestamp( String p_line ) {
+		int start = p_line.indexOf( Common.FIELD_SEPARATOR );
+		start = p_line.indexOf( Common.FIELD_SEPARATOR, start + 1 ) + 1;
+		int end = p_line.indexOf( Common.FIELD_SEPARATOR, start );
+		return Integer.parseInt( p_line.substring( start, (end < 0 ? p_line.length() : end) ).trim() );
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void position( long p_offset, int p_frameNumber ) throws IOException {
+		channel.position( p_offset );
+		reader		= new BufferedReader( new InputStreamReader( Channels.newInputStream( channel ) ), Common.SINK_WRITE_BUFFER_BYTES );
+		frameNumber	= p_frameNumber;
+		pending		= null;
+	}
+
+}
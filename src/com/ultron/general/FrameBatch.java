@@ -0,0 +1,235 @@
+package com.ultron.general;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Batch of raw frames decoded into primitive columns (struct of arrays), for the loops of statistics,
+ * filters and exporters: a channel of a satellite slot over the whole batch is a contiguous run of an array,
+ * at [slot * getCapacity() + frame] (see index), that the JIT can unroll and vectorise.
+ *
+ * The frames come from a dump (a chunk of DumpChunks) or from the reader one at a time; the batch is reused:
+ * clear() and decode again, nothing is allocated. Like SensorData, the records of the satellites not in the
+ * bitmap are decoded as satelliteID = slot and zeros. Without magnetometer its columns stay at zero.
+ */
+public class FrameBatch {
+
+	private static final VarHandle	SHORT	= MethodHandles.byteArrayViewVarHandle( short[].class, ByteOrder.LITTLE_ENDIAN );
+	private static final VarHandle	INT		= MethodHandles.byteArrayViewVarHandle( int[].class, ByteOrder.LITTLE_ENDIAN );
+	private static final VarHandle	FLOAT	= MethodHandles.byteArrayViewVarHandle( float[].class, ByteOrder.LITTLE_ENDIAN );
+	private static final int		TILE_FRAMES	= 64;	// frames decoded together (about 30KB of frames)
+
+	/*
+	 * local variables
+	 */
+	private final boolean	useMag;
+	private final int		capacity;
+	private final int		frameBytes;
+	private final int		recordBytes;
+	private int				size		= 0;
+
+	// header, [frame]
+	public final int[]		hubIDs;
+	public final byte[]		frameTypes;
+	public final int[]		timestamps;
+	public final int[]		bitmaps;
+
+	// records, [slot * capacity + frame]
+	public final int[]		satelliteIDs;
+	public final short[]	accelX, accelY, accelZ;
+	public final short[]	gyroX, gyroY, gyroZ;
+	public final short[]	magX, magY, magZ;
+	public final float[]	quatW, quatX, quatY, quatZ;
+
+	private final short[][]	shortColumns;		// by channel, CH_ACCEL_X .. CH_MAG_Z
+	private final float[][]	floatColumns;		// by channel - CH_QUAT_W
+
+	/*
+	 * Constructor
+	 */
+	public FrameBatch( int p_capacity, boolean p_useMag ) {
+		useMag		= p_useMag;
+		capacity	= p_capacity;
+		frameBytes	= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		recordBytes	= (frameBytes - SensorData.BYTES_HEADER_ONLY) / Common.MAX_SENSORS;
+
+		int columnLength = Common.MAX_SENSORS * p_capacity;
+		hubIDs			= new int[p_capacity];
+		frameTypes		= new byte[p_capacity];
+		timestamps		= new int[p_capacity];
+		bitmaps			= new int[p_capacity];
+		satelliteIDs	= new int[columnLength];
+		shortColumns	= new short[SensorData.CH_QUAT_W][];
+		for (int c = 0; c < shortColumns.length; c++) shortColumns[c] = new short[columnLength];
+		floatColumns	= new float[SensorData.NUM_CHANNELS - SensorData.CH_QUAT_W][];
+		for (int c = 0; c < floatColumns.length; c++) floatColumns[c] = new float[columnLength];
+
+		accelX	= shortColumns[SensorData.CH_ACCEL_X];
+		accelY	= shortColumns[SensorData.CH_ACCEL_Y];
+		accelZ	= shortColumns[SensorData.CH_ACCEL_Z];
+		gyroX	= shortColumns[SensorData.CH_GYRO_X];
+		gyroY	= shortColumns[SensorData.CH_GYRO_Y];
+		gyroZ	= shortColumns[SensorData.CH_GYRO_Z];
+		magX	= shortColumns[SensorData.CH_MAG_X];
+		magY	= shortColumns[SensorData.CH_MAG_Y];
+		magZ	= shortColumns[SensorData.CH_MAG_Z];
+		quatW	= floatColumns[SensorData.CH_QUAT_W - SensorData.CH_QUAT_W];
+		quatX	= floatColumns[SensorData.CH_QUAT_X - SensorData.CH_QUAT_W];
+		quatY	= floatColumns[SensorData.CH_QUAT_Y - SensorData.CH_QUAT_W];
+		quatZ	= floatColumns[SensorData.CH_QUAT_Z - SensorData.CH_QUAT_W];
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public int getCapacity()		{ return capacity; }
+
+	public int size()				{ return size; }
+
+	public boolean isFull()			{ return size == capacity; }
+
+	public boolean isUseMag()		{ return useMag; }
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Position of a frame of a satellite slot in the record columns.
+	 */
+	public int index( int p_slot, int p_frame ) {
+		return p_slot * capacity + p_frame;
+	}
+
+	/**
+	 * Column of a channel CH_ACCEL_X .. CH_MAG_Z.
+	 */
+	public short[] shortColumn( int p_channel ) {
+		return shortColumns[p_channel];
+	}
+
+	/**
+	 * Column of a channel CH_QUAT_W .. CH_QUAT_Z.
+	 */
+	public float[] floatColumn( int p_channel ) {
+		return floatColumns[p_channel - SensorData.CH_QUAT_W];
+	}
+
+	/**
+	 * Value of a channel as a float (like SensorData.getChannel).
+	 */
+	public float getChannel( int p_slot, int p_frame, int p_channel ) {
+		int i = p_slot * capacity + p_frame;
+		return (p_channel >= SensorData.CH_QUAT_W ? floatColumns[p_channel - SensorData.CH_QUAT_W][i] : shortColumns[p_channel][i]);
+	}
+
+	public boolean isValid( int p_slot, int p_frame ) {
+		return (bitmaps[p_frame] & (1 << p_slot)) != 0;
+	}
+
+	/**
+	 * Add one raw frame; false if the batch is full.
+	 */
+	public boolean add( byte[] p_frame ) {
+		return decode( p_frame, 0, 1 ) == 1;
+	}
+
+	/**
+	 * Add p_count raw frames starting at p_offset of p_frames, as many as fit: returns how many were added.
+	 */
+	public int decode( byte[] p_frames, int p_offset, int p_count ) {
+		int count = Math.min( p_count, capacity - size );
+
+		// header, frame by frame
+		for (int f = 0; f < count; f++) {
+			int offset = p_offset + f * frameBytes;
+			hubIDs[size + f]		= (int)INT.get( p_frames, offset );
+			frameTypes[size + f]	= p_frames[offset + 4];
+			timestamps[size + f]	= (int)INT.get( p_frames, offset + 8 );
+			bitmaps[size + f]		= (int)INT.get( p_frames, offset + 12 );
+		}
+
+		// records, by tiles of frames that stay in the cache and, inside a tile, slot by slot and channel by channel:
+		// every inner loop writes a run of a column
+		int numShorts = (useMag ? 9 : 6);
+		for (int first = 0; first < count; first += TILE_FRAMES) {
+			int end = Math.min( count, first + TILE_FRAMES );
+			for (int s = 0; s < Common.MAX_SENSORS; s++) {
+				int column	= s * capacity + size;
+				int record	= p_offset + SensorData.BYTES_HEADER_ONLY + s * recordBytes;
+
+				for (int f = first; f < end; f++) satelliteIDs[column + f] = (int)INT.get( p_frames, record + f * frameBytes );
+				int pos = record + Integer.BYTES;
+				for (int c = 0; c < numShorts; c++, pos += Short.BYTES) {
+					short[] values = shortColumns[c];
+					for (int f = first; f < end; f++) values[column + f] = (short)SHORT.get( p_frames, pos + f * frameBytes );
+				}
+				if (useMag) pos += 2;	// alignment
+				for (int c = 0; c < floatColumns.length; c++, pos += Float.BYTES) {
+					float[] values = floatColumns[c];
+					for (int f = first; f < end; f++) values[column + f] = (float)FLOAT.get( p_frames, pos + f * frameBytes );
+				}
+			}
+		}
+
+		// then the records not in the bitmap (few) are cleared
+		for (int f = size; f < size + count; f++) {
+			for (int bits = ~bitmaps[f] & ((1 << Common.MAX_SENSORS) - 1); bits != 0; bits &= bits - 1) {
+				int s		= Integer.numberOfTrailingZeros( bits );
+				int column	= s * capacity + f;
+				satelliteIDs[column] = s;
+				for (int c = 0; c < numShorts; c++) shortColumns[c][column] = 0;
+				for (int c = 0; c < floatColumns.length; c++) floatColumns[c][column] = 0F;
+			}
+		}
+
+		size += count;
+		return count;
+	}
+
+	/**
+	 * Add the raw frames between position and limit of p_frames (e.g. DumpChunks.decode), as many as fit:
+	 * the position is moved after the frames added.
+	 */
+	public int decode( ByteBuffer p_frames ) {
+		byte[]	frames;
+		int		offset;
+		if (p_frames.hasArray()) {
+			frames	= p_frames.array();
+			offset	= p_frames.arrayOffset() + p_frames.position();
+		} else {
+			frames	= new byte[p_frames.remaining()];
+			offset	= 0;
+			p_frames.duplicate().get( frames );
+		}
+		int count = decode( frames, offset, p_frames.remaining() / frameBytes );
+		p_frames.position( p_frames.position() + count * frameBytes );
+		return count;
+	}
+
+	/**
+	 * Raw frame of the batch (the inverse of decode), e.g. to write the frames that passed a filter.
+	 */
+	public void encode( int p_frame, byte[] p_out, int p_offset ) {
+		Arrays.fill( p_out, p_offset, p_offset + frameBytes, (byte)0 );
+		INT.set( p_out, p_offset, hubIDs[p_frame] );
+		p_out[p_offset + 4] = frameTypes[p_frame];
+		INT.set( p_out, p_offset + 8, timestamps[p_frame] );
+		INT.set( p_out, p_offset + 12, bitmaps[p_frame] );
+
+		int numShorts = (useMag ? 9 : 6);
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			int column	= s * capacity + p_frame;
+			int pos		= p_offset + SensorData.BYTES_HEADER_ONLY + s * recordBytes;
+			INT.set( p_out, pos, satelliteIDs[column] );
+			pos += Integer.BYTES;
+			for (int c = 0; c < numShorts; c++, pos += Short.BYTES) SHORT.set( p_out, pos, shortColumns[c][column] );
+			if (useMag) pos += 2;
+			for (int c = 0; c < floatColumns.length; c++, pos += Float.BYTES) FLOAT.set( p_out, pos, floatColumns[c][column] );
+		}
+	}
+
+}
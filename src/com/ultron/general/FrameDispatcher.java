@@ -0,0 +1,240 @@
+package com.ultron.general;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fan-out of the frames read from the hub to several FrameSinks.
+ *
+ * The producer (the reader) publishes each frame once into a ring of references; every sink has
+ * its own thread and its own cursor on the ring, so frames are never copied per sink.
+ * Each slot of the ring carries the sequence number of the frame it holds: a sink that finds a
+ * different sequence has been overrun by the producer and applies its overflow policy.
+ *
+ * Only one thread may call publish.
+ */
+public class FrameDispatcher {
+
+	/*
+	 * local variables
+	 */
+	private final int							capacity;					// power of 2
+	private final int							mask;
+	private final AtomicReferenceArray<byte[]>	ring;
+	private final AtomicLongArray				ringSeq;					// sequence of the frame in each slot
+	private volatile long						published		= 0;		// number of published frames
+	private volatile boolean					closed			= false;
+	private final CopyOnWriteArrayList<SinkThread>	sinks		= new CopyOnWriteArrayList<SinkThread>();	// active sinks
+	private final CopyOnWriteArrayList<SinkThread>	allSinks	= new CopyOnWriteArrayList<SinkThread>();	// for join and statistics
+	private final Log							log;
+
+	/*
+	 * Constructor:
+	 */
+	public FrameDispatcher( int p_capacity, Log p_log ) {
+		int c = Integer.highestOneBit( Math.max( 2, p_capacity ) - 1 ) << 1;
+		capacity	= c;
+		mask		= c - 1;
+		ring		= new AtomicReferenceArray<byte[]>( c );
+		ringSeq		= new AtomicLongArray( c );
+		for (int i = 0; i < c; i++) ringSeq.set( i, -1 );
+		log			= p_log;
+	}
+
+	public FrameDispatcher( Log p_log ) {
+		this( Common.DISPATCHER_RING_SIZE, p_log );
+	}
+
+	/*
+	 * Public Methods
+	 */
+
+	/**
+	 * Register a sink and start its thread: it receives the frames published from now on.
+	 */
+	public boolean addSink( FrameSink p_sink ) {
+		if (closed) return false;
+		SinkThread t = new SinkThread( p_sink, published );
+		sinks.add( t );
+		allSinks.add( t );
+		t.start();
+		return true;
+	}
+
+	/**
+	 * Replace a sink with a new one (e.g. a file sink with the one of the next file): the old sink receives the
+	 * frames published until now and then closes, the new one all the following frames. No frame is lost or
+	 * received twice, whatever the overflow policy.
+	 */
+	public boolean replaceSink( FrameSink p_old, FrameSink p_new ) {
+		if (closed) return false;
+		for (SinkThread t : sinks) {
+			if (t.sink != p_old) continue;
+
+			// registered behind the old sink first, so that publish waits for it (BLOCK) before the cut is taken
+			SinkThread n = new SinkThread( p_new, t.cursor );
+			sinks.add( n );
+			allSinks.add( n );
+			long cut	= published;
+			n.cursor	= cut;
+			t.endAt		= cut;
+			n.start();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Publish a frame to all the sinks.
+	 * It waits only for the sinks with OverflowPolicy.BLOCK that are a whole ring behind.
+	 */
+	public void publish( byte[] p_frame ) {
+
+		long seq = published;
+
+		// on a snapshot of the sinks: a sink removing itself must not make the next one skipped
+		for (SinkThread t : sinks) {
+			if (seq - t.cursor < capacity) continue;
+			switch (t.policy) {
+			case BLOCK:
+				while (seq - t.cursor >= capacity && !t.done) LockSupport.parkNanos( Common.DISPATCHER_IDLE_WAIT_NS );
+				break;
+			case DETACH:
+				t.detach();
+				break;
+			default: // DROP: the sink finds out by itself
+				break;
+			}
+		}
+
+		// the slot is invalidated while its frame is replaced (see SinkThread.run)
+		int idx = (int)(seq & mask);
+		ringSeq.set( idx, -1 );
+		ring.set( idx, p_frame );
+		ringSeq.set( idx, seq );
+		published = seq + 1;
+	}
+
+	/**
+	 * No more frames: the sinks consume what is left in the ring and then close.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Wait for all the sink threads to terminate (at most p_millis for each sink).
+	 * The sink threads are daemons (a stuck sink cannot keep the JVM alive): after close, a sink still
+	 * flushing its file must be joined before the application exits.
+	 * Returns false if a sink is still running.
+	 */
+	public boolean join( long p_millis ) {
+		boolean ret = true;
+		for (SinkThread t : allSinks) {
+			try {
+				t.join( p_millis );
+			} catch (InterruptedException e) {
+				if (log != null) log.writeln( Log.WARNING, "Dispatcher: interrupted while waiting for sink " + t.getName() );
+				Thread.currentThread().interrupt();
+			}
+			if (t.isAlive()) {
+				ret = false;
+				if (log != null) log.writeln( Log.WARNING, "Dispatcher: sink " + t.sink.getName() + " still running after " + p_millis + "ms", Log.ECHO );
+			}
+		}
+		return ret;
+	}
+
+	public long getPublished() {
+		return published;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder( "Dispatcher: published " + published + " frames\n" );
+		for (SinkThread t : allSinks) {
+			sb.append( "  sink " + t.sink.getName() + " (" + t.policy + "): delivered " + t.delivered + " - dropped " + t.dropped +
+					(t.detached ? " - detached" : "") + "\n" );
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Thread consuming the ring on behalf of a sink
+	 */
+	private class SinkThread extends Thread {
+
+		private final FrameSink						sink;
+		private final FrameSink.OverflowPolicy		policy;
+		private volatile long						cursor;				// next frame to consume
+		private volatile boolean					detached	= false;
+		private volatile long						endAt		= Long.MAX_VALUE;	// replaced: last frame is endAt - 1
+		private volatile boolean					done		= false;			// the sink is closed (or not opened)
+		private long								delivered	= 0;
+		private long								dropped		= 0;
+
+		SinkThread( FrameSink p_sink, long p_start ) {
+			super( "FrameSink - " + p_sink.getName() );
+			sink	= p_sink;
+			policy	= p_sink.getOverflowPolicy();
+			cursor	= p_start;
+			setDaemon( true );
+		}
+
+		void detach() {
+			detached = true;
+			sinks.remove( this );
+			if (log != null) log.writeln( Log.WARNING, "Dispatcher: sink " + sink.getName() + " too slow, detached", Log.ECHO );
+		}
+
+		@Override
+		public void run() {
+
+			if (!sink.open()) {
+				done = true;
+				sinks.remove( this );
+				if (log != null) log.writeln( Log.ERROR, "Dispatcher: sink " + sink.getName() + " not opened" );
+				return;
+			}
+
+			long next = cursor;
+			while (!detached && next < endAt) {
+
+				long available = published;
+				if (next == available) {
+					if (closed) break;
+					sink.onIdle();
+					LockSupport.parkNanos( Common.DISPATCHER_IDLE_WAIT_NS );
+					continue;
+				}
+
+				// the slot must contain our frame before and after we take the reference
+				int		idx		= (int)(next & mask);
+				long	seq		= ringSeq.get( idx );
+				byte[]	frame	= ring.get( idx );
+				if (seq != next || ringSeq.get( idx ) != next) {
+					// overrun: jump to the oldest frame still in the ring
+					long oldest = published - capacity + 1;
+					if (oldest > next) {
+						dropped += oldest - next;
+						sink.onDrop( oldest - next );
+						next = oldest;
+					}
+					cursor = next;
+					continue;
+				}
+
+				sink.onFrame( frame );
+				delivered++;
+				cursor = ++next;
+			}
+
+			sink.close();
+			done = true;
+			sinks.remove( this );
+		}
+	}
+
+}
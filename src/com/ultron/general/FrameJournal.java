@@ -0,0 +1,212 @@
+package com.ultron.general;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal of the raw frames of a dump file (dump file name + Common.JOURNAL_EXTENSION),
+ * written by the reader before the frames are formatted: if the application dies, the frames still in the
+ * queue or in the buffers of the dump file are in the journal (see tools.JournalRecovery).
+ *
+ * Layout (LITTLE_ENDIAN like the hub frames):
+ * - header: MAGIC (int), VERSION (int), flags (int): FLAG_MAG -> frames with magnetometer
+ * - blocks: payload size (int), number of frames (int), CRC32C of the payload (int), raw frames
+ * A block is written with a single write, so after a crash only the last block can be incomplete:
+ * the reader stops at the first block that is truncated or does not match its CRC.
+ *
+ * Writing is not thread safe: the journal belongs to the reader thread.
+ */
+public class FrameJournal {
+
+	public static final int		MAGIC				= 0x4E524A48;	// "HJRN"
+	public static final int		VERSION				= 1;
+	public static final int		BYTES_HEADER		= Integer.BYTES * 3;
+	public static final int		BYTES_BLOCK_HEADER	= Integer.BYTES * 3;
+
+	// flags
+	public static final int		FLAG_MAG			= (1 << 0);
+
+	/*
+	 * local variables
+	 */
+	private final String		fileName;
+	private final FileChannel	channel;
+	private final boolean		force;				// true -> every block is forced to the disk (survives a power loss)
+	private final int			frameBytes;
+	private final ByteBuffer	header		= ByteBuffer.allocateDirect( BYTES_BLOCK_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+	private final ByteBuffer	block		= ByteBuffer.allocateDirect( Common.JOURNAL_BLOCK_BYTES );
+	private final ByteBuffer[]	gather		= { header, block };
+	private final CRC32C		crc			= new CRC32C();
+	private int					blockFrames	= 0;
+	private long				numFrames	= 0;
+	private long				numBlocks	= 0;
+
+	/*
+	 * Constructor: create the journal next to the dump file
+	 */
+	public FrameJournal( String p_dumpFileName, boolean p_useMag, boolean p_force ) throws IOException {
+		fileName	= p_dumpFileName + Common.JOURNAL_EXTENSION;
+		force		= p_force;
+		frameBytes	= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		channel		= FileChannel.open( Paths.get( fileName ), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+
+		ByteBuffer fileHeader = ByteBuffer.allocate( BYTES_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+		fileHeader.putInt( MAGIC ).putInt( VERSION ).putInt( p_useMag ? FLAG_MAG : 0 ).flip();
+		try {
+			while (fileHeader.hasRemaining()) channel.write( fileHeader );
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public String getFileName()		{ return fileName; }
+
+	public long getNumFrames()		{ return numFrames; }
+
+	public long getNumBlocks()		{ return numBlocks; }
+
+	/**
+	 * Add a frame to the current block (written when full, or by commit).
+	 */
+	public boolean append( byte[] p_frame ) {
+		boolean ret = true;
+		if (block.remaining() < p_frame.length) ret = commit();
+		block.put( p_frame );
+		blockFrames++;
+		numFrames++;
+		return ret;
+	}
+
+	public boolean isBlockFull() {
+		return block.remaining() < frameBytes;
+	}
+
+	/**
+	 * Write the current block (nothing if empty): after it the frames survive a crash of the application
+	 * (and of the system, if forced).
+	 */
+	public boolean commit() {
+		if (blockFrames == 0) return true;
+
+		block.flip();
+		crc.reset();
+		crc.update( block );
+		block.rewind();
+		header.clear();
+		header.putInt( block.remaining() ).putInt( blockFrames ).putInt( (int)crc.getValue() ).flip();
+
+		boolean ret = true;
+		try {
+			while (block.hasRemaining()) channel.write( gather );
+			if (force) channel.force( false );
+			numBlocks++;
+		} catch (IOException e) {
+			ret = false;
+		}
+		block.clear();
+		blockFrames = 0;
+		return ret;
+	}
+
+	public boolean close() {
+		boolean ret = commit();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			ret = false;
+		}
+		return ret;
+	}
+
+	/**
+	 * Sequential reader of a journal: the valid blocks, up to the first damaged one.
+	 */
+	public static class Reader implements AutoCloseable {
+
+		private final FileChannel	channel;
+		private final boolean		useMag;
+		private final ByteBuffer	header		= ByteBuffer.allocate( BYTES_BLOCK_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+		private final CRC32C		crc			= new CRC32C();
+		private final ByteBuffer	block		= ByteBuffer.allocate( Common.JOURNAL_BLOCK_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		private long				validBytes	= BYTES_HEADER;		// end of the last valid block
+		private boolean				damaged		= false;
+
+		public Reader( String p_journalFileName ) throws IOException {
+			channel = FileChannel.open( Paths.get( p_journalFileName ), StandardOpenOption.READ );
+			ByteBuffer fileHeader = ByteBuffer.allocate( BYTES_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+			if (!readFully( fileHeader ) || fileHeader.getInt( 0 ) != MAGIC || fileHeader.getInt( 4 ) != VERSION) {
+				channel.close();
+				throw new IOException( p_journalFileName + " is not a frame journal" );
+			}
+			useMag = (fileHeader.getInt( 8 ) & FLAG_MAG) != 0;
+		}
+
+		public boolean isUseMag()			{ return useMag; }
+
+		public int getFrameBytes()			{ return (useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG); }
+
+		/** true if the journal ends with a damaged (half written) block */
+		public boolean isDamaged()			{ return damaged; }
+
+		/** bytes of the journal up to the end of the last block read */
+		public long getValidBytes()			{ return validBytes; }
+
+		/**
+		 * Frames of the next block (valid until the next call), null at the end of the journal or at the first damaged block.
+		 */
+		public ByteBuffer nextBlock() throws IOException {
+			header.clear();
+			if (!readFully( header )) {
+				damaged = header.position() > 0;
+				return null;
+			}
+			int bytes	= header.getInt( 0 );
+			int frames	= header.getInt( 4 );
+			int sum		= header.getInt( 8 );
+			if (bytes <= 0 || frames <= 0 || bytes != frames * getFrameBytes() || bytes > Common.JOURNAL_BLOCK_BYTES) {
+				damaged = true;
+				return null;
+			}
+
+			block.clear();
+			block.limit( bytes );
+			if (!readFully( block )) {
+				damaged = true;
+				return null;
+			}
+			block.flip();
+			crc.reset();
+			crc.update( block );
+			block.rewind();
+			if ((int)crc.getValue() != sum) {
+				damaged = true;
+				return null;
+			}
+
+			validBytes += BYTES_BLOCK_HEADER + bytes;
+			return block;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		private boolean readFully( ByteBuffer p_buf ) throws IOException {
+			while (p_buf.hasRemaining()) {
+				if (channel.read( p_buf ) < 0) return false;
+			}
+			return true;
+		}
+	}
+
+}
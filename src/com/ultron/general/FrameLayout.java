@@ -0,0 +1,161 @@
+package com.ultron.general;
+
+import java.util.Arrays;
+
+/**
+ * Layout of the frames of a frameType: how many sensor records the hub sends, and so the size of the frame.
+ *
+ * The records of a frame are in slot order after the header, so a frame with fewer records (compact) is the
+ * first bytes of the full frame (Common.MAX_SENSORS records) that SensorData and every sink work with:
+ * - compact: the hub (or the simulator) sends only the first getFrameBytes() bytes of a full frame
+ * - expand: the reader reads them into a buffer of the full size and fills the missing records in place,
+ *   as SensorData reads a satellite not in the bitmap (satelliteID = slot, zeros)
+ * The bits of the bitmap without a record are cleared: a hub announcing a satellite in a slot its layout does not
+ * send is misconfigured, so compact and expand count them (see countMissing) for the callers to report.
+ *
+ * Known layouts (see SensorData.frameType): 0 and 1 -> 10-sensor body, 2 and 3 -> 5-sensor body, both with the
+ * record of the hub (Common.MAX_SENSORS = MAX_SAT_SENSORS + 1). Unknown frameTypes have the full layout.
+ * Other layouts can be registered before starting the readers.
+ */
+public class FrameLayout {
+
+	// frame types
+	public static final int				TYPE_10_SENSOR_RIGHT	= 0;
+	public static final int				TYPE_10_SENSOR_LEFT		= 1;
+	public static final int				TYPE_5_SENSOR_UPPER		= 2;
+	public static final int				TYPE_5_SENSOR_LOWER		= 3;
+
+	private static final int			NUM_TYPES				= 256;	// frameType is a byte
+	private static final FrameLayout[]	withMag					= new FrameLayout[NUM_TYPES];
+	private static final FrameLayout[]	withoutMag				= new FrameLayout[NUM_TYPES];
+
+	static {
+		register( TYPE_10_SENSOR_RIGHT,	Common.MAX_SENSORS,		"10-sensor right handed" );
+		register( TYPE_10_SENSOR_LEFT,	Common.MAX_SENSORS,		"10-sensor left handed" );
+		register( TYPE_5_SENSOR_UPPER,	5 + 1,					"5-sensor upper body" );
+		register( TYPE_5_SENSOR_LOWER,	5 + 1,					"5-sensor lower body" );
+		for (int t = 0; t < NUM_TYPES; t++) {
+			if (withMag[t] == null) {
+				withMag[t]		= new FrameLayout( t, Common.MAX_SENSORS, true, "unknown" );
+				withoutMag[t]	= new FrameLayout( t, Common.MAX_SENSORS, false, "unknown" );
+			}
+		}
+	}
+
+	/*
+	 * local variables
+	 */
+	private final int			frameType;
+	private final int			numSensors;
+	private final boolean		useMag;
+	private final String		name;
+	private final int			recordBytes;
+	private final int			frameBytes;
+
+	/*
+	 * Constructor
+	 */
+	private FrameLayout( int p_frameType, int p_numSensors, boolean p_useMag, String p_name ) {
+		frameType	= p_frameType;
+		numSensors	= p_numSensors;
+		useMag		= p_useMag;
+		name		= p_name;
+		recordBytes	= ((p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG) - SensorData.BYTES_HEADER_ONLY) / Common.MAX_SENSORS;
+		frameBytes	= SensorData.BYTES_HEADER_ONLY + p_numSensors * recordBytes;
+	}
+
+	/*
+	 * Public Methods
+	 */
+
+	/**
+	 * Layout of the frames of a frameType (the full layout if the type is unknown).
+	 */
+	public static FrameLayout of( int p_frameType, boolean p_useMag ) {
+		return (p_useMag ? withMag : withoutMag)[p_frameType & 0xFF];
+	}
+
+	/**
+	 * Layout of the frame starting at p_offset (its header at least).
+	 */
+	public static FrameLayout of( byte[] p_frame, int p_offset, boolean p_useMag ) {
+		return of( SensorData.readFrameType( p_frame, p_offset ), p_useMag );
+	}
+
+	/**
+	 * Register the layout of a frameType (1 to Common.MAX_SENSORS records), with and without magnetometer.
+	 * Not thread safe: to be called before starting the readers.
+	 */
+	public static void register( int p_frameType, int p_numSensors, String p_name ) {
+		if (p_frameType < 0 || p_frameType >= NUM_TYPES) throw new IllegalArgumentException( "Frame type " + p_frameType + " out of range" );
+		if (p_numSensors < 1 || p_numSensors > Common.MAX_SENSORS) throw new IllegalArgumentException( "Frames of " + p_numSensors + " sensors" );
+		withMag[p_frameType]	= new FrameLayout( p_frameType, p_numSensors, true, p_name );
+		withoutMag[p_frameType]	= new FrameLayout( p_frameType, p_numSensors, false, p_name );
+	}
+
+	public int getFrameType()		{ return frameType; }
+
+	public int getNumSensors()		{ return numSensors; }
+
+	public boolean isUseMag()		{ return useMag; }
+
+	public String getName()			{ return name; }
+
+	/** size of the frames on the wire */
+	public int getFrameBytes()		{ return frameBytes; }
+
+	/** true if the frames have all the records (nothing to compact or expand) */
+	public boolean isFull()			{ return numSensors == Common.MAX_SENSORS; }
+
+	/**
+	 * Satellites of the bitmap of the frame at p_offset in a slot without a record (0 for the full layout).
+	 */
+	public int countMissing( byte[] p_frame, int p_offset ) {
+		return Integer.bitCount( SensorData.readBitmap( p_frame, p_offset ) & ~recordMask() );
+	}
+
+	/**
+	 * Compact the full frame at p_offset in place (the bits of the bitmap without a record are cleared, check
+	 * countMissing before): its first getFrameBytes() bytes are the frame to send.
+	 */
+	public int compact( byte[] p_frame, int p_offset ) {
+		if (!isFull()) clearMissingBits( p_frame, p_offset );
+		return frameBytes;
+	}
+
+	/**
+	 * Expand in place the compact frame read at p_offset of a buffer of the full frame size.
+	 * Returns the bits of the bitmap cleared (satellites announced in a slot without a record): 0 normally.
+	 */
+	public int expand( byte[] p_frame, int p_offset ) {
+		if (isFull()) return 0;
+		int ret = clearMissingBits( p_frame, p_offset );
+		for (int slot = numSensors; slot < Common.MAX_SENSORS; slot++) {
+			int record = p_offset + SensorData.BYTES_HEADER_ONLY + slot * recordBytes;
+			Arrays.fill( p_frame, record, record + recordBytes, (byte)0 );
+			p_frame[record] = (byte)slot;
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return "type " + frameType + " (" + name + ") - " + numSensors + " sensors, " + frameBytes + " bytes" + (useMag ? " with magnetometer" : "");
+	}
+
+	/*
+	 * Private methods
+	 */
+	private int recordMask() {
+		return (isFull() ? -1 : (1 << numSensors) - 1);
+	}
+
+	// returns the set bits cleared
+	private int clearMissingBits( byte[] p_frame, int p_offset ) {
+		int old		= SensorData.readBitmap( p_frame, p_offset );
+		int bitmap	= old & recordMask();
+		for (int i = 0; i < Integer.BYTES; i++) p_frame[p_offset + 12 + i] = (byte)(bitmap >>> (8 * i));
+		return Integer.bitCount( old & ~bitmap );
+	}
+
+}
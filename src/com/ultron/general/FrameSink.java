@@ -0,0 +1,55 @@
+package com.ultron.general;
+
+/**
+ * Consumer of the raw frames read from the hub.
+ *
+ * Sinks are registered in a FrameDispatcher: the reader publishes each frame once and every sink
+ * reads it from the dispatcher's ring with its own cursor, in its own thread. The same byte[]
+ * is handed to all the sinks, so a sink must never modify it (and must copy it if it keeps it
+ * after onFrame returns).
+ *
+ * When a sink cannot keep up with the reader its overflow policy decides what happens:
+ * - BLOCK	the reader waits for the sink (only for sinks that must not lose frames)
+ * - DROP	the sink skips the frames it has lost and goes on with the most recent ones
+ * - DETACH	the sink is closed and removed from the dispatcher
+ */
+public interface FrameSink {
+
+	public enum OverflowPolicy { BLOCK, DROP, DETACH }
+
+	/**
+	 * Name used in logs and thread names.
+	 */
+	public String getName();
+
+	public OverflowPolicy getOverflowPolicy();
+
+	/**
+	 * Called once, in the sink's thread, before the first frame.
+	 * Returning false the sink is not started.
+	 */
+	public boolean open();
+
+	/**
+	 * Called for each frame, in the sink's thread.
+	 */
+	public void onFrame( byte[] p_frame );
+
+	/**
+	 * Called when the sink has lost p_numFrames frames (only with OverflowPolicy.DROP).
+	 */
+	public void onDrop( long p_numFrames );
+
+	/**
+	 * Called in the sink's thread each time it finds no new frame (about every Common.DISPATCHER_IDLE_WAIT_NS
+	 * while the reader is paused, reconnecting or stopped): e.g. to send a partial batch. Must be cheap.
+	 */
+	public default void onIdle() {
+	}
+
+	/**
+	 * Called once, in the sink's thread, after the last frame.
+	 */
+	public void close();
+
+}
@@ -0,0 +1,211 @@
+package com.ultron.general;
+
+/**
+ * Frame loss detector based on the hub timestamp of each frame.
+ *
+ * For every hub (up to Common.MAX_HUBS) it learns the expected interval between two frames
+ * (minimum of the first Common.GAP_LEARN_FRAMES positive deltas, then an exponential average of the
+ * regular deltas) and classifies every new frame as:
+ * - EVENT_NONE			regular frame
+ * - EVENT_GAP			the delta is above Common.GAP_TOLERANCE times the interval: frames have been lost
+ * - EVENT_DUPLICATE	same timestamp of the previous frame
+ * - EVENT_OUT_OF_ORDER	timestamp older than the previous frame
+ *
+ * The check works on the raw frame and does not allocate: the details of the last event
+ * are available through the getLastXxx methods until the next call to check.
+ * The detector is not thread safe: each thread should use its own.
+ */
+public class GapDetector {
+
+	// events
+	public static final byte	EVENT_NONE			= 0;
+	public static final byte	EVENT_GAP			= 1;
+	public static final byte	EVENT_DUPLICATE		= 2;
+	public static final byte	EVENT_OUT_OF_ORDER	= 3;
+	public static final byte	EVENT_DISCONNECT	= 4;	// recorded from outside (see markDisconnect)
+
+	private static final String[] EVENT_NAMES = { "none", "gap", "duplicate", "out of order", "disconnect" };
+
+	private static final float	EWMA_WEIGHT			= 1F / 64F;
+
+	/*
+	 * local variables: state per hub (index returned by slot())
+	 */
+	private int					numHubs			= 0;
+	private final int[]			hubIDs			= new int[Common.MAX_HUBS];
+	private final boolean[]		hasLast			= new boolean[Common.MAX_HUBS];
+	private final int[]			lastTimestamp	= new int[Common.MAX_HUBS];
+	private final int[]			numLearned		= new int[Common.MAX_HUBS];
+	private final float[]		interval		= new float[Common.MAX_HUBS];	// expected interval (0 -> still unknown)
+	private final long[]		numFrames		= new long[Common.MAX_HUBS];
+	private final long[]		numGaps			= new long[Common.MAX_HUBS];
+	private final long[]		numLost			= new long[Common.MAX_HUBS];
+	private final long[]		numDuplicates	= new long[Common.MAX_HUBS];
+	private final long[]		numOutOfOrder	= new long[Common.MAX_HUBS];
+	private long				numUntracked	= 0;							// frames of hubs exceeding MAX_HUBS
+
+	// last event
+	private byte				lastEvent		= EVENT_NONE;
+	private int					lastHubID;
+	private int					lastPrevTimestamp;
+	private int					lastEventTimestamp;
+	private int					lastMissing;
+
+	/**
+	 * Classify a raw frame (see SensorData.BYTES_HEADER_ONLY for the header layout).
+	 */
+	public byte check( byte[] p_frame, int p_offset ) {
+		return check( SensorData.readHubID( p_frame, p_offset ), SensorData.readTimestamp( p_frame, p_offset ) );
+	}
+
+	public byte check( byte[] p_frame ) {
+		return check( p_frame, 0 );
+	}
+
+	public byte check( int p_hubID, int p_timestamp ) {
+
+		int h = slot( p_hubID );
+		if (h < 0) {
+			numUntracked++;
+			return EVENT_NONE;
+		}
+
+		numFrames[h]++;
+		lastEvent = EVENT_NONE;
+
+		if (!hasLast[h]) {
+			hasLast[h] = true;
+			lastTimestamp[h] = p_timestamp;
+			return EVENT_NONE;
+		}
+
+		// int subtraction: the hub timestamp can wrap around
+		int delta = p_timestamp - lastTimestamp[h];
+
+		if (delta == 0) {
+			numDuplicates[h]++;
+			return event( EVENT_DUPLICATE, p_hubID, lastTimestamp[h], p_timestamp, 0 );
+		}
+
+		if (delta < 0) {
+			// keep the most recent timestamp as reference
+			numOutOfOrder[h]++;
+			return event( EVENT_OUT_OF_ORDER, p_hubID, lastTimestamp[h], p_timestamp, 0 );
+		}
+
+		int prev = lastTimestamp[h];
+		lastTimestamp[h] = p_timestamp;
+
+		// learning phase: the minimum positive delta is the best guess of the interval
+		if (numLearned[h] < Common.GAP_LEARN_FRAMES) {
+			if (interval[h] == 0 || delta < interval[h]) interval[h] = delta;
+			numLearned[h]++;
+			return EVENT_NONE;
+		}
+
+		if (delta > interval[h] * Common.GAP_TOLERANCE) {
+			int missing = Math.max( 1, Math.round( delta / interval[h] ) - 1 );
+			numGaps[h]++;
+			numLost[h] += missing;
+			return event( EVENT_GAP, p_hubID, prev, p_timestamp, missing );
+		}
+
+		// regular frame: follow slow drifts of the interval
+		interval[h] += (delta - interval[h]) * EWMA_WEIGHT;
+		return EVENT_NONE;
+	}
+
+	/**
+	 * Record a disconnection of the hub (the next frame restarts the timestamps sequence).
+	 */
+	public byte markDisconnect( int p_hubID ) {
+		int h = slot( p_hubID );
+		if (h >= 0) hasLast[h] = false;
+		return event( EVENT_DISCONNECT, p_hubID, (h >= 0 ? lastTimestamp[h] : 0), 0, 0 );
+	}
+
+	/*
+	 * Last event details
+	 */
+	public byte getLastEvent()				{ return lastEvent; }
+
+	public int getLastHubID()				{ return lastHubID; }
+
+	public int getLastPrevTimestamp()		{ return lastPrevTimestamp; }
+
+	public int getLastTimestamp()			{ return lastEventTimestamp; }
+
+	public int getLastMissing()				{ return lastMissing; }
+
+	public String lastEventToString() {
+		return "hub " + lastHubID + " " + eventName( lastEvent ) +
+				" - timestamp " + lastPrevTimestamp + " -> " + lastEventTimestamp +
+				(lastEvent == EVENT_GAP ? " - " + lastMissing + " frames lost" : "");
+	}
+
+	/*
+	 * Counters
+	 */
+	public long getNumGaps() 				{ return sum( numGaps ); }
+
+	public long getNumLostFrames() 			{ return sum( numLost ); }
+
+	public long getNumDuplicates() 			{ return sum( numDuplicates ); }
+
+	public long getNumOutOfOrder() 			{ return sum( numOutOfOrder ); }
+
+	public float getInterval( int p_hubID ) {
+		int h = find( p_hubID );
+		return (h < 0 ? 0 : interval[h]);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int h = 0; h < numHubs; h++) {
+			sb.append( "hub " + hubIDs[h] + ": frames " + numFrames[h] + " - interval " + interval[h] +
+					" - gaps " + numGaps[h] + " (" + numLost[h] + " frames lost)" +
+					" - duplicates " + numDuplicates[h] + " - out of order " + numOutOfOrder[h] + "\n" );
+		}
+		if (numUntracked > 0) sb.append( "untracked frames " + numUntracked + "\n" );
+		return sb.toString();
+	}
+
+	public static String eventName( byte p_event ) {
+		return (p_event >= 0 && p_event < EVENT_NAMES.length ? EVENT_NAMES[p_event] : "unknown");
+	}
+
+	/*
+	 * Private methods
+	 */
+	private byte event( byte p_event, int p_hubID, int p_prev, int p_timestamp, int p_missing ) {
+		lastEvent			= p_event;
+		lastHubID			= p_hubID;
+		lastPrevTimestamp	= p_prev;
+		lastEventTimestamp	= p_timestamp;
+		lastMissing			= p_missing;
+		return p_event;
+	}
+
+	private int find( int p_hubID ) {
+		for (int h = 0; h < numHubs; h++) {
+			if (hubIDs[h] == p_hubID) return h;
+		}
+		return -1;
+	}
+
+	// linear search: there are only a few hubs, almost always one
+	private int slot( int p_hubID ) {
+		int h = find( p_hubID );
+		if (h >= 0 || numHubs == Common.MAX_HUBS) return h;
+		hubIDs[numHubs] = p_hubID;
+		return numHubs++;
+	}
+
+	private static long sum( long[] p_values ) {
+		long ret = 0;
+		for (long v : p_values) ret += v;
+		return ret;
+	}
+
+}
@@ -0,0 +1,162 @@
+package com.ultron.general;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sidecar file of a dump file (dump file name + Common.GAP_INDEX_EXTENSION) listing
+ * the events found by a GapDetector.
+ *
+ * Layout (LITTLE_ENDIAN like the hub frames):
+ * - header: MAGIC (int), VERSION (int)
+ * - one fixed size record per event: frame number in the dump file (int), hubID (int),
+ *   event (byte), previous timestamp (int), timestamp (int), missing frames (int)
+ */
+public class GapIndex {
+
+	public static final int		MAGIC			= 0x50414748;	// "HGAP"
+	public static final int		VERSION			= 1;
+	public static final int		BYTES_HEADER	= Integer.BYTES * 2;
+	public static final int		BYTES_RECORD	=
+			Integer.BYTES +		// frame number
+			Integer.BYTES +		// hubID
+			Byte.BYTES +		// event
+			Integer.BYTES +		// previous timestamp
+			Integer.BYTES +		// timestamp
+			Integer.BYTES;		// missing frames
+
+	/*
+	 * local variables
+	 */
+	private OutputStream		out			= null;
+	private final ByteBuffer	record		= ByteBuffer.allocate( BYTES_RECORD ).order( ByteOrder.LITTLE_ENDIAN );
+	private int					numRecords	= 0;
+
+	/*
+	 * Constructor: create the index next to the dump file
+	 */
+	public GapIndex( String p_dumpFileName ) throws FileNotFoundException {
+		out = new BufferedOutputStream( new FileOutputStream( p_dumpFileName + Common.GAP_INDEX_EXTENSION ) );
+		ByteBuffer header = ByteBuffer.allocate( BYTES_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION );
+		try {
+			out.write( header.array() );
+		} catch (IOException e) {
+			close();
+			throw new FileNotFoundException( "Cannot write gap index header: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Append the last event of the detector.
+	 */
+	public boolean append( int p_frameNumber, GapDetector p_detector ) {
+		return append( p_frameNumber, p_detector.getLastHubID(), p_detector.getLastEvent(),
+				p_detector.getLastPrevTimestamp(), p_detector.getLastTimestamp(), p_detector.getLastMissing() );
+	}
+
+	public boolean append( int p_frameNumber, int p_hubID, byte p_event, int p_prevTimestamp, int p_timestamp, int p_missing ) {
+		if (out == null) return false;
+		record.clear();
+		record.putInt( p_frameNumber ).putInt( p_hubID ).put( p_event ).putInt( p_prevTimestamp ).putInt( p_timestamp ).putInt( p_missing );
+		try {
+			out.write( record.array(), 0, BYTES_RECORD );
+		} catch (IOException e) {
+			return false;
+		}
+		numRecords++;
+		return true;
+	}
+
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	public void close() {
+		if (out == null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		out = null;
+	}
+
+	/**
+	 * Read back all the events of a gap index.
+	 */
+	public static List<Entry> read( String p_gapIndexFileName ) throws IOException {
+
+		List<Entry>	ret = new ArrayList<Entry>();
+		byte[]		buf = new byte[BYTES_RECORD];
+
+		try (InputStream in = new BufferedInputStream( new FileInputStream( p_gapIndexFileName ) )) {
+
+			readFully( in, buf, BYTES_HEADER );
+			ByteBuffer header = ByteBuffer.wrap( buf, 0, BYTES_HEADER ).order( ByteOrder.LITTLE_ENDIAN );
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException( "Not a gap index: " + p_gapIndexFileName );
+			}
+
+			while (true) {
+				try {
+					readFully( in, buf, BYTES_RECORD );
+				} catch (EOFException e) {
+					break; // a truncated last record is ignored
+				}
+				ByteBuffer rec = ByteBuffer.wrap( buf ).order( ByteOrder.LITTLE_ENDIAN );
+				ret.add( new Entry( rec.getInt(), rec.getInt(), rec.get(), rec.getInt(), rec.getInt(), rec.getInt() ) );
+			}
+		}
+
+		return ret;
+	}
+
+	private static void readFully( InputStream p_in, byte[] p_buf, int p_len ) throws IOException {
+		int n = 0;
+		while (n < p_len) {
+			int r = p_in.read( p_buf, n, p_len - n );
+			if (r < 0) throw new EOFException();
+			n += r;
+		}
+	}
+
+	/**
+	 * Single event of the index.
+	 */
+	public static class Entry {
+		public final int	frameNumber;
+		public final int	hubID;
+		public final byte	event;
+		public final int	prevTimestamp;
+		public final int	timestamp;
+		public final int	missing;
+
+		public Entry( int p_frameNumber, int p_hubID, byte p_event, int p_prevTimestamp, int p_timestamp, int p_missing ) {
+			frameNumber		= p_frameNumber;
+			hubID			= p_hubID;
+			event			= p_event;
+			prevTimestamp	= p_prevTimestamp;
+			timestamp		= p_timestamp;
+			missing			= p_missing;
+		}
+
+		@Override
+		public String toString() {
+			return "frame " + frameNumber + " - hub " + hubID + " " + GapDetector.eventName( event ) +
+					" - timestamp " + prevTimestamp + " -> " + timestamp + " - missing " + missing;
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package com.ultron.general;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Latest reading of every satellite slot of every hub (up to Common.MAX_HUBS), for the status displays
+ * and the health checks: they can poll it at any rate without touching the recording path.
+ *
+ * The values are kept in primitive arrays, one record per (hub, slot) protected by a sequence lock:
+ * the writer makes the sequence odd, writes the record and makes it even again; a reader copies the record
+ * and retries if the sequence was odd or changed meanwhile. Neither side locks or allocates.
+ *
+ * A satellite not valid in a frame keeps its last values (marked not valid, with their own timestamp).
+ * Only one thread may call update (the reader); read can be called by any number of threads.
+ */
+public class LatestValueCache {
+
+	private static final VarHandle	SEQ				= MethodHandles.arrayElementVarHandle( long[].class );
+	private static final int		INTS			= 4;	// satelliteID, timestamp of the values, timestamp of the last frame, valid
+
+	/*
+	 * local variables
+	 */
+	private final boolean			useMag;
+	private final int[]				hubIDs			= new int[Common.MAX_HUBS];
+	private volatile int			numHubs			= 0;
+	private final long[]			seq				= new long[Common.MAX_HUBS * Common.MAX_SENSORS];
+	private final int[]				ints			= new int[Common.MAX_HUBS * Common.MAX_SENSORS * INTS];
+	private final float[]			values			= new float[Common.MAX_HUBS * Common.MAX_SENSORS * SensorData.NUM_CHANNELS];
+	private final long[]			nanos			= new long[Common.MAX_HUBS * Common.MAX_SENSORS];	// System.nanoTime of the values
+	private long					numUntracked	= 0;	// frames of hubs exceeding MAX_HUBS
+
+	/**
+	 * Reading of a slot, filled by read: it can be reused for every read (nothing is allocated).
+	 */
+	public static class Reading {
+		public int				hubID;
+		public int				slot;
+		public int				satelliteID;
+		public boolean			valid;				// valid in the last frame of the hub
+		public int				timestamp;			// hub timestamp of the values
+		public int				frameTimestamp;		// hub timestamp of the last frame
+		public long				nanos;				// System.nanoTime when the values arrived (0 -> never valid yet)
+		public final float[]	channels	= new float[SensorData.NUM_CHANNELS];	// CH_ACCEL_X .. CH_QUAT_Z
+
+		/** age of the values in ms */
+		public long getAgeMs() {
+			return (System.nanoTime() - nanos) / 1000000L;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder( "hub " + hubID + " slot " + slot + " satellite " + satelliteID +
+					(valid ? " valid" : " NOT valid") + " - timestamp " + timestamp + " (" + getAgeMs() + "ms ago):" );
+			for (int c = 0; c < channels.length; c++) sb.append( " " + SensorData.getChannelName( c ) + "=" + channels[c] );
+			return sb.toString();
+		}
+	}
+
+	/*
+	 * Constructor
+	 */
+	public LatestValueCache( boolean p_useMag ) {
+		useMag = p_useMag;
+	}
+
+	/*
+	 * Public Methods
+	 */
+
+	/**
+	 * Record the values of a raw frame (reader thread only).
+	 */
+	public void update( byte[] p_frame ) {
+		int h = slot( SensorData.readHubID( p_frame ) );
+		if (h < 0) {
+			numUntracked++;
+			return;
+		}
+
+		long	now			= System.nanoTime();
+		int		timestamp	= SensorData.readTimestamp( p_frame );
+		int		bitmap		= SensorData.readBitmap( p_frame );
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			int		r		= h * Common.MAX_SENSORS + s;
+			int		i		= r * INTS;
+			boolean	valid	= (bitmap & (1 << s)) != 0;
+
+			// odd: being written
+			long sequence = seq[r];
+			SEQ.setOpaque( seq, r, sequence + 1 );
+			VarHandle.storeStoreFence();
+
+			ints[i + 2] = timestamp;
+			ints[i + 3] = (valid ? 1 : 0);
+			if (valid) {
+				int v = r * SensorData.NUM_CHANNELS;
+				for (int c = 0; c < SensorData.NUM_CHANNELS; c++) values[v + c] = SensorData.readChannel( p_frame, useMag, s, c );
+				ints[i]		= SensorData.readSatelliteID( p_frame, useMag, s );
+				ints[i + 1]	= timestamp;
+				nanos[r]	= now;
+			}
+
+			// even: consistent again
+			SEQ.setRelease( seq, r, sequence + 2 );
+		}
+	}
+
+	/**
+	 * Copy the latest reading of a slot of a hub into p_reading: false if the hub has not sent any frame
+	 * (or the slot is out of range). Any thread.
+	 */
+	public boolean read( int p_hubID, int p_slot, Reading p_reading ) {
+		if (p_slot < 0 || p_slot >= Common.MAX_SENSORS) return false;
+		int h = find( p_hubID );
+		if (h < 0) return false;
+
+		int r = h * Common.MAX_SENSORS + p_slot;
+		int i = r * INTS;
+		int v = r * SensorData.NUM_CHANNELS;
+		while (true) {
+			long before = (long)SEQ.getAcquire( seq, r );
+			if ((before & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+
+			p_reading.satelliteID		= ints[i];
+			p_reading.timestamp			= ints[i + 1];
+			p_reading.frameTimestamp	= ints[i + 2];
+			p_reading.valid				= (ints[i + 3] != 0);
+			p_reading.nanos				= nanos[r];
+			System.arraycopy( values, v, p_reading.channels, 0, SensorData.NUM_CHANNELS );
+
+			VarHandle.loadLoadFence();
+			if ((long)SEQ.getOpaque( seq, r ) == before) break;
+		}
+		p_reading.hubID	= p_hubID;
+		p_reading.slot	= p_slot;
+		return true;
+	}
+
+	/**
+	 * Hubs seen so far, in order of arrival.
+	 */
+	public int getNumHubs() {
+		return numHubs;
+	}
+
+	public int getHubID( int p_index ) {
+		return hubIDs[p_index];
+	}
+
+	/**
+	 * The latest reading of every slot of every hub, one per line (allocates: for logs and consoles).
+	 */
+	@Override
+	public String toString() {
+		StringBuilder	sb		= new StringBuilder();
+		Reading			reading	= new Reading();
+		int				n		= numHubs;
+		for (int h = 0; h < n; h++) {
+			for (int s = 0; s < Common.MAX_SENSORS; s++) {
+				if (read( hubIDs[h], s, reading ) && reading.nanos != 0) sb.append( reading.toString() ).append( "\n" );
+			}
+		}
+		if (numUntracked > 0) sb.append( numUntracked + " frames of hubs not tracked\n" );
+		return sb.toString();
+	}
+
+	/*
+	 * Private methods
+	 */
+	private int find( int p_hubID ) {
+		int n = numHubs;
+		for (int h = 0; h < n; h++) {
+			if (hubIDs[h] == p_hubID) return h;
+		}
+		return -1;
+	}
+
+	// the hubID is written before numHubs (volatile): the readers see it as soon as they see the hub
+	private int slot( int p_hubID ) {
+		int h = find( p_hubID );
+		if (h >= 0 || numHubs == Common.MAX_HUBS) return h;
+		hubIDs[numHubs] = p_hubID;
+		numHubs = numHubs + 1;
+		return numHubs - 1;
+	}
+
+}
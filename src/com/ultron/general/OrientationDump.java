@@ -0,0 +1,220 @@
+package com.ultron.general;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Orientation side file: what the consumers of the dumps derive from the quaternions, computed once
+ * while the frames arrive (see OrientationSink).
+ *
+ * Layout (LITTLE_ENDIAN like the hub frames):
+ * - header: MAGIC (int), VERSION (int), number of pairs (int), then slot A and slot B (int) of each pair
+ * - one record per frame:
+ *   hubID, timestamp, bitmap (int)
+ *   for each satellite slot: normalised quaternion w, x, y, z and Euler angles roll, pitch, yaw (float, radians)
+ *   for each pair: rotation of B relative to A w, x, y, z and its angle (float, radians)
+ * The values of a satellite that is not valid (or of a pair with a satellite not valid) are 0.
+ *
+ * encode() does not allocate: the sink keeps up at full rate.
+ */
+public class OrientationDump {
+
+	public static final int		MAGIC			= 0x49524F48;	// "HORI"
+	public static final int		VERSION			= 1;
+	public static final int		SLOT_FLOATS		= 7;			// quaternion + Euler angles
+	public static final int		PAIR_FLOATS		= 5;			// relative quaternion + angle
+
+	/*
+	 * local variables
+	 */
+	private final int[]			pairA;
+	private final int[]			pairB;
+	private final float[]		quat		= new float[Common.MAX_SENSORS * 4];
+	private final float[]		euler		= new float[3];
+	private final float[]		rel			= new float[4];
+
+	/*
+	 * Constructor
+	 */
+	public OrientationDump( int[] p_pairA, int[] p_pairB ) {
+		pairA	= p_pairA.clone();
+		pairB	= p_pairB.clone();
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public int getNumPairs()	{ return pairA.length; }
+
+	public int headerBytes() {
+		return Integer.BYTES * (3 + 2 * pairA.length);
+	}
+
+	public int recordBytes() {
+		return Integer.BYTES * 3 + Float.BYTES * (Common.MAX_SENSORS * SLOT_FLOATS + pairA.length * PAIR_FLOATS);
+	}
+
+	public void writeHeader( ByteBuffer p_out ) {
+		ByteOrder order = p_out.order();
+		p_out.order( ByteOrder.LITTLE_ENDIAN );
+		p_out.putInt( MAGIC ).putInt( VERSION ).putInt( pairA.length );
+		for (int i = 0; i < pairA.length; i++) p_out.putInt( pairA[i] ).putInt( pairB[i] );
+		p_out.order( order );
+	}
+
+	/**
+	 * Append the record of a raw frame to p_out (recordBytes() bytes).
+	 */
+	public void encode( byte[] p_frame, boolean p_useMag, ByteBuffer p_out ) {
+
+		ByteOrder	order	= p_out.order();
+		int			bitmap	= SensorData.readBitmap( p_frame );
+		int			valid	= 0;			// satellites with a usable quaternion
+		p_out.order( ByteOrder.LITTLE_ENDIAN );
+
+		p_out.putInt( SensorData.readHubID( p_frame ) ).putInt( SensorData.readTimestamp( p_frame ) ).putInt( bitmap );
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			int q = s * 4;
+			for (int k = 0; k < 4; k++) quat[q + k] = SensorData.readChannel( p_frame, p_useMag, s, SensorData.CH_QUAT_W + k );
+
+			if ((bitmap & (1 << s)) != 0 && Quaternions.normalize( quat, q )) {
+				valid |= (1 << s);
+				Quaternions.toEuler( quat, q, euler, 0 );
+				p_out.putFloat( quat[q] ).putFloat( quat[q + 1] ).putFloat( quat[q + 2] ).putFloat( quat[q + 3] );
+				p_out.putFloat( euler[0] ).putFloat( euler[1] ).putFloat( euler[2] );
+			} else {
+				for (int k = 0; k < SLOT_FLOATS; k++) p_out.putFloat( 0F );
+			}
+		}
+
+		for (int i = 0; i < pairA.length; i++) {
+			if ((valid & (1 << pairA[i])) != 0 && (valid & (1 << pairB[i])) != 0) {
+				Quaternions.relative( quat, pairA[i] * 4, quat, pairB[i] * 4, rel, 0 );
+				p_out.putFloat( rel[0] ).putFloat( rel[1] ).putFloat( rel[2] ).putFloat( rel[3] );
+				p_out.putFloat( Quaternions.angle( rel, 0 ) );
+			} else {
+				for (int k = 0; k < PAIR_FLOATS; k++) p_out.putFloat( 0F );
+			}
+		}
+
+		p_out.order( order );
+	}
+
+	/**
+	 * Pairs of satellite slots written as "a-b, c-d": returns { slots A, slots B }.
+	 * Malformed pairs and slots out of range are skipped.
+	 */
+	public static int[][] parsePairs( String p_pairs ) {
+		if (p_pairs == null || p_pairs.trim().isEmpty()) return new int[][] { new int[0], new int[0] };
+		String[]	items	= p_pairs.split( "\\s*,\\s*" );
+		int[]		a		= new int[items.length];
+		int[]		b		= new int[items.length];
+		int			n		= 0;
+		for (String item : items) {
+			String[] slots = item.trim().split( "\\s*-\\s*" );
+			try {
+				int sa = Integer.parseInt( slots[0] ), sb = Integer.parseInt( slots[1] );
+				if (sa < 0 || sb < 0 || sa >= Common.MAX_SENSORS || sb >= Common.MAX_SENSORS) continue;
+				a[n] = sa;
+				b[n] = sb;
+				n++;
+			} catch (RuntimeException e) {
+				// skip it
+			}
+		}
+		return new int[][] { Arrays.copyOf( a, n ), Arrays.copyOf( b, n ) };
+	}
+
+	/**
+	 * Sequential reader of an orientation file
+	 */
+	public static class Reader implements AutoCloseable {
+
+		private final FileChannel	channel;
+		private final ByteBuffer	buffer;
+		private final int[]			pairA;
+		private final int[]			pairB;
+		private final int			recordBytes;
+		private int					record		= -1;		// position of the current record in the buffer
+
+		public Reader( String p_fileName ) throws IOException {
+			channel = FileChannel.open( Paths.get( p_fileName ), StandardOpenOption.READ );
+			try {
+				ByteBuffer header = ByteBuffer.allocate( Integer.BYTES * 3 ).order( ByteOrder.LITTLE_ENDIAN );
+				readFully( header );
+				if (header.getInt( 0 ) != MAGIC || header.getInt( 4 ) != VERSION) throw new IOException( p_fileName + " is not an orientation file" );
+				int			numPairs	= header.getInt( 8 );
+				ByteBuffer	pairs		= ByteBuffer.allocate( Integer.BYTES * 2 * numPairs ).order( ByteOrder.LITTLE_ENDIAN );
+				readFully( pairs );
+				pairA = new int[numPairs];
+				pairB = new int[numPairs];
+				for (int i = 0; i < numPairs; i++) {
+					pairA[i] = pairs.getInt();
+					pairB[i] = pairs.getInt();
+				}
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			recordBytes	= new OrientationDump( pairA, pairB ).recordBytes();
+			buffer		= ByteBuffer.allocate( Math.max( recordBytes, Common.SINK_WRITE_BUFFER_BYTES / recordBytes * recordBytes ) ).order( ByteOrder.LITTLE_ENDIAN );
+			buffer.limit( 0 );
+		}
+
+		/**
+		 * Move to the next record; false at the end of the file.
+		 */
+		public boolean next() throws IOException {
+			if (record >= 0) buffer.position( record + recordBytes );
+			if (buffer.remaining() < recordBytes) {
+				buffer.compact();
+				while (buffer.position() < recordBytes && channel.read( buffer ) > 0) { }
+				buffer.flip();
+				if (buffer.remaining() < recordBytes) return false;
+			}
+			record = buffer.position();
+			return true;
+		}
+
+		public int getNumPairs()					{ return pairA.length; }
+
+		public int getPairA( int p_pair )			{ return pairA[p_pair]; }
+
+		public int getPairB( int p_pair )			{ return pairB[p_pair]; }
+
+		public int getHubID()						{ return buffer.getInt( record ); }
+
+		public int getTimestamp()					{ return buffer.getInt( record + 4 ); }
+
+		public int getBitmap()						{ return buffer.getInt( record + 8 ); }
+
+		/** p_k: 0..3 quaternion w, x, y, z - 4..6 roll, pitch, yaw */
+		public float getSlotValue( int p_slot, int p_k ) {
+			return buffer.getFloat( record + 12 + Float.BYTES * (p_slot * SLOT_FLOATS + p_k) );
+		}
+
+		/** p_k: 0..3 relative quaternion w, x, y, z - 4 angle */
+		public float getPairValue( int p_pair, int p_k ) {
+			return buffer.getFloat( record + 12 + Float.BYTES * (Common.MAX_SENSORS * SLOT_FLOATS + p_pair * PAIR_FLOATS + p_k) );
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		private void readFully( ByteBuffer p_buf ) throws IOException {
+			while (p_buf.hasRemaining()) {
+				if (channel.read( p_buf ) < 0) throw new IOException( "Unexpected end of file" );
+			}
+			p_buf.flip();
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.ultron.general;
+
+/**
+ * Quaternion maths on float arrays (w, x, y, z starting at an offset), without allocation.
+ * Euler angles are roll (x), pitch (y), yaw (z) in radians, rotation order Z-Y-X.
+ */
+public class Quaternions {
+
+	/**
+	 * Normalise the quaternion in place. Returns false (and leaves it unchanged) if its norm is 0 or not a number.
+	 */
+	public static boolean normalize( float[] p_q, int p_o ) {
+		double norm = Math.sqrt( (double)p_q[p_o] * p_q[p_o] + (double)p_q[p_o + 1] * p_q[p_o + 1] +
+								 (double)p_q[p_o + 2] * p_q[p_o + 2] + (double)p_q[p_o + 3] * p_q[p_o + 3] );
+		if (!(norm > 0) || Double.isInfinite( norm )) return false;
+		for (int k = 0; k < 4; k++) p_q[p_o + k] = (float)(p_q[p_o + k] / norm);
+		return true;
+	}
+
+	/**
+	 * Euler angles (roll, pitch, yaw) of a unit quaternion.
+	 */
+	public static void toEuler( float[] p_q, int p_o, float[] p_out, int p_outOffset ) {
+		double w = p_q[p_o], x = p_q[p_o + 1], y = p_q[p_o + 2], z = p_q[p_o + 3];
+		double sinPitch = 2 * (w * y - z * x);
+		p_out[p_outOffset]		= (float)Math.atan2( 2 * (w * x + y * z), 1 - 2 * (x * x + y * y) );
+		p_out[p_outOffset + 1]	= (float)Math.asin( Math.max( -1.0, Math.min( 1.0, sinPitch ) ) );		// gimbal lock at +-90 degrees
+		p_out[p_outOffset + 2]	= (float)Math.atan2( 2 * (w * z + x * y), 1 - 2 * (y * y + z * z) );
+	}
+
+	/**
+	 * Rotation of b relative to a: conjugate(a) * b (unit quaternions).
+	 */
+	public static void relative( float[] p_a, int p_ao, float[] p_b, int p_bo, float[] p_out, int p_outOffset ) {
+		float aw = p_a[p_ao], ax = -p_a[p_ao + 1], ay = -p_a[p_ao + 2], az = -p_a[p_ao + 3];
+		float bw = p_b[p_bo], bx = p_b[p_bo + 1], by = p_b[p_bo + 2], bz = p_b[p_bo + 3];
+		p_out[p_outOffset]		= aw * bw - ax * bx - ay * by - az * bz;
+		p_out[p_outOffset + 1]	= aw * bx + ax * bw + ay * bz - az * by;
+		p_out[p_outOffset + 2]	= aw * by - ax * bz + ay * bw + az * bx;
+		p_out[p_outOffset + 3]	= aw * bz + ax * by - ay * bx + az * bw;
+	}
+
+	/**
+	 * Rotation angle (radians, 0 .. PI) of a unit quaternion: the joint angle of a relative rotation.
+	 */
+	public static float angle( float[] p_q, int p_o ) {
+		return (float)(2 * Math.acos( Math.min( 1.0, Math.abs( (double)p_q[p_o] ) ) ));
+	}
+
+}
@@ -0,0 +1,354 @@
+package com.ultron.general;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Codec of the raw frames specialised on the sensor channels, which change little from a frame to the next:
+ * - hubID and frame type: XOR with the previous frame, varint
+ * - timestamp: delta of the delta with the previous frame, zig-zag varint (0 at a regular rate)
+ * - bitmap: XOR with the previous frame, varint
+ * - for each satellite in the bitmap: satelliteID XOR, shorts (accel, gyro, mag) delta with the last record of
+ *   the slot in zig-zag varint, quaternion floats XOR with the last record of the slot (Gorilla style, on bytes:
+ *   a nibble with the number of leading and trailing zero bytes of the XOR, then the bytes in between)
+ * - for each satellite not in the bitmap: one byte, 0 if the record is all zeros (what the hub sends), else 1
+ *   followed by the record encoded as above, so that any frame is decoded exactly as it was encoded
+ *
+ * The codec keeps the previous values: frames must be decoded in the order they were encoded, with a codec
+ * reset at the same points (e.g. at the start of each block, see encodeBlock). Nothing is allocated per frame.
+ * Not thread safe: one codec per thread.
+ *
+ * encodeBlock and decodeBlock give the blocks of the channel dumps (BinaryDump.CHANNEL_EXTENSION).
+ */
+public class SensorChannelCodec {
+
+	// nibble of a float XOR: 15 combinations of leading (l) and trailing (t) zero bytes, l + t <= 4
+	private static final int[][]	NIBBLE		= new int[5][5];
+	private static final int[]		LEADING		= new int[16];
+	private static final int[]		TRAILING	= new int[16];
+	static {
+		int code = 0;
+		for (int l = 0; l <= 4; l++) {
+			for (int t = 0; l + t <= 4; t++) {
+				NIBBLE[l][t]	= code;
+				LEADING[code]	= l;
+				TRAILING[code]	= t;
+				code++;
+			}
+		}
+	}
+
+	/*
+	 * local variables
+	 */
+	private final boolean	useMag;
+	private final int		frameBytes;
+	private final int		recordBytes;
+	private final int		numShorts;							// shorts of a record (accel, gyro and mag)
+	private final int		floatsOffset;						// quaternion in a record
+
+	// previous values
+	private int				prevHubID;
+	private int				prevType;
+	private int				prevTimestamp;
+	private int				prevDelta;
+	private int				prevBitmap;
+	private final int[]		prevSatellite	= new int[Common.MAX_SENSORS];
+	private final int[]		prevPadding		= new int[Common.MAX_SENSORS];
+	private final short[]	prevShorts;							// [slot * numShorts + i]
+	private final int[]		prevFloats		= new int[Common.MAX_SENSORS * 4];
+
+	private int				inPos;								// decode cursor
+
+	/*
+	 * Constructor
+	 */
+	public SensorChannelCodec( boolean p_useMag ) {
+		useMag			= p_useMag;
+		frameBytes		= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		recordBytes		= (frameBytes - SensorData.BYTES_HEADER_ONLY) / Common.MAX_SENSORS;
+		numShorts		= (p_useMag ? 9 : 6);
+		floatsOffset	= Integer.BYTES + Short.BYTES * numShorts + (p_useMag ? 2 : 0);
+		prevShorts		= new short[Common.MAX_SENSORS * numShorts];
+		reset();
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public boolean isUseMag()		{ return useMag; }
+
+	public int getFrameBytes()		{ return frameBytes; }
+
+	/**
+	 * Forget the previous values: the next frame is encoded (decoded) on its own.
+	 */
+	public void reset() {
+		prevHubID		= 0;
+		prevType		= 0;
+		prevTimestamp	= 0;
+		prevDelta		= 0;
+		prevBitmap		= 0;
+		Arrays.fill( prevSatellite, 0 );
+		Arrays.fill( prevPadding, 0 );
+		Arrays.fill( prevShorts, (short)0 );
+		Arrays.fill( prevFloats, 0 );
+	}
+
+	/**
+	 * Max bytes of an encoded frame.
+	 */
+	public int maxEncodedBytes() {
+		return 5 * 4 + Common.MAX_SENSORS * (1 + 5 + 3 * numShorts + 3 + 2 + Float.BYTES * 4);
+	}
+
+	/**
+	 * Encode the frame at p_offset of p_frame into p_out from p_pos (room for maxEncodedBytes() needed):
+	 * returns the position after the encoded frame.
+	 */
+	public int encode( byte[] p_frame, int p_offset, byte[] p_out, int p_pos ) {
+
+		int pos			= p_pos;
+		int hubID		= getInt( p_frame, p_offset );
+		int type		= getInt( p_frame, p_offset + 4 );
+		int timestamp	= getInt( p_frame, p_offset + 8 );
+		int bitmap		= getInt( p_frame, p_offset + 12 );
+		int delta		= timestamp - prevTimestamp;
+
+		pos = putVarint( p_out, pos, hubID ^ prevHubID );
+		pos = putVarint( p_out, pos, type ^ prevType );
+		pos = putVarint( p_out, pos, zigZag( delta - prevDelta ) );
+		pos = putVarint( p_out, pos, bitmap ^ prevBitmap );
+		prevHubID		= hubID;
+		prevType		= type;
+		prevTimestamp	= timestamp;
+		prevDelta		= delta;
+		prevBitmap		= bitmap;
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			int record = p_offset + SensorData.BYTES_HEADER_ONLY + s * recordBytes;
+			if ((bitmap & (1 << s)) == 0) {
+				boolean zeros = isZeros( p_frame, record, record + recordBytes );
+				p_out[pos++] = (byte)(zeros ? 0 : 1);
+				if (zeros) continue;
+			}
+			pos = encodeRecord( p_frame, record, s, p_out, pos );
+		}
+		return pos;
+	}
+
+	/**
+	 * Decode a frame from p_in at p_pos into p_frame at p_offset (frameBytes bytes):
+	 * returns the position after the encoded frame.
+	 */
+	public int decode( byte[] p_in, int p_pos, byte[] p_frame, int p_offset ) {
+
+		inPos = p_pos;
+		int hubID		= readVarint( p_in ) ^ prevHubID;
+		int type		= readVarint( p_in ) ^ prevType;
+		int delta		= unZigZag( readVarint( p_in ) ) + prevDelta;
+		int timestamp	= prevTimestamp + delta;
+		int bitmap		= readVarint( p_in ) ^ prevBitmap;
+		prevHubID		= hubID;
+		prevType		= type;
+		prevTimestamp	= timestamp;
+		prevDelta		= delta;
+		prevBitmap		= bitmap;
+
+		putInt( p_frame, p_offset, hubID );
+		putInt( p_frame, p_offset + 4, type );
+		putInt( p_frame, p_offset + 8, timestamp );
+		putInt( p_frame, p_offset + 12, bitmap );
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			int record = p_offset + SensorData.BYTES_HEADER_ONLY + s * recordBytes;
+			if ((bitmap & (1 << s)) == 0 && p_in[inPos++] == 0) {
+				Arrays.fill( p_frame, record, record + recordBytes, (byte)0 );
+				continue;
+			}
+			decodeRecord( p_in, p_frame, record, s );
+		}
+		return inPos;
+	}
+
+	/**
+	 * Encode raw frames (LITTLE_ENDIAN, as returned by DumpChunks.decode) into an independent block with the
+	 * header of the dump blocks (see BinaryDump): raw bytes (int), encoded bytes (int), encoded frames.
+	 */
+	public static ByteBuffer encodeBlock( ByteBuffer p_frames, boolean p_useMag ) {
+		SensorChannelCodec	codec	= new SensorChannelCodec( p_useMag );
+		ByteBuffer			frames	= p_frames.duplicate();
+		int					n		= frames.remaining() / codec.frameBytes;
+		byte[]				in		= new byte[codec.frameBytes];
+		byte[]				out		= new byte[BinaryDump.BYTES_BLOCK_HEADER + n * codec.maxEncodedBytes()];
+		int					pos		= BinaryDump.BYTES_BLOCK_HEADER;
+		for (int i = 0; i < n; i++) {
+			frames.get( in );
+			pos = codec.encode( in, 0, out, pos );
+		}
+		ByteBuffer ret = ByteBuffer.wrap( out, 0, pos ).order( ByteOrder.LITTLE_ENDIAN );
+		ret.putInt( 0, n * codec.frameBytes ).putInt( Integer.BYTES, pos - BinaryDump.BYTES_BLOCK_HEADER );
+		return ret;
+	}
+
+	/**
+	 * Raw frames of a block written by encodeBlock (from its position), in a LITTLE_ENDIAN buffer ready to be read.
+	 * Throws IllegalArgumentException if the block is corrupted.
+	 */
+	public static ByteBuffer decodeBlock( ByteBuffer p_block, boolean p_useMag ) {
+		SensorChannelCodec	codec		= new SensorChannelCodec( p_useMag );
+		ByteBuffer			block		= p_block.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+		int					rawBytes	= block.getInt();
+		int					length		= block.getInt();
+		if (rawBytes < 0 || rawBytes % codec.frameBytes != 0 || length < 0 || length > block.remaining()) {
+			throw new IllegalArgumentException( "Bad block header: " + rawBytes + " raw bytes, " + length + " encoded bytes" );
+		}
+		byte[]				in			= new byte[length];
+		byte[]				out			= new byte[rawBytes];
+		int					pos			= 0;
+		block.get( in );
+		try {
+			for (int offset = 0; offset < rawBytes; offset += codec.frameBytes) pos = codec.decode( in, pos, out, offset );
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException( "Truncated block" );
+		}
+		if (pos != length) throw new IllegalArgumentException( (length - pos) + " bytes left after the frames of the block" );
+		return ByteBuffer.wrap( out ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// record of slot p_slot at p_record of p_frame into p_out from p_pos: returns the position after it
+	private int encodeRecord( byte[] p_frame, int p_record, int p_slot, byte[] p_out, int p_pos ) {
+		int pos = p_pos;
+
+		int satellite = getInt( p_frame, p_record );
+		pos = putVarint( p_out, pos, satellite ^ prevSatellite[p_slot] );
+		prevSatellite[p_slot] = satellite;
+
+		int ps = p_slot * numShorts;
+		for (int i = 0; i < numShorts; i++) {
+			short value = getShort( p_frame, p_record + Integer.BYTES + Short.BYTES * i );
+			pos = putVarint( p_out, pos, zigZag( value - prevShorts[ps + i] ) );
+			prevShorts[ps + i] = value;
+		}
+		if (useMag) {
+			int padding = getShort( p_frame, p_record + floatsOffset - 2 ) & 0xFFFF;
+			pos = putVarint( p_out, pos, padding ^ prevPadding[p_slot] );
+			prevPadding[p_slot] = padding;
+		}
+
+		// 4 floats: 2 bytes of nibbles, then the meaningful bytes of each XOR
+		int nibbles	= pos;
+		pos += 2;
+		int pf		= p_slot * 4;
+		for (int i = 0; i < 4; i++) {
+			int bits	= getInt( p_frame, p_record + floatsOffset + Float.BYTES * i );
+			int xor		= bits ^ prevFloats[pf + i];
+			prevFloats[pf + i] = bits;
+
+			int l = (xor == 0 ? 4 : Integer.numberOfLeadingZeros( xor ) >>> 3);
+			int t = (xor == 0 ? 0 : Integer.numberOfTrailingZeros( xor ) >>> 3);
+			int code = NIBBLE[l][t];
+			if ((i & 1) == 0)	p_out[nibbles + (i >> 1)] = (byte)code;
+			else				p_out[nibbles + (i >> 1)] |= (byte)(code << 4);
+			for (int b = 3 - l; b >= t; b--) p_out[pos++] = (byte)(xor >>> (8 * b));
+		}
+		return pos;
+	}
+
+	// record of slot p_slot from p_in at inPos into p_frame at p_record
+	private void decodeRecord( byte[] p_in, byte[] p_frame, int p_record, int p_slot ) {
+		int satellite = readVarint( p_in ) ^ prevSatellite[p_slot];
+		putInt( p_frame, p_record, satellite );
+		prevSatellite[p_slot] = satellite;
+
+		int ps = p_slot * numShorts;
+		for (int i = 0; i < numShorts; i++) {
+			short value = (short)(prevShorts[ps + i] + unZigZag( readVarint( p_in ) ));
+			putShort( p_frame, p_record + Integer.BYTES + Short.BYTES * i, value );
+			prevShorts[ps + i] = value;
+		}
+		if (useMag) {
+			int padding = readVarint( p_in ) ^ prevPadding[p_slot];
+			putShort( p_frame, p_record + floatsOffset - 2, (short)padding );
+			prevPadding[p_slot] = padding;
+		}
+
+		int nibbles	= inPos;
+		inPos += 2;
+		int pf		= p_slot * 4;
+		for (int i = 0; i < 4; i++) {
+			int code	= (p_in[nibbles + (i >> 1)] >>> (4 * (i & 1))) & 0x0F;
+			int l		= LEADING[code];
+			int t		= TRAILING[code];
+			int xor		= 0;
+			for (int b = 3 - l; b >= t; b--) xor |= (p_in[inPos++] & 0xFF) << (8 * b);
+			int bits = xor ^ prevFloats[pf + i];
+			putInt( p_frame, p_record + floatsOffset + Float.BYTES * i, bits );
+			prevFloats[pf + i] = bits;
+		}
+	}
+
+	private static boolean isZeros( byte[] p_buf, int p_from, int p_to ) {
+		for (int i = p_from; i < p_to; i++) {
+			if (p_buf[i] != 0) return false;
+		}
+		return true;
+	}
+	private static int zigZag( int p_value ) {
+		return (p_value << 1) ^ (p_value >> 31);
+	}
+
+	private static int unZigZag( int p_value ) {
+		return (p_value >>> 1) ^ -(p_value & 1);
+	}
+
+	private static int putVarint( byte[] p_out, int p_pos, int p_value ) {
+		int pos = p_pos;
+		while ((p_value & ~0x7F) != 0) {
+			p_out[pos++] = (byte)((p_value & 0x7F) | 0x80);
+			p_value >>>= 7;
+		}
+		p_out[pos++] = (byte)p_value;
+		return pos;
+	}
+
+	private int readVarint( byte[] p_in ) {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = p_in[inPos++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) return value;
+			if (shift >= 28) throw new IllegalArgumentException( "Malformed varint at " + (inPos - 1) );
+		}
+	}
+
+	// LITTLE_ENDIAN like the hub frames
+	private static int getInt( byte[] p_buf, int p_offset ) {
+		return	(p_buf[p_offset] & 0xFF) |
+				((p_buf[p_offset + 1] & 0xFF) << 8) |
+				((p_buf[p_offset + 2] & 0xFF) << 16) |
+				((p_buf[p_offset + 3] & 0xFF) << 24);
+	}
+
+	private static short getShort( byte[] p_buf, int p_offset ) {
+		return (short)((p_buf[p_offset] & 0xFF) | (p_buf[p_offset + 1] << 8));
+	}
+
+	private static void putInt( byte[] p_buf, int p_offset, int p_value ) {
+		p_buf[p_offset]		= (byte)p_value;
+		p_buf[p_offset + 1]	= (byte)(p_value >>> 8);
+		p_buf[p_offset + 2]	= (byte)(p_value >>> 16);
+		p_buf[p_offset + 3]	= (byte)(p_value >>> 24);
+	}
+
+	private static void putShort( byte[] p_buf, int p_offset, short p_value ) {
+		p_buf[p_offset]		= (byte)p_value;
+		p_buf[p_offset + 1]	= (byte)(p_value >>> 8);
+	}
+
+}
@@ -28,8 +28,31 @@ public class SensorData {
 			BYTES_HEADER_ONLY +										// header
 			SingleSensorData.BYTES_WITHOUT_MAG * Common.MAX_SENSORS;// satellite_ids[ MAX_SAT_SENSORS ]
 
+	private final static int SENSORS_MASK = (1 << Common.MAX_SENSORS) - 1;		// bits of the bitmap with a record
+
 	public final static int ELEMENTS_WITH_MAG = (4 + (14 * Common.MAX_SENSORS));
 	public final static int ELEMENTS_WITHOUT_MAG = (4 + (10 * Common.MAX_SENSORS));
+
+	// channels of a single sensor record (see getChannel)
+	public final static int CH_ACCEL_X	= 0;
+	public final static int CH_ACCEL_Y	= 1;
+	public final static int CH_ACCEL_Z	= 2;
+	public final static int CH_GYRO_X	= 3;
+	public final static int CH_GYRO_Y	= 4;
+	public final static int CH_GYRO_Z	= 5;
+	public final static int CH_MAG_X	= 6;
+	public final static int CH_MAG_Y	= 7;
+	public final static int CH_MAG_Z	= 8;
+	public final static int CH_QUAT_W	= 9;
+	public final static int CH_QUAT_X	= 10;
+	public final static int CH_QUAT_Y	= 11;
+	public final static int CH_QUAT_Z	= 12;
+	public final static int NUM_CHANNELS = 13;
+	private final static String[] CHANNEL_NAMES = {
+			"accel_X", "accel_Y", "accel_Z",
+			"gyro_X", "gyro_Y", "gyro_Z",
+			"mag_X", "mag_Y", "mag_Z",
+			"quat_W", "quat_X", "quat_Y", "quat_Z" };
 	
 	/* 
 	 * class variables: message components
@@ -102,6 +125,16 @@ public class SensorData {
 		this( p_frame, p_bUseMag, null );
 	}
 
+	/**
+	 * Empty frame to be filled by read(): a view reused over many raw frames, e.g. by DumpFiles.
+	 */
+	public SensorData( boolean p_bUseMag ) {
+		bUseMag = p_bUseMag;
+		idx = -1;
+		objSingleSensorData = new SingleSensorData[Common.MAX_SENSORS];
+		for (int i = 0; i < Common.MAX_SENSORS; i++) objSingleSensorData[i] = new SingleSensorData( p_bUseMag );
+	}
+
 	public SensorData( String p_line, int p_idx ) {
 		
 		bUseMag = (p_line.split("\\s+").length == ELEMENTS_WITH_MAG);
@@ -157,38 +190,247 @@ public class SensorData {
 	public byte[] toByteArray(boolean p_sobstituteTimestamp) {
 
 		ByteBuffer buf = ByteBuffer.allocate( bUseMag ? BYTES_WITH_MAG : BYTES_WITHOUT_MAG );
+		writeTo( buf, p_sobstituteTimestamp );
+		return buf.array();
+
+	}
+	
+	/**
+	 * Append the raw frame to a buffer supplied by the caller (no allocation), see WireCodec.
+	 */
+	public void writeTo( ByteBuffer p_buf, boolean p_sobstituteTimestamp ) {
+
+		ByteOrder order = p_buf.order();
+		p_buf.order( ByteOrder.LITTLE_ENDIAN );
 		
-		buf.order( ByteOrder.LITTLE_ENDIAN );
-		
-		buf.putInt(hubID);
-		buf.put(frameType);
-		buf.put(unused_1);
-		buf.put(unused_2);
-		buf.put(unused_3);
+		p_buf.putInt(hubID);
+		p_buf.put(frameType);
+		p_buf.put(unused_1);
+		p_buf.put(unused_2);
+		p_buf.put(unused_3);
 		if (p_sobstituteTimestamp) { 
-			buf.putInt(idx); 
+			p_buf.putInt(idx); 
 		} else { 
-			buf.putInt(timestamp); 
+			p_buf.putInt(timestamp); 
 		}
-		buf.putInt(bitmap);
+		p_buf.putInt(bitmap);
 		
 		for (int i = 0; i < Common.MAX_SENSORS; i++ ) {
-			buf.put(objSingleSensorData[i].toByteArray());
+			objSingleSensorData[i].writeTo(p_buf);
 		}
 		
-		return buf.array();
-
+		p_buf.order( order );
 	}
 	
 	public byte[] toByteArray() {
 		return toByteArray( false );
 	}
 	
+	/**
+	 * Fill this frame with the raw frame at p_offset of a LITTLE_ENDIAN buffer (with the magnetometer setting
+	 * of this frame), as the byte[] constructor would decode it but without allocating anything.
+	 */
+	public SensorData read( ByteBuffer p_frames, int p_offset, int p_idx ) {
+		idx			= p_idx;
+		hubID		= p_frames.getInt( p_offset );
+		frameType	= p_frames.get( p_offset + 4 );
+		unused_1	= p_frames.get( p_offset + 5 );
+		unused_2	= p_frames.get( p_offset + 6 );
+		unused_3	= p_frames.get( p_offset + 7 );
+		timestamp	= p_frames.getInt( p_offset + 8 );
+		bitmap		= p_frames.getInt( p_offset + 12 );
+		for (int i = 0; i < Common.MAX_SENSORS; i++) {
+			objSingleSensorData[i].read( i, p_frames, p_offset + recordOffset( bUseMag, i ), ((bitmap & (1 << i)) != 0) );
+		}
+		return this;
+	}
+
 	public boolean isSatelliteValid (int p_satIdx) { 
 		if ((p_satIdx >= 0) && (p_satIdx < Common.MAX_SENSORS)) return objSingleSensorData[p_satIdx].isSatelliteValid();
 		return false; 
 	}
 
+	/*
+	 * Names of the channels (CH_xxx)
+	 */
+	public static String getChannelName( int p_channel )	{ return CHANNEL_NAMES[p_channel]; }
+
+	/**
+	 * Channel (CH_xxx) of a name, ignoring case: -1 if unknown.
+	 */
+	public static int channelOf( String p_name ) {
+		for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+			if (CHANNEL_NAMES[ch].equalsIgnoreCase( p_name )) return ch;
+		}
+		return -1;
+	}
+
+	/*
+	 * Static methods reading the header of a raw frame without decoding it (no allocation)
+	 */
+	public static int readHubID( byte[] p_frame, int p_offset )		{ return readInt( p_frame, p_offset ); }
+
+	public static byte readFrameType( byte[] p_frame, int p_offset )	{ return p_frame[p_offset + 4]; }
+
+	public static int readTimestamp( byte[] p_frame, int p_offset )	{ return readInt( p_frame, p_offset + 8 ); }
+
+	public static int readBitmap( byte[] p_frame, int p_offset )		{ return readInt( p_frame, p_offset + 12 ); }
+
+	public static int readHubID( byte[] p_frame )						{ return readHubID( p_frame, 0 ); }
+
+	public static byte readFrameType( byte[] p_frame )					{ return readFrameType( p_frame, 0 ); }
+
+	public static int readTimestamp( byte[] p_frame )					{ return readTimestamp( p_frame, 0 ); }
+
+	public static int readBitmap( byte[] p_frame )						{ return readBitmap( p_frame, 0 ); }
+
+	public static int readSatelliteID( byte[] p_frame, boolean p_useMag, int p_satIdx ) {
+		return readInt( p_frame, recordOffset( p_useMag, p_satIdx ) );
+	}
+
+	// Hub speaks LITTLE_ENDIAN "language"
+	private static int readInt( byte[] p_frame, int p_offset ) {
+		return	(p_frame[p_offset] & 0xFF) |
+				((p_frame[p_offset + 1] & 0xFF) << 8) |
+				((p_frame[p_offset + 2] & 0xFF) << 16) |
+				((p_frame[p_offset + 3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Value of a channel (CH_ACCEL_X .. CH_QUAT_Z) of a sensor record of a raw frame,
+	 * 0 for the magnetometer of frames without it.
+	 */
+	public static float readChannel( byte[] p_frame, boolean p_useMag, int p_satIdx, int p_channel ) {
+		int offset = channelOffset( p_useMag, p_satIdx, p_channel );
+		if (offset < 0) return 0F;
+		if (p_channel >= CH_QUAT_W) return Float.intBitsToFloat( readInt( p_frame, offset ) );
+		return (short)((p_frame[offset] & 0xFF) | (p_frame[offset + 1] << 8));
+	}
+
+	/*
+	 * Static methods reading raw frames held in a LITTLE_ENDIAN buffer, e.g. a chunk of a dump (no allocation)
+	 */
+	public static int readHubID( ByteBuffer p_frames, int p_offset )		{ return p_frames.getInt( p_offset ); }
+
+	public static int readTimestamp( ByteBuffer p_frames, int p_offset )	{ return p_frames.getInt( p_offset + 8 ); }
+
+	public static int readBitmap( ByteBuffer p_frames, int p_offset )		{ return p_frames.getInt( p_offset + 12 ); }
+
+	public static int readSatelliteID( ByteBuffer p_frames, int p_offset, boolean p_useMag, int p_satIdx ) {
+		return p_frames.getInt( p_offset + recordOffset( p_useMag, p_satIdx ) );
+	}
+
+	/**
+	 * Value of a channel (CH_ACCEL_X .. CH_QUAT_Z) of a sensor record, 0 for the magnetometer of frames without it.
+	 */
+	public static float readChannel( ByteBuffer p_frames, int p_offset, boolean p_useMag, int p_satIdx, int p_channel ) {
+		int offset = channelOffset( p_useMag, p_satIdx, p_channel );
+		if (offset < 0) return 0F;
+		return (p_channel >= CH_QUAT_W ? p_frames.getFloat( p_offset + offset ) : p_frames.getShort( p_offset + offset ));
+	}
+
+	/**
+	 * Offset of a channel from the start of the frame, -1 if the channel is not in the frame (magnetometer).
+	 */
+	public static int channelOffset( boolean p_useMag, int p_satIdx, int p_channel ) {
+		int record = recordOffset( p_useMag, p_satIdx ) + Integer.BYTES;	// after satelliteID
+		if (p_channel < CH_MAG_X) return record + Short.BYTES * p_channel;
+		if (p_channel < CH_QUAT_W) return (p_useMag ? record + Short.BYTES * p_channel : -1);
+		return record + Short.BYTES * (p_useMag ? 9 : 6) + (p_useMag ? 2 : 0) + Float.BYTES * (p_channel - CH_QUAT_W);
+	}
+
+	private static int recordOffset( boolean p_useMag, int p_satIdx ) {
+		return BYTES_HEADER_ONLY + p_satIdx * (p_useMag ? SingleSensorData.BYTES_WITH_MAG : SingleSensorData.BYTES_WITHOUT_MAG);
+	}
+
+	/*
+	 * Sparse frames: the header followed only by the records of the satellites in the bitmap, in slot order
+	 * (see BinaryDump.FLAG_SPARSE). The records not in the bitmap carry nothing: when the frame is expanded
+	 * they are written as SensorData reads them, satelliteID = slot and zeros.
+	 */
+
+	/**
+	 * Size of the sparse form of a frame with the given bitmap.
+	 */
+	public static int sparseBytes( boolean p_useMag, int p_bitmap ) {
+		return BYTES_HEADER_ONLY + Integer.bitCount( p_bitmap & SENSORS_MASK ) *
+				(p_useMag ? SingleSensorData.BYTES_WITH_MAG : SingleSensorData.BYTES_WITHOUT_MAG);
+	}
+
+	/**
+	 * Write the sparse form of the raw frame at p_offset to p_out at p_pos (no allocation).
+	 * Returns the position after it.
+	 */
+	public static int toSparse( byte[] p_frame, int p_offset, boolean p_useMag, byte[] p_out, int p_pos ) {
+		int recordBytes	= (p_useMag ? SingleSensorData.BYTES_WITH_MAG : SingleSensorData.BYTES_WITHOUT_MAG);
+		int pos			= p_pos;
+
+		System.arraycopy( p_frame, p_offset, p_out, pos, BYTES_HEADER_ONLY );
+		pos += BYTES_HEADER_ONLY;
+		for (int bits = readBitmap( p_frame, p_offset ) & SENSORS_MASK; bits != 0; bits &= bits - 1) {
+			System.arraycopy( p_frame, p_offset + recordOffset( p_useMag, Integer.numberOfTrailingZeros( bits ) ), p_out, pos, recordBytes );
+			pos += recordBytes;
+		}
+		return pos;
+	}
+
+	/**
+	 * Expand the sparse frame at p_pos of p_in into a full raw frame at p_offset of p_frame (no allocation).
+	 * Returns the position after the sparse frame.
+	 */
+	public static int fromSparse( byte[] p_in, int p_pos, boolean p_useMag, byte[] p_frame, int p_offset ) {
+		int recordBytes	= (p_useMag ? SingleSensorData.BYTES_WITH_MAG : SingleSensorData.BYTES_WITHOUT_MAG);
+		int bitmap		= readBitmap( p_in, p_pos ) & SENSORS_MASK;
+		int pos			= p_pos;
+
+		System.arraycopy( p_in, pos, p_frame, p_offset, BYTES_HEADER_ONLY );
+		pos += BYTES_HEADER_ONLY;
+		for (int bits = bitmap; bits != 0; bits &= bits - 1) {
+			System.arraycopy( p_in, pos, p_frame, p_offset + recordOffset( p_useMag, Integer.numberOfTrailingZeros( bits ) ), recordBytes );
+			pos += recordBytes;
+		}
+		for (int bits = ~bitmap & SENSORS_MASK; bits != 0; bits &= bits - 1) {
+			int slot	= Integer.numberOfTrailingZeros( bits );
+			int record	= p_offset + recordOffset( p_useMag, slot );
+			Arrays.fill( p_frame, record, record + recordBytes, (byte)0 );
+			p_frame[record] = (byte)slot;
+		}
+		return pos;
+	}
+
+	/**
+	 * The frame in sparse form.
+	 */
+	public byte[] toSparseByteArray() {
+		byte[] frame	= toByteArray();
+		byte[] ret		= new byte[sparseBytes( bUseMag, bitmap )];
+		toSparse( frame, 0, bUseMag, ret, 0 );
+		return ret;
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getHubID()			{ return hubID; }
+
+	public byte getFrameType()		{ return frameType; }
+
+	public int getTimestamp()		{ return timestamp; }
+
+	public int getBitmap()			{ return bitmap; }
+
+	public int getIdx()				{ return idx; }
+
+	public boolean isUseMag()		{ return bUseMag; }
+
+	public int getSatelliteID (int p_satIdx) { return objSingleSensorData[p_satIdx].getSatelliteID(); }
+
+	/*
+	 * Value of a single channel (CH_ACCEL_X .. CH_QUAT_Z) of a sensor record.
+	 * Shorts are returned as float without any loss.
+	 */
+	public float getChannel (int p_satIdx, int p_channel) { return objSingleSensorData[p_satIdx].getChannel( p_channel ); }
+
 }
 
 /**
@@ -212,6 +454,10 @@ class SingleSensorData {
 			Short.BYTES * 3 + 		// gyro_X_Y_Z
 			Float.BYTES * 4; 		// quaternion
 
+	// fields after the satelliteID of a satellite not in the bitmap
+	private final static String INACTIVE_WITHOUT_MAG	= zeros( 6 ) + zerosFloat( 4 );
+	private final static String INACTIVE_WITH_MAG		= zeros( 9 ) + zerosFloat( 4 );
+
 	private boolean bUseMag;
 	private boolean bSatActive;
 
@@ -284,6 +530,11 @@ class SingleSensorData {
 		this( idx, p_frame, p_useMag, p_satActive, null );
 	}
 
+	// empty record, filled by read
+	SingleSensorData( boolean p_useMag ) {
+		bUseMag = p_useMag;
+	}
+
 	public SingleSensorData( int idx, Scanner p_inScanner, boolean p_useMag, boolean p_satActive ) {
 
 		bUseMag 	= p_useMag;
@@ -344,28 +595,7 @@ class SingleSensorData {
 					);
 		} else {
 			
-			ret = new String( 
-					
-					Integer.toString( satelliteID ) + Common.FIELD_SEPARATOR +
-
-					"0" + Common.FIELD_SEPARATOR +
-					"0" + Common.FIELD_SEPARATOR +
-					"0" + Common.FIELD_SEPARATOR +
-
-					"0" + Common.FIELD_SEPARATOR +
-					"0" + Common.FIELD_SEPARATOR +
-					"0" + Common.FIELD_SEPARATOR +
-					
-					(bUseMag ? "0" + Common.FIELD_SEPARATOR: "") +
-					(bUseMag ? "0" + Common.FIELD_SEPARATOR: "") +
-					(bUseMag ? "0" + Common.FIELD_SEPARATOR: "") +
-
-					"0.000000000" + Common.FIELD_SEPARATOR +
-					"0.000000000" + Common.FIELD_SEPARATOR +
-					"0.000000000" + Common.FIELD_SEPARATOR +
-					"0.000000000"
-					
-					);
+			ret = Integer.toString( satelliteID ) + (bUseMag ? INACTIVE_WITH_MAG : INACTIVE_WITHOUT_MAG);
 		}
 		
 		return ret;
@@ -376,7 +606,45 @@ class SingleSensorData {
 		ByteBuffer buf = ByteBuffer.allocate( bUseMag ? SingleSensorData.BYTES_WITH_MAG : SingleSensorData.BYTES_WITHOUT_MAG );
 		
 		buf.order( ByteOrder.LITTLE_ENDIAN );
-		
+		writeTo( buf );
+
+		return buf.array();
+	}
+	
+	// fill the record at p_offset of a LITTLE_ENDIAN buffer (absolute reads, as the byte[] constructor)
+	void read( int idx, ByteBuffer p_buf, int p_offset, boolean p_satActive ) {
+
+		bSatActive	= p_satActive;
+		satelliteID	= (p_satActive ? p_buf.getInt( p_offset ) : idx);
+
+		int pos = p_offset + Integer.BYTES;
+		accel_X 	= p_buf.getShort( pos );
+		accel_Y 	= p_buf.getShort( pos + 2 );
+		accel_Z 	= p_buf.getShort( pos + 4 );
+
+		gyro_X 		= p_buf.getShort( pos + 6 );
+		gyro_Y 		= p_buf.getShort( pos + 8 );
+		gyro_Z 		= p_buf.getShort( pos + 10 );
+		pos += 12;
+
+		if (bUseMag) {
+			mag_X 		= p_buf.getShort( pos );
+			mag_Y 		= p_buf.getShort( pos + 2 );
+			mag_Z 		= p_buf.getShort( pos + 4 );
+			unused_1	= p_buf.get( pos + 6 ); // alignment
+			unused_2	= p_buf.get( pos + 7 ); // alignment
+			pos += 8;
+		}
+
+		quat_W 		= p_buf.getFloat( pos );
+		quat_X 		= p_buf.getFloat( pos + 4 );
+		quat_Y 		= p_buf.getFloat( pos + 8 );
+		quat_Z 		= p_buf.getFloat( pos + 12 );
+	}
+
+	// the caller sets the LITTLE_ENDIAN order
+	void writeTo( ByteBuffer buf ) {
+
 		buf.putInt(satelliteID);
 		
 		buf.putShort(accel_X);
@@ -399,12 +667,43 @@ class SingleSensorData {
 		buf.putFloat(quat_X);
 		buf.putFloat(quat_Y);
 		buf.putFloat(quat_Z);
-
-		return buf.array();
 	}
 	
 	public boolean isSatelliteValid () { return bSatActive; }
 
+	public int getSatelliteID () { return satelliteID; }
+
+	public float getChannel ( int p_channel ) {
+		switch (p_channel) {
+		case SensorData.CH_ACCEL_X:	return accel_X;
+		case SensorData.CH_ACCEL_Y:	return accel_Y;
+		case SensorData.CH_ACCEL_Z:	return accel_Z;
+		case SensorData.CH_GYRO_X:	return gyro_X;
+		case SensorData.CH_GYRO_Y:	return gyro_Y;
+		case SensorData.CH_GYRO_Z:	return gyro_Z;
+		case SensorData.CH_MAG_X:	return mag_X;
+		case SensorData.CH_MAG_Y:	return mag_Y;
+		case SensorData.CH_MAG_Z:	return mag_Z;
+		case SensorData.CH_QUAT_W:	return quat_W;
+		case SensorData.CH_QUAT_X:	return quat_X;
+		case SensorData.CH_QUAT_Y:	return quat_Y;
+		case SensorData.CH_QUAT_Z:	return quat_Z;
+		default:					return 0F;
+		}
+	}
+
+	private static String zeros( int p_n ) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < p_n; i++) sb.append( Common.FIELD_SEPARATOR + "0" );
+		return sb.toString();
+	}
+
+	private static String zerosFloat( int p_n ) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < p_n; i++) sb.append( Common.FIELD_SEPARATOR + "0.000000000" );
+		return sb.toString();
+	}
+
 	private static final Pattern nan = Pattern.compile( "nan", Pattern.CASE_INSENSITIVE );
 	private static float nextFloat( Scanner inScanner ) {
 	    if ( inScanner.hasNext(nan) ) {
@@ -0,0 +1,270 @@
+package com.ultron.general;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Queue of the frames between the reader and the writer with a bounded heap: the frames go to a ring of
+ * ringFrames frames and, when the writer falls behind and the ring is full, to memory mapped segment files
+ * (spill). The writer drains the ring first, then the segments in order: no frame is lost or reordered.
+ * While there are spilled frames the new ones are spilled too, so the order is always ring, segments.
+ *
+ * Segments are files of Common.SPILL_SEGMENT_BYTES in the spill directory, deleted as soon as they are mapped
+ * (the space is released when the mapping goes: nothing is left on disk after a crash, the journal is there
+ * for that). A drained segment is kept for the next spill. If a segment cannot be created (disk full) the
+ * frames are kept in the heap rather than lost.
+ *
+ * Frames of length 0 are markers (see HubReader.DISCONNECTED): when spilled, poll gives back the same array.
+ * Once closed the queue refuses the new frames (offer returns false, add throws as for any full queue): they are
+ * counted as dropped.
+ *
+ * Thread safe: one lock, held for the copy of a frame at most.
+ */
+public class SpillingFrameQueue extends AbstractQueue<byte[]> implements Closeable {
+
+	/*
+	 * local variables
+	 */
+	private final byte[][]				ring;
+	private int							ringHead		= 0;
+	private int							ringSize		= 0;
+	private final Path					spillDir;
+	private final int					segmentBytes;
+	private final ArrayDeque<Segment>	segments		= new ArrayDeque<Segment>();	// first: read, last: written
+	private Segment						spare			= null;		// drained segment, reused by the next spill
+	private long						spilledSize		= 0;		// frames in the segments
+	private final ArrayDeque<byte[]>	markers			= new ArrayDeque<byte[]>();	// spilled markers, in order
+	private final ArrayDeque<byte[]>	overflow		= new ArrayDeque<byte[]>();	// frames not spilled (I/O error)
+	private boolean						closed			= false;
+	private long						numSpilled		= 0;
+	private long						numSegments		= 0;
+	private long						maxSpilled		= 0;
+	private long						numSpillErrors	= 0;
+	private long						numDropped		= 0;		// offered after close
+
+	// a mapped segment file: records of length (int) + bytes
+	private static class Segment {
+		final MappedByteBuffer	buffer;
+		int						readPos		= 0;
+		int						writePos	= 0;
+
+		Segment( MappedByteBuffer p_buffer ) {
+			buffer = p_buffer;
+		}
+	}
+
+	/*
+	 * Constructor: p_spillDir null -> temporary directory of the system
+	 */
+	public SpillingFrameQueue( int p_ringFrames, String p_spillDir ) {
+		this( p_ringFrames, p_spillDir, Common.SPILL_SEGMENT_BYTES );
+	}
+
+	public SpillingFrameQueue( int p_ringFrames, String p_spillDir, int p_segmentBytes ) {
+		if (p_ringFrames < 1) throw new IllegalArgumentException( "The ring must hold at least one frame" );
+		ring			= new byte[p_ringFrames][];
+		spillDir		= Paths.get( p_spillDir != null && !p_spillDir.isEmpty() ? p_spillDir : System.getProperty( "java.io.tmpdir" ) );
+		segmentBytes	= p_segmentBytes;
+	}
+
+	/*
+	 * Public Methods
+	 */
+	@Override
+	public synchronized boolean offer( byte[] p_frame ) {
+		if (p_frame == null) throw new NullPointerException();
+		if (closed) {
+			numDropped++;
+			return false;
+		}
+
+		if (spilledSize == 0 && overflow.isEmpty() && ringSize < ring.length) {
+			ring[(ringHead + ringSize) % ring.length] = p_frame;
+			ringSize++;
+		} else if (!overflow.isEmpty() || !spill( p_frame )) {
+			overflow.add( p_frame );
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized byte[] poll() {
+		if (ringSize > 0) {
+			byte[] frame = ring[ringHead];
+			ring[ringHead] = null;
+			ringHead = (ringHead + 1) % ring.length;
+			ringSize--;
+			return frame;
+		}
+		if (spilledSize > 0) return unspill();
+		return overflow.poll();
+	}
+
+	@Override
+	public synchronized byte[] peek() {
+		if (ringSize > 0) return ring[ringHead];
+		if (spilledSize > 0) {
+			Segment	segment	= segments.peekFirst();
+			int		length	= segment.buffer.getInt( segment.readPos );
+			if (length == 0) return markers.peek();
+			byte[]	frame	= new byte[length];
+			for (int i = 0; i < length; i++) frame[i] = segment.buffer.get( segment.readPos + Integer.BYTES + i );
+			return frame;
+		}
+		return overflow.peek();
+	}
+
+	@Override
+	public synchronized int size() {
+		return (int)Math.min( Integer.MAX_VALUE, ringSize + spilledSize + overflow.size() );
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return ringSize == 0 && spilledSize == 0 && overflow.isEmpty();
+	}
+
+	/**
+	 * Snapshot of the frames (every spilled frame is copied into the heap: for diagnostics only).
+	 */
+	@Override
+	public synchronized Iterator<byte[]> iterator() {
+		ArrayList<byte[]>	frames		= new ArrayList<byte[]>( size() );
+		Iterator<byte[]>	marker		= markers.iterator();
+		for (int i = 0; i < ringSize; i++) frames.add( ring[(ringHead + i) % ring.length] );
+		for (Segment segment : segments) {
+			for (int pos = segment.readPos; pos < segment.writePos; ) {
+				int length = segment.buffer.getInt( pos );
+				pos += Integer.BYTES;
+				if (length == 0) {
+					frames.add( marker.next() );
+					continue;
+				}
+				byte[] frame = new byte[length];
+				for (int i = 0; i < length; i++) frame[i] = segment.buffer.get( pos + i );
+				frames.add( frame );
+				pos += length;
+			}
+		}
+		frames.addAll( overflow );
+		return frames.iterator();
+	}
+
+	/** frames in the segments now */
+	public synchronized long getSpilledSize()	{ return spilledSize; }
+
+	/** frames spilled since the creation */
+	public synchronized long getNumSpilled()	{ return numSpilled; }
+
+	/** frames refused because the queue was closed */
+	public synchronized long getNumDropped()	{ return numDropped; }
+
+	public synchronized boolean isClosed()		{ return closed; }
+
+	/**
+	 * Release the segments: the frames still spilled are lost, so close only a queue drained with no producer left.
+	 */
+	@Override
+	public synchronized void close() {
+		closed		= true;
+		segments.clear();
+		spare		= null;
+		spilledSize	= 0;
+		markers.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ring " + ring.length + " frames - spilled " + numSpilled + " frames (max " + maxSpilled + " at once) in " +
+				numSegments + " segments" + (numSpillErrors > 0 ? " - " + numSpillErrors + " spill errors (frames kept in memory)" : "") +
+				(numDropped > 0 ? " - " + numDropped + " frames dropped after close" : "");
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// append the frame to the last segment (a new one if full): false if no segment can be created
+	private boolean spill( byte[] p_frame ) {
+		int		recordBytes	= Integer.BYTES + p_frame.length;
+		Segment	segment		= segments.peekLast();
+		if (segment == null || segment.writePos + recordBytes > segmentBytes) {
+			if (recordBytes > segmentBytes || (segment = newSegment()) == null) {
+				numSpillErrors++;
+				return false;
+			}
+			segments.addLast( segment );
+		}
+
+		segment.buffer.putInt( segment.writePos, p_frame.length );
+		segment.buffer.position( segment.writePos + Integer.BYTES );
+		segment.buffer.put( p_frame );
+		segment.writePos += recordBytes;
+		if (p_frame.length == 0) markers.add( p_frame );
+
+		spilledSize++;
+		numSpilled++;
+		if (spilledSize > maxSpilled) maxSpilled = spilledSize;
+		return true;
+	}
+
+	// take the first spilled frame (there is one)
+	private byte[] unspill() {
+		Segment	segment	= segments.peekFirst();
+		int		length	= segment.buffer.getInt( segment.readPos );
+		byte[]	frame;
+		if (length == 0) {
+			frame = markers.poll();
+		} else {
+			frame = new byte[length];
+			segment.buffer.position( segment.readPos + Integer.BYTES );
+			segment.buffer.get( frame );
+		}
+		segment.readPos += Integer.BYTES + length;
+		spilledSize--;
+
+		// drained: keep it for the next spill
+		if (segment.readPos == segment.writePos) {
+			segments.pollFirst();
+			segment.readPos		= 0;
+			segment.writePos	= 0;
+			spare				= segment;
+		}
+		return frame;
+	}
+
+	private Segment newSegment() {
+		if (spare != null) {
+			Segment segment = spare;
+			spare = null;
+			return segment;
+		}
+		Path path = null;
+		try {
+			path = Files.createTempFile( spillDir, "frames", ".spill" );
+			try (FileChannel channel = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE )) {
+				MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, segmentBytes );
+				numSegments++;
+				return new Segment( buffer );
+			}
+		} catch (IOException | RuntimeException e) {
+			try {
+				if (path != null) Files.deleteIfExists( path );
+			} catch (IOException e1) {
+				// nothing else to do
+			}
+			return null;
+		}
+	}
+
+}
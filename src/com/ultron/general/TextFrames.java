@@ -0,0 +1,177 @@
+package com.ultron.general;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fast conversion between the lines of a text dump (see SensorData.toString) and raw frames.
+ *
+ * The parser works directly on the bytes of the dump (ASCII) and writes the frame into a ByteBuffer,
+ * without Scanner, regular expressions or SensorData objects: it is the fast path for the offline tools.
+ * Like SensorData(String, int), the unused bytes of the frame are written as zeros.
+ */
+public class TextFrames {
+
+	/**
+	 * True if the line (terminated by '\n' or by p_end) has the fields of a frame with magnetometer.
+	 */
+	public static boolean isUseMag( byte[] p_buf, int p_start, int p_end ) {
+		int		n		= 0;
+		boolean	inToken	= false;
+		for (int i = p_start; i < p_end && p_buf[i] != '\n'; i++) {
+			boolean blank = isBlank( p_buf[i] );
+			if (!blank && !inToken) n++;
+			inToken = !blank;
+		}
+		return n == SensorData.ELEMENTS_WITH_MAG;
+	}
+
+	/**
+	 * Parse the line starting at p_start (and ending at the first '\n' or at p_end) into p_out.
+	 * Returns the position after the line, or -1 if the line is not a valid frame
+	 * (in that case p_out may contain a partial frame: its position is restored).
+	 */
+	public static int parseLine( byte[] p_buf, int p_start, int p_end, boolean p_useMag, ByteBuffer p_out ) {
+
+		Cursor		c		= new Cursor( p_buf, p_start, p_end );
+		int			mark	= p_out.position();
+		ByteOrder	order	= p_out.order();
+		p_out.order( ByteOrder.LITTLE_ENDIAN );
+
+		try {
+			p_out.putInt( (int)c.nextLong() );				// hubID
+			p_out.put( (byte)c.nextLong() );				// frameType
+			p_out.put( (byte)0 ).put( (byte)0 ).put( (byte)0 );
+			p_out.putInt( (int)c.nextLong() );				// timestamp
+			p_out.putInt( (int)c.nextLong() );				// bitmap
+
+			for (int i = 0; i < Common.MAX_SENSORS; i++) {
+				p_out.putInt( (int)c.nextLong() );			// satelliteID
+				for (int k = 0; k < 6; k++) p_out.putShort( (short)c.nextLong() );		// accel & gyro
+				if (p_useMag) {
+					for (int k = 0; k < 3; k++) p_out.putShort( (short)c.nextLong() );	// mag
+					p_out.put( (byte)0 ).put( (byte)0 );	// alignment
+				}
+				for (int k = 0; k < 4; k++) p_out.putFloat( c.nextFloat() );			// quaternion
+			}
+			if (!c.atEndOfLine()) throw new NumberFormatException( "too many fields" );
+
+		} catch (RuntimeException e) {
+			// NumberFormatException or BufferOverflowException
+			p_out.position( mark );
+			p_out.order( order );
+			return -1;
+		}
+
+		p_out.order( order );
+		return c.nextLine();
+	}
+
+	/**
+	 * Parse only the header of the line (hubID, timestamp, bitmap) into p_header[0..2]:
+	 * used to filter lines before parsing them. Returns false if the line does not start with a header.
+	 */
+	public static boolean parseHeader( byte[] p_buf, int p_start, int p_end, int[] p_header ) {
+		Cursor c = new Cursor( p_buf, p_start, p_end );
+		try {
+			p_header[0] = (int)c.nextLong();	// hubID
+			c.nextLong();						// frameType
+			p_header[1] = (int)c.nextLong();	// timestamp
+			p_header[2] = (int)c.nextLong();	// bitmap
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Position after the line starting at p_start.
+	 */
+	public static int nextLine( byte[] p_buf, int p_start, int p_end ) {
+		int i = p_start;
+		while (i < p_end && p_buf[i] != '\n') i++;
+		return (i < p_end ? i + 1 : p_end);
+	}
+
+	/**
+	 * Append the text line (without new line) of a raw frame.
+	 */
+	public static void format( byte[] p_frame, boolean p_useMag, StringBuilder p_sb ) {
+		p_sb.append( new SensorData( p_frame, p_useMag ).toString() );
+	}
+
+	/*
+	 * Private methods
+	 */
+	private static boolean isBlank( byte p_b ) {
+		return p_b == ' ' || p_b == '\t' || p_b == '\r';
+	}
+
+	/**
+	 * Tokenizer on the bytes of a line
+	 */
+	private static class Cursor {
+
+		private final byte[]	buf;
+		private final int		end;
+		private int				pos;
+
+		Cursor( byte[] p_buf, int p_start, int p_end ) {
+			buf	= p_buf;
+			pos	= p_start;
+			end	= p_end;
+		}
+
+		private int tokenStart() {
+			while (pos < end && isBlank( buf[pos] )) pos++;
+			if (pos >= end || buf[pos] == '\n') throw new NumberFormatException( "missing field" );
+			return pos;
+		}
+
+		private int tokenEnd() {
+			while (pos < end && !isBlank( buf[pos] ) && buf[pos] != '\n') pos++;
+			return pos;
+		}
+
+		long nextLong() {
+			int		s		= tokenStart();
+			int		e		= tokenEnd();
+			boolean	neg		= (buf[s] == '-');
+			if (neg || buf[s] == '+') s++;
+			if (s == e || e - s > 18) throw new NumberFormatException( "bad integer" );
+			long	ret		= 0;
+			for (int i = s; i < e; i++) {
+				int d = buf[i] - '0';
+				if (d < 0 || d > 9) throw new NumberFormatException( "bad integer" );
+				ret = ret * 10 + d;
+			}
+			return (neg ? -ret : ret);
+		}
+
+		float nextFloat() {
+			int s = tokenStart();
+			int e = tokenEnd();
+
+			// fast path: the zeros of the inactive sensors ("0.000000000")
+			boolean zero = true;
+			for (int i = s; i < e && zero; i++) zero = (buf[i] == '0' || buf[i] == '.');
+			if (zero) return 0F;
+
+			String token = new String( buf, s, e - s, StandardCharsets.ISO_8859_1 );
+			if (token.equalsIgnoreCase( "nan" )) return Float.NaN;
+			return Float.parseFloat( token );
+		}
+
+		boolean atEndOfLine() {
+			while (pos < end && isBlank( buf[pos] )) pos++;
+			return pos >= end || buf[pos] == '\n';
+		}
+
+		int nextLine() {
+			while (pos < end && buf[pos] != '\n') pos++;
+			return (pos < end ? pos + 1 : end);
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.ultron.general;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of what goes through the hub socket, in both directions:
+ * - commands to the hub (cloud_to_hub_t, see CommandData), BYTES_SENT_TO_HUB bytes each
+ * - sensor frames from the hub (see SensorData), BYTES_WITH_MAG or BYTES_WITHOUT_MAG bytes each
+ *   (fewer when the hub sizes them by frameType, see FrameLayout)
+ *
+ * Everything is encoded into / decoded from buffers supplied by the caller, checking the lengths:
+ * an encode that does not fit returns false, a decode that does not find a whole item returns
+ * DECODE_SHORT, in both cases without moving the buffer position. Several commands can be
+ * encoded in the same buffer and sent with a single write (pipelining).
+ */
+public class WireCodec {
+
+	// decode results
+	public static final int		DECODE_OK			= 0;
+	public static final int		DECODE_SHORT		= 1;	// not enough bytes: nothing consumed
+	public static final int		DECODE_INVALID		= 2;	// whole item consumed, but rejected
+
+	public static final int		COMMAND_BYTES		= CommandData.BYTES_SENT_TO_HUB;
+	public static final int		MAX_PIPELINED		= 8;	// commands sent with a single write by writeCommands
+
+	/*
+	 * Commands
+	 */
+	public static boolean encodeCommand( ByteBuffer p_out, CommandData p_command ) {
+		return p_command.encode( p_out );
+	}
+
+	public static int decodeCommand( ByteBuffer p_in, CommandData p_command ) {
+		return p_command.decode( p_in );
+	}
+
+	/**
+	 * Encode all the commands into p_buffer (cleared first) and write them to the stream,
+	 * with one write every time the buffer is full.
+	 */
+	public static void writeCommands( OutputStream p_out, ByteBuffer p_buffer, CommandData... p_commands ) throws IOException {
+		if (p_buffer.capacity() < COMMAND_BYTES || !p_buffer.hasArray()) throw new IllegalArgumentException( "The buffer must be a heap buffer of at least " + COMMAND_BYTES + " bytes" );
+		p_buffer.clear();
+		for (CommandData command : p_commands) {
+			if (!command.encode( p_buffer )) {
+				p_out.write( p_buffer.array(), p_buffer.arrayOffset(), p_buffer.position() );
+				p_buffer.clear();
+				command.encode( p_buffer );
+			}
+		}
+		if (p_buffer.position() > 0) p_out.write( p_buffer.array(), p_buffer.arrayOffset(), p_buffer.position() );
+		p_out.flush();
+	}
+
+	/*
+	 * Frames
+	 */
+	public static int frameBytes( boolean p_useMag ) {
+		return (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+	}
+
+	/**
+	 * Copy a raw frame into p_out; false if it does not fit.
+	 */
+	public static boolean encodeFrame( ByteBuffer p_out, byte[] p_frame, boolean p_useMag ) {
+		checkFrameLength( p_frame.length, p_useMag );
+		if (p_out.remaining() < p_frame.length) return false;
+		p_out.put( p_frame );
+		return true;
+	}
+
+	/**
+	 * Encode a decoded frame into p_out; false if it does not fit.
+	 */
+	public static boolean encodeFrame( ByteBuffer p_out, SensorData p_frame ) {
+		if (p_out.remaining() < frameBytes( p_frame.isUseMag() )) return false;
+		p_frame.writeTo( p_out, false );
+		return true;
+	}
+
+	/**
+	 * Copy the next frame of p_in into p_frame (of the frame length for p_useMag).
+	 */
+	public static int decodeFrame( ByteBuffer p_in, byte[] p_frame, boolean p_useMag ) {
+		checkFrameLength( p_frame.length, p_useMag );
+		if (p_in.remaining() < p_frame.length) return DECODE_SHORT;
+		p_in.get( p_frame );
+		return DECODE_OK;
+	}
+
+	/*
+	 * Private methods
+	 */
+	private static void checkFrameLength( int p_length, boolean p_useMag ) {
+		if (p_length != frameBytes( p_useMag )) {
+			throw new IllegalArgumentException( "Frame of " + p_length + " bytes instead of " + frameBytes( p_useMag ) );
+		}
+	}
+
+}
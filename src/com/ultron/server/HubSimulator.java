@@ -22,13 +22,15 @@ import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 import com.ultron.general.CommandData;
 import com.ultron.general.Log;
+import com.ultron.general.FrameLayout;
 import com.ultron.general.SensorData;
+import com.ultron.general.WireCodec;
 
 
 /**************************
@@ -58,7 +60,7 @@ class HubSimulator {
 		log.writeln( Log.NONE , "Start application " + (new Timestamp(System.currentTimeMillis())).toString() + "\n", Log.ECHO );
 
 		// read the file in the list in a separate thread
-        (new HubSimulatorFileReaderThread(1, prop.INPUT_DUMP_FILE, list, log)).start();
+        (new HubSimulatorFileReaderThread(1, prop.INPUT_DUMP_FILE, prop.REPLAY_FROM_TIMESTAMP, prop.REPLAY_TO_TIMESTAMP, list, log)).start();
 	}
 
 	public boolean AcceptConnections() {
@@ -158,7 +160,9 @@ class HubSimulatorThread extends Thread {
 	        return;
         }
 
-        byte[]						bCommand 			= new byte[ CommandData.BYTES_SENT_TO_HUB ];
+        // commands are decoded from a buffer: a read can bring part of a command, or several pipelined commands
+        ByteBuffer					commandBuffer		= ByteBuffer.allocate( WireCodec.COMMAND_BYTES * WireCodec.MAX_PIPELINED );
+        CommandData					command				= new CommandData( log );
         int 						nBytesRead;
         int							sendingThreadIdx	= 0;
         boolean 					bActive;
@@ -176,7 +180,7 @@ class HubSimulatorThread extends Thread {
         while (true) {
         	
         	try  {
-            	nBytesRead = in.read(bCommand, 0, CommandData.BYTES_SENT_TO_HUB);
+            	nBytesRead = in.read(commandBuffer.array(), commandBuffer.position(), commandBuffer.remaining());
            	} catch (IOException e) {
     	        if (!socket.isConnected()) {
     	        	sendingThread.stopSending();
@@ -195,53 +199,62 @@ class HubSimulatorThread extends Thread {
            	}
         	            	
             log.writeln(Log.INFORMATION, this.getName() + " - " + Integer.toString(nBytesRead) + " bytes read", Log.ECHO);
-            log.writeln(Log.INFORMATION, this.getName() + " - command received:" + Arrays.toString(bCommand), Log.ECHO);
+            commandBuffer.position( commandBuffer.position() + nBytesRead );
+            commandBuffer.flip();
             
-            CommandData command = new CommandData( bCommand, log );
+            int decoded;
+            while ((decoded = command.decode( commandBuffer )) != WireCodec.DECODE_SHORT) {
+                if (decoded == WireCodec.DECODE_INVALID) {
+                    log.writeln(Log.WARNING, this.getName() + " - invalid command ignored", Log.ECHO);
+                    continue;
+                }
             
-            /*
-             *  check command
-             */
-            // Activate
-            if (command.wifiIsACTIVE() && ! bActive) {
-            	/* start getting sensors data...
-            	 * but this is a simulator we don't have any sensor
-            	 * and we simulate them reading dump files
-            	 */
-            	// create a new thread for sending data
-                log.writeln(Log.INFORMATION, this.getName() + " - Now is Active", Log.ECHO);
-            	bActive = true;
-            } 
-            // Deactivate
-            if (!command.wifiIsACTIVE() && bActive) {
-            	/* start getting sensors data...
-            	 * but this is a simulator we don't have any sensor
-            	 * and we simulate them reading dump files
-            	 */
-            	// stop the sending thread
-                log.writeln(Log.INFORMATION, this.getName() + " - Now is NOT Active", Log.ECHO);
-            	bActive = false;
-            } 
-            // start sending
-            if (!command.wifiIsSetNOTSEND() && !bSend) {
-                log.writeln(Log.INFORMATION, this.getName() + " - Now is Sending", Log.ECHO);
-            	sendingThread = new HubSimulatorSendingThread(sendingThreadIdx++, out, list, prop, log);
-            	bSend = true;
-            }
-            // stop sending
-            if (command.wifiIsSetNOTSEND() && bSend) {
-                log.writeln(Log.INFORMATION, this.getName() + " - Now is NOT Sending", Log.ECHO);
-            	sendingThread.stopSending();
-            	bSend = false;
-            }
-            // set RTC
-            if (command.wifiIsSetRTC()) {
-                log.writeln(Log.INFORMATION, this.getName() + " - Now will set RTC", Log.ECHO);
-            }
-            // set satellites
-            if (command.wifiIsSetSAT()) {
-                log.writeln(Log.INFORMATION, this.getName() + " - Now will set Satellite list", Log.ECHO);
+                /*
+                 *  check command
+                 */
+                // Activate
+                if (command.wifiIsACTIVE() && ! bActive) {
+                	/* start getting sensors data...
+                	 * but this is a simulator we don't have any sensor
+                	 * and we simulate them reading dump files
+                	 */
+                	// create a new thread for sending data
+                    log.writeln(Log.INFORMATION, this.getName() + " - Now is Active", Log.ECHO);
+                	bActive = true;
+                } 
+                // Deactivate
+                if (!command.wifiIsACTIVE() && bActive) {
+                	/* start getting sensors data...
+                	 * but this is a simulator we don't have any sensor
+                	 * and we simulate them reading dump files
+                	 */
+                	// stop the sending thread
+                    log.writeln(Log.INFORMATION, this.getName() + " - Now is NOT Active", Log.ECHO);
+                	bActive = false;
+                } 
+                // start sending
+                if (!command.wifiIsSetNOTSEND() && !bSend) {
+                    log.writeln(Log.INFORMATION, this.getName() + " - Now is Sending", Log.ECHO);
+                	sendingThread = new HubSimulatorSendingThread(sendingThreadIdx++, out, list, prop, log);
+                	bSend = true;
+                }
+                // stop sending
+                if (command.wifiIsSetNOTSEND() && bSend) {
+                    log.writeln(Log.INFORMATION, this.getName() + " - Now is NOT Sending", Log.ECHO);
+                	sendingThread.stopSending();
+                	bSend = false;
+                }
+                // set RTC
+                if (command.wifiIsSetRTC()) {
+                    log.writeln(Log.INFORMATION, this.getName() + " - Now will set RTC", Log.ECHO);
+                }
+                // set satellites
+                if (command.wifiIsSetSAT()) {
+                    log.writeln(Log.INFORMATION, this.getName() + " - Now will set Satellite list", Log.ECHO);
+                }
             }
+            // keep the beginning of an incomplete command
+            commandBuffer.compact();
             
         }
         log.writeln(Log.INFORMATION, this.getName() + ": EOF, closing....", Log.ECHO);
@@ -276,7 +289,7 @@ class HubSimulatorSendingThread extends Thread {
 	private OutputStream out;
 	private ArrayList<SensorData> list;
 	private Log log;
-	private boolean bStop = false;
+	private volatile boolean bStop = false;
 	private MyProperties prop = null;
 	
 	public HubSimulatorSendingThread(int i, OutputStream p_out, ArrayList<SensorData> p_list, MyProperties p_prop, Log p_log ) {
@@ -296,6 +309,9 @@ class HubSimulatorSendingThread extends Thread {
     public void run() {
 		
 		int i = 0;
+		ByteBuffer frameBuffer = null;	// reused for every frame sent
+		boolean layoutByType = prop.FRAME_LAYOUTS.toUpperCase().equals("BY_TYPE");
+		long numMisplaced = 0;	// frames with satellites beyond their layout (not sent)
 		long t1;
 		long t2;
 		
@@ -313,7 +329,18 @@ class HubSimulatorSendingThread extends Thread {
 			SensorData frame = list.get(i);
 			// send it
 			try {
-				out.write( frame.toByteArray() );
+				if (frameBuffer == null) frameBuffer = ByteBuffer.allocate( WireCodec.frameBytes( frame.isUseMag() ) );
+				frameBuffer.clear();
+				WireCodec.encodeFrame( frameBuffer, frame );
+				int length = frameBuffer.position();
+				if (layoutByType) {
+					FrameLayout layout = FrameLayout.of( frame.getFrameType(), frame.isUseMag() );
+					int missing = layout.countMissing( frameBuffer.array(), 0 );
+					if (missing > 0 && numMisplaced++ == 0) log.writeln( Log.WARNING, this.getName() + ": frame " + frame.getTimestamp() + " - " + missing +
+							" satellites beyond the " + layout.getNumSensors() + " records of frame type " + frame.getFrameType() + " not sent", Log.ECHO );
+					length = layout.compact( frameBuffer.array(), 0 );
+				}
+				out.write( frameBuffer.array(), 0, length );
 
 				// go to the next index
 				i = ++i % list.size();
@@ -335,6 +362,7 @@ class HubSimulatorSendingThread extends Thread {
 			}
 			t1 = System.currentTimeMillis();
 		}
+		if (numMisplaced > 0) log.writeln( Log.WARNING, this.getName() + ": " + numMisplaced + " frames sent without the satellites beyond their layout", Log.ECHO );
 	}
 }
 
@@ -1,55 +1,69 @@
 package com.ultron.server;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 
+import com.ultron.general.DumpReader;
 import com.ultron.general.Log;
 import com.ultron.general.SensorData;
 
 /**************************
  **************** 
- * HubSimulatorFileReader - read a file into an ArrayList
+ * HubSimulatorFileReader - read a file (or a time window of it) into an ArrayList
  ****************
  **************************
  */
 class HubSimulatorFileReaderThread extends Thread {
 	private ArrayList<SensorData>	frameList	= null;		// sensor data list
 	private String					fileName	= null;		// file name
+	private int						fromTimestamp;			// first timestamp to replay
+	private int						toTimestamp;			// last timestamp to replay
 	private Log						log			= null; // log file
 
 	// constructor
-	public HubSimulatorFileReaderThread(int i, String p_fileName, ArrayList<SensorData> p_frameList, Log p_log) {
+	public HubSimulatorFileReaderThread(int i, String p_fileName, int p_fromTimestamp, int p_toTimestamp, ArrayList<SensorData> p_frameList, Log p_log) {
         super("HubSimulatorFileReader - " + Integer.toString(i));
         frameList = p_frameList;
         fileName = p_fileName;
+        fromTimestamp = p_fromTimestamp;
+        toTimestamp = p_toTimestamp;
         log = p_log;
         log.writeln(Log.INFORMATION, this.getName() + " - Created file reader", Log.ECHO );
 	}
 
+	public HubSimulatorFileReaderThread(int i, String p_fileName, ArrayList<SensorData> p_frameList, Log p_log) {
+		this(i, p_fileName, Integer.MIN_VALUE, Integer.MAX_VALUE, p_frameList, p_log);
+	}
+
 	@Override
     public void run() {
 		
-		FileInputStream in = null;
+		DumpReader in = null;
 		
 		try {
-			in = new FileInputStream(fileName);
-		} catch (FileNotFoundException e) {
+			in = new DumpReader(fileName);
+		} catch (IOException e) {
 			e.printStackTrace();
 	        log.writeln(Log.ERROR, this.getName() + ": error in opening file", Log.ECHO );
+	        return;
 		}
 		 
-		//Construct BufferedReader from InputStreamReader
-		BufferedReader br = new BufferedReader(new InputStreamReader(in));
-	 
         // read each line of log file
 		try {
 			int idx = 0;
 			String line = null;
-			while ((line = br.readLine()) != null) {
+
+			// jump to the start of the time window (binary search in the dump index, if any)
+			if (fromTimestamp != Integer.MIN_VALUE) {
+				in.seekTimestamp(fromTimestamp);
+		        log.writeln(Log.INFORMATION, this.getName() + " - replay from frame " + in.getFrameNumber() + 
+		        		(in.hasIndex() ? " (indexed)" : " (no index)"), Log.ECHO );
+			}
+
+			while ((line = in.readLine()) != null) {
+
+				// end of the time window
+				if (toTimestamp != Integer.MAX_VALUE && DumpReader.lineTimestamp(line) > toTimestamp) break;
             	
             	// and send it to the server
             	SensorData frame = new SensorData ( line, idx++ );
@@ -66,10 +80,10 @@ class HubSimulatorFileReaderThread extends Thread {
 
         // close the file
 		try {
-			br.close();
+			in.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 	        log.writeln(Log.ERROR, this.getName() + ": error in closing file", Log.ECHO );
 		}		
 	}
-}
\ No newline at end of file
+}
@@ -22,6 +22,9 @@ class MyProperties {
 	public String 	LOG_FILE;
 	public int		SAMPLE_FREQUENCY_MS;
 	public int 		SERVER_SOCKET_TIMEOUT_MS;
+	public int		REPLAY_FROM_TIMESTAMP;		// optional: replay only the frames with timestamp in
+	public int		REPLAY_TO_TIMESTAMP;		// [REPLAY_FROM_TIMESTAMP, REPLAY_TO_TIMESTAMP]
+	public String	FRAME_LAYOUTS;				// BY_TYPE: send the frames sized by their frameType (FIXED: full frames)
 	
 
 	public MyProperties( String p_propFile ) throws Exception {
@@ -74,6 +77,12 @@ class MyProperties {
 		//
 		String serverSocketTimeoutMS = prop.getProperty("SERVER_SOCKET_TIMEOUT_MS");
 		SERVER_SOCKET_TIMEOUT_MS = Integer.parseInt(serverSocketTimeoutMS);
+		//
+		try { REPLAY_FROM_TIMESTAMP = Integer.parseInt(prop.getProperty("REPLAY_FROM_TIMESTAMP")); }
+		catch (Exception e) { REPLAY_FROM_TIMESTAMP = Integer.MIN_VALUE; }
+		try { REPLAY_TO_TIMESTAMP = Integer.parseInt(prop.getProperty("REPLAY_TO_TIMESTAMP")); }
+		catch (Exception e) { REPLAY_TO_TIMESTAMP = Integer.MAX_VALUE; }
+		FRAME_LAYOUTS = prop.getProperty("FRAME_LAYOUTS", "FIXED");
 		
 	}
 
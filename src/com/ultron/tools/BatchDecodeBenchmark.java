@@ -0,0 +1,153 @@
+package com.ultron.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import com.ultron.general.Common;
+import com.ultron.general.DumpChunks;
+import com.ultron.general.FrameBatch;
+import com.ultron.general.SensorData;
+
+/**************************
+ ****************
+ * BatchDecodeBenchmark - frames per second of the frame decoders, on the frames of a dump
+ ****************
+ **************************
+ *
+ * Every decoder computes the sum of every channel of every slot over the valid frames of each block
+ * (Common.CONVERTER_CHUNK_BYTES) of the dump, after some warm up rounds:
+ * - objects: a SensorData per frame (as HubWriter and the statistics do)
+ * - buffer: the static SensorData.readChannel on the buffer of the block (as DumpScan does)
+ * - batch: a FrameBatch per block and a loop per column (the records not valid are zeros: no test needed)
+ * The sums of the three decoders are checked to be the same.
+ */
+public class BatchDecodeBenchmark {
+
+	private static final int	WARMUP_ROUNDS	= 3;
+
+	private static final String[]	NAMES	= { "objects", "buffer", "batch" };
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length > 0 && args[0].startsWith( "-h" )) {
+			System.err.println("usage: java BatchDecodeBenchmark [dumpFile] [-rounds n] [-frames n]");
+			System.err.println("       without dumpFile: n synthetic frames (default 200000) with magnetometer");
+			System.exit(1);
+		}
+
+		String	fileName	= null;
+		int		rounds		= 5;
+		int		numFrames	= 200000;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals( "-rounds" ) && i + 1 < args.length)			rounds = Integer.parseInt( args[++i] );
+			else if (args[i].equals( "-frames" ) && i + 1 < args.length)	numFrames = Integer.parseInt( args[++i] );
+			else															fileName = args[i];
+		}
+
+		boolean			useMag;
+		List<byte[]>	blocks;
+		if (fileName != null) {
+			try (DumpChunks dump = new DumpChunks( fileName, Common.CONVERTER_CHUNK_BYTES )) {
+				useMag	= dump.isUseMag();
+				blocks	= new ArrayList<byte[]>();
+				Inflater inflater = new Inflater();
+				for (DumpChunks.Chunk chunk : dump.getChunks()) {
+					ByteBuffer	frames	= dump.decode( chunk, inflater );
+					byte[]		block	= new byte[frames.remaining()];
+					frames.get( block );
+					if (block.length > 0) blocks.add( block );
+				}
+			}
+		} else {
+			useMag	= true;
+			blocks	= CodecBenchmark.synthetic( numFrames, useMag );
+		}
+
+		int		frameBytes	= (useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		long	total		= 0;
+		int		maxFrames	= 0;
+		for (byte[] block : blocks) {
+			total		+= block.length / frameBytes;
+			maxFrames	= Math.max( maxFrames, block.length / frameBytes );
+		}
+		System.out.println( (fileName != null ? fileName : "synthetic") + ": " + total + " frames in " + blocks.size() + " blocks - " +
+				rounds + " rounds after " + WARMUP_ROUNDS + " of warm up" );
+
+		FrameBatch	batch	= new FrameBatch( maxFrames, useMag );
+		double[][]	sums	= new double[NAMES.length][Common.MAX_SENSORS * SensorData.NUM_CHANNELS];
+		for (int d = 0; d < NAMES.length; d++) {
+			long ns = 0;
+			for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+				Arrays.fill( sums[d], 0 );
+				long start = System.nanoTime();
+				for (byte[] block : blocks) {
+					switch (d) {
+						case 0:		sumObjects( block, useMag, sums[d] );	break;
+						case 1:		sumBuffer( block, useMag, sums[d] );	break;
+						default:	sumBatch( block, batch, sums[d] );		break;
+					}
+				}
+				if (round >= WARMUP_ROUNDS) ns += System.nanoTime() - start;
+			}
+			if (!Arrays.equals( sums[d], sums[0] )) throw new IllegalStateException( NAMES[d] + ": the sums differ from the ones of " + NAMES[0] );
+			System.out.println( String.format( "%-8s %8.2f Mframes/s  %8.1f MB/s", NAMES[d],
+					total * rounds / (ns / 1e9) / 1e6, total * frameBytes * rounds / (ns / 1e9) / (1 << 20) ) );
+		}
+	}
+
+	/*
+	 * Private methods
+	 */
+	private static void sumObjects( byte[] p_block, boolean p_useMag, double[] p_sums ) {
+		int frameBytes = (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		for (int offset = 0; offset + frameBytes <= p_block.length; offset += frameBytes) {
+			SensorData frame = new SensorData( Arrays.copyOfRange( p_block, offset, offset + frameBytes ), p_useMag );
+			for (int s = 0; s < Common.MAX_SENSORS; s++) {
+				if (!frame.isSatelliteValid( s )) continue;
+				for (int c = 0; c < SensorData.NUM_CHANNELS; c++) p_sums[s * SensorData.NUM_CHANNELS + c] += frame.getChannel( s, c );
+			}
+		}
+	}
+
+	private static void sumBuffer( byte[] p_block, boolean p_useMag, double[] p_sums ) {
+		int			frameBytes	= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		ByteBuffer	frames		= ByteBuffer.wrap( p_block ).order( ByteOrder.LITTLE_ENDIAN );
+		for (int offset = 0; offset + frameBytes <= p_block.length; offset += frameBytes) {
+			int bitmap = SensorData.readBitmap( frames, offset );
+			for (int s = 0; s < Common.MAX_SENSORS; s++) {
+				if ((bitmap & (1 << s)) == 0) continue;
+				for (int c = 0; c < SensorData.NUM_CHANNELS; c++) p_sums[s * SensorData.NUM_CHANNELS + c] += SensorData.readChannel( frames, offset, p_useMag, s, c );
+			}
+		}
+	}
+
+	private static void sumBatch( byte[] p_block, FrameBatch p_batch, double[] p_sums ) {
+		p_batch.clear();
+		p_batch.decode( ByteBuffer.wrap( p_block ) );
+		int n = p_batch.size();
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			int first = p_batch.index( s, 0 );
+			for (int c = 0; c < SensorData.CH_QUAT_W; c++) {
+				short[]	column	= p_batch.shortColumn( c );
+				double	sum		= p_sums[s * SensorData.NUM_CHANNELS + c];
+				for (int f = first; f < first + n; f++) sum += column[f];
+				p_sums[s * SensorData.NUM_CHANNELS + c] = sum;
+			}
+			for (int c = SensorData.CH_QUAT_W; c < SensorData.NUM_CHANNELS; c++) {
+				float[]	column	= p_batch.floatColumn( c );
+				double	sum		= p_sums[s * SensorData.NUM_CHANNELS + c];
+				for (int f = first; f < first + n; f++) sum += column[f];
+				p_sums[s * SensorData.NUM_CHANNELS + c] = sum;
+			}
+		}
+	}
+
+}
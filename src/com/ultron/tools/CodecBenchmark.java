@@ -0,0 +1,229 @@
+package com.ultron.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.ultron.general.Common;
+import com.ultron.general.DumpChunks;
+import com.ultron.general.SensorChannelCodec;
+import com.ultron.general.SensorData;
+
+/**************************
+ ****************
+ * CodecBenchmark - compression ratio and speed of SensorChannelCodec against Deflater on the frames of a dump
+ ****************
+ **************************
+ *
+ * The frames (of a dump in any format, or synthetic ones) are cut into blocks of Common.CONVERTER_CHUNK_BYTES,
+ * encoded and decoded one block at a time like the tools do, after some warm up rounds.
+ * Every decoded block is checked against the original.
+ */
+public class CodecBenchmark {
+
+	private static final int	WARMUP_ROUNDS	= 3;
+
+	/**
+	 * A codec under test
+	 */
+	private interface Codec {
+		String name();
+		byte[] encode( byte[] p_frames );
+		byte[] decode( byte[] p_encoded, int p_rawBytes );
+	}
+
+	private static class ChannelCodec implements Codec {
+		private final SensorChannelCodec	codec;
+		private byte[]						out		= new byte[0];
+
+		ChannelCodec( boolean p_useMag ) {
+			codec = new SensorChannelCodec( p_useMag );
+		}
+
+		@Override
+		public String name() {
+			return "channel codec";
+		}
+
+		@Override
+		public byte[] encode( byte[] p_frames ) {
+			int n = p_frames.length / codec.getFrameBytes();
+			if (out.length < n * codec.maxEncodedBytes()) out = new byte[n * codec.maxEncodedBytes()];
+			codec.reset();
+			int pos = 0;
+			for (int i = 0; i < n; i++) pos = codec.encode( p_frames, i * codec.getFrameBytes(), out, pos );
+			return Arrays.copyOf( out, pos );
+		}
+
+		@Override
+		public byte[] decode( byte[] p_encoded, int p_rawBytes ) {
+			byte[] raw = new byte[p_rawBytes];
+			codec.reset();
+			for (int offset = 0, pos = 0; offset < p_rawBytes; offset += codec.getFrameBytes()) pos = codec.decode( p_encoded, pos, raw, offset );
+			return raw;
+		}
+	}
+
+	private static class DeflaterCodec implements Codec {
+		private final int		level;
+		private final Deflater	deflater;
+		private final Inflater	inflater	= new Inflater();
+		private byte[]			out			= new byte[0];
+
+		DeflaterCodec( int p_level ) {
+			level		= p_level;
+			deflater	= new Deflater( p_level );
+		}
+
+		@Override
+		public String name() {
+			return "deflater " + (level == Deflater.BEST_SPEED ? "best speed" : "default");
+		}
+
+		@Override
+		public byte[] encode( byte[] p_frames ) {
+			if (out.length < p_frames.length + p_frames.length / 100 + 64) out = new byte[p_frames.length + p_frames.length / 100 + 64];
+			deflater.reset();
+			deflater.setInput( p_frames );
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished()) n += deflater.deflate( out, n, out.length - n );
+			return Arrays.copyOf( out, n );
+		}
+
+		@Override
+		public byte[] decode( byte[] p_encoded, int p_rawBytes ) {
+			byte[] raw = new byte[p_rawBytes];
+			inflater.reset();
+			inflater.setInput( p_encoded );
+			try {
+				int n = 0;
+				while (n < raw.length && !inflater.finished()) n += inflater.inflate( raw, n, raw.length - n );
+			} catch (DataFormatException e) {
+				throw new IllegalStateException( e );
+			}
+			return raw;
+		}
+	}
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length > 0 && args[0].startsWith( "-h" )) {
+			System.err.println("usage: java CodecBenchmark [dumpFile] [-rounds n] [-frames n]");
+			System.err.println("       without dumpFile: n synthetic frames (default 200000) with magnetometer");
+			System.exit(1);
+		}
+
+		String	fileName	= null;
+		int		rounds		= 5;
+		int		numFrames	= 200000;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals( "-rounds" ) && i + 1 < args.length)			rounds = Integer.parseInt( args[++i] );
+			else if (args[i].equals( "-frames" ) && i + 1 < args.length)	numFrames = Integer.parseInt( args[++i] );
+			else															fileName = args[i];
+		}
+
+		boolean			useMag;
+		List<byte[]>	blocks;
+		if (fileName != null) {
+			try (DumpChunks dump = new DumpChunks( fileName, Common.CONVERTER_CHUNK_BYTES )) {
+				useMag	= dump.isUseMag();
+				blocks	= new ArrayList<byte[]>();
+				Inflater inflater = new Inflater();
+				for (DumpChunks.Chunk chunk : dump.getChunks()) {
+					ByteBuffer	frames	= dump.decode( chunk, inflater );
+					byte[]		block	= new byte[frames.remaining()];
+					frames.get( block );
+					if (block.length > 0) blocks.add( block );
+				}
+			}
+		} else {
+			useMag	= true;
+			blocks	= synthetic( numFrames, useMag );
+		}
+
+		int		frameBytes	= (useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		long	rawBytes	= 0;
+		for (byte[] block : blocks) rawBytes += block.length;
+		System.out.println( (fileName != null ? fileName : "synthetic") + ": " + rawBytes / frameBytes + " frames, " +
+				rawBytes + " bytes in " + blocks.size() + " blocks - " + rounds + " rounds after " + WARMUP_ROUNDS + " of warm up" );
+
+		Codec[] codecs = { new ChannelCodec( useMag ), new DeflaterCodec( Deflater.BEST_SPEED ), new DeflaterCodec( Deflater.DEFAULT_COMPRESSION ) };
+		for (Codec codec : codecs) {
+			long	encodedBytes	= 0;
+			long	encodeNs		= 0;
+			long	decodeNs		= 0;
+			for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+				long size = 0, enc = 0, dec = 0;
+				for (byte[] block : blocks) {
+					long	start	= System.nanoTime();
+					byte[]	encoded	= codec.encode( block );
+					long	middle	= System.nanoTime();
+					byte[]	decoded	= codec.decode( encoded, block.length );
+					long	end		= System.nanoTime();
+					if (!Arrays.equals( block, decoded )) throw new IllegalStateException( codec.name() + ": decoded block differs from the original" );
+					size	+= encoded.length;
+					enc		+= middle - start;
+					dec		+= end - middle;
+				}
+				if (round < WARMUP_ROUNDS) continue;
+				encodedBytes	= size;
+				encodeNs		+= enc;
+				decodeNs		+= dec;
+			}
+			System.out.println( String.format( "%-22s ratio %6.2f  encode %8.1f MB/s  decode %8.1f MB/s",
+					codec.name(), (double)rawBytes / encodedBytes,
+					rawBytes * rounds / (encodeNs / 1e9) / (1 << 20), rawBytes * rounds / (decodeNs / 1e9) / (1 << 20) ) );
+		}
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// slow movements with some noise, a satellite dropping out now and then
+	static List<byte[]> synthetic( int p_numFrames, boolean p_useMag ) {
+		int				frameBytes		= (p_useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		int				blockFrames		= Common.CONVERTER_CHUNK_BYTES / frameBytes;
+		List<byte[]>	blocks			= new ArrayList<byte[]>();
+		Random			random			= new Random( 1 );
+
+		for (int first = 0; first < p_numFrames; first += blockFrames) {
+			int			n		= Math.min( blockFrames, p_numFrames - first );
+			ByteBuffer	block	= ByteBuffer.allocate( n * frameBytes ).order( ByteOrder.LITTLE_ENDIAN );
+			for (int f = first; f < first + n; f++) {
+				int		offset	= (f - first) * frameBytes;
+				int		bitmap	= (1 << Common.MAX_SENSORS) - 1;
+				if (f % 5000 < 20) bitmap &= ~(1 << (f / 5000 % Common.MAX_SENSORS));
+				block.putInt( offset, 1 ).putInt( offset + 4, 0 ).putInt( offset + 8, f * Common.DEFAULT_SAMPLE_FREQUENCY_MS ).putInt( offset + 12, bitmap );
+
+				for (int s = 0; s < Common.MAX_SENSORS; s++) {
+					double phase = f * 0.01 + s;
+					block.putInt( offset + SensorData.channelOffset( p_useMag, s, SensorData.CH_ACCEL_X ) - Integer.BYTES, 1000 + s );
+					for (int c = SensorData.CH_ACCEL_X; c < SensorData.CH_QUAT_W; c++) {
+						int channel = SensorData.channelOffset( p_useMag, s, c );
+						if (channel < 0) continue;
+						channel += offset;
+						block.putShort( channel, (short)(2000 * Math.sin( phase + c ) + random.nextGaussian() * 8) );
+					}
+					double angle = phase * 0.1;
+					float[] quat = { (float)Math.cos( angle ), (float)(Math.sin( angle ) * 0.6), (float)(Math.sin( angle ) * 0.8), 0F };
+					for (int k = 0; k < 4; k++) block.putFloat( offset + SensorData.channelOffset( p_useMag, s, SensorData.CH_QUAT_W + k ), quat[k] );
+				}
+			}
+			blocks.add( block.array() );
+		}
+		return blocks;
+	}
+
+}
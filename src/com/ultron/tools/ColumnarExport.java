@@ -0,0 +1,89 @@
+package com.ultron.tools;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Spliterators;
+
+import com.ultron.general.ColumnarDump;
+import com.ultron.general.Common;
+import com.ultron.general.DumpChunks;
+import com.ultron.general.DumpFiles;
+import com.ultron.general.SensorData;
+
+/**************************
+ **************** 
+ * ColumnarExport - batch export of a dump (any format) to a columnar dump, and queries on it
+ ****************
+ **************************
+ */
+public class ColumnarExport {
+
+	/**
+	 * Convert a dump (text, binary, compressed or sparse) into a columnar dump.
+	 * Returns the number of frames exported. The columnar dump is closed even if the dump breaks halfway
+	 * (the frames exported so far stay readable), and an empty dump gives an empty columnar dump.
+	 */
+	public static long export( String p_dump, String p_columnarDump ) throws IOException {
+
+		long idx = 0;
+
+		try (DumpChunks chunks = new DumpChunks( p_dump, Common.CONVERTER_CHUNK_BYTES )) {
+			ColumnarDump dump = new ColumnarDump( p_columnarDump, chunks.isUseMag() );
+			try {
+				Iterator<SensorData> it = Spliterators.iterator( DumpFiles.spliterator( chunks, null ) );
+				while (it.hasNext()) {
+					dump.add( it.next() );
+					idx++;
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				dump.close();
+			}
+		}
+
+		return idx;
+	}
+
+	private static int channel( String p_name ) {
+		int ch = SensorData.channelOf( p_name );
+		if (ch >= 0) return ch;
+		throw new IllegalArgumentException( "Unknown channel " + p_name );
+	}
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length == 3 && args[0].equals("export")) {
+
+			long start	= System.nanoTime();
+			long frames	= export( args[1], args[2] );
+			System.out.println( "Exported " + frames + " frames in " + (System.nanoTime() - start) / 1000000L + "ms" );
+
+		} else if (args.length == 6 && (args[0].equals("query") || args[0].equals("querySlot"))) {
+
+			try (ColumnarDump.Reader reader = new ColumnarDump.Reader( args[1] )) {
+				int						id		= Integer.parseInt( args[2] );
+				int						ch		= channel( args[3] );
+				int						from	= Integer.parseInt( args[4] );
+				int						to		= Integer.parseInt( args[5] );
+				ColumnarDump.Series		series	= (args[0].equals("query") ? reader.querySatellite( id, ch, from, to ) : reader.query( id, ch, from, to ));
+				for (int i = 0; i < series.size(); i++) {
+					System.out.println( series.getTimestamp( i ) + "\t" + series.getValue( i ) );
+				}
+				System.err.println( series.size() + " values - " + reader.getBytesRead() + " bytes read" );
+			}
+
+		} else {
+			System.err.println("usage: java ColumnarExport export dumpFile columnarDump");
+			System.err.println("       java ColumnarExport query columnarDump satelliteID channel fromTimestamp toTimestamp");
+			System.err.println("       java ColumnarExport querySlot columnarDump satelliteSlot channel fromTimestamp toTimestamp");
+			System.err.println("       (channels: accel_X .. quat_Z)");
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.ultron.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.ultron.general.Common;
+import com.ultron.general.DumpChunks;
+
+/**************************
+ ****************
+ * DumpConverter - parallel conversion between text, binary, compressed and sparse dumps
+ ****************
+ **************************
+ *
+ * The input is split into chunks (see DumpChunks) that are decoded and encoded by the tasks of a
+ * fork-join pool; the results are written to the output file in the order of the chunks.
+ * At most 2 chunks per thread are in memory at the same time.
+ */
+public class DumpConverter {
+
+	// per thread codecs (the fork-join workers are reused for all the chunks)
+	private static final ThreadLocal<Inflater>	inflaters	= ThreadLocal.withInitial( Inflater::new );
+	private static final ThreadLocal<Deflater>	deflaters	= ThreadLocal.withInitial( () -> new Deflater( Deflater.BEST_SPEED ) );
+
+	/*
+	 * local variables
+	 */
+	private final int		threads;
+	private final int		chunkBytes;
+	private long			numFrames		= 0;
+	private long			bytesRead		= 0;
+	private long			bytesWritten	= 0;
+	private long			skippedLines	= 0;
+
+	/*
+	 * Constructor
+	 */
+	public DumpConverter( int p_threads, int p_chunkBytes ) {
+		threads		= (p_threads > 0 ? p_threads : Runtime.getRuntime().availableProcessors());
+		chunkBytes	= (p_chunkBytes > 0 ? p_chunkBytes : Common.CONVERTER_CHUNK_BYTES);
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public long getNumFrames()		{ return numFrames; }
+
+	public long getBytesRead()		{ return bytesRead; }
+
+	public long getBytesWritten()	{ return bytesWritten; }
+
+	public long getSkippedLines()	{ return skippedLines; }
+
+	/**
+	 * Convert p_input (any format) into p_output, in the format given by its extension.
+	 */
+	public void convert( String p_input, String p_output ) throws IOException {
+
+		ForkJoinPool pool = new ForkJoinPool( threads );
+
+		try (DumpChunks in = new DumpChunks( p_input, chunkBytes );
+			 FileChannel out = FileChannel.open( Paths.get( p_output ), StandardOpenOption.CREATE,
+					 StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE )) {
+
+			int		format		= DumpChunks.formatOf( p_output );
+			boolean	useMag		= in.isUseMag();
+			int		frameBytes	= in.getFrameBytes();
+
+			ArrayDeque<ForkJoinTask<ByteBuffer[]>>	pending	= new ArrayDeque<ForkJoinTask<ByteBuffer[]>>();
+
+			bytesWritten += write( out, DumpChunks.header( format, useMag ) );
+
+			for (DumpChunks.Chunk chunk : in.getChunks()) {
+				pending.add( pool.submit( () -> {
+					ByteBuffer frames = in.decode( chunk, inflaters.get() );
+					return new ByteBuffer[] { frames, DumpChunks.encode( frames, format, useMag, deflaters.get() ) };
+				} ) );
+				if (pending.size() >= 2 * threads) writeResult( out, pending.poll().join(), frameBytes );
+			}
+			while (!pending.isEmpty()) {
+				writeResult( out, pending.poll().join(), frameBytes );
+			}
+
+			bytesRead		= in.getFileBytes();
+			skippedLines	= in.getSkippedLines();
+
+		} catch (RuntimeException e) {
+			// an IOException of a task comes back wrapped by join()
+			throw Tasks.rethrow( e );
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void writeResult( FileChannel p_out, ByteBuffer[] p_result, int p_frameBytes ) throws IOException {
+		numFrames		+= p_result[0].remaining() / p_frameBytes;
+		bytesWritten	+= write( p_out, p_result[1] );
+	}
+
+	private static long write( FileChannel p_out, ByteBuffer p_buf ) throws IOException {
+		long ret = p_buf.remaining();
+		while (p_buf.hasRemaining()) p_out.write( p_buf );
+		return ret;
+	}
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("usage: java DumpConverter inputDump outputDump [threads] [chunkKB]");
+			System.err.println("       the input format is detected, the output format is given by the extension:");
+			System.err.println("       *.bin binary, *.binz compressed binary, *.bins sparse binary, *.binc channel binary, any other text");
+			System.exit(1);
+		}
+
+		DumpConverter	converter	= new DumpConverter( (args.length > 2 ? Integer.parseInt( args[2] ) : 0),
+														 (args.length > 3 ? Integer.parseInt( args[3] ) * 1024 : 0) );
+		long			start		= System.nanoTime();
+
+		converter.convert( args[0], args[1] );
+
+		double seconds	= (System.nanoTime() - start) / 1e9;
+		double mbRead	= converter.getBytesRead() / 1048576.0;
+		System.out.println( String.format( "Converted %d frames to %s in %.2fs with %d threads: read %.1fMB (%.1fMB/s), written %.1fMB",
+				converter.getNumFrames(), DumpChunks.formatName( DumpChunks.formatOf( args[1] ) ), seconds, converter.threads,
+				mbRead, mbRead / seconds, converter.getBytesWritten() / 1048576.0 ) );
+		if (converter.getSkippedLines() > 0) System.out.println( "Skipped " + converter.getSkippedLines() + " lines that are not frames" );
+	}
+
+}
@@ -0,0 +1,409 @@
+package com.ultron.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.ultron.general.Common;
+import com.ultron.general.DumpChunks;
+import com.ultron.general.DumpIndex;
+import com.ultron.general.SensorData;
+
+/**************************
+ ****************
+ * DumpMerge - k-way merge of the dumps of several hubs into a single time-aligned stream
+ ****************
+ **************************
+ *
+ * Every input file is read ahead by its own thread, a few chunks at a time (bounded memory,
+ * see Common.MERGE_READAHEAD_CHUNKS), so long sessions are merged without loading whole files.
+ *
+ * The hub clocks are not synchronised: each file gets a clock offset that brings its timestamps
+ * onto the clock of the first file. If all the files have a DumpIndex with host times the offset comes
+ * from the host clock (see DumpIndex.clockOffset), otherwise the starts of the recordings are aligned.
+ * Only the text dumps have a DumpIndex: as soon as one input is binary the starts of the recordings are
+ * aligned (main warns about it). Manual corrections can be added with -offset.
+ *
+ * Output: the frames of all the files ordered by aligned timestamp (interleaved), or one frame per hub
+ * every period (resampled, the last frame of each hub is held for at most Common.MERGE_MAX_HOLD_PERIODS).
+ * The timestamp of the output frames is the aligned one.
+ */
+public class DumpMerge {
+
+	private static final ByteBuffer	END_OF_FILE	= ByteBuffer.allocate( 0 );
+
+	/**
+	 * Reader of an input file: the next frame to merge is the current one.
+	 */
+	static class Cursor extends Thread {
+
+		private final int							index;
+		private final String						fileName;
+		private final DumpChunks					chunks;
+		private final ArrayBlockingQueue<ByteBuffer>	queue	= new ArrayBlockingQueue<ByteBuffer>( Common.MERGE_READAHEAD_CHUNKS );
+		private final int							frameBytes;
+		private volatile IOException				error	= null;
+
+		private ByteBuffer		current		= null;
+		private int				pos			= 0;
+		private boolean			hasFrame	= false;
+		private boolean			started		= false;
+		private int				lastTs;
+		private long			unwrappedTs;		// hub timestamp followed across int wrap arounds
+		private long			offset		= 0;	// added to the hub timestamp to get the aligned one
+		private boolean			hostTimes	= false;	// DumpIndex with host times
+
+		// resampling: last frame at or before the current period
+		private final byte[]	held;
+		private boolean			hasHeld		= false;
+		private long			heldTs;
+
+		Cursor( int p_index, String p_fileName ) throws IOException {
+			index		= p_index;
+			fileName	= p_fileName;
+			chunks		= new DumpChunks( p_fileName, Common.MERGE_CHUNK_BYTES );
+			frameBytes	= chunks.getFrameBytes();
+			held		= new byte[frameBytes];
+			setName( "Merge - " + p_fileName );
+			setDaemon( true );
+		}
+
+		/**
+		 * Execution method: decode the chunks ahead of the merge.
+		 */
+		@Override
+		public void run() {
+			Inflater inflater = new Inflater();
+			try {
+				for (DumpChunks.Chunk chunk : chunks.getChunks()) {
+					ByteBuffer frames = chunks.decode( chunk, inflater );
+					if (frames.hasRemaining()) queue.put( frames );
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				inflater.end();
+			}
+			try {
+				queue.put( END_OF_FILE );
+			} catch (InterruptedException e) { }
+		}
+
+		/**
+		 * Move to the next frame; false at the end of the file.
+		 */
+		boolean advance() throws IOException {
+			if (current != null) pos += frameBytes;
+			if (current == null || pos + frameBytes > current.limit()) {
+				try {
+					current = queue.take();
+				} catch (InterruptedException e) {
+					throw new IOException( "Interrupted reading " + fileName );
+				}
+				pos = 0;
+				if (current == END_OF_FILE) {
+					// stay at the end of the file
+					queue.add( END_OF_FILE );
+					if (error != null) throw error;
+					hasFrame = false;
+					return false;
+				}
+			}
+
+			int ts = SensorData.readTimestamp( current, pos );
+			unwrappedTs	= (started ? unwrappedTs + (ts - lastTs) : ts);
+			lastTs		= ts;
+			started		= true;
+			hasFrame	= true;
+			return true;
+		}
+
+		long alignedTimestamp() {
+			return unwrappedTs + offset;
+		}
+
+		/**
+		 * Start of the recording: the first frames give the interval (minimum delta) and the start
+		 * is the earliest timestamp they imply, which ignores a first frame with a wrong timestamp.
+		 */
+		long estimateStart() {
+			int n = Math.min( Common.GAP_LEARN_FRAMES, current.limit() / frameBytes );
+			int interval = Integer.MAX_VALUE;
+			for (int k = 1; k < n; k++) {
+				int delta = SensorData.readTimestamp( current, k * frameBytes ) - SensorData.readTimestamp( current, (k - 1) * frameBytes );
+				if (delta > 0 && delta < interval) interval = delta;
+			}
+			if (interval == Integer.MAX_VALUE) return unwrappedTs;
+			long ret = unwrappedTs;
+			for (int k = 1; k < n; k++) {
+				int delta = SensorData.readTimestamp( current, k * frameBytes ) - SensorData.readTimestamp( current, 0 );
+				ret = Math.min( ret, unwrappedTs + delta - (long)k * interval );
+			}
+			return ret;
+		}
+
+		void copyFrame( ByteBuffer p_out, long p_timestamp ) {
+			int start = p_out.position();
+			p_out.put( current.array(), current.arrayOffset() + pos, frameBytes );
+			p_out.putInt( start + 8, (int)p_timestamp );
+		}
+
+		void hold() {
+			System.arraycopy( current.array(), current.arrayOffset() + pos, held, 0, frameBytes );
+			heldTs	= alignedTimestamp();
+			hasHeld	= true;
+		}
+
+		void close() {
+			interrupt();
+			try {
+				chunks.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	/*
+	 * local variables
+	 */
+	private final List<Cursor>	cursors			= new ArrayList<Cursor>();
+	private FileChannel			out				= null;
+	private ByteBuffer			batch;
+	private int					frameBytes;
+	private int					outFormat;
+	private boolean				useMag;
+	private final Deflater		deflater		= new Deflater( Deflater.BEST_SPEED );
+	private long				numFrames		= 0;
+	private boolean				hostClock		= false;	// offsets from the host clock, else from the starts
+
+	/*
+	 * Constructor: open the inputs and estimate their clock offsets
+	 */
+	public DumpMerge( List<String> p_inputs, long[] p_offsetCorrections ) throws IOException {
+
+		try {
+			for (String input : p_inputs) {
+				Cursor c = new Cursor( cursors.size(), input );
+				if (!cursors.isEmpty() && c.frameBytes != cursors.get( 0 ).frameBytes) {
+					c.close();
+					throw new IOException( input + ": frames with and without magnetometer cannot be merged" );
+				}
+				cursors.add( c );
+				c.start();
+			}
+			for (Cursor c : cursors) c.advance();
+
+			long[]	hostOffset	= new long[cursors.size()];
+			for (Cursor c : cursors) {
+				DumpIndex index = DumpIndex.load( c.fileName );
+				c.hostTimes = (index != null && index.hasWallTimes());
+				if (c.hostTimes) hostOffset[c.index] = index.clockOffset();
+			}
+			hostClock = true;
+			for (Cursor c : cursors) hostClock &= c.hostTimes;
+
+			long referenceStart = (cursors.get( 0 ).hasFrame ? cursors.get( 0 ).estimateStart() : 0);
+			for (Cursor c : cursors) {
+				if (hostClock) {
+					c.offset = hostOffset[c.index] - hostOffset[0];
+				} else if (c.hasFrame) {
+					c.offset = referenceStart - c.estimateStart();
+				}
+				if (p_offsetCorrections != null && c.index < p_offsetCorrections.length) c.offset += p_offsetCorrections[c.index];
+			}
+
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		useMag = (cursors.isEmpty() ? Common.DEFAULT_USE_MAGNETOMETER : cursors.get( 0 ).chunks.isUseMag());
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public long getNumFrames()	{ return numFrames; }
+
+	/** true if the clock offsets come from the host clock, false if the starts of the recordings are aligned */
+	public boolean isHostClock()	{ return hostClock; }
+
+	/** true if the p_input-th input (from 0) has a DumpIndex with host times */
+	public boolean hasHostTimes( int p_input )	{ return cursors.get( p_input ).hostTimes; }
+
+	/**
+	 * Clock offset of each input (corrections included), added to its hub timestamps to get the aligned ones.
+	 */
+	public long[] getClockOffsets() {
+		long[] ret = new long[cursors.size()];
+		for (Cursor c : cursors) ret[c.index] = c.offset;
+		return ret;
+	}
+
+	/**
+	 * All the frames, ordered by aligned timestamp (files in order of argument for equal timestamps).
+	 */
+	public void interleave( String p_output ) throws IOException {
+
+		open( p_output );
+
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>( Math.max( 1, cursors.size() ), (a, b) -> {
+			int cmp = Long.compare( a.alignedTimestamp(), b.alignedTimestamp() );
+			return (cmp != 0 ? cmp : Integer.compare( a.index, b.index ));
+		} );
+		for (Cursor c : cursors) {
+			if (c.hasFrame) heap.add( c );
+		}
+
+		while (!heap.isEmpty()) {
+			Cursor c = heap.poll();
+			c.copyFrame( batch, c.alignedTimestamp() );
+			if (!batch.hasRemaining()) flush();
+			if (c.advance()) heap.add( c );
+		}
+		flush();
+	}
+
+	/**
+	 * One frame per hub every p_period (hub timestamp units), starting from the first aligned timestamp.
+	 */
+	public void resample( String p_output, int p_period ) throws IOException {
+
+		open( p_output );
+
+		long tick = Long.MAX_VALUE;
+		for (Cursor c : cursors) {
+			if (c.hasFrame) tick = Math.min( tick, c.alignedTimestamp() );
+		}
+
+		boolean more = (tick != Long.MAX_VALUE);
+		while (more) {
+			more = false;
+			for (Cursor c : cursors) {
+				while (c.hasFrame && c.alignedTimestamp() <= tick) {
+					c.hold();
+					c.advance();
+				}
+				more |= c.hasFrame;
+
+				if (c.hasHeld && tick - c.heldTs <= (long)p_period * Common.MERGE_MAX_HOLD_PERIODS) {
+					int start = batch.position();
+					batch.put( c.held );
+					batch.putInt( start + 8, (int)tick );
+					if (!batch.hasRemaining()) flush();
+				}
+			}
+			tick += p_period;
+		}
+		flush();
+	}
+
+	public void close() {
+		for (Cursor c : cursors) c.close();
+		deflater.end();
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			out = null;
+		}
+	}
+
+	/*
+	 * Private methods
+	 */
+	private void open( String p_output ) throws IOException {
+		frameBytes	= (useMag ? SensorData.BYTES_WITH_MAG : SensorData.BYTES_WITHOUT_MAG);
+		outFormat	= DumpChunks.formatOf( p_output );
+		out			= FileChannel.open( Paths.get( p_output ), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE );
+		batch		= ByteBuffer.allocate( frameBytes * Common.MERGE_BATCH_FRAMES ).order( ByteOrder.LITTLE_ENDIAN );
+		write( DumpChunks.header( outFormat, useMag ) );
+	}
+
+	private void flush() throws IOException {
+		batch.flip();
+		numFrames += batch.remaining() / frameBytes;
+		if (batch.hasRemaining()) write( DumpChunks.encode( batch, outFormat, useMag, deflater ) );
+		batch.clear();
+	}
+
+	private void write( ByteBuffer p_buf ) throws IOException {
+		while (p_buf.hasRemaining()) out.write( p_buf );
+	}
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws IOException {
+
+		String			output		= null;
+		int				period		= 0;
+		List<String>	inputs		= new ArrayList<String>();
+		List<String>	corrections	= new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-resample") && i + 1 < args.length) {
+				period = Integer.parseInt( args[++i] );
+			} else if (args[i].equals("-offset") && i + 1 < args.length) {
+				corrections.add( args[++i] );
+			} else if (output == null) {
+				output = args[i];
+			} else {
+				inputs.add( args[i] );
+			}
+		}
+
+		if (output == null || inputs.size() < 1 || period < 0) {
+			System.err.println("usage: java DumpMerge outputDump [-resample period] [-offset n=correction ...] inputDump1 inputDump2 ...");
+			System.err.println("       -resample period   one frame per hub every period (hub timestamp units) instead of all the frames");
+			System.err.println("       -offset n=c        add c to the estimated clock offset of the n-th input (from 0)");
+			System.err.println("       the clocks are aligned on the host clock if every input has a DumpIndex with host times (text dumps only),");
+			System.err.println("       otherwise on the starts of the recordings");
+			System.err.println("       the output format is given by the extension: *.bin binary, *.binz compressed binary, *.bins sparse binary,");
+			System.err.println("       *.binc channel binary, any other text");
+			System.exit(1);
+		}
+
+		long[] offsetCorrections = new long[inputs.size()];
+		for (String c : corrections) {
+			String[] kv = c.split( "=" );
+			offsetCorrections[Integer.parseInt( kv[0] )] = Long.parseLong( kv[1] );
+		}
+
+		long		start	= System.nanoTime();
+		DumpMerge	merge	= new DumpMerge( inputs, offsetCorrections );
+		try {
+			long[] offsets = merge.getClockOffsets();
+			for (int i = 0; i < inputs.size(); i++) {
+				if (!merge.isHostClock() && inputs.size() > 1 && !merge.hasHostTimes( i )) {
+					System.err.println( "warning: " + inputs.get( i ) + " has no host times (binary dump or no DumpIndex): aligning the starts of the recordings" );
+				}
+				System.out.println( inputs.get( i ) + ": clock offset " + offsets[i] + (merge.isHostClock() ? " (host clock)" : " (start of recording)") );
+			}
+			if (period > 0) {
+				merge.resample( output, period );
+			} else {
+				merge.interleave( output );
+			}
+		} finally {
+			merge.close();
+		}
+
+		System.out.println( String.format( "Merged %d files into %d frames in %.2fs", inputs.size(), merge.getNumFrames(),
+				(System.nanoTime() - start) / 1e9 ) );
+	}
+
+}
@@ -0,0 +1,490 @@
+package com.ultron.tools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Inflater;
+
+import com.ultron.general.Common;
+import com.ultron.general.DumpChunks;
+import com.ultron.general.DumpIndex;
+import com.ultron.general.SensorData;
+
+/**************************
+ ****************
+ * DumpScan - parallel scan of a dump (text, binary, compressed or sparse) with predicates and aggregations
+ ****************
+ **************************
+ *
+ * Each chunk of the dump (see DumpChunks) is scanned by a task of a fork-join pool into its own
+ * partial aggregation (primitive arrays only); the partial aggregations are then merged.
+ * The predicates on the frame header (hub, time range, bitmap) are applied before a text line is parsed,
+ * and the chunks of an indexed text dump (see DumpIndex) out of the time range are not read at all.
+ */
+public class DumpScan {
+
+	// per thread inflater (the fork-join workers are reused for all the chunks)
+	private static final ThreadLocal<Inflater>	inflaters	= ThreadLocal.withInitial( Inflater::new );
+
+	// pseudo channels: vector magnitudes
+	public static final int		CH_ACCEL_MAGNITUDE	= -1;
+	public static final int		CH_GYRO_MAGNITUDE	= -2;
+	public static final int		CH_MAG_MAGNITUDE	= -3;
+
+	/**
+	 * Predicates pushed down to the frame header
+	 */
+	public static class Query implements DumpChunks.HeaderFilter {
+
+		int		hubID			= -1;					// -1: any hub
+		int		fromTimestamp	= Integer.MIN_VALUE;
+		int		toTimestamp		= Integer.MAX_VALUE;
+		int		bitmapAll		= 0;					// frames with all these sensors valid
+		int		bitmapAny		= 0;					// frames with at least one of these sensors valid (0: no condition)
+		int		slots			= (1 << Common.MAX_SENSORS) - 1;	// satellite slots aggregated
+
+		@Override
+		public boolean accept( int p_hubID, int p_timestamp, int p_bitmap ) {
+			return (hubID < 0 || p_hubID == hubID) &&
+					p_timestamp >= fromTimestamp && p_timestamp <= toTimestamp &&
+					(p_bitmap & bitmapAll) == bitmapAll &&
+					(bitmapAny == 0 || (p_bitmap & bitmapAny) != 0);
+		}
+
+		public boolean hasTimeRange() {
+			return fromTimestamp != Integer.MIN_VALUE || toTimestamp != Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Aggregation over the frames accepted by the query.
+	 * A task works on its own partial aggregation (newPartial), merged at the end.
+	 */
+	public static abstract class Aggregation {
+
+		protected Query		query;
+		protected boolean	useMag;
+		protected long		frames		= 0;		// frames accepted by the query
+
+		abstract Aggregation newPartial();
+
+		abstract void add( ByteBuffer p_frames, int p_offset, int p_timestamp, int p_bitmap );
+
+		abstract void merge( Aggregation p_partial );
+
+		abstract void print( PrintStream p_out );
+
+		Aggregation init( Query p_query, boolean p_useMag ) {
+			query	= p_query;
+			useMag	= p_useMag;
+			return this;
+		}
+
+		// value of a channel (or pseudo channel) of a sensor
+		protected float value( ByteBuffer p_frames, int p_offset, int p_slot, int p_channel ) {
+			if (p_channel >= 0) return SensorData.readChannel( p_frames, p_offset, useMag, p_slot, p_channel );
+			int		first	= (p_channel == CH_ACCEL_MAGNITUDE ? SensorData.CH_ACCEL_X :
+							   p_channel == CH_GYRO_MAGNITUDE ? SensorData.CH_GYRO_X : SensorData.CH_MAG_X);
+			float	x		= SensorData.readChannel( p_frames, p_offset, useMag, p_slot, first );
+			float	y		= SensorData.readChannel( p_frames, p_offset, useMag, p_slot, first + 1 );
+			float	z		= SensorData.readChannel( p_frames, p_offset, useMag, p_slot, first + 2 );
+			return (float)Math.sqrt( x * x + y * y + z * z );
+		}
+	}
+
+	/**
+	 * Fraction of the frames with each satellite valid
+	 */
+	public static class ValidFraction extends Aggregation {
+
+		private long[]	valid		= new long[Common.MAX_SENSORS];
+		private int[]	satelliteID	= new int[Common.MAX_SENSORS];		// last ID seen in the slot
+		private boolean[] seen		= new boolean[Common.MAX_SENSORS];
+
+		@Override
+		Aggregation newPartial() {
+			return new ValidFraction().init( query, useMag );
+		}
+
+		@Override
+		void add( ByteBuffer p_frames, int p_offset, int p_timestamp, int p_bitmap ) {
+			for (int b = p_bitmap & query.slots; b != 0; b &= b - 1) {
+				int slot = Integer.numberOfTrailingZeros( b );
+				if (slot >= Common.MAX_SENSORS) break;
+				valid[slot]++;
+				satelliteID[slot]	= SensorData.readSatelliteID( p_frames, p_offset, useMag, slot );
+				seen[slot]			= true;
+			}
+		}
+
+		@Override
+		void merge( Aggregation p_partial ) {
+			ValidFraction other = (ValidFraction)p_partial;
+			for (int i = 0; i < Common.MAX_SENSORS; i++) {
+				valid[i] += other.valid[i];
+				if (other.seen[i]) {
+					satelliteID[i]	= other.satelliteID[i];
+					seen[i]			= true;
+				}
+			}
+		}
+
+		@Override
+		void print( PrintStream p_out ) {
+			p_out.println( "slot\tsatellite\tvalid\tfraction" );
+			for (int i = 0; i < Common.MAX_SENSORS; i++) {
+				if ((query.slots & (1 << i)) == 0) continue;
+				p_out.println( i + "\t" + (seen[i] ? Integer.toString( satelliteID[i] ) : "-") + "\t" + valid[i] + "\t" +
+						String.format( "%.4f", (frames > 0 ? (double)valid[i] / frames : 0.0) ) );
+			}
+			p_out.println( "frames\t" + frames );
+		}
+	}
+
+	/**
+	 * Count, min, max, mean and standard deviation of a channel for each satellite (valid sensors only)
+	 */
+	public static class ChannelStatistics extends Aggregation {
+
+		private final int	channel;
+		private long[]		count	= new long[Common.MAX_SENSORS];
+		private double[]	sum		= new double[Common.MAX_SENSORS];
+		private double[]	sumSq	= new double[Common.MAX_SENSORS];
+		private float[]		min		= new float[Common.MAX_SENSORS];
+		private float[]		max		= new float[Common.MAX_SENSORS];
+
+		public ChannelStatistics( int p_channel ) {
+			channel = p_channel;
+			Arrays.fill( min, Float.POSITIVE_INFINITY );
+			Arrays.fill( max, Float.NEGATIVE_INFINITY );
+		}
+
+		@Override
+		Aggregation newPartial() {
+			return new ChannelStatistics( channel ).init( query, useMag );
+		}
+
+		@Override
+		void add( ByteBuffer p_frames, int p_offset, int p_timestamp, int p_bitmap ) {
+			for (int b = p_bitmap & query.slots; b != 0; b &= b - 1) {
+				int slot = Integer.numberOfTrailingZeros( b );
+				if (slot >= Common.MAX_SENSORS) break;
+				float v = value( p_frames, p_offset, slot, channel );
+				count[slot]++;
+				sum[slot]	+= v;
+				sumSq[slot]	+= (double)v * v;
+				if (v < min[slot]) min[slot] = v;
+				if (v > max[slot]) max[slot] = v;
+			}
+		}
+
+		@Override
+		void merge( Aggregation p_partial ) {
+			ChannelStatistics other = (ChannelStatistics)p_partial;
+			for (int i = 0; i < Common.MAX_SENSORS; i++) {
+				count[i]	+= other.count[i];
+				sum[i]		+= other.sum[i];
+				sumSq[i]	+= other.sumSq[i];
+				min[i]		= Math.min( min[i], other.min[i] );
+				max[i]		= Math.max( max[i], other.max[i] );
+			}
+		}
+
+		@Override
+		void print( PrintStream p_out ) {
+			p_out.println( "slot\tcount\tmin\tmax\tmean\tstddev" );
+			for (int i = 0; i < Common.MAX_SENSORS; i++) {
+				if ((query.slots & (1 << i)) == 0) continue;
+				if (count[i] == 0) {
+					p_out.println( i + "\t0\t-\t-\t-\t-" );
+					continue;
+				}
+				double mean		= sum[i] / count[i];
+				double variance	= Math.max( 0.0, sumSq[i] / count[i] - mean * mean );
+				p_out.println( i + "\t" + count[i] + "\t" + min[i] + "\t" + max[i] + "\t" +
+						String.format( "%.4f\t%.4f", mean, Math.sqrt( variance ) ) );
+			}
+		}
+	}
+
+	/**
+	 * Max of a channel for each satellite in each time bucket (e.g. max accel magnitude per minute).
+	 * The buckets are kept in an open addressing table of primitive arrays.
+	 */
+	public static class BucketMax extends Aggregation {
+
+		private final int	channel;
+		private final int	bucketWidth;			// in hub timestamp units
+		private int			size		= 0;
+		private int[]		keys		= new int[64];
+		private boolean[]	used		= new boolean[64];
+		private float[]		max			= new float[64 * Common.MAX_SENSORS];
+
+		public BucketMax( int p_channel, int p_bucketWidth ) {
+			channel		= p_channel;
+			bucketWidth	= Math.max( 1, p_bucketWidth );
+			Arrays.fill( max, Float.NEGATIVE_INFINITY );
+		}
+
+		@Override
+		Aggregation newPartial() {
+			return new BucketMax( channel, bucketWidth ).init( query, useMag );
+		}
+
+		@Override
+		void add( ByteBuffer p_frames, int p_offset, int p_timestamp, int p_bitmap ) {
+			int bucket = slot( Math.floorDiv( p_timestamp, bucketWidth ) ) * Common.MAX_SENSORS;
+			for (int b = p_bitmap & query.slots; b != 0; b &= b - 1) {
+				int s = Integer.numberOfTrailingZeros( b );
+				if (s >= Common.MAX_SENSORS) break;
+				float v = value( p_frames, p_offset, s, channel );
+				if (v > max[bucket + s]) max[bucket + s] = v;
+			}
+		}
+
+		@Override
+		void merge( Aggregation p_partial ) {
+			BucketMax other = (BucketMax)p_partial;
+			for (int i = 0; i < other.keys.length; i++) {
+				if (!other.used[i]) continue;
+				int bucket = slot( other.keys[i] ) * Common.MAX_SENSORS;
+				for (int s = 0; s < Common.MAX_SENSORS; s++) {
+					max[bucket + s] = Math.max( max[bucket + s], other.max[i * Common.MAX_SENSORS + s] );
+				}
+			}
+		}
+
+		@Override
+		void print( PrintStream p_out ) {
+			int[] sorted = new int[size];
+			for (int i = 0, n = 0; i < keys.length; i++) {
+				if (used[i]) sorted[n++] = keys[i];
+			}
+			Arrays.sort( sorted );
+
+			StringBuilder sb = new StringBuilder( "from" );
+			for (int s = 0; s < Common.MAX_SENSORS; s++) {
+				if ((query.slots & (1 << s)) != 0) sb.append( "\tslot" ).append( s );
+			}
+			p_out.println( sb );
+			for (int key : sorted) {
+				int bucket = slot( key ) * Common.MAX_SENSORS;
+				sb.setLength( 0 );
+				sb.append( (long)key * bucketWidth );
+				for (int s = 0; s < Common.MAX_SENSORS; s++) {
+					if ((query.slots & (1 << s)) == 0) continue;
+					float v = max[bucket + s];
+					sb.append( '\t' ).append( v == Float.NEGATIVE_INFINITY ? "-" : Float.toString( v ) );
+				}
+				p_out.println( sb );
+			}
+		}
+
+		// slot of the bucket in the table (added if missing)
+		private int slot( int p_key ) {
+			int mask = keys.length - 1;
+			int i = (p_key * 0x9E3779B9) >>> 16 & mask;
+			while (used[i]) {
+				if (keys[i] == p_key) return i;
+				i = (i + 1) & mask;
+			}
+			if (2 * (size + 1) > keys.length) {
+				grow();
+				return slot( p_key );
+			}
+			used[i] = true;
+			keys[i] = p_key;
+			size++;
+			return i;
+		}
+
+		private void grow() {
+			int[]		oldKeys	= keys;
+			boolean[]	oldUsed	= used;
+			float[]		oldMax	= max;
+			keys	= new int[oldKeys.length * 2];
+			used	= new boolean[oldKeys.length * 2];
+			max		= new float[keys.length * Common.MAX_SENSORS];
+			Arrays.fill( max, Float.NEGATIVE_INFINITY );
+			size	= 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (!oldUsed[i]) continue;
+				System.arraycopy( oldMax, i * Common.MAX_SENSORS, max, slot( oldKeys[i] ) * Common.MAX_SENSORS, Common.MAX_SENSORS );
+			}
+		}
+	}
+
+	/*
+	 * local variables
+	 */
+	private final int	threads;
+	private final int	chunkBytes;
+	private long		numFrames		= 0;		// frames accepted by the query
+	private long		bytesRead		= 0;
+	private int			skippedChunks	= 0;		// chunks out of the time range, not read
+
+	/*
+	 * Constructor
+	 */
+	public DumpScan( int p_threads, int p_chunkBytes ) {
+		threads		= (p_threads > 0 ? p_threads : Runtime.getRuntime().availableProcessors());
+		chunkBytes	= (p_chunkBytes > 0 ? p_chunkBytes : Common.CONVERTER_CHUNK_BYTES);
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public long getNumFrames()		{ return numFrames; }
+
+	public long getBytesRead()		{ return bytesRead; }
+
+	public int getSkippedChunks()	{ return skippedChunks; }
+
+	/**
+	 * Scan the dump: p_aggregation receives the merged result.
+	 */
+	public void scan( String p_dump, Query p_query, Aggregation p_aggregation ) throws IOException {
+
+		ForkJoinPool pool = new ForkJoinPool( threads );
+
+		try (DumpChunks in = new DumpChunks( p_dump, chunkBytes )) {
+
+			Aggregation	result		= p_aggregation.init( p_query, in.isUseMag() );
+			int			frameBytes	= in.getFrameBytes();
+			DumpIndex	index		= (in.getFormat() == DumpChunks.FORMAT_TEXT && p_query.hasTimeRange() ? DumpIndex.load( p_dump ) : null);
+
+			List<ForkJoinTask<Aggregation>>	tasks	= new ArrayList<ForkJoinTask<Aggregation>>();
+			for (DumpChunks.Chunk chunk : in.getChunks()) {
+
+				if (index != null && isOutOfRange( index, chunk, p_query )) {
+					skippedChunks++;
+					continue;
+				}
+				bytesRead += chunk.getLength();
+
+				tasks.add( pool.submit( () -> {
+					ByteBuffer	frames	= in.decode( chunk, inflaters.get(), p_query );
+					Aggregation	partial	= result.newPartial();
+					for (int pos = 0; pos + frameBytes <= frames.limit(); pos += frameBytes) {
+						partial.add( frames, pos, SensorData.readTimestamp( frames, pos ), SensorData.readBitmap( frames, pos ) );
+					}
+					partial.frames = frames.limit() / frameBytes;
+					return partial;
+				} ) );
+			}
+
+			for (ForkJoinTask<Aggregation> task : tasks) {
+				Aggregation partial = task.join();
+				result.frames += partial.frames;
+				result.merge( partial );
+			}
+			numFrames = result.frames;
+
+		} catch (RuntimeException e) {
+			// an IOException of a task comes back wrapped by join()
+			throw Tasks.rethrow( e );
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// with increasing timestamps, the timestamps of a chunk are between those of the index entries around it
+	private static boolean isOutOfRange( DumpIndex p_index, DumpChunks.Chunk p_chunk, Query p_query ) {
+		int before	= p_index.findOffset( p_chunk.getOffset() );
+		int after	= p_index.findOffset( p_chunk.getOffset() + p_chunk.getLength() - 1 ) + 1;
+		int minTs	= (before >= 0 ? p_index.getTimestamp( before ) : Integer.MIN_VALUE);
+		int maxTs	= (after < p_index.size() ? p_index.getTimestamp( after ) : Integer.MAX_VALUE);
+		return maxTs < p_query.fromTimestamp || minTs > p_query.toTimestamp;
+	}
+
+	private static int channel( String p_name ) {
+		if (p_name.equalsIgnoreCase( "accel" )) return CH_ACCEL_MAGNITUDE;
+		if (p_name.equalsIgnoreCase( "gyro" )) return CH_GYRO_MAGNITUDE;
+		if (p_name.equalsIgnoreCase( "mag" )) return CH_MAG_MAGNITUDE;
+		int ch = SensorData.channelOf( p_name );
+		if (ch >= 0) return ch;
+		throw new IllegalArgumentException( "Unknown channel " + p_name );
+	}
+
+	private static int bitmap( String p_slots ) {
+		int ret = 0;
+		for (String slot : p_slots.split( "," )) ret |= 1 << Integer.parseInt( slot.trim() );
+		return ret;
+	}
+
+	private static void usage() {
+		System.err.println("usage: java DumpScan dump aggregation [options]");
+		System.err.println("  aggregations: valid                    fraction of frames with each satellite valid");
+		System.err.println("                stats channel            count/min/max/mean/stddev of a channel per satellite");
+		System.err.println("                max channel bucketWidth  max of a channel per satellite per time bucket");
+		System.err.println("  channels:     accel_X .. quat_Z, or accel, gyro, mag for the vector magnitude");
+		System.err.println("  options:      -hub id -from timestamp -to timestamp -slots 0,3,5");
+		System.err.println("                -all 0,1 (all valid) -any 2,3 (any valid) -threads n");
+		System.exit(1);
+	}
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) usage();
+
+		Aggregation	aggregation	= null;
+		Query		query		= new Query();
+		int			threads		= 0;
+		int			i			= 2;
+
+		try {
+			if (args[1].equals("valid")) {
+				aggregation = new ValidFraction();
+			} else if (args[1].equals("stats") && args.length > 2) {
+				aggregation = new ChannelStatistics( channel( args[2] ) );
+				i = 3;
+			} else if (args[1].equals("max") && args.length > 3) {
+				aggregation = new BucketMax( channel( args[2] ), Integer.parseInt( args[3] ) );
+				i = 4;
+			} else {
+				usage();
+			}
+
+			for (; i + 1 < args.length; i += 2) {
+				switch (args[i]) {
+					case "-hub":		query.hubID			= Integer.parseInt( args[i + 1] );	break;
+					case "-from":		query.fromTimestamp	= Integer.parseInt( args[i + 1] );	break;
+					case "-to":			query.toTimestamp	= Integer.parseInt( args[i + 1] );	break;
+					case "-slots":		query.slots			= bitmap( args[i + 1] );			break;
+					case "-all":		query.bitmapAll		= bitmap( args[i + 1] );			break;
+					case "-any":		query.bitmapAny		= bitmap( args[i + 1] );			break;
+					case "-threads":	threads				= Integer.parseInt( args[i + 1] );	break;
+					default:			usage();
+				}
+			}
+			if (i != args.length) usage();
+		} catch (IllegalArgumentException e) {
+			System.err.println( e.getMessage() );
+			usage();
+		}
+
+		DumpScan	scan	= new DumpScan( threads, 0 );
+		long		start	= System.nanoTime();
+
+		scan.scan( args[0], query, aggregation );
+		aggregation.print( System.out );
+
+		double seconds	= (System.nanoTime() - start) / 1e9;
+		double mbRead	= scan.getBytesRead() / 1048576.0;
+		System.err.println( String.format( "%d frames matched in %.2fs with %d threads: read %.1fMB (%.1fMB/s), %d chunks skipped",
+				scan.getNumFrames(), seconds, scan.threads, mbRead, mbRead / seconds, scan.getSkippedChunks() ) );
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.ultron.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import com.ultron.general.Common;
+import com.ultron.general.FrameJournal;
+import com.ultron.general.SensorData;
+import com.ultron.general.TextFrames;
+
+/**************************
+ ****************
+ * JournalRecovery - finish (or rebuild) a text dump from its write-ahead journal after a crash
+ ****************
+ **************************
+ *
+ * The dump is cut after its last complete line (a crash can leave half a line), the frame of that line is
+ * found in the journal (last frame with the same hubID and timestamp) and the frames of the journal after it
+ * are appended to the dump. With -rebuild the dump is written again from the whole journal.
+ * The journal is read up to its first damaged block (the one being written during the crash).
+ *
+ * The frames appended are not downsampled, and the sidecar indexes of the dump are not updated.
+ */
+public class JournalRecovery {
+
+	private static final int	TAIL_READ_BYTES		= 1 << 16;
+
+	/*
+	 * local variables
+	 */
+	private final String	dumpFileName;
+	private final String	journalFileName;
+	private long			cutBytes		= 0;		// bytes of the half written line removed from the dump
+	private long			journalFrames	= 0;
+	private long			appendedFrames	= 0;
+	private boolean			journalDamaged	= false;
+
+	/*
+	 * Constructor
+	 */
+	public JournalRecovery( String p_dumpFileName ) {
+		dumpFileName	= p_dumpFileName;
+		journalFileName	= p_dumpFileName + Common.JOURNAL_EXTENSION;
+	}
+
+	/*
+	 * Public Methods
+	 */
+	public long getCutBytes()			{ return cutBytes; }
+
+	public long getJournalFrames()		{ return journalFrames; }
+
+	public long getAppendedFrames()		{ return appendedFrames; }
+
+	public boolean isJournalDamaged()	{ return journalDamaged; }
+
+	/**
+	 * Finish the dump (p_rebuild: write it again from the journal); p_check: only count what would be done.
+	 * Returns false if the last line of the dump is not a frame of the journal.
+	 */
+	public boolean recover( boolean p_rebuild, boolean p_check ) throws IOException {
+
+		File	dump		= new File( dumpFileName );
+		long	validBytes	= 0;
+		int[]	lastHeader	= null;		// hubID, timestamp, bitmap of the last complete line
+
+		if (!p_rebuild && dump.exists()) {
+			try (FileChannel channel = FileChannel.open( dump.toPath(), StandardOpenOption.READ )) {
+				validBytes	= endOfLastLine( channel, channel.size() );
+				lastHeader	= lastLineHeader( channel, validBytes );
+				cutBytes	= channel.size() - validBytes;
+			}
+		}
+
+		if (validBytes > 0 && lastHeader == null) return false;
+
+		// frames of the journal up to the one of the last line
+		long skip = 0;
+		if (lastHeader != null) {
+			long match = -1;
+			try (FrameJournal.Reader journal = new FrameJournal.Reader( journalFileName )) {
+				long n = 0;
+				for (ByteBuffer block = journal.nextBlock(); block != null; block = journal.nextBlock()) {
+					for (int offset = 0; offset < block.limit(); offset += journal.getFrameBytes(), n++) {
+						if (SensorData.readHubID( block, offset ) == lastHeader[0] && SensorData.readTimestamp( block, offset ) == lastHeader[1]) match = n;
+					}
+				}
+			}
+			if (match < 0) return false;
+			skip = match + 1;
+		}
+
+		if (!p_check) {
+			try (FileChannel channel = FileChannel.open( dump.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE )) {
+				channel.truncate( validBytes );
+			}
+		}
+
+		// append the frames after it
+		try (FrameJournal.Reader	journal	= new FrameJournal.Reader( journalFileName );
+			 OutputStream			out		= (p_check ? null : new BufferedOutputStream( new FileOutputStream( dump, true ), TAIL_READ_BYTES ))) {
+
+			byte[]			frame	= new byte[journal.getFrameBytes()];
+			StringBuilder	sb		= new StringBuilder();
+			String			newLine	= System.lineSeparator();		// like the PrintStream of the writer
+
+			for (ByteBuffer block = journal.nextBlock(); block != null; block = journal.nextBlock()) {
+				while (block.hasRemaining()) {
+					block.get( frame );
+					if (journalFrames++ < skip) continue;
+					appendedFrames++;
+					if (out == null) continue;
+					sb.setLength( 0 );
+					TextFrames.format( frame, journal.isUseMag(), sb );
+					out.write( sb.append( newLine ).toString().getBytes( StandardCharsets.US_ASCII ) );
+				}
+			}
+			journalDamaged = journal.isDamaged();
+		}
+		return true;
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// position after the last '\n' of the file (0 if none)
+	private static long endOfLastLine( FileChannel p_channel, long p_end ) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate( TAIL_READ_BYTES );
+		for (long end = p_end; end > 0; ) {
+			long start = Math.max( 0, end - TAIL_READ_BYTES );
+			buf.clear();
+			buf.limit( (int)(end - start) );
+			while (buf.hasRemaining() && p_channel.read( buf, start + buf.position() ) >= 0) { }
+			for (int i = buf.position() - 1; i >= 0; i--) {
+				if (buf.get( i ) == '\n') return start + i + 1;
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	// header of the line ending at p_end (null if there is no line or it is not a frame)
+	private static int[] lastLineHeader( FileChannel p_channel, long p_end ) throws IOException {
+		if (p_end == 0) return null;
+		long	start	= endOfLastLine( p_channel, p_end - 1 );
+		int		length	= (int)Math.min( p_end - start, TAIL_READ_BYTES );
+		byte[]	line	= new byte[length];
+		ByteBuffer buf	= ByteBuffer.wrap( line );
+		while (buf.hasRemaining() && p_channel.read( buf, start + buf.position() ) >= 0) { }
+		int[] header = new int[3];
+		return (TextFrames.parseHeader( line, 0, length, header ) ? header : null);
+	}
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.err.println("usage: java JournalRecovery dumpFile [-rebuild] [-check]");
+			System.err.println("       finishes the text dump with the frames of dumpFile" + Common.JOURNAL_EXTENSION + " that are not in it");
+			System.err.println("       -rebuild: write the whole dump again from the journal");
+			System.err.println("       -check:   only report what would be done");
+			System.exit(1);
+		}
+
+		boolean rebuild = false, check = false;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals( "-rebuild" ))		rebuild = true;
+			else if (args[i].equals( "-check" ))	check = true;
+		}
+		if (!Paths.get( args[0] + Common.JOURNAL_EXTENSION ).toFile().exists()) {
+			System.err.println( "No journal " + args[0] + Common.JOURNAL_EXTENSION );
+			System.exit(1);
+		}
+
+		JournalRecovery recovery = new JournalRecovery( args[0] );
+		if (!recovery.recover( rebuild, check )) {
+			System.err.println( "The last line of " + args[0] + " is not in the journal: use -rebuild" );
+			System.exit(2);
+		}
+
+		System.out.println( (check ? "Would cut " : "Cut ") + recovery.getCutBytes() + " bytes of a half written line, " +
+				(check ? "would append " : "appended ") + recovery.getAppendedFrames() + " of " + recovery.getJournalFrames() + " frames of the journal" );
+		if (recovery.isJournalDamaged()) System.out.println( "The journal ends with a damaged block (written during the crash): ignored" );
+	}
+
+}
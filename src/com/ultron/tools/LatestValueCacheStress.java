@@ -0,0 +1,153 @@
+package com.ultron.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ultron.general.Common;
+import com.ultron.general.LatestValueCache;
+import com.ultron.general.SensorData;
+
+/**************************
+ ****************
+ * LatestValueCacheStress - torn read check of the sequence locks of LatestValueCache
+ ****************
+ **************************
+ *
+ * One thread updates the cache with synthetic frames of a few hubs while reader threads read random slots
+ * as fast as they can. Every value of a record is derived from the frame number (satelliteID, timestamp,
+ * every channel), and one slot per frame is not valid now and then, so a reading mixing two updates is seen:
+ * - satelliteID, channels and timestamp of the values not from the same frame
+ * - timestamp of the values after the timestamp of the frame, or different from it while valid
+ * - timestamp of a slot going back for a reader
+ * Exits with 1 if a torn reading was seen.
+ */
+public class LatestValueCacheStress {
+
+	private static final int	VALUE_MASK	= 0xFFFFF;		// floats exact up to 2^24
+
+	/**
+	 * Reader: random slots until the writer is done
+	 */
+	private static class Reader extends Thread {
+		private final LatestValueCache	cache;
+		private final int				numHubs;
+		private final long[]			lastTimestamp	= new long[Common.MAX_HUBS * Common.MAX_SENSORS];
+		private volatile boolean		done			= false;
+		private long					numReads		= 0;
+		private final AtomicLong		numTorn;
+
+		Reader( int p_index, LatestValueCache p_cache, int p_numHubs, AtomicLong p_numTorn ) {
+			cache	= p_cache;
+			numHubs	= p_numHubs;
+			numTorn	= p_numTorn;
+			setName( "Stress reader " + p_index );
+			setDaemon( true );
+		}
+
+		@Override
+		public void run() {
+			LatestValueCache.Reading	reading	= new LatestValueCache.Reading();
+			int							r		= (int)getId();
+			while (!done) {
+				r = r * 1103515245 + 12345;
+				int hub		= ((r >>> 8) & 0xFFFF) % numHubs;
+				int slot	= ((r >>> 8) >>> 16) % Common.MAX_SENSORS;
+				if (!cache.read( hub + 1, slot, reading ) || reading.nanos == 0) continue;
+				numReads++;
+
+				int idx = hub * Common.MAX_SENSORS + slot;
+				if (!consistent( reading ) || reading.timestamp < lastTimestamp[idx]) {
+					if (numTorn.incrementAndGet() <= 10) System.err.println( "torn: " + reading );
+				}
+				lastTimestamp[idx] = reading.timestamp;
+			}
+		}
+
+		private static boolean consistent( LatestValueCache.Reading p_reading ) {
+			int ts = p_reading.timestamp;
+			if (p_reading.satelliteID != ts) return false;
+			if (ts > p_reading.frameTimestamp || (p_reading.valid && ts != p_reading.frameTimestamp)) return false;
+			for (int c = 0; c < SensorData.NUM_CHANNELS; c++) {
+				if (p_reading.channels[c] != value( ts, c )) return false;
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Main method
+	 */
+	public static void main(String[] args) throws InterruptedException {
+
+		if (args.length > 0 && args[0].startsWith( "-h" )) {
+			System.err.println("usage: java LatestValueCacheStress [-updates n] [-readers n] [-hubs n]");
+			System.err.println("       n frames (default 5000000) of n hubs (default 2, at most Common.MAX_HUBS) read by n threads (default 2)");
+			System.exit(1);
+		}
+
+		int		numUpdates	= 5000000;
+		int		numReaders	= 2;
+		int		numHubs		= 2;
+		for (int i = 0; i + 1 < args.length; i++) {
+			if (args[i].equals( "-updates" ))		numUpdates = Integer.parseInt( args[++i] );
+			else if (args[i].equals( "-readers" ))	numReaders = Integer.parseInt( args[++i] );
+			else if (args[i].equals( "-hubs" ))		numHubs = Math.min( Common.MAX_HUBS, Integer.parseInt( args[++i] ) );
+		}
+
+		LatestValueCache	cache	= new LatestValueCache( true );
+		AtomicLong			numTorn	= new AtomicLong();
+		Reader[]			readers	= new Reader[numReaders];
+
+		// every hub is known before the readers start
+		byte[] frame = new byte[SensorData.BYTES_WITH_MAG];
+		for (int h = 0; h < numHubs; h++) cache.update( frame( frame, h + 1, 0 ) );
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numReaders; i++) {
+			readers[i] = new Reader( i, cache, numHubs, numTorn );
+			readers[i].start();
+		}
+		for (int k = 1; k <= numUpdates; k++) cache.update( frame( frame, k % numHubs + 1, k ) );
+
+		long numReads = 0;
+		for (Reader reader : readers) {
+			reader.done = true;
+			reader.join();
+			numReads += reader.numReads;
+		}
+
+		System.out.println( String.format( "%d updates, %d reads by %d readers in %.2fs: %d torn reads", numUpdates, numReads, numReaders,
+				(System.nanoTime() - start) / 1e9, numTorn.get() ) );
+		if (numTorn.get() > 0) System.exit(1);
+	}
+
+	/*
+	 * Private methods
+	 */
+
+	// channel p_channel of the frame p_frameNumber
+	private static float value( int p_frameNumber, int p_channel ) {
+		int v = (p_frameNumber + p_channel) & VALUE_MASK;
+		return (p_channel >= SensorData.CH_QUAT_W ? (float)v : (short)v);
+	}
+
+	// frame p_frameNumber of hub p_hubID: every slot valid but one every 3 frames
+	private static byte[] frame( byte[] p_frame, int p_hubID, int p_frameNumber ) {
+		ByteBuffer	buf		= ByteBuffer.wrap( p_frame ).order( ByteOrder.LITTLE_ENDIAN );
+		int			bitmap	= (1 << Common.MAX_SENSORS) - 1;
+		if (p_frameNumber % 3 == 0) bitmap &= ~(1 << (p_frameNumber / 3 % Common.MAX_SENSORS));
+		buf.putInt( 0, p_hubID ).putInt( 4, 0 ).putInt( 8, p_frameNumber ).putInt( 12, bitmap );
+
+		for (int s = 0; s < Common.MAX_SENSORS; s++) {
+			buf.putInt( SensorData.channelOffset( true, s, SensorData.CH_ACCEL_X ) - Integer.BYTES, p_frameNumber );
+			for (int c = 0; c < SensorData.NUM_CHANNELS; c++) {
+				int offset = SensorData.channelOffset( true, s, c );
+				if (c >= SensorData.CH_QUAT_W)	buf.putFloat( offset, value( p_frameNumber, c ) );
+				else							buf.putShort( offset, (short)value( p_frameNumber, c ) );
+			}
+		}
+		return p_frame;
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.ultron.tools;
+
+import java.io.IOException;
+
+/**
+ * Helpers shared by the tools running their chunks in a ForkJoinPool.
+ */
+final class Tasks {
+
+	private Tasks() {
+	}
+
+	/**
+	 * Rethrow the failure of a task as the IOException that caused it, if any.
+	 * join() wraps the exception of a task once or more (RuntimeException -> RuntimeException -> IOException
+	 * on JDK 17), so the whole cause chain is searched; any other failure is rethrown as is.
+	 */
+	static IOException rethrow( RuntimeException p_e ) throws IOException {
+		for (Throwable t = p_e; t != null; t = t.getCause()) {
+			if (t instanceof IOException) throw (IOException)t;
+		}
+		throw p_e;
+	}
+
+}
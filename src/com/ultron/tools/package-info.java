@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * Offline tools working on the dump files.
+ *
+ */
+package com.ultron.tools;
\ No newline at end of file